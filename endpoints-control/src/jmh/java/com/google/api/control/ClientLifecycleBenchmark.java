@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.api.control.transport.InMemoryControlTransport;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the throughput of a running {@link Client} scales with the number of request
+ * threads, i.e, whether requests contend on its lifecycle.
+ *
+ * Each operation is measured with 1, 4, 16 and 64 threads sharing one client. With a lock-free
+ * running check the total throughput should grow with the thread count, up to the number of
+ * cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientLifecycleBenchmark {
+  private static final String SERVICE_NAME = "benchmark.googleapis.com";
+
+  private Client client;
+  private CheckRequest check;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException, IOException {
+    client = new Client.Builder(SERVICE_NAME)
+        .setControlTransport(new InMemoryControlTransport())
+        .setStatsLogFrequency(Client.DO_NOT_LOG_STATS)
+        .build();
+    client.start();
+    check = CheckRequest.newBuilder()
+        .setServiceName(SERVICE_NAME)
+        .setOperation(Operation.newBuilder()
+            .setConsumerId("project:benchmark")
+            .setOperationName("benchmarkOperation"))
+        .build();
+    client.check(check); // fill the cache
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.stop();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void startIfStopped_01Thread() {
+    client.startIfStopped();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void startIfStopped_04Threads() {
+    client.startIfStopped();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void startIfStopped_16Threads() {
+    client.startIfStopped();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void startIfStopped_64Threads() {
+    client.startIfStopped();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public CheckResponse cachedCheck_01Thread() {
+    return client.check(check);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public CheckResponse cachedCheck_04Threads() {
+    return client.check(check);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public CheckResponse cachedCheck_16Threads() {
+    return client.check(check);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public CheckResponse cachedCheck_64Threads() {
+    return client.check(check);
+  }
+}
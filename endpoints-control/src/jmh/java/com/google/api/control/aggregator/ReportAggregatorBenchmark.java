@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link ReportRequestAggregator#report} when request threads update
+ * the cache under its lock with the ring buffer ingestion mode, and with one or several shards,
+ * while a background thread flushes the aggregator as the client's scheduler would.
+ *
+ * An {@code ingestionBufferSize} of 0 measures the locked path. Each mode is measured with 1, 4,
+ * 16 and 64 threads sharing one aggregator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReportAggregatorBenchmark {
+  private static final String SERVICE_NAME = "benchmark.googleapis.com";
+  private static final int FLUSH_INTERVAL_MILLIS = 10;
+  private static final int DISTINCT_OPERATIONS = 256;
+
+  @Param({"0", "4096"})
+  public int ingestionBufferSize;
+
+  @Param({"1", "8"})
+  public int shardCount;
+
+  private ReportRequestAggregator aggregator;
+  private ReportRequest[] requests;
+  private ScheduledExecutorService flusher;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    aggregator = new ReportRequestAggregator(SERVICE_NAME,
+        new ReportAggregationOptions(ReportAggregationOptions.DEFAULT_NUM_ENTRIES,
+            FLUSH_INTERVAL_MILLIS, -1, -1, ingestionBufferSize, new GuavaCacheFactory(),
+            shardCount));
+    requests = new ReportRequest[DISTINCT_OPERATIONS];
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = ReportRequest.newBuilder()
+          .setServiceName(SERVICE_NAME)
+          .addOperations(Operation.newBuilder()
+              .setConsumerId("project:benchmark")
+              .setOperationName("benchmarkOperation" + i))
+          .build();
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor();
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        aggregator.flush();
+      }
+    }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    flusher.shutdownNow();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean report_01Thread() {
+    return report();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean report_04Threads() {
+    return report();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public boolean report_16Threads() {
+    return report();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public boolean report_64Threads() {
+    return report();
+  }
+
+  private boolean report() {
+    return aggregator.report(requests[ThreadLocalRandom.current().nextInt(requests.length)]);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.MetricValue;
+import com.google.api.servicecontrol.v1.MetricValueSet;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of signing requests and metric values with MD5 and with the default
+ * {@link Signing#getHashFunction() hash function}, and of keeping the signatures as hex strings
+ * rather than as binary {@link HashCode}s.
+ *
+ * Run with {@code -prof gc} to compare the bytes allocated per signature. On a 64-bit JVM with
+ * compressed references, a 128-bit {@code HashCode} key retains about 48 bytes, the 32 character
+ * hex string it replaces about 72.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SigningBenchmark {
+  @Param({"md5", "murmur3_128"})
+  public String hashFunction;
+
+  private HashFunction defaultFunction;
+  private CheckRequest checkRequest;
+  private MetricValue metricValue;
+
+  @Setup(Level.Trial)
+  @SuppressWarnings("deprecation") // MD5 is measured as the previous signing function
+  public void setUp() {
+    defaultFunction = Signing.getHashFunction();
+    Signing.setHashFunction("md5".equals(hashFunction) ? Hashing.md5() : Hashing.murmur3_128());
+    metricValue = MetricValue.newBuilder()
+        .putLabels("/credential_id", "apikey:AIzaSyBenchmarkBenchmarkBenchmarkBench")
+        .putLabels("/protocol", "http")
+        .putLabels("/response_code", "200")
+        .putLabels("/response_code_class", "2xx")
+        .setInt64Value(1)
+        .build();
+    checkRequest = CheckRequest.newBuilder()
+        .setServiceName("benchmark.googleapis.com")
+        .setOperation(Operation.newBuilder()
+            .setConsumerId("api_key:AIzaSyBenchmarkBenchmarkBenchmarkBench")
+            .setOperationName("google.example.benchmark.v1.Benchmark.GetShelf")
+            .putLabels("servicecontrol.googleapis.com/caller_ip", "192.0.2.1")
+            .putLabels("servicecontrol.googleapis.com/user_agent", "ESP")
+            .addMetricValueSets(MetricValueSet.newBuilder()
+                .setMetricName("serviceruntime.googleapis.com/api/consumer/request_count")
+                .addMetricValues(metricValue)))
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Signing.setHashFunction(defaultFunction);
+  }
+
+  @Benchmark
+  public String signCheckRequest_hexKey() {
+    return CheckRequestAggregator.sign(checkRequest).toString();
+  }
+
+  @Benchmark
+  public HashCode signCheckRequest_binaryKey() {
+    return CheckRequestAggregator.sign(checkRequest);
+  }
+
+  @Benchmark
+  public String signMetricValue_hexKey() {
+    return MetricValues.sign(metricValue).toString();
+  }
+
+  @Benchmark
+  public HashCode signMetricValue_binaryKey() {
+    return MetricValues.sign(metricValue);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Random;
+
+/**
+ * AdaptiveFlushInterval chooses the delay before the next scheduled flush of a cache.
+ *
+ * It tracks the arrival rate of operations with an exponentially weighted moving average, and
+ * shortens the interval as the rate rises so that each flush carries about
+ * {@code targetOperations}: busy instances flush smaller batches more often instead of bursting.
+ * The delay never exceeds the configured interval, nor drops below an eighth of it.
+ *
+ * Each delay is also shortened by a random jitter of up to 10%, so that a fleet of instances that
+ * started together does not flush in lockstep.
+ *
+ * Not thread-safe; it's used by the thread that runs the scheduled flushes.
+ */
+final class AdaptiveFlushInterval {
+  private static final double SMOOTHING = 0.3;
+  private static final double MAX_JITTER = 0.1;
+  private static final int MIN_INTERVAL_DIVISOR = 8;
+
+  private final int maxIntervalMillis;
+  private final int minIntervalMillis;
+  private final long targetOperations;
+  private final Random random;
+  private double operationsPerMilli = -1;
+
+  /**
+   * @param maxIntervalMillis the configured flush interval, used while the arrival rate is low
+   * @param targetOperations the number of operations each flush should carry
+   * @param random the source of the jitter
+   */
+  AdaptiveFlushInterval(int maxIntervalMillis, long targetOperations, Random random) {
+    Preconditions.checkArgument(maxIntervalMillis > 0, "the interval must be positive");
+    Preconditions.checkArgument(targetOperations > 0, "the target must be positive");
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.minIntervalMillis = Math.max(1, maxIntervalMillis / MIN_INTERVAL_DIVISOR);
+    this.targetOperations = targetOperations;
+    this.random = Preconditions.checkNotNull(random);
+  }
+
+  /**
+   * Records the operations that arrived since the last flush, and chooses the delay until the
+   * next one.
+   *
+   * @param operations the number of operations that arrived since the last flush
+   * @param elapsedMillis the time since the last flush
+   * @return the delay in milliseconds before the next flush
+   */
+  int next(long operations, long elapsedMillis) {
+    if (elapsedMillis > 0) {
+      double rate = 1.0 * operations / elapsedMillis;
+      operationsPerMilli = operationsPerMilli < 0
+          ? rate
+          : SMOOTHING * rate + (1 - SMOOTHING) * operationsPerMilli;
+    }
+    double interval = maxIntervalMillis;
+    if (operationsPerMilli > 0) {
+      interval = Math.min(interval, targetOperations / operationsPerMilli);
+    }
+    interval *= 1 - MAX_JITTER * random.nextDouble();
+    return (int) Math.max(minIntervalMillis, Math.min(maxIntervalMillis, interval));
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.api.client.util.Clock;
+import com.google.api.control.aggregator.CheckRequestAggregator;
+import com.google.api.control.aggregator.QuotaRequestAggregator;
+import com.google.api.control.aggregator.Signing;
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.HashCode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * CacheSnapshot persists the cached check and quota responses of a {@link Client} in a local file,
+ * so that a restarted instance starts with warm caches instead of sending the requests of all its
+ * consumers to service control at once.
+ *
+ * The client saves a snapshot periodically and when it stops, and restores it when it starts.
+ * Each response is saved with its remaining time to live; when loading, the time elapsed since
+ * the snapshot was saved is deducted, and stale responses are discarded. A snapshot that was
+ * saved for a different service or service config id, or whose signatures were computed with a
+ * different {@link Signing#getHashFunction() hash function}, is discarded as a whole, as is one
+ * that fails its checksum.
+ *
+ * Snapshots are written to a temporary file that then replaces the previous one, so a crash
+ * while saving leaves the previous snapshot intact.
+ *
+ * Thread-safe. One file must only be used by one instance at a time.
+ */
+public class CacheSnapshot {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The default interval between the snapshots saved while the client is running.
+   */
+  public static final int DEFAULT_INTERVAL_MILLIS = 60000;
+
+  private static final int MAGIC = 0x45534e50; // "ESNP"
+  private static final int VERSION = 2;
+  private static final int CRC_BYTES = 8;
+
+  private final File file;
+  private final String serviceConfigId;
+  private final int intervalMillis;
+  private final Clock clock;
+
+  /**
+   * Constructor that uses the default interval.
+   *
+   * @param file the file that holds the snapshot
+   * @param serviceConfigId the id of the service config in use; snapshots saved with another id
+   *        are discarded
+   */
+  public CacheSnapshot(File file, String serviceConfigId) {
+    this(file, serviceConfigId, DEFAULT_INTERVAL_MILLIS, Clock.SYSTEM);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file the file that holds the snapshot
+   * @param serviceConfigId the id of the service config in use; snapshots saved with another id
+   *        are discarded
+   * @param intervalMillis the interval between the snapshots saved while the client is running
+   * @param clock determines the time elapsed between saving and loading a snapshot
+   */
+  public CacheSnapshot(File file, String serviceConfigId, int intervalMillis, Clock clock) {
+    Preconditions.checkArgument(intervalMillis > 0, "intervalMillis must be positive");
+    this.file = Preconditions.checkNotNull(file, "file must be non-null");
+    this.serviceConfigId =
+        Preconditions.checkNotNull(serviceConfigId, "serviceConfigId must be non-null");
+    this.intervalMillis = intervalMillis;
+    this.clock = Preconditions.checkNotNull(clock, "clock must be non-null");
+  }
+
+  /**
+   * @return the interval between the snapshots saved while the client is running
+   */
+  public int getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Saves a snapshot, replacing the previous one.
+   *
+   * @param serviceName the service whose responses are saved
+   * @param checks the cached check responses
+   * @param quotas the cached quota responses
+   * @throws IOException if the snapshot could not be written
+   */
+  public synchronized void save(String serviceName,
+      List<CheckRequestAggregator.SnapshotEntry> checks,
+      List<QuotaRequestAggregator.SnapshotEntry> quotas) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(serviceName);
+    out.writeUTF(serviceConfigId);
+    out.writeUTF(Signing.getHashFunction().toString());
+    out.writeLong(clock.currentTimeMillis());
+    out.writeInt(checks.size());
+    for (CheckRequestAggregator.SnapshotEntry entry : checks) {
+      writeBytes(out, entry.getSignature().asBytes());
+      out.writeLong(entry.getRemainingMillis());
+      out.writeLong(entry.getAgeMillis());
+      writeBytes(out, entry.getResponse().toByteArray());
+    }
+    out.writeInt(quotas.size());
+    for (QuotaRequestAggregator.SnapshotEntry entry : quotas) {
+      writeBytes(out, entry.getSignature().asBytes());
+      out.writeLong(entry.getRemainingMillis());
+      out.writeLong(entry.getAgeMillis());
+      writeBytes(out, entry.getRequest().toByteArray());
+      writeBytes(out, entry.getResponse().toByteArray());
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    out.flush();
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("could not create the snapshot directory " + parent);
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    Files.write(tmp.toPath(), bytes.toByteArray());
+    try {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    log.atFine().log("saved %d check and %d quota responses to %s", checks.size(),
+        quotas.size(), file);
+  }
+
+  /**
+   * Loads the last snapshot saved for {@code serviceName}.
+   *
+   * @param serviceName the service whose responses are loaded
+   * @return the responses that are not stale yet, with their remaining time to live and age
+   *         adjusted for the time elapsed since they were saved. Empty if there is no snapshot,
+   *         or it was saved for another service or service config id
+   * @throws IOException if the snapshot could not be read or is corrupt
+   */
+  public synchronized Contents load(String serviceName) throws IOException {
+    if (!file.isFile()) {
+      return Contents.EMPTY;
+    }
+    byte[] data = Files.readAllBytes(file.toPath());
+    if (data.length < CRC_BYTES) {
+      throw new IOException("the snapshot " + file + " is truncated");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - CRC_BYTES);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    in.skipBytes(data.length - CRC_BYTES);
+    if (in.readLong() != crc.getValue()) {
+      throw new IOException("the snapshot " + file + " is corrupt");
+    }
+    in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - CRC_BYTES));
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("the file " + file + " is not a supported snapshot");
+    }
+    String savedServiceName = in.readUTF();
+    String savedConfigId = in.readUTF();
+    String savedHashFunction = in.readUTF();
+    if (!savedServiceName.equals(serviceName) || !savedConfigId.equals(serviceConfigId)) {
+      log.atInfo().log("discarding the snapshot of %s with config %s", savedServiceName,
+          savedConfigId);
+      return Contents.EMPTY;
+    }
+    if (!savedHashFunction.equals(Signing.getHashFunction().toString())) {
+      log.atInfo().log("discarding the snapshot signed with %s", savedHashFunction);
+      return Contents.EMPTY;
+    }
+    long elapsedMillis = Math.max(0, clock.currentTimeMillis() - in.readLong());
+
+    List<CheckRequestAggregator.SnapshotEntry> checks = new ArrayList<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      HashCode signature = HashCode.fromBytes(readBytes(in));
+      long remainingMillis = remaining(in.readLong(), elapsedMillis);
+      long ageMillis = in.readLong() + elapsedMillis;
+      CheckResponse response = CheckResponse.parseFrom(readBytes(in));
+      if (remainingMillis > 0) {
+        checks.add(new CheckRequestAggregator.SnapshotEntry(signature, response, remainingMillis,
+            ageMillis));
+      }
+    }
+    List<QuotaRequestAggregator.SnapshotEntry> quotas = new ArrayList<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      HashCode signature = HashCode.fromBytes(readBytes(in));
+      long remainingMillis = remaining(in.readLong(), elapsedMillis);
+      long ageMillis = in.readLong() + elapsedMillis;
+      AllocateQuotaRequest request = AllocateQuotaRequest.parseFrom(readBytes(in));
+      AllocateQuotaResponse response = AllocateQuotaResponse.parseFrom(readBytes(in));
+      if (remainingMillis > 0) {
+        quotas.add(new QuotaRequestAggregator.SnapshotEntry(signature, request, response,
+            remainingMillis, ageMillis));
+      }
+    }
+    return new Contents(checks, quotas);
+  }
+
+  private static long remaining(long remainingMillis, long elapsedMillis) {
+    return remainingMillis == Long.MAX_VALUE ? remainingMillis : remainingMillis - elapsedMillis;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+    return data;
+  }
+
+  /**
+   * Contents holds the responses of a loaded snapshot.
+   */
+  public static final class Contents {
+    static final Contents EMPTY = new Contents(
+        ImmutableList.<CheckRequestAggregator.SnapshotEntry>of(),
+        ImmutableList.<QuotaRequestAggregator.SnapshotEntry>of());
+
+    private final List<CheckRequestAggregator.SnapshotEntry> checks;
+    private final List<QuotaRequestAggregator.SnapshotEntry> quotas;
+
+    private Contents(List<CheckRequestAggregator.SnapshotEntry> checks,
+        List<QuotaRequestAggregator.SnapshotEntry> quotas) {
+      this.checks = checks;
+      this.quotas = quotas;
+    }
+
+    public List<CheckRequestAggregator.SnapshotEntry> getChecks() {
+      return checks;
+    }
+
+    public List<QuotaRequestAggregator.SnapshotEntry> getQuotas() {
+      return quotas;
+    }
+  }
+}
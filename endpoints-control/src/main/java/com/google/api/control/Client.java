@@ -31,6 +31,13 @@ import com.google.api.control.aggregator.QuotaRequestAggregator;
 import com.google.api.control.aggregator.ReportAggregationOptions;
 import com.google.api.control.aggregator.ReportRequestAggregator;
 import com.google.api.control.model.KnownLabels;
+import com.google.api.control.transport.CallDeadlines;
+import com.google.api.control.transport.CircuitBreaker;
+import com.google.api.control.transport.CircuitBreakingControlTransport;
+import com.google.api.control.transport.CircuitBreakingControlTransport.CircuitBreakerOpenException;
+import com.google.api.control.transport.ControlTransport;
+import com.google.api.control.transport.GrpcControlTransport;
+import com.google.api.control.transport.RestControlTransport;
 import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
 import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
 import com.google.api.servicecontrol.v1.CheckRequest;
@@ -38,21 +45,45 @@ import com.google.api.servicecontrol.v1.CheckResponse;
 import com.google.api.servicecontrol.v1.ReportRequest;
 import com.google.api.services.servicecontrol.v1.ServiceControl;
 import com.google.api.services.servicecontrol.v1.ServiceControlScopes;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Queues;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
 
 /**
  * Client is a package-level facade that encapsulates all service control functionality.
@@ -65,7 +96,17 @@ public class Client {
       + "done periodically after requests are served. If your API is low-traffic (below 1 query "
       + "per second), this may result in delays in reporting.";
   private static final int MAX_IDLE_TIME_SECONDS = 120;
+  private static final int SPOOL_REPLAY_INTERVAL_MILLIS = 1000;
+  private static final int MAX_SPOOL_REPLAY_BACKOFF_MILLIS = 60000;
+  private static final int MAX_SPOOL_REPLAY_BATCH = 100;
+  private static final String STATISTICS_MBEAN_DOMAIN = "com.google.api.control";
   public static final int DO_NOT_LOG_STATS = -1;
+
+  /**
+   * The default maximum number of transport calls that the asynchronous methods may have in
+   * flight at the same time.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS = 64;
   public static final SchedulerFactory DEFAULT_SCHEDULER_FACTORY = new SchedulerFactory() {
     @Override
     public Scheduler create(Ticker ticker) {
@@ -78,20 +119,78 @@ public class Client {
   private final Ticker ticker;
   private final ThreadFactory threads;
   private final SchedulerFactory schedulers;
-  private final ServiceControl transport;
-  private boolean running;
-  private boolean stopped;
-  private Scheduler scheduler;
+  private final ControlTransport transport;
+  private final AtomicReference<State> state = new AtomicReference<>(State.STOPPED);
+  private volatile Scheduler scheduler;
   private String serviceName;
   private Statistics statistics;
-  private Thread schedulerThread;
+  private ObjectName statisticsMBeanName;
+  private volatile Thread schedulerThread;
+  private volatile boolean schedulerIsSelfDriving;
   private int statsLogFrequency;
   private final Stopwatch reportStopwatch;
+  private final Semaphore inFlightTransportCalls;
+  private volatile ListeningExecutorService transportExecutor;
+  private boolean ownsTransportExecutor;
+  private FlushDispatcher flushDispatcher = FlushDispatcher.sequential();
+  private boolean ownsFlushDispatcher;
+  private final ConcurrentMap<HashCode, ListenableFuture<CheckResponse>> inFlightChecks =
+      new ConcurrentHashMap<>();
+  private ReportSpool reportSpool;
+  private CacheSnapshot cacheSnapshot;
+  private ReportRetryQueue reportRetryQueue;
+  private int spoolReplayDelayMillis = SPOOL_REPLAY_INTERVAL_MILLIS;
+  private final AtomicBoolean earlyReportFlushPending = new AtomicBoolean();
+  private final AdaptiveFlushInterval reportFlushInterval;
+  private long lastReportFlushNanos;
+  private long reportedOperationsAtLastFlush;
+  private final ReportSendQueue reportSendQueue;
+  private boolean synchronousReports = true;
 
   public Client(String serviceName, CheckAggregationOptions checkOptions,
       ReportAggregationOptions reportOptions, QuotaAggregationOptions quotaOptions,
       ServiceControl transport, ThreadFactory threads,
       SchedulerFactory schedulers, int statsLogFrequency, @Nullable Ticker ticker) {
+    this(serviceName, checkOptions, reportOptions, quotaOptions, transport, threads, schedulers,
+        statsLogFrequency, ticker, null, DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param transportExecutor runs the transport calls made by {@link #checkAsync},
+   *        {@link #allocateQuotaAsync} and {@link #reportAsync}. When not specified, a cached
+   *        thread pool using {@code threads} is created on first use, and shut down on stop
+   * @param maxInFlightTransportCalls the maximum number of asynchronous transport calls that may
+   *        be in flight; further calls fail open immediately
+   */
+  public Client(String serviceName, CheckAggregationOptions checkOptions,
+      ReportAggregationOptions reportOptions, QuotaAggregationOptions quotaOptions,
+      ServiceControl transport, ThreadFactory threads,
+      SchedulerFactory schedulers, int statsLogFrequency, @Nullable Ticker ticker,
+      @Nullable ExecutorService transportExecutor, int maxInFlightTransportCalls) {
+    this(serviceName, checkOptions, reportOptions, quotaOptions,
+        new RestControlTransport(transport), threads, schedulers, statsLogFrequency, ticker,
+        transportExecutor, maxInFlightTransportCalls);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param transport sends requests to the service control service
+   * @param transportExecutor runs the transport calls made by {@link #checkAsync},
+   *        {@link #allocateQuotaAsync} and {@link #reportAsync}. When not specified, a cached
+   *        thread pool using {@code threads} is created on first use, and shut down on stop
+   * @param maxInFlightTransportCalls the maximum number of asynchronous transport calls that may
+   *        be in flight; further calls fail open immediately
+   */
+  public Client(String serviceName, CheckAggregationOptions checkOptions,
+      ReportAggregationOptions reportOptions, QuotaAggregationOptions quotaOptions,
+      ControlTransport transport, ThreadFactory threads,
+      SchedulerFactory schedulers, int statsLogFrequency, @Nullable Ticker ticker,
+      @Nullable ExecutorService transportExecutor, int maxInFlightTransportCalls) {
+    Preconditions.checkArgument(maxInFlightTransportCalls > 0,
+        "maxInFlightTransportCalls must be positive");
     ticker = ticker == null ? Ticker.systemTicker() : ticker;
     this.checkAggregator = new CheckRequestAggregator(serviceName, checkOptions, ticker);
     this.reportAggregator = new ReportRequestAggregator(serviceName, reportOptions, null, ticker);
@@ -104,8 +203,36 @@ public class Client {
     this.scheduler  = null; // the scheduler is assigned when start is invoked
     this.schedulerThread = null;
     this.statsLogFrequency = statsLogFrequency;
-    this.statistics = new Statistics();
+    this.statistics = new Statistics(ticker, checkAggregator);
+    this.reportFlushInterval = newReportFlushInterval(reportOptions);
     this.reportStopwatch = Stopwatch.createUnstarted(ticker);
+    this.inFlightTransportCalls = new Semaphore(maxInFlightTransportCalls);
+    this.transportExecutor = transportExecutor == null
+        ? null : MoreExecutors.listeningDecorator(transportExecutor);
+    this.reportSendQueue = new ReportSendQueue(new ReportSendQueue.Sender() {
+      @Override
+      public void send(ReportRequest req, int mergedCount) {
+        statistics.coalescedReports.add(mergedCount - 1);
+        transportReport(req);
+      }
+    }, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        getTransportExecutor().execute(command);
+      }
+    }, ReportSendQueue.DEFAULT_MAX_PENDING_OPERATIONS);
+    this.checkAggregator.setRefresher(new CheckRequestAggregator.Refresher() {
+      @Override
+      public void refresh(final CheckRequest req) {
+        statistics.recachedChecks.increment();
+        submitTransportCall(new Callable<CheckResponse>() {
+          @Override
+          public CheckResponse call() {
+            return transportCheck(req);
+          }
+        }, null);
+      }
+    });
   }
 
   /**
@@ -121,33 +248,55 @@ public class Client {
    * an {@code IllegalStateError}.
    */
   public synchronized void start() {
-    if (running) {
+    if (state.get() == State.RUNNING) {
       log.atInfo().log("%s is already started", this);
       return;
     }
     log.atInfo().log("starting %s", this);
-    this.stopped = false;
-    this.running = true;
     this.reportStopwatch.reset().start();
+    this.earlyReportFlushPending.set(false);
+    this.lastReportFlushNanos = ticker.read();
+    this.reportedOperationsAtLastFlush = statistics.reportedOperations.sum();
+    registerStatisticsMBean();
+    restoreCacheSnapshot();
+    log.atInfo().log("creating a scheduler to control flushing");
+    final Scheduler owner = schedulers.create(ticker);
+    owner.setStatistics(statistics);
+    this.scheduler = owner;
+    this.schedulerIsSelfDriving = owner.isSelfDriving();
+    this.schedulerThread = null;
+    if (schedulerIsSelfDriving) {
+      // the scheduler runs its events on its own executor, no thread needs to block on it
+      state.set(State.RUNNING);
+      initializeFlushing(owner);
+      return;
+    }
     try {
       schedulerThread = threads.newThread(new Runnable() {
         @Override
         public void run() {
-          scheduleFlushes();
+          scheduleFlushes(owner);
         }
       });
+      state.set(State.RUNNING);
       // Note: this is not supported on App Engine Standard.
       schedulerThread.start();
     } catch (RuntimeException e) {
       log.atInfo().log(BACKGROUND_THREAD_ERROR);
       schedulerThread = null;
-      initializeFlushing();
+      state.set(State.RUNNING);
+      initializeFlushing(owner);
     }
   }
 
-  /** Starts processing if it hasn't already started. */
-  public synchronized void startIfStopped() {
-    if (!running) {
+  /**
+   * Starts processing if it hasn't already started.
+   *
+   * Once started, this only reads the state of the instance, so concurrent requests do not
+   * contend on a lock.
+   */
+  public void startIfStopped() {
+    if (state.get() != State.RUNNING) {
       start();
     }
   }
@@ -155,84 +304,345 @@ public class Client {
   /**
    * Stops processing.
    *
-   * Does not block waiting for processing to stop, but after this called, the scheduler thread if
-   * it's active will come to a close
+   * Sends the aggregated reports and clears the caches before returning. Does not block waiting
+   * for the scheduler thread, if it's active, to come to a close; events it still has queued are
+   * discarded when they become due. A later request restarts the instance.
    */
   public void stop() {
-    Preconditions.checkState(running, "Cannot stop if it's not running");
+    Preconditions.checkState(state.get() == State.RUNNING, "Cannot stop if it's not running");
+    stopIfCurrent(null);
+  }
 
+  /**
+   * Stops processing, unless the instance is already stopped, or {@code owner} was replaced by a
+   * restart.
+   *
+   * The state is set to {@link State#STOPPED} first, so requests that arrive while stopping wait
+   * in {@link #start()} until this completes, then restart the instance. Requests already in
+   * flight may still aggregate reports after the aggregator is cleared here; those are flushed
+   * by the next start.
+   *
+   * @param owner the scheduler on whose behalf to stop, or {@code null} to stop unconditionally
+   */
+  private void stopIfCurrent(@Nullable Scheduler owner) {
+    ReportRequest[] pending;
+    List<CheckRequestAggregator.SnapshotEntry> checks = null;
+    List<QuotaRequestAggregator.SnapshotEntry> quotas = null;
     synchronized (this) {
+      Scheduler stopping = scheduler;
+      if (state.get() != State.RUNNING || (owner != null && owner != stopping)) {
+        return;
+      }
       log.atInfo().log("stopping client background thread and flushing the report aggregator");
-      for (ReportRequest req : reportAggregator.clear()) {
-        try {
-          transport.services().report(serviceName, req).execute();
-        } catch (IOException e) {
-          log.atSevere().withCause(e).log("direct send of a report request failed");
-        }
+      state.set(State.STOPPED);
+      this.scheduler = null;
+      if (schedulerIsSelfDriving && stopping != null) {
+        stopping.cancelAll();
       }
-      this.stopped = true;  // the scheduler thread will set running to false
-      if (isRunningSchedulerDirectly()) {
-        resetIfStopped();
+      unregisterStatisticsMBean();
+      if (cacheSnapshot != null) {
+        checks = checkAggregator.snapshot();
+        quotas = quotaAggregator.snapshot();
       }
-      this.scheduler = null;
+      checkAggregator.clear();
+      quotaAggregator.clear();
+      pending = reportAggregator.clear();
+    }
+    if (checks != null) {
+      saveCacheSnapshot(checks, quotas);
+    }
+    for (ReportRequest req : pending) {
+      try {
+        transport.report(serviceName, req);
+      } catch (IOException e) {
+        spoolOrDropReport(req, e);
+      }
+    }
+    if (reportRetryQueue != null) {
+      for (ReportRequest req : reportRetryQueue.clear()) {
+        spoolOrDropReport(req, null);
+      }
+    }
+    if (ownsFlushDispatcher) {
+      flushDispatcher.shutdown(); // a restart creates new threads when it needs them
+    }
+    shutdownOwnedTransportExecutor();
+  }
+
+  /**
+   * Shuts down the transport executor if it was created by this instance, letting the calls it
+   * already accepted complete. The next transport call creates a new one.
+   */
+  private void shutdownOwnedTransportExecutor() {
+    ExecutorService owned;
+    synchronized (this) {
+      if (!ownsTransportExecutor) {
+        return;
+      }
+      owned = transportExecutor;
+      transportExecutor = null;
+      ownsTransportExecutor = false;
     }
+    owned.shutdown();
   }
 
   /**
    * Process a check request.
    *
    * The {@code req} is first passed to the {@code CheckAggregator}. If there is a valid cached
-   * response, that is returned, otherwise a response is obtained from the transport.
+   * response, that is returned, otherwise a response is obtained from the transport. Concurrent
+   * misses of a cacheable request share a single transport call.
    *
    * @param req a {@link CheckRequest}
    * @return a {@link CheckResponse} or {@code null} if none was cached and there was a transport
    *         failure
    */
   public @Nullable CheckResponse check(CheckRequest req) {
+    CheckResponse resp = lookupCheck(req);
+    if (resp != null) {
+      return resp;
+    }
+    HashCode signature = coalescingSignature(req);
+    if (signature == null) {
+      return transportCheck(req);
+    }
+    SettableFuture<CheckResponse> call = SettableFuture.create();
+    ListenableFuture<CheckResponse> inFlight = inFlightChecks.putIfAbsent(signature, call);
+    if (inFlight != null) {
+      statistics.coalescedChecks.increment();
+      return Futures.getUnchecked(inFlight);
+    }
+    CheckResponse transported = null;
+    try {
+      transported = transportCheck(req);
+      return transported;
+    } finally {
+      call.set(transported);
+      inFlightChecks.remove(signature, call);
+    }
+  }
+
+  /**
+   * Process a check request without blocking on the transport.
+   *
+   * Behaves like {@link #check(CheckRequest)}, except that on a cache miss the request is sent on
+   * the transport executor. The returned future never fails; it completes with {@code null} if the
+   * transport call failed or could not be started because too many calls are in flight.
+   *
+   * @param req a {@link CheckRequest}
+   * @return a future of the {@link CheckResponse}, or of {@code null} to indicate failing open
+   */
+  public ListenableFuture<CheckResponse> checkAsync(final CheckRequest req) {
+    CheckResponse resp = lookupCheck(req);
+    if (resp != null) {
+      return Futures.immediateFuture(resp);
+    }
+    Callable<CheckResponse> transportCall = new Callable<CheckResponse>() {
+      @Override
+      public CheckResponse call() {
+        return transportCheck(req);
+      }
+    };
+    final HashCode signature = coalescingSignature(req);
+    if (signature == null) {
+      return submitTransportCall(transportCall, null);
+    }
+    final SettableFuture<CheckResponse> call = SettableFuture.create();
+    ListenableFuture<CheckResponse> inFlight = inFlightChecks.putIfAbsent(signature, call);
+    if (inFlight != null) {
+      statistics.coalescedChecks.increment();
+      return Futures.nonCancellationPropagating(inFlight);
+    }
+    call.setFuture(submitTransportCall(transportCall, null));
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        inFlightChecks.remove(signature, call);
+      }
+    }, MoreExecutors.directExecutor());
+    return Futures.nonCancellationPropagating(call);
+  }
+
+  /**
+   * Looks up a cached check response without building the {@link CheckRequest}.
+   *
+   * The arguments are the parts of the request that are signed by the check cache. If this returns
+   * {@code null}, the caller builds the request and passes it to {@link #check(CheckRequest)},
+   * which also takes care of refreshing a cached response that is due.
+   *
+   * @param consumerId the consumer id of the operation
+   * @param operationName the operation name
+   * @param labels the labels of the operation
+   * @return the cached {@link CheckResponse}, or {@code null} if the request must be built
+   */
+  public @Nullable CheckResponse checkCached(@Nullable String consumerId, String operationName,
+      Map<String, String> labels) {
+    startIfStopped();
+    Stopwatch w = Stopwatch.createStarted(ticker);
+    CheckResponse resp = checkAggregator.checkCached(consumerId, operationName, labels);
+    if (resp != null) {
+      statistics.checkCacheLookupLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+      statistics.totalChecks.increment();
+      statistics.checkHits.increment();
+    }
+    return resp;
+  }
+
+  /**
+   * Looks up a cached response that rejected {@code consumerId} for any operation, e.g. because
+   * its API key is invalid.
+   *
+   * This is meant to be called before anything else is done for a request, so that requests of
+   * rejected consumers are turned away without building a check request. Such responses are only
+   * remembered if the check options enable it, see
+   * {@link CheckAggregationOptions#hasConsumerRejections()}.
+   *
+   * @param consumerId the consumer id of the operation
+   * @return the {@link CheckResponse} that rejected the consumer, or {@code null} if there is none
+   */
+  public @Nullable CheckResponse checkRejected(@Nullable String consumerId) {
     startIfStopped();
-    statistics.totalChecks.incrementAndGet();
+    CheckResponse resp = checkAggregator.checkRejected(consumerId);
+    if (resp != null) {
+      statistics.totalChecks.increment();
+      statistics.checkHits.increment();
+      statistics.rejectedConsumerChecks.increment();
+    }
+    return resp;
+  }
+
+  /**
+   * Obtains the signature under which concurrent transport calls for {@code req} are coalesced.
+   *
+   * Only requests whose responses are cached are coalesced: a request that misses the cache while
+   * a call for the same signature is in flight waits for that call's response, rather than making
+   * a duplicate call.
+   *
+   * @return the signature, or {@code null} if calls for {@code req} must not be coalesced
+   */
+  private @Nullable HashCode coalescingSignature(CheckRequest req) {
+    if (!checkAggregator.isCacheable(req)) {
+      return null;
+    }
+    return checkAggregator.signature(req);
+  }
+
+  private @Nullable CheckResponse lookupCheck(CheckRequest req) {
+    startIfStopped();
+    statistics.totalChecks.increment();
     Stopwatch w = Stopwatch.createStarted(ticker);
     CheckResponse resp = checkAggregator.check(req);
-    statistics.totalCheckCacheLookupTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
+    statistics.checkCacheLookupLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
     if (resp != null) {
-      statistics.checkHits.incrementAndGet();
+      statistics.checkHits.increment();
       log.atFiner().log("using cached check response for %s: %s", req, resp);
-      return resp;
     }
+    return resp;
+  }
 
+  private @Nullable CheckResponse transportCheck(CheckRequest req) {
     // Application code should not fail (or be blocked) because check request's do not succeed.
     // Instead they should fail open so here just simply log the error and return None to indicate
     // that no response was obtained.
     try {
-      w.reset().start();
-      resp = transport.services().check(serviceName, req).execute();
-      statistics.totalCheckTransportTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
+      Stopwatch w = Stopwatch.createStarted(ticker);
+      CheckResponse resp = transport.check(serviceName, req);
+      statistics.checkTransportLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
       checkAggregator.addResponse(req, resp);
       return resp;
     } catch (IOException e) {
-      log.atSevere().withCause(e).log("direct send of a check request %s failed", req);
+      if (e instanceof CircuitBreakerOpenException) {
+        log.atFine().log("did not send a check request %s: the circuit breaker is open", req);
+      } else {
+        log.atSevere().withCause(e).log("direct send of a check request %s failed", req);
+      }
       return null;
     }
   }
 
   public AllocateQuotaResponse allocateQuota(AllocateQuotaRequest req) {
+    AllocateQuotaResponse resp = lookupQuota(req);
+    if (resp != null) {
+      return resp;
+    }
+    return transportAllocateQuota(req);
+  }
+
+  /**
+   * Process a quota request without blocking on the transport.
+   *
+   * Behaves like {@link #allocateQuota(AllocateQuotaRequest)}, except that on a cache miss the
+   * request is sent on the transport executor. The returned future never fails; it completes with
+   * a default (i.e, positive) response if the transport call failed or could not be started.
+   *
+   * @param req an {@link AllocateQuotaRequest}
+   * @return a future of the {@link AllocateQuotaResponse}
+   */
+  public ListenableFuture<AllocateQuotaResponse> allocateQuotaAsync(
+      final AllocateQuotaRequest req) {
+    AllocateQuotaResponse resp = lookupQuota(req);
+    if (resp != null) {
+      return Futures.immediateFuture(resp);
+    }
+    return submitTransportCall(new Callable<AllocateQuotaResponse>() {
+      @Override
+      public AllocateQuotaResponse call() {
+        return transportAllocateQuota(req);
+      }
+    }, AllocateQuotaResponse.getDefaultInstance());
+  }
+
+  /**
+   * Looks up a cached quota response without building the {@link AllocateQuotaRequest}.
+   *
+   * The arguments are the parts of the request that are signed by the quota cache; on a positive
+   * response, the costs are aggregated into the next refresh. If this returns {@code null}, the
+   * caller builds the request and passes it to {@link #allocateQuota(AllocateQuotaRequest)}.
+   *
+   * @param consumerId the consumer id of the quota operation
+   * @param methodName the method name of the quota operation
+   * @param metricCosts the cost of the operation by quota metric name
+   * @return the cached {@link AllocateQuotaResponse}, or {@code null} if the request must be built
+   */
+  public @Nullable AllocateQuotaResponse allocateQuotaCached(@Nullable String consumerId,
+      String methodName, Map<String, Long> metricCosts) {
     startIfStopped();
-    statistics.totalQuotas.incrementAndGet();
+    Stopwatch w = Stopwatch.createStarted(ticker);
+    AllocateQuotaResponse resp =
+        quotaAggregator.allocateQuotaCached(consumerId, methodName, metricCosts);
+    if (resp != null) {
+      statistics.quotaCacheLookupLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+      statistics.totalQuotas.increment();
+      statistics.quotaHits.increment();
+    }
+    return resp;
+  }
+
+  private @Nullable AllocateQuotaResponse lookupQuota(AllocateQuotaRequest req) {
+    startIfStopped();
+    statistics.totalQuotas.increment();
     Stopwatch w = Stopwatch.createStarted(ticker);
     AllocateQuotaResponse resp = quotaAggregator.allocateQuota(req);
-    statistics.totalQuotaCacheLookupTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
+    statistics.quotaCacheLookupLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
     if (resp != null) {
-      statistics.quotaHits.incrementAndGet();
-      return resp;
+      statistics.quotaHits.increment();
     }
+    return resp;
+  }
+
+  private AllocateQuotaResponse transportAllocateQuota(AllocateQuotaRequest req) {
     try {
-      w.reset().start();
-      resp = transport.services().allocateQuota(serviceName, req).execute();
-      statistics.totalQuotaTransportTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
+      Stopwatch w = Stopwatch.createStarted(ticker);
+      AllocateQuotaResponse resp = transport.allocateQuota(serviceName, req);
+      statistics.quotaTransportLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
       quotaAggregator.cacheResponse(req, resp);
       return resp;
     } catch (IOException e) {
-      log.atSevere().withCause(e).log("direct send of a quota request %s failed", req);
+      if (e instanceof CircuitBreakerOpenException) {
+        log.atFine().log("did not send a quota request %s: the circuit breaker is open", req);
+      } else {
+        log.atSevere().withCause(e).log("direct send of a quota request %s failed", req);
+      }
       AllocateQuotaResponse dummyResponse = AllocateQuotaResponse.getDefaultInstance();
       quotaAggregator.cacheResponse(req, dummyResponse);
       return dummyResponse;
@@ -243,90 +653,319 @@ public class Client {
    * Process a report request.
    *
    * The {@code req} is first passed to the {@code ReportAggregator}. It will either be aggregated
-   * with prior requests or sent immediately
+   * with prior requests or queued to be sent, merged with other requests queued at the same time.
+   * With synchronous reports, this waits until the queued request was sent; otherwise it returns
+   * without waiting on the transport.
    *
    * @param req a {@link ReportRequest}
    */
   public void report(ReportRequest req) {
+    if (!aggregateReport(req)) {
+      ListenableFuture<Void> sent = reportSendQueue.add(req, synchronousReports);
+      if (synchronousReports) {
+        Futures.getUnchecked(sent); // never fails
+      }
+    }
+    runSchedulerDirectlyIfNeeded();
+    logStatistics();
+  }
+
+  /**
+   * Process a report request without blocking on the transport.
+   *
+   * Behaves like {@link #report(ReportRequest)}, except that a request that could not be
+   * aggregated is always sent on the transport executor, whether or not reports are synchronous.
+   *
+   * @param req a {@link ReportRequest}
+   * @return a future that completes once {@code req} was aggregated or sent. It never fails;
+   *         transport failures are logged
+   */
+  public ListenableFuture<Void> reportAsync(ReportRequest req) {
+    ListenableFuture<Void> result;
+    if (aggregateReport(req)) {
+      result = Futures.immediateFuture(null);
+    } else {
+      result = reportSendQueue.add(req, false);
+    }
+    runSchedulerDirectlyIfNeeded();
+    logStatistics();
+    return result;
+  }
+
+  private boolean aggregateReport(ReportRequest req) {
     startIfStopped();
-    statistics.totalReports.incrementAndGet();
-    statistics.reportedOperations.addAndGet(req.getOperationsCount());
+    statistics.totalReports.increment();
+    statistics.reportedOperations.add(req.getOperationsCount());
     Stopwatch w = Stopwatch.createStarted(ticker);
     boolean reported = reportAggregator.report(req);
-    statistics.totalReportCacheUpdateTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
-    if (!reported) {
-      try {
-        statistics.directReports.incrementAndGet();
-        w.reset().start();
-        transport.services().report(serviceName, req).execute();
-        statistics.totalTransportedReportTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
-      } catch (IOException e) {
-        log.atSevere().withCause(e).log("direct send of a report request %s failed", req);
-      }
+    statistics.reportCacheUpdateLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+    if (reported && reportAggregator.isFlushDue()) {
+      scheduleEarlyReportFlush();
     }
+    return reported;
+  }
 
-    if (isRunningSchedulerDirectly()) {
+  private void transportReport(ReportRequest req) {
+    try {
+      statistics.directReports.increment();
+      Stopwatch w = Stopwatch.createStarted(ticker);
+      transport.report(serviceName, req);
+      statistics.reportTransportLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+    } catch (IOException e) {
+      retryFailedReport(req, 1, e);
+    }
+  }
+
+  /**
+   * Queues {@code req} to be retried after it failed to send, if retries are enabled.
+   *
+   * Requests that are not retried are spooled or dropped.
+   */
+  private void retryFailedReport(ReportRequest req, int attempt, IOException e) {
+    ReportRetryQueue queue = reportRetryQueue;
+    if (queue == null || reportAggregator.getFlushIntervalMillis() < 0) {
+      spoolOrDropReport(req, e); // retries are made when flushing
+      return;
+    }
+    log.atWarning().withCause(e).log("send of a report request failed, it will be retried");
+    for (ReportRequest shed : queue.offer(req, attempt)) {
+      spoolOrDropReport(shed, e);
+    }
+  }
+
+  /**
+   * Spools {@code req} after it failed to send, if a spool is configured, otherwise drops it.
+   */
+  private void spoolOrDropReport(ReportRequest req, @Nullable IOException e) {
+    ReportSpool spool = reportSpool;
+    if (spool != null && spool.append(req)) {
+      statistics.spooledReports.increment();
+      log.atWarning().withCause(e).log("send of a report request failed, it was spooled");
+      return;
+    }
+    statistics.droppedReports.increment();
+    log.atSevere().withCause(e).log("send of a report request %s failed, it was dropped", req);
+  }
+
+  private void runSchedulerDirectlyIfNeeded() {
+    Scheduler current = scheduler;
+    if (current != null && isRunningSchedulerDirectly()) {
       try {
-        scheduler.run(false /* don't block */);
+        current.run(false /* don't block */);
       } catch (InterruptedException e) {
         log.atSevere().withCause(e).log("direct run of scheduler failed");
       }
     }
-    logStatistics();
+  }
+
+  /**
+   * Runs {@code call} on the transport executor, limiting the number of calls in flight.
+   *
+   * The returned future completes with {@code failOpen} if the call cannot be started because the
+   * limit was reached, or if it fails unexpectedly. If the executor rejects the call (e.g, because
+   * threads cannot be created in this environment), it is run on the calling thread instead.
+   */
+  private <T> ListenableFuture<T> submitTransportCall(Callable<T> call,
+      @Nullable final T failOpen) {
+    if (!inFlightTransportCalls.tryAcquire()) {
+      statistics.rejectedTransportCalls.increment();
+      log.atWarning().log("too many transport calls in flight, failing open");
+      return Futures.immediateFuture(failOpen);
+    }
+    ListenableFuture<T> future;
+    try {
+      future = getTransportExecutor().submit(call);
+    } catch (RuntimeException e) {
+      inFlightTransportCalls.release();
+      log.atWarning().withCause(e).log("could not submit a transport call, running it directly");
+      try {
+        return Futures.immediateFuture(call.call());
+      } catch (Exception callFailure) {
+        log.atSevere().withCause(callFailure).log("direct transport call failed");
+        return Futures.immediateFuture(failOpen);
+      }
+    }
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        inFlightTransportCalls.release();
+      }
+    }, MoreExecutors.directExecutor());
+    return Futures.catching(future, Exception.class, new Function<Exception, T>() {
+      @Override
+      public T apply(Exception e) {
+        log.atSevere().withCause(e).log("asynchronous transport call failed");
+        return failOpen;
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private ListeningExecutorService getTransportExecutor() {
+    ListeningExecutorService result = transportExecutor;
+    if (result == null) {
+      synchronized (this) {
+        result = transportExecutor;
+        if (result == null) {
+          result = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(threads));
+          transportExecutor = result;
+          ownsTransportExecutor = true;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Exposes the statistics of this instance through JMX, see {@link ClientStatisticsMXBean}.
+   *
+   * Failing to register only disables JMX access, e.g. if another started instance uses the
+   * same service name.
+   */
+  private void registerStatisticsMBean() {
+    try {
+      ObjectName name = new ObjectName(STATISTICS_MBEAN_DOMAIN + ":type=Client,serviceName="
+          + ObjectName.quote(serviceName));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+      statisticsMBeanName = name;
+    } catch (JMException | SecurityException e) {
+      log.atWarning().withCause(e).log("could not register the statistics of %s with JMX", this);
+    }
+  }
+
+  private void unregisterStatisticsMBean() {
+    if (statisticsMBeanName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsMBeanName);
+    } catch (JMException | SecurityException e) {
+      log.atWarning().withCause(e).log("could not unregister the statistics of %s", this);
+    }
+    statisticsMBeanName = null;
   }
 
   private void logStatistics() {
     if (statsLogFrequency < 1) {
       return;
     }
-    if (statistics.totalReports.get() % statsLogFrequency == 0) {
+    if (statistics.totalReports.sum() % statsLogFrequency == 0) {
       log.atInfo().log("stats=%s", statistics);
     }
   }
 
-  private void scheduleFlushes() {
+  private void scheduleFlushes(Scheduler owner) {
     try {
-      initializeFlushing();
-      this.scheduler.run(); // if caching is configured, this blocks until stop is called
+      initializeFlushing(owner);
+      owner.run(); // if caching is configured, this blocks until stop is called
       log.atInfo().log("scheduler %s has no further tasks and will exit", this);
-      this.scheduler = null;
     } catch (InterruptedException e) {
       log.atSevere().withCause(e).log("scheduler %s was interrupted and exited", this);
-      this.stopped = true;
+      stopIfCurrent(owner);
     } catch (RuntimeException e) {
       log.atSevere().withCause(e).log("scheduler %s failed and exited", this);
-      this.stopped = true;
+      stopIfCurrent(owner);
     }
   }
 
   private boolean isRunningSchedulerDirectly() {
-    return running && schedulerThread == null;
+    return state.get() == State.RUNNING && schedulerThread == null && !schedulerIsSelfDriving;
   }
 
-  private synchronized void initializeFlushing() {
-    log.atInfo().log("creating a scheduler to control flushing");
-    this.scheduler = schedulers.create(ticker);
-    this.scheduler.setStatistics(statistics);
+  /**
+   * @return {@code true} if the instance is running and {@code owner} is its scheduler, i.e,
+   *         events of {@code owner} should still run and reschedule themselves
+   */
+  private boolean isCurrent(Scheduler owner) {
+    return state.get() == State.RUNNING && scheduler == owner;
+  }
+
+  private synchronized void initializeFlushing(Scheduler owner) {
     log.atInfo().log("scheduling the initial check, report, and quota");
-    flushAndScheduleReports();
-    flushAndScheduleQuota();
+    flushAndScheduleReports(owner);
+    flushAndScheduleQuota(owner);
+    if (reportSpool != null) {
+      replayAndScheduleSpool(owner);
+    }
+    if (cacheSnapshot != null) {
+      scheduleCacheSnapshot(owner);
+    }
   }
 
-  private synchronized boolean resetIfStopped() {
-    if (!stopped) {
-      return false;
+  private void scheduleCacheSnapshot(final Scheduler owner) {
+    owner.enter(new Runnable() {
+      @Override
+      public void run() {
+        if (!isCurrent(owner)) {
+          log.atFine().log("did not save the cache snapshot: client is stopped");
+          return;
+        }
+        saveCacheSnapshot(checkAggregator.snapshot(), quotaAggregator.snapshot());
+        if (isCurrent(owner)) {
+          scheduleCacheSnapshot(owner);
+        }
+      }
+    }, cacheSnapshot.getIntervalMillis(), 3 /* lower priority than the spool replay */);
+  }
+
+  private void saveCacheSnapshot(List<CheckRequestAggregator.SnapshotEntry> checks,
+      List<QuotaRequestAggregator.SnapshotEntry> quotas) {
+    try {
+      cacheSnapshot.save(serviceName, checks, quotas);
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("could not save the cache snapshot of %s", this);
     }
+  }
 
-    // It's stopped to let's cleanup
-    checkAggregator.clear();
-    reportAggregator.clear();
-    quotaAggregator.clear();
-    running = false;
-    return true;
+  private void restoreCacheSnapshot() {
+    if (cacheSnapshot == null) {
+      return;
+    }
+    try {
+      CacheSnapshot.Contents contents = cacheSnapshot.load(serviceName);
+      checkAggregator.restore(contents.getChecks());
+      quotaAggregator.restore(contents.getQuotas());
+      log.atInfo().log("restored %d check and %d quota responses from the cache snapshot",
+          contents.getChecks().size(), contents.getQuotas().size());
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("could not restore the cache snapshot of %s", this);
+    }
+  }
+
+  private void replayAndScheduleSpool(final Scheduler owner) {
+    if (!isCurrent(owner)) {
+      log.atFine().log("did not schedule spool replay: client is stopped");
+      return;
+    }
+    long replayedBefore = reportSpool.getReplayedCount();
+    try {
+      reportSpool.replay(new ReportSpool.Sender() {
+        @Override
+        public void send(ReportRequest req) throws IOException {
+          transport.report(serviceName, req);
+        }
+      }, MAX_SPOOL_REPLAY_BATCH);
+      spoolReplayDelayMillis = SPOOL_REPLAY_INTERVAL_MILLIS;
+    } catch (IOException e) {
+      spoolReplayDelayMillis =
+          Math.min(2 * spoolReplayDelayMillis, MAX_SPOOL_REPLAY_BACKOFF_MILLIS);
+      log.atFine().withCause(e).log("replay of spooled report requests failed, retrying in %d ms",
+          spoolReplayDelayMillis);
+    }
+    statistics.replayedReports.add(reportSpool.getReplayedCount() - replayedBefore);
+    if (!isCurrent(owner)) {
+      log.atFine().log("did not schedule succeeding spool replay: client is stopped");
+      return;
+    }
+    owner.enter(new Runnable() {
+      @Override
+      public void run() {
+        replayAndScheduleSpool(owner);
+      }
+    }, spoolReplayDelayMillis, 2 /* lower priority than flushing */);
   }
 
-  private void flushAndScheduleReports() {
-    if (resetIfStopped()) {
+  private void flushAndScheduleReports(final Scheduler owner) {
+    if (!isCurrent(owner)) {
       log.atFine().log("did not schedule report flush: client is stopped");
       return;
     }
@@ -335,44 +974,128 @@ public class Client {
       log.atFine().log("did not schedule report flush: cache is disabled");
       return; // cache is disabled, so no flushing it
     }
-    ReportRequest[] flushed = reportAggregator.flush();
-    log.atFine().log("flushing %d reports from the report aggregator", flushed.length);
-    statistics.flushedReports.addAndGet(flushed.length);
-    Stopwatch w = Stopwatch.createUnstarted(ticker);
-    for (ReportRequest req : flushed) {
-      try {
-        statistics.flushedOperations.addAndGet(req.getOperationsCount());
-        w.reset().start();
-        transport.services().report(serviceName, req).execute();
-        statistics.totalTransportedReportTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
-      } catch (IOException e) {
-        log.atSevere().withCause(e).log("direct send of a report request failed");
+    Stopwatch flushTimer = Stopwatch.createStarted(ticker);
+    List<Runnable> sends = new ArrayList<>();
+    if (reportRetryQueue != null) {
+      // Retries are sent as they are rather than merged with the pending operations, so that they
+      // keep their attempt count and back off until they are shed
+      for (ReportRetryQueue.Retry retry : reportRetryQueue.pollDue()) {
+        statistics.reportRetries.increment();
+        sends.add(newReportSend(retry.getRequest(), retry.getAttempt() + 1));
       }
     }
-    if (flushed.length > 0) {
-      reportStopwatch.reset().start();
-    } else if (reportStopwatch.elapsed(TimeUnit.SECONDS) > MAX_IDLE_TIME_SECONDS) {
+    ReportRequest[] flushed = reportAggregator.flush();
+    log.atFine().log("flushing %d reports from the report aggregator", flushed.length);
+    dispatchReports(flushed, sends);
+    recordFlush(flushTimer.elapsed(TimeUnit.NANOSECONDS), interval, statistics.reportFlushes,
+        statistics.totalReportFlushTimeNanos, statistics.maxReportFlushTimeNanos,
+        statistics.reportFlushOverruns, "report");
+    if (flushed.length == 0 && reportStopwatch.elapsed(TimeUnit.SECONDS) > MAX_IDLE_TIME_SECONDS) {
       log.atInfo().log(
           "Shutting down after no reports in the last %d seconds.", MAX_IDLE_TIME_SECONDS);
-      stop();
+      stopIfCurrent(owner);
       return;
     }
-    // copy scheduler into a local variable to avoid data races beween this method and stop()
-    Scheduler currentScheduler = scheduler;
-    if (resetIfStopped()) {
+    if (!isCurrent(owner)) {
       log.atFine().log("did not schedule succeeding report flush: client is stopped");
       return;
     }
-    currentScheduler.enter(new Runnable() {
+    owner.enter(new Runnable() {
       @Override
       public void run() {
-        flushAndScheduleReports(); // Do this again after the interval
+        flushAndScheduleReports(owner); // Do this again after the interval
+      }
+    }, nextReportFlushDelayMillis(interval), 1 /* not so high priority */);
+  }
+
+  /**
+   * Schedules an immediate flush of all the aggregated reports, unless one is already scheduled.
+   *
+   * Called when enough operations are pending that waiting for the next scheduled flush would
+   * make it large and bursty.
+   */
+  private void scheduleEarlyReportFlush() {
+    final Scheduler owner = scheduler;
+    if (owner == null || !earlyReportFlushPending.compareAndSet(false, true)) {
+      return;
+    }
+    owner.enter(new Runnable() {
+      @Override
+      public void run() {
+        earlyReportFlushPending.set(false);
+        if (!isCurrent(owner)) {
+          log.atFine().log("did not flush reports early: client is stopped");
+          return;
+        }
+        ReportRequest[] flushed = reportAggregator.flushPending();
+        log.atFine().log("flushing %d reports early from the report aggregator", flushed.length);
+        statistics.earlyReportFlushes.increment();
+        dispatchReports(flushed, new ArrayList<Runnable>(flushed.length));
+      }
+    }, 0, 1 /* same priority as the scheduled report flush */);
+  }
+
+  /**
+   * Sends the {@code flushed} requests along with the already prepared {@code sends}.
+   */
+  private void dispatchReports(ReportRequest[] flushed, List<Runnable> sends) {
+    statistics.flushedReports.add(flushed.length);
+    for (ReportRequest req : flushed) {
+      sends.add(newReportSend(req, 1));
+    }
+    flushDispatcher.dispatch(sends);
+    if (flushed.length > 0) {
+      reportStopwatch.reset().start();
+    }
+  }
+
+  /**
+   * @return the delay before the next scheduled report flush, adapted to the arrival rate of
+   *         operations since the last one
+   */
+  private int nextReportFlushDelayMillis(int intervalMillis) {
+    if (reportFlushInterval == null) {
+      return intervalMillis;
+    }
+    long now = ticker.read();
+    long reportedOperations = statistics.reportedOperations.sum();
+    int delay = reportFlushInterval.next(reportedOperations - reportedOperationsAtLastFlush,
+        TimeUnit.NANOSECONDS.toMillis(now - lastReportFlushNanos));
+    lastReportFlushNanos = now;
+    reportedOperationsAtLastFlush = reportedOperations;
+    return delay;
+  }
+
+  private static @Nullable AdaptiveFlushInterval newReportFlushInterval(
+      ReportAggregationOptions options) {
+    if (options.getNumEntries() <= 0 || options.getFlushCacheEntryIntervalMillis() <= 0) {
+      return null;
+    }
+    // aim for half the size that triggers an early flush, so that those remain the exception
+    int threshold = options.getFlushOperationThreshold() > 0
+        ? options.getFlushOperationThreshold() : ReportRequestAggregator.MAX_OPERATION_COUNT;
+    return new AdaptiveFlushInterval(options.getFlushCacheEntryIntervalMillis(),
+        Math.max(1, threshold / 2), new Random());
+  }
+
+  private Runnable newReportSend(final ReportRequest req, final int nextAttempt) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          statistics.flushedOperations.add(req.getOperationsCount());
+          Stopwatch w = Stopwatch.createStarted(ticker);
+          transport.report(serviceName, req);
+          statistics.reportTransportLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+        } catch (IOException e) {
+          retryFailedReport(req, nextAttempt, e);
+        }
       }
-    }, interval, 1 /* not so high priority */);
+    };
   }
 
-  private void flushAndScheduleQuota() {
-    if (resetIfStopped()) {
+  private void flushAndScheduleQuota(final Scheduler owner) {
+    if (!isCurrent(owner)) {
       log.atFine().log("did not schedule quota flush: client is stopped");
       return;
     }
@@ -388,36 +1111,124 @@ public class Client {
     }
 
     log.atFine().log("flushing the quota aggregator");
-    Stopwatch w = Stopwatch.createUnstarted(ticker);
+    Stopwatch flushTimer = Stopwatch.createStarted(ticker);
     List<AllocateQuotaRequest> reqs = quotaAggregator.flush();
     log.atFine().log("flushing %d quota from the quota aggregator", reqs.size());
-    for (AllocateQuotaRequest req : reqs) {
-      try {
-        w.reset().start();
-        AllocateQuotaResponse resp = transport.services().allocateQuota(serviceName, req).execute();
-        statistics.totalQuotaTransportTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
-        w.reset().start();
-        quotaAggregator.cacheResponse(req, resp);
-        statistics.recachedQuotas.incrementAndGet();
-        statistics.totalQuotaCacheUpdateTimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
-      } catch (IOException e) {
-        log.atSevere().withCause(e).log("direct send of a quota request %s failed", req);
-      }
+    List<Runnable> refreshes = new ArrayList<>(reqs.size());
+    for (final AllocateQuotaRequest req : reqs) {
+      refreshes.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Stopwatch w = Stopwatch.createStarted(ticker);
+            AllocateQuotaResponse resp = transport.allocateQuota(serviceName, req);
+            statistics.quotaTransportLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+            w.reset().start();
+            quotaAggregator.cacheResponse(req, resp);
+            statistics.recachedQuotas.increment();
+            statistics.totalQuotaCacheUpdateTimeNanos.add(w.elapsed(TimeUnit.NANOSECONDS));
+          } catch (IOException e) {
+            if (e instanceof CircuitBreakerOpenException) {
+              log.atFine().log("did not send a quota request %s: the circuit breaker is open", req);
+            } else {
+              log.atSevere().withCause(e).log("direct send of a quota request %s failed", req);
+            }
+          }
+        }
+      });
     }
-    // copy scheduler into a local variable to avoid data races beween this method and stop()
-    Scheduler currentScheduler = scheduler;
-    if (resetIfStopped()) {
+    flushDispatcher.dispatch(refreshes);
+    recordFlush(flushTimer.elapsed(TimeUnit.NANOSECONDS), interval, statistics.quotaFlushes,
+        statistics.totalQuotaFlushTimeNanos, statistics.maxQuotaFlushTimeNanos,
+        statistics.quotaFlushOverruns, "quota");
+    if (!isCurrent(owner)) {
       log.atFine().log("did not schedule succeeding quota flush: client is stopped");
       return;
     }
-    currentScheduler.enter(new Runnable() {
+    owner.enter(new Runnable() {
       @Override
       public void run() {
-        flushAndScheduleQuota(); // Do this again after the interval
+        flushAndScheduleQuota(owner); // Do this again after the interval
       }
     }, interval, 0 /* high priority */);
   }
 
+  private void recordFlush(long elapsedNanos, int intervalMillis, LongAdder count,
+      LongAdder totalNanos, LongAccumulator maxNanos, LongAdder overruns, String name) {
+    count.increment();
+    totalNanos.add(elapsedNanos);
+    maxNanos.accumulate(elapsedNanos);
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    if (elapsedMillis > intervalMillis) {
+      overruns.increment();
+      log.atWarning().log("%s flush took %d millis, longer than its interval of %d millis",
+          name, elapsedMillis, intervalMillis);
+    }
+  }
+
+  /**
+   * Sets the {@link FlushDispatcher} that sends the requests flushed from the report and quota
+   * aggregators. Must be called before {@link #start()}.
+   *
+   * @param owned if {@code true}, the dispatcher is shut down when this instance stops; otherwise
+   *        it's shared, e.g. by the clients of a {@link ClientRuntime}
+   */
+  void setFlushDispatcher(FlushDispatcher flushDispatcher, boolean owned) {
+    this.flushDispatcher = Preconditions.checkNotNull(flushDispatcher);
+    this.ownsFlushDispatcher = owned;
+  }
+
+  /**
+   * Retries report requests that fail to send using {@code queue}.
+   */
+  void setReportRetryQueue(ReportRetryQueue queue) {
+    this.reportRetryQueue = Preconditions.checkNotNull(queue);
+  }
+
+  /**
+   * Determines if {@link #report(ReportRequest)} waits until a request that could not be
+   * aggregated was sent, the default, or returns once it's queued.
+   */
+  void setSynchronousReports(boolean synchronousReports) {
+    this.synchronousReports = synchronousReports;
+  }
+
+  /**
+   * Restores the check and quota caches from {@code snapshot} on start, and saves them to it
+   * periodically and on stop.
+   */
+  void setCacheSnapshot(CacheSnapshot snapshot) {
+    this.cacheSnapshot = Preconditions.checkNotNull(snapshot);
+  }
+
+  /**
+   * Spools report requests that fail to send in {@code spool}, and replays them in the background.
+   */
+  void setReportSpool(ReportSpool spool) {
+    this.reportSpool = Preconditions.checkNotNull(spool);
+  }
+
+  /**
+   * Reports the state of {@code breaker}, which guards check and quota calls, in the statistics.
+   */
+  void setCircuitBreaker(CircuitBreaker breaker) {
+    statistics.circuitBreakerState = breaker.getState();
+    breaker.setListener(new CircuitBreaker.Listener() {
+      @Override
+      public void onStateChange(CircuitBreaker.State from, CircuitBreaker.State to) {
+        statistics.circuitBreakerState = to;
+        if (to == CircuitBreaker.State.OPEN) {
+          statistics.circuitBreakerTrips.increment();
+        }
+      }
+
+      @Override
+      public void onRejected() {
+        statistics.circuitBreakerRejections.increment();
+      }
+    });
+  }
+
   /**
    * Builder provide structure to the construction of a {@link Client}
    */
@@ -431,6 +1242,24 @@ public class Client {
     private ReportAggregationOptions reportOptions;
     private QuotaAggregationOptions quotaOptions;
     private SchedulerFactory schedulerFactory = DEFAULT_SCHEDULER_FACTORY;
+    private ExecutorService transportExecutor;
+    private int maxInFlightTransportCalls = DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS;
+    private TransportType transportType = TransportType.REST;
+    private String grpcTarget = GrpcControlTransport.DEFAULT_TARGET;
+    private ControlTransport controlTransport;
+    private int flushParallelism = FlushDispatcher.DEFAULT_PARALLELISM;
+    private Executor flushExecutor;
+    private boolean flushOnVirtualThreads;
+    private CallDeadlines callDeadlines = new CallDeadlines();
+    private boolean circuitBreakerEnabled = true;
+    private CircuitBreaker circuitBreaker;
+    private ReportSpool reportSpool;
+    private CacheSnapshot cacheSnapshot;
+    private boolean gzipRequests = true;
+    private boolean reportRetriesEnabled = true;
+    private ReportRetryQueue reportRetryQueue;
+    private ClientRuntime runtime;
+    private boolean synchronousReports = true;
 
     public Builder(String name) {
       this.serviceName = name;
@@ -476,16 +1305,191 @@ public class Client {
       return this;
     }
 
+    /**
+     * @param executor runs the transport calls of the asynchronous methods. If not set, a cached
+     *        thread pool using the thread factory is created on first use
+     */
+    public Builder setTransportExecutor(ExecutorService executor) {
+      this.transportExecutor = executor;
+      return this;
+    }
+
+    public Builder setMaxInFlightTransportCalls(int maxInFlightTransportCalls) {
+      this.maxInFlightTransportCalls = maxInFlightTransportCalls;
+      return this;
+    }
+
+    /**
+     * @param transportType selects the API used to talk to the service control service. Defaults
+     *        to {@link TransportType#REST}
+     */
+    public Builder setTransportType(TransportType transportType) {
+      this.transportType = transportType;
+      return this;
+    }
+
+    /**
+     * @param target the target of the gRPC channel used when the transport type is
+     *        {@link TransportType#GRPC}. Defaults to {@link GrpcControlTransport#DEFAULT_TARGET}
+     */
+    public Builder setGrpcTarget(String target) {
+      this.grpcTarget = target;
+      return this;
+    }
+
+    /**
+     * Sets a custom {@link ControlTransport}, e.g. an
+     * {@link com.google.api.control.transport.InMemoryControlTransport} for load tests.
+     *
+     * When set, the transport type, gRPC target and HTTP transport are ignored, and no
+     * credentials are loaded.
+     *
+     * @param controlTransport sends requests to the service control service
+     */
+    public Builder setControlTransport(ControlTransport controlTransport) {
+      this.controlTransport = controlTransport;
+      return this;
+    }
+
+    /**
+     * @param parallelism the maximum number of report and quota requests sent at the same time
+     *        while flushing. Defaults to {@link FlushDispatcher#DEFAULT_PARALLELISM}
+     */
+    public Builder setFlushParallelism(int parallelism) {
+      this.flushParallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * @param executor runs the sends of a flush when the flush parallelism is above 1. If not set,
+     *        a fixed thread pool using the thread factory is created on first use
+     */
+    public Builder setFlushExecutor(Executor executor) {
+      this.flushExecutor = executor;
+      return this;
+    }
+
+    /**
+     * @param flushOnVirtualThreads if {@code true} and no flush executor is set, the sends of a
+     *        flush run on virtual threads. This requires Java 21 or later; on older versions the
+     *        setting is ignored
+     */
+    public Builder setFlushOnVirtualThreads(boolean flushOnVirtualThreads) {
+      this.flushOnVirtualThreads = flushOnVirtualThreads;
+      return this;
+    }
+
+    /**
+     * @param deadlines limit the time taken by the calls of the REST and gRPC transports. Defaults
+     *        to {@link CallDeadlines#CallDeadlines()}; not applied to a custom transport
+     */
+    public Builder setCallDeadlines(CallDeadlines deadlines) {
+      this.callDeadlines = deadlines;
+      return this;
+    }
+
+    /**
+     * @param gzipRequests if {@code true}, the default, the bodies of the requests sent by the REST
+     *        transport are gzip-compressed
+     */
+    public Builder setGzipRequests(boolean gzipRequests) {
+      this.gzipRequests = gzipRequests;
+      return this;
+    }
+
+    /**
+     * @param enabled if {@code true}, the default, check and quota calls to the transport are
+     *        guarded by a {@link CircuitBreaker} so that they fail open immediately while service
+     *        control is degraded. Report calls are not guarded, they are retried or spooled
+     *        instead
+     */
+    public Builder setCircuitBreakerEnabled(boolean enabled) {
+      this.circuitBreakerEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * @param breaker the {@link CircuitBreaker} used when it is enabled. If not set, one with the
+     *        default thresholds is created
+     */
+    public Builder setCircuitBreaker(CircuitBreaker breaker) {
+      this.circuitBreaker = breaker;
+      return this;
+    }
+
+    /**
+     * @param spool durably stores report requests that fail to send, so that they are replayed
+     *        once the transport recovers, even after a restart. Not set by default, i.e. such
+     *        requests are dropped
+     */
+    public Builder setReportSpool(ReportSpool spool) {
+      this.reportSpool = spool;
+      return this;
+    }
+
+    /**
+     * @param snapshot persists the cached check and quota responses, so that they are restored
+     *        when the client starts again, e.g. after a restart of the JVM. Not set by default
+     */
+    public Builder setCacheSnapshot(CacheSnapshot snapshot) {
+      this.cacheSnapshot = snapshot;
+      return this;
+    }
+
+    /**
+     * @param enabled if {@code true}, the default, report requests that fail to send are retried
+     *        with a jittered exponential backoff. Requests that are not retried are spooled, if a
+     *        spool is set, or dropped
+     */
+    public Builder setReportRetriesEnabled(boolean enabled) {
+      this.reportRetriesEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * @param queue the {@link ReportRetryQueue} used when retries are enabled. If not set, one
+     *        with the default limits is created
+     */
+    public Builder setReportRetryQueue(ReportRetryQueue queue) {
+      this.reportRetryQueue = queue;
+      return this;
+    }
+
+    /**
+     * @param synchronousReports if {@code true}, the default, {@link Client#report(ReportRequest)}
+     *        waits until a request that could not be aggregated was sent. Otherwise it only queues
+     *        the request, which is sent in the background merged with other queued requests
+     */
+    public Builder setSynchronousReports(boolean synchronousReports) {
+      this.synchronousReports = synchronousReports;
+      return this;
+    }
+
+    /**
+     * Shares the transport, credentials and scheduler thread of {@code runtime} with the other
+     * clients built with it; see {@link ClientRuntime#newClientBuilder(String)}.
+     *
+     * When set, the runtime's transport, scheduler and flush dispatcher are used, and the
+     * transport type, gRPC target, HTTP transport, call deadlines, gzip, scheduler factory and
+     * flush settings of this builder are ignored. The ticker and thread factory default to the
+     * runtime's.
+     *
+     * @param runtime the {@link ClientRuntime} to share
+     */
+    public Builder setRuntime(ClientRuntime runtime) {
+      this.runtime = runtime;
+      return this;
+    }
+
     public Client build() throws GeneralSecurityException, IOException {
-      HttpTransport h = this.transport;
-      if (h == null) {
-        h = GoogleNetHttpTransport.newTrustedTransport();
-      }
-      GoogleCredential c = GoogleCredential.getApplicationDefault(transport, new GsonFactory());
-      if (c.createScopedRequired()) {
-        c = c.createScoped(ServiceControlScopes.all());
+      Ticker ticker = this.ticker;
+      if (ticker == null && runtime != null) {
+        ticker = runtime.getTicker();
       }
       ThreadFactory f = this.factory;
+      if (f == null && runtime != null) {
+        f = runtime.getThreadFactory();
+      }
       if (f == null) {
         f = new ThreadFactoryBuilder().build();
       }
@@ -501,99 +1505,356 @@ public class Client {
       if (q == null) {
         q = new QuotaAggregationOptions();
       }
-      final GoogleCredential nestedInitializer = c;
-      HttpRequestInitializer addUserAgent = new HttpRequestInitializer() {
-        @Override
-        public void initialize(HttpRequest request) throws IOException {
-          HttpHeaders hdr = new HttpHeaders().setUserAgent(KnownLabels.USER_AGENT);
-          request.setHeaders(hdr);
-          nestedInitializer.initialize(request);
+      ControlTransport t = runtime != null ? runtime.getTransport() : this.controlTransport;
+      if (t == null) {
+        t = createControlTransport();
+      }
+      CircuitBreaker b = null;
+      if (circuitBreakerEnabled) {
+        b = this.circuitBreaker;
+        if (b == null) {
+          b = new CircuitBreaker(ticker == null ? Ticker.systemTicker() : ticker);
+        }
+        t = new CircuitBreakingControlTransport(t, b);
+      }
+      SchedulerFactory s = runtime != null ? runtime.getSchedulerFactory() : schedulerFactory;
+      Client client = new Client(serviceName, o, r, q, t,
+          f, s, statsLogFrequency, ticker, transportExecutor,
+          maxInFlightTransportCalls);
+      if (runtime != null) {
+        client.setFlushDispatcher(runtime.getFlushDispatcher(), false);
+      } else {
+        client.setFlushDispatcher(createFlushDispatcher(f), true);
+      }
+      client.setSynchronousReports(synchronousReports);
+      if (b != null) {
+        client.setCircuitBreaker(b);
+      }
+      if (reportSpool != null) {
+        client.setReportSpool(reportSpool);
+      }
+      if (cacheSnapshot != null) {
+        client.setCacheSnapshot(cacheSnapshot);
+      }
+      if (reportRetriesEnabled) {
+        ReportRetryQueue queue = this.reportRetryQueue;
+        if (queue == null) {
+          queue = new ReportRetryQueue(ticker == null ? Ticker.systemTicker() : ticker);
+        }
+        client.setReportRetryQueue(queue);
+      }
+      return client;
+    }
+
+    private FlushDispatcher createFlushDispatcher(ThreadFactory threads) {
+      Executor executor = this.flushExecutor;
+      if (executor == null && flushOnVirtualThreads) {
+        if (FlushDispatcher.isVirtualThreadSupported()) {
+          executor = FlushDispatcher.newVirtualThreadExecutor();
+        } else {
+          log.atWarning().log("virtual threads are not supported, using platform threads");
         }
-      };
-      return new Client(serviceName, o, r, q,
-          new ServiceControl.Builder(h, c)
-              .setHttpRequestInitializer(addUserAgent)
-              .setApplicationName(CLIENT_APPLICATION_NAME)
-              .build(),
-          f, schedulerFactory, statsLogFrequency, ticker);
+      }
+      return new FlushDispatcher(executor, threads, flushParallelism);
+    }
+
+    private ControlTransport createControlTransport()
+        throws GeneralSecurityException, IOException {
+      return Client.createControlTransport(transport, transportType, grpcTarget, callDeadlines,
+          gzipRequests);
+    }
+  }
+
+  /**
+   * Creates the transport to the service control service, loading the application default
+   * credentials.
+   *
+   * @param transport the HTTP transport; if {@code null}, a trusted one is created
+   */
+  static ControlTransport createControlTransport(@Nullable HttpTransport transport,
+      TransportType transportType, String grpcTarget, CallDeadlines callDeadlines,
+      boolean gzipRequests) throws GeneralSecurityException, IOException {
+    HttpTransport h = transport;
+    if (h == null) {
+      h = GoogleNetHttpTransport.newTrustedTransport();
     }
+    GoogleCredential c = GoogleCredential.getApplicationDefault(transport, new GsonFactory());
+    if (c.createScopedRequired()) {
+      c = c.createScoped(ServiceControlScopes.all());
+    }
+    if (transportType == TransportType.GRPC) {
+      return GrpcControlTransport.create(grpcTarget, c, callDeadlines);
+    }
+    final GoogleCredential nestedInitializer = c;
+    HttpRequestInitializer addUserAgent = new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        HttpHeaders hdr = new HttpHeaders().setUserAgent(KnownLabels.USER_AGENT);
+        request.setHeaders(hdr);
+        nestedInitializer.initialize(request);
+      }
+    };
+    return new RestControlTransport(new ServiceControl.Builder(h, c)
+        .setHttpRequestInitializer(addUserAgent)
+        .setApplicationName(CLIENT_APPLICATION_NAME)
+        .build(), callDeadlines, gzipRequests);
+  }
+
+  /**
+   * TransportType identifies the API used to talk to the service control service.
+   */
+  public enum TransportType {
+    /** The REST API over HTTP/1.1, using the generated {@link ServiceControl} client. */
+    REST,
+
+    /** gRPC, using a single long-lived HTTP/2 channel. */
+    GRPC
+  }
+
+  /**
+   * The lifecycle states of a {@code Client}.
+   */
+  private enum State {
+    /** Not started, or stopped; the next request starts the instance. */
+    STOPPED,
+    /** Started, requests are processed without taking a lock. */
+    RUNNING
   }
 
   /**
    * Statistics contains information about the performance of a {@code Client}.
+   *
+   * Counters are striped so that request threads do not contend on them, and latencies are kept
+   * in {@link LatencyHistogram}s with nanosecond resolution.
    */
-  static class Statistics {
+  static class Statistics implements ClientStatisticsMXBean {
     // counts
-    AtomicLong checkHits = new AtomicLong();
-    AtomicLong quotaHits = new AtomicLong();
-
-    AtomicLong directReports = new AtomicLong();
-    AtomicLong flushedOperations = new AtomicLong();
-    AtomicLong flushedReports = new AtomicLong();
-    AtomicLong recachedChecks = new AtomicLong();
-    AtomicLong recachedQuotas = new AtomicLong();
-    AtomicLong reportedOperations = new AtomicLong();
-    AtomicLong totalChecks = new AtomicLong();
-    AtomicLong totalReports = new AtomicLong();
-    AtomicLong totalQuotas = new AtomicLong();
-    AtomicLong totalSchedulerRuns = new AtomicLong();
-    AtomicLong totalSchedulerSkips = new AtomicLong();
+    final LongAdder checkHits = new LongAdder();
+    final LongAdder rejectedConsumerChecks = new LongAdder();
+    final LongAdder quotaHits = new LongAdder();
+
+    final LongAdder directReports = new LongAdder();
+    final LongAdder coalescedReports = new LongAdder();
+    final LongAdder flushedOperations = new LongAdder();
+    final LongAdder flushedReports = new LongAdder();
+    final LongAdder recachedChecks = new LongAdder();
+    final LongAdder recachedQuotas = new LongAdder();
+    final LongAdder reportedOperations = new LongAdder();
+    final LongAdder totalChecks = new LongAdder();
+    final LongAdder totalReports = new LongAdder();
+    final LongAdder totalQuotas = new LongAdder();
+    final LongAdder totalSchedulerSkips = new LongAdder();
+    final LongAdder rejectedTransportCalls = new LongAdder();
+    final LongAdder reportFlushes = new LongAdder();
+    final LongAdder reportFlushOverruns = new LongAdder();
+    final LongAdder earlyReportFlushes = new LongAdder();
+    final LongAdder quotaFlushes = new LongAdder();
+    final LongAdder quotaFlushOverruns = new LongAdder();
+    final LongAdder coalescedChecks = new LongAdder();
+    final LongAdder spooledReports = new LongAdder();
+    final LongAdder replayedReports = new LongAdder();
+    final LongAdder reportRetries = new LongAdder();
+    final LongAdder droppedReports = new LongAdder();
+    final LongAdder circuitBreakerTrips = new LongAdder();
+    final LongAdder circuitBreakerRejections = new LongAdder();
+
+    // states
+    volatile CircuitBreaker.State circuitBreakerState;
 
     // latencies
-    AtomicLong totalCheckCacheLookupTimeMillis = new AtomicLong();
-    AtomicLong totalCheckCacheUpdateTimeMillis = new AtomicLong();
-    AtomicLong totalCheckTransportTimeMillis = new AtomicLong();
-    AtomicLong totalTransportedReportTimeMillis = new AtomicLong();
-    AtomicLong totalReportCacheUpdateTimeMillis = new AtomicLong();
-    AtomicLong totalQuotaCacheLookupTimeMillis = new AtomicLong();
-    AtomicLong totalQuotaCacheUpdateTimeMillis = new AtomicLong();
-    AtomicLong totalQuotaTransportTimeMillis = new AtomicLong();
-    AtomicLong totalSchedulerSkiptimeMillis = new AtomicLong();
-    AtomicLong totalSchedulerRuntimeMillis = new AtomicLong();
+    final LatencyHistogram checkCacheLookupLatency;
+    final LatencyHistogram checkTransportLatency;
+    final LatencyHistogram quotaCacheLookupLatency;
+    final LatencyHistogram quotaTransportLatency;
+    final LatencyHistogram reportCacheUpdateLatency;
+    final LatencyHistogram reportTransportLatency;
+    final LatencyHistogram schedulerRunLatency;
+    final LongAdder totalQuotaCacheUpdateTimeNanos = new LongAdder();
+    final LongAdder totalSchedulerSkipTimeNanos = new LongAdder();
+    final LongAdder totalReportFlushTimeNanos = new LongAdder();
+    final LongAccumulator maxReportFlushTimeNanos = newMaxAccumulator();
+    final LongAdder totalQuotaFlushTimeNanos = new LongAdder();
+    final LongAccumulator maxQuotaFlushTimeNanos = newMaxAccumulator();
+
+    private final CheckRequestAggregator checkAggregator;
+
+    Statistics(Ticker ticker, CheckRequestAggregator checkAggregator) {
+      this.checkAggregator = checkAggregator;
+      checkCacheLookupLatency = new LatencyHistogram(ticker);
+      checkTransportLatency = new LatencyHistogram(ticker);
+      quotaCacheLookupLatency = new LatencyHistogram(ticker);
+      quotaTransportLatency = new LatencyHistogram(ticker);
+      reportCacheUpdateLatency = new LatencyHistogram(ticker);
+      reportTransportLatency = new LatencyHistogram(ticker);
+      schedulerRunLatency = new LatencyHistogram(ticker);
+    }
+
+    private static LongAccumulator newMaxAccumulator() {
+      return new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+          return Math.max(left, right);
+        }
+      }, 0);
+    }
 
     public double checkHitsPercent() {
-      return divide(100 * checkHits.get(), totalChecks.get());
+      return divide(100 * checkHits.sum(), totalChecks.sum());
+    }
+
+    /**
+     * @return the percentage of checks answered from the cache only because the signature
+     *         projection left out the labels in which they differ from the cached request. The
+     *         hit rate without projection is {@link #checkHitsPercent()} minus this
+     */
+    public double projectedCheckHitsPercent() {
+      return divide(100 * checkAggregator.getProjectedHits(), totalChecks.sum());
     }
 
     public double flushedReportsPercent() {
-      return divide(100 * flushedReports.get(), totalReports.get());
+      return divide(100 * flushedReports.sum(), totalReports.sum());
     }
 
     public long directChecks() {
-      return totalChecks.get() - checkHits.get();
+      return totalChecks.sum() - checkHits.sum();
     }
 
     public long totalChecksTransported() {
-      return directChecks() + recachedChecks.get();
+      return directChecks() + recachedChecks.sum();
     }
 
     public long totalReportsTransported() {
-      return directReports.get() + flushedReports.get();
+      return directReports.sum() + flushedReports.sum();
+    }
+
+    @Override
+    public long getTotalChecks() {
+      return totalChecks.sum();
+    }
+
+    @Override
+    public long getCheckHits() {
+      return checkHits.sum();
+    }
+
+    @Override
+    public long getProjectedCheckHits() {
+      return checkAggregator.getProjectedHits();
+    }
+
+    @Override
+    public long getRejectedConsumerChecks() {
+      return rejectedConsumerChecks.sum();
+    }
+
+    @Override
+    public long getRecachedChecks() {
+      return recachedChecks.sum();
+    }
+
+    @Override
+    public long getCoalescedChecks() {
+      return coalescedChecks.sum();
+    }
+
+    @Override
+    public long getTotalQuotas() {
+      return totalQuotas.sum();
+    }
+
+    @Override
+    public long getQuotaHits() {
+      return quotaHits.sum();
+    }
+
+    @Override
+    public long getTotalReports() {
+      return totalReports.sum();
+    }
+
+    @Override
+    public long getDirectReports() {
+      return directReports.sum();
+    }
+
+    @Override
+    public long getCoalescedReports() {
+      return coalescedReports.sum();
+    }
+
+    @Override
+    public long getFlushedReports() {
+      return flushedReports.sum();
+    }
+
+    @Override
+    public long getReportRetries() {
+      return reportRetries.sum();
+    }
+
+    @Override
+    public long getSpooledReports() {
+      return spooledReports.sum();
+    }
+
+    @Override
+    public long getDroppedReports() {
+      return droppedReports.sum();
     }
 
-    public double meanTransportedReportTimeMillis() {
-      return divide(totalTransportedReportTimeMillis.get(), totalReportsTransported());
+    @Override
+    public long getRejectedTransportCalls() {
+      return rejectedTransportCalls.sum();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+      CircuitBreaker.State state = circuitBreakerState;
+      return state == null ? "DISABLED" : state.name();
+    }
+
+    @Override
+    public long getCircuitBreakerTrips() {
+      return circuitBreakerTrips.sum();
+    }
+
+    @Override
+    public LatencyHistogram getCheckCacheLookupLatency() {
+      return checkCacheLookupLatency;
+    }
+
+    @Override
+    public LatencyHistogram getCheckTransportLatency() {
+      return checkTransportLatency;
+    }
+
+    @Override
+    public LatencyHistogram getQuotaCacheLookupLatency() {
+      return quotaCacheLookupLatency;
     }
 
-    public double meanReportCacheUpdateTimeMillis() {
-      long count = totalReports.get() - directReports.get();
-      return divide(totalReportCacheUpdateTimeMillis.get(), count);
+    @Override
+    public LatencyHistogram getQuotaTransportLatency() {
+      return quotaTransportLatency;
     }
 
-    public double meanTransportedCheckTimeMillis() {
-      return divide(totalCheckTransportTimeMillis.get(), totalChecksTransported());
+    @Override
+    public LatencyHistogram getReportCacheUpdateLatency() {
+      return reportCacheUpdateLatency;
     }
 
-    public double meanCheckCacheLookupTimeMillis() {
-      return divide(totalCheckCacheLookupTimeMillis, totalChecks);
+    @Override
+    public LatencyHistogram getReportTransportLatency() {
+      return reportTransportLatency;
     }
 
-    public double meanCheckCacheUpdateTimeMillis() {
-      return divide(totalCheckCacheUpdateTimeMillis.get(), totalChecksTransported());
+    @Override
+    public LatencyHistogram getSchedulerRunLatency() {
+      return schedulerRunLatency;
     }
 
-    private static double divide(AtomicLong dividend, AtomicLong divisor) {
-      return divide(dividend.get(), divisor.get());
+    private static double divide(LongAdder dividend, LongAdder divisor) {
+      return divide(dividend.sum(), divisor.sum());
     }
 
     private static double divide(long dividend, long divisor) {
@@ -603,38 +1864,65 @@ public class Client {
       return 1.0 * dividend / divisor;
     }
 
+    private static double nanosToMillis(double nanos) {
+      return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
     @Override
     public String toString() {
       final String nl = "\n  "; // Use a consistent space to make the output valid YAML
       return "statistics:"
-          + nl + "totalChecks:" + totalChecks.get()
-          + nl + "checkHits:" + checkHits.get()
+          + nl + "totalChecks:" + totalChecks.sum()
+          + nl + "checkHits:" + checkHits.sum()
           + nl + "checkHitsPercent:" + checkHitsPercent()
-          + nl + "recachedChecks:" + recachedChecks.get()
+          + nl + "projectedCheckHits:" + checkAggregator.getProjectedHits()
+          + nl + "projectedCheckHitsPercent:" + projectedCheckHitsPercent()
+          + nl + "rejectedConsumerChecks:" + rejectedConsumerChecks.sum()
+          + nl + "recachedChecks:" + recachedChecks.sum()
+          + nl + "coalescedChecks:" + coalescedChecks.sum()
           + nl + "totalChecksTransported:" + totalChecksTransported()
-          + nl + "totalTransportedCheckTimeMillis:" + totalCheckTransportTimeMillis.get()
-          + nl + "meanTransportedCheckTimeMillis:" + meanTransportedCheckTimeMillis()
-          + nl + "totalCheckCacheLookupTimeMillis:" + totalCheckCacheLookupTimeMillis.get()
-          + nl + "meanCheckCacheLookupTimeMillis:" + meanCheckCacheLookupTimeMillis()
-          + nl + "totalCheckCacheUpdateTimeMillis:" + totalCheckCacheUpdateTimeMillis.get()
-          + nl + "meanCheckCacheUpdateTimeMillis:" + meanCheckCacheUpdateTimeMillis()
-          + nl + "totalReports:" + totalReports.get()
-          + nl + "flushedReports:" + flushedReports.get()
-          + nl + "directReports:" + directReports.get()
+          + nl + "checkCacheLookupLatency: " + checkCacheLookupLatency
+          + nl + "checkTransportLatency: " + checkTransportLatency
+          + nl + "rejectedTransportCalls:" + rejectedTransportCalls.sum()
+          + nl + "circuitBreakerState:" + getCircuitBreakerState()
+          + nl + "circuitBreakerTrips:" + circuitBreakerTrips.sum()
+          + nl + "circuitBreakerRejections:" + circuitBreakerRejections.sum()
+          + nl + "totalQuotas:" + totalQuotas.sum()
+          + nl + "quotaHits:" + quotaHits.sum()
+          + nl + "recachedQuotas:" + recachedQuotas.sum()
+          + nl + "quotaCacheLookupLatency: " + quotaCacheLookupLatency
+          + nl + "quotaTransportLatency: " + quotaTransportLatency
+          + nl + "meanQuotaCacheUpdateTimeMillis:"
+              + nanosToMillis(divide(totalQuotaCacheUpdateTimeNanos, recachedQuotas))
+          + nl + "totalReports:" + totalReports.sum()
+          + nl + "flushedReports:" + flushedReports.sum()
+          + nl + "directReports:" + directReports.sum()
+          + nl + "coalescedReports:" + coalescedReports.sum()
           + nl + "flushedReportsPercent:" + flushedReportsPercent()
           + nl + "totalReportsTransported:" + totalReportsTransported()
-          + nl + "totalTransportedReportTimeMillis:" + totalTransportedReportTimeMillis.get()
-          + nl + "meanTransportedReportTimeMillis:" + meanTransportedReportTimeMillis()
-          + nl + "totalReportCacheUpdateTimeMillis:" + totalReportCacheUpdateTimeMillis.get()
-          + nl + "meanReportCacheUpdateTimeMillis:" + meanReportCacheUpdateTimeMillis()
-          + nl + "flushedOperations:" + flushedOperations.get()
-          + nl + "reportedOperations:" + reportedOperations.get()
-          + nl + "totalSchedulerRuns:" + totalSchedulerRuns.get()
-          + nl + "totalSchedulerRuntimeMillis:" + totalSchedulerRuntimeMillis.get()
-          + nl + "meanSchedulerRuntimeMillis:" + divide(totalSchedulerRuntimeMillis, totalSchedulerRuns)
-          + nl + "totalSchedulerSkips:" + totalSchedulerSkips.get()
-          + nl + "totalSchedulerSkiptimeMillis:" + totalSchedulerSkiptimeMillis.get()
-          + nl + "meanSchedulerSkiptimeMillis:" + divide(totalSchedulerSkiptimeMillis, totalSchedulerSkips);
+          + nl + "reportCacheUpdateLatency: " + reportCacheUpdateLatency
+          + nl + "reportTransportLatency: " + reportTransportLatency
+          + nl + "flushedOperations:" + flushedOperations.sum()
+          + nl + "spooledReports:" + spooledReports.sum()
+          + nl + "replayedReports:" + replayedReports.sum()
+          + nl + "reportRetries:" + reportRetries.sum()
+          + nl + "droppedReports:" + droppedReports.sum()
+          + nl + "reportFlushes:" + reportFlushes.sum()
+          + nl + "meanReportFlushTimeMillis:"
+              + nanosToMillis(divide(totalReportFlushTimeNanos, reportFlushes))
+          + nl + "maxReportFlushTimeMillis:" + nanosToMillis(maxReportFlushTimeNanos.get())
+          + nl + "reportFlushOverruns:" + reportFlushOverruns.sum()
+          + nl + "earlyReportFlushes:" + earlyReportFlushes.sum()
+          + nl + "quotaFlushes:" + quotaFlushes.sum()
+          + nl + "meanQuotaFlushTimeMillis:"
+              + nanosToMillis(divide(totalQuotaFlushTimeNanos, quotaFlushes))
+          + nl + "maxQuotaFlushTimeMillis:" + nanosToMillis(maxQuotaFlushTimeNanos.get())
+          + nl + "quotaFlushOverruns:" + quotaFlushOverruns.sum()
+          + nl + "reportedOperations:" + reportedOperations.sum()
+          + nl + "schedulerRunLatency: " + schedulerRunLatency
+          + nl + "totalSchedulerSkips:" + totalSchedulerSkips.sum()
+          + nl + "meanSchedulerSkiptimeMillis:"
+              + nanosToMillis(divide(totalSchedulerSkipTimeNanos, totalSchedulerSkips));
     }
   }
 
@@ -672,6 +1960,7 @@ public class Client {
       ScheduledEvent event = new ScheduledEvent(r, later, priority);
       synchronized (this) {
         queue.add(event);
+        notifyAll(); // wake a thread waiting for a later event
       }
     }
 
@@ -679,9 +1968,11 @@ public class Client {
       while (!this.queue.isEmpty()) {
         boolean delay = true;
         ScheduledEvent next = null;
+        ScheduledEvent head = null;
         long gap = 0;
         synchronized (this) {
           next = queue.peek();
+          head = next;
           long now = ticker.read();
           gap = next.getTickerTime() - now;
           if (gap > 0) {
@@ -695,8 +1986,8 @@ public class Client {
         if (delay) {
           long gapMillis = TimeUnit.NANOSECONDS.toMillis(gap);
           if (statistics != null) {
-            statistics.totalSchedulerSkips.incrementAndGet();
-            statistics.totalSchedulerSkiptimeMillis.addAndGet(gapMillis);
+            statistics.totalSchedulerSkips.increment();
+            statistics.totalSchedulerSkipTimeNanos.add(gap);
           }
           if (!block) {
             log.atFine().log(
@@ -706,14 +1997,17 @@ public class Client {
           }
           log.atFine().log(
               "Scheduler on %s will sleep for %d millis", Thread.currentThread(), gapMillis);
-          Thread.sleep(gapMillis);
+          synchronized (this) {
+            if (queue.peek() == head) {
+              TimeUnit.NANOSECONDS.timedWait(this, gap); // returns early if an event is entered
+            }
+          }
         } else {
           log.atFine().log("Scheduler on %s will run an event", Thread.currentThread());
           Stopwatch w = Stopwatch.createStarted(ticker);
           next.getScheduledAction().run();
           if (statistics != null) {
-            statistics.totalSchedulerRuns.incrementAndGet();
-            statistics.totalSchedulerRuntimeMillis.addAndGet(w.elapsed(TimeUnit.MILLISECONDS));
+            statistics.schedulerRunLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
           }
         }
       }
@@ -726,6 +2020,21 @@ public class Client {
     public void setStatistics(Statistics statistics) {
       this.statistics = statistics;
     }
+
+    /**
+     * @return {@code true} if this instance runs its events without a thread blocking in
+     *         {@link #run()}
+     */
+    boolean isSelfDriving() {
+      return false;
+    }
+
+    /**
+     * Removes all events that have not yet run.
+     */
+    synchronized void cancelAll() {
+      queue.clear();
+    }
   }
 
   /**
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.control.Client.SchedulerFactory;
+import com.google.api.control.Client.TransportType;
+import com.google.api.control.transport.CallDeadlines;
+import com.google.api.control.transport.ControlTransport;
+import com.google.api.control.transport.GrpcControlTransport;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ClientRuntime holds what the {@link Client}s of several services hosted in one JVM can share:
+ * the transport to the service control service, with its credentials and connections, the thread
+ * that runs the scheduled flushes, and the {@link FlushDispatcher}.
+ *
+ * Each service still has its own {@link Client}, with its own aggregators and statistics; create
+ * them with {@link #newClientBuilder(String)}. Their delayed events are aligned to the ticks of
+ * the runtime, so that the flushes of all the services go out on the same tick.
+ *
+ * Thread-safe. The clients should be stopped before the runtime is {@link #close() closed}.
+ */
+public final class ClientRuntime implements Closeable {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The default interval between the ticks that the flushes are aligned to.
+   */
+  public static final int DEFAULT_TICK_MILLIS = 1000;
+
+  private final ControlTransport transport;
+  private final Ticker ticker;
+  private final ThreadFactory threads;
+  private final ScheduledThreadPoolExecutor schedulerExecutor;
+  private final SchedulerFactory schedulers;
+  private final FlushDispatcher flushDispatcher;
+
+  private ClientRuntime(ControlTransport transport, Ticker ticker, ThreadFactory threads,
+      int tickMillis, FlushDispatcher flushDispatcher) {
+    this.transport = transport;
+    this.ticker = ticker;
+    this.threads = threads;
+    this.schedulerExecutor = new ScheduledThreadPoolExecutor(1, threads);
+    this.schedulerExecutor.setRemoveOnCancelPolicy(true);
+    this.schedulers = ExecutorScheduler.factory(schedulerExecutor, tickMillis);
+    this.flushDispatcher = flushDispatcher;
+  }
+
+  /**
+   * Creates a {@link Client.Builder} for {@code serviceName} that uses this runtime.
+   *
+   * @param serviceName the name of the service
+   * @return a {@link Client.Builder}; see {@link Client.Builder#setRuntime(ClientRuntime)} for the
+   *         settings that the runtime overrides
+   */
+  public Client.Builder newClientBuilder(String serviceName) {
+    return new Client.Builder(serviceName).setRuntime(this);
+  }
+
+  /**
+   * @return the transport shared by the clients of this runtime
+   */
+  public ControlTransport getTransport() {
+    return transport;
+  }
+
+  Ticker getTicker() {
+    return ticker;
+  }
+
+  ThreadFactory getThreadFactory() {
+    return threads;
+  }
+
+  SchedulerFactory getSchedulerFactory() {
+    return schedulers;
+  }
+
+  FlushDispatcher getFlushDispatcher() {
+    return flushDispatcher;
+  }
+
+  /**
+   * Stops the scheduler thread and the threads of the {@link FlushDispatcher}, and closes the
+   * transport if it's {@link Closeable}, e.g. the channel of a {@link GrpcControlTransport}.
+   * Events that the clients still have scheduled do not run.
+   */
+  @Override
+  public void close() {
+    schedulerExecutor.shutdownNow();
+    flushDispatcher.shutdown();
+    if (transport instanceof Closeable) {
+      try {
+        ((Closeable) transport).close();
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("could not close the transport");
+      }
+    }
+  }
+
+  /**
+   * Builder provides structure to the construction of a {@link ClientRuntime}.
+   */
+  public static class Builder {
+    private Ticker ticker;
+    private ThreadFactory factory;
+    private HttpTransport transport;
+    private TransportType transportType = TransportType.REST;
+    private String grpcTarget = GrpcControlTransport.DEFAULT_TARGET;
+    private ControlTransport controlTransport;
+    private CallDeadlines callDeadlines = new CallDeadlines();
+    private boolean gzipRequests = true;
+    private int tickMillis = DEFAULT_TICK_MILLIS;
+    private int flushParallelism = FlushDispatcher.DEFAULT_PARALLELISM;
+    private Executor flushExecutor;
+
+    public Builder setTicker(Ticker ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
+    /**
+     * @param factory creates the scheduler thread, and the threads of the clients that do not
+     *        set their own factory
+     */
+    public Builder setFactory(ThreadFactory factory) {
+      this.factory = factory;
+      return this;
+    }
+
+    public Builder setHttpTransport(HttpTransport transport) {
+      this.transport = transport;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setTransportType(TransportType)
+     */
+    public Builder setTransportType(TransportType transportType) {
+      this.transportType = transportType;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setGrpcTarget(String)
+     */
+    public Builder setGrpcTarget(String target) {
+      this.grpcTarget = target;
+      return this;
+    }
+
+    /**
+     * @param controlTransport the transport shared by the clients. It's closed along with the
+     *        runtime if it's {@link Closeable}
+     * @see Client.Builder#setControlTransport(ControlTransport)
+     */
+    public Builder setControlTransport(ControlTransport controlTransport) {
+      this.controlTransport = controlTransport;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setCallDeadlines(CallDeadlines)
+     */
+    public Builder setCallDeadlines(CallDeadlines deadlines) {
+      this.callDeadlines = deadlines;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setGzipRequests(boolean)
+     */
+    public Builder setGzipRequests(boolean gzipRequests) {
+      this.gzipRequests = gzipRequests;
+      return this;
+    }
+
+    /**
+     * @param tickMillis the interval between the ticks that the delayed events of the clients
+     *        are aligned to, or 0 to not align them. Defaults to {@link #DEFAULT_TICK_MILLIS}
+     */
+    public Builder setTickMillis(int tickMillis) {
+      this.tickMillis = tickMillis;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setFlushParallelism(int)
+     */
+    public Builder setFlushParallelism(int parallelism) {
+      this.flushParallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * @see Client.Builder#setFlushExecutor(Executor)
+     */
+    public Builder setFlushExecutor(Executor executor) {
+      this.flushExecutor = executor;
+      return this;
+    }
+
+    public ClientRuntime build() throws GeneralSecurityException, IOException {
+      Preconditions.checkArgument(tickMillis >= 0, "tickMillis must not be negative");
+      Ticker t = this.ticker;
+      if (t == null) {
+        t = Ticker.systemTicker();
+      }
+      ThreadFactory f = this.factory;
+      if (f == null) {
+        f = new ThreadFactoryBuilder().setDaemon(true).build();
+      }
+      ControlTransport c = this.controlTransport;
+      if (c == null) {
+        c = Client.createControlTransport(transport, transportType, grpcTarget, callDeadlines,
+            gzipRequests);
+      }
+      return new ClientRuntime(c, t, f, tickMillis,
+          new FlushDispatcher(flushExecutor, f, flushParallelism));
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+/**
+ * ClientStatisticsMXBean exposes the statistics of a {@link Client} through JMX.
+ *
+ * An instance is registered by {@link Client#start()} under the name
+ * {@code com.google.api.control:type=Client,serviceName=<quoted service name>}, and unregistered
+ * by {@link Client#stop()}.
+ */
+public interface ClientStatisticsMXBean {
+  long getTotalChecks();
+
+  long getCheckHits();
+
+  /**
+   * @return the number of check cache hits that are due to the labels left out of the signature
+   */
+  long getProjectedCheckHits();
+
+  /**
+   * @return the number of checks rejected because an earlier response rejected their consumer
+   */
+  long getRejectedConsumerChecks();
+
+  long getRecachedChecks();
+
+  long getCoalescedChecks();
+
+  long getTotalQuotas();
+
+  long getQuotaHits();
+
+  long getTotalReports();
+
+  long getDirectReports();
+
+  long getCoalescedReports();
+
+  long getFlushedReports();
+
+  long getReportRetries();
+
+  long getSpooledReports();
+
+  long getDroppedReports();
+
+  long getRejectedTransportCalls();
+
+  /**
+   * @return the state of the circuit breaker guarding the transport, or {@code DISABLED}
+   */
+  String getCircuitBreakerState();
+
+  long getCircuitBreakerTrips();
+
+  LatencyHistogram getCheckCacheLookupLatency();
+
+  LatencyHistogram getCheckTransportLatency();
+
+  LatencyHistogram getQuotaCacheLookupLatency();
+
+  LatencyHistogram getQuotaTransportLatency();
+
+  LatencyHistogram getReportCacheUpdateLatency();
+
+  LatencyHistogram getReportTransportLatency();
+
+  LatencyHistogram getSchedulerRunLatency();
+}
@@ -60,7 +60,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Nullable;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -237,17 +237,29 @@ public class ControlFilter implements Filter {
     CheckRequestInfo checkInfo = createCheckInfo(httpRequest, appInfo.url, info);
     CheckErrorInfo errorInfo;
     CheckResponse checkResponse = null;
+    boolean rejectedConsumer = false;
     long consumerProjectNumber = 0;
     if (Strings.isNullOrEmpty(checkInfo.getApiKey()) && !info.shouldAllowUnregisteredCalls()) {
       errorInfo = CheckErrorInfo.API_KEY_NOT_PROVIDED;
       log.atFine().log("no api key was provided");
     } else {
-      creationTimer.reset().start();
-      CheckRequest checkRequest = checkInfo.asCheckRequest(clock);
-      statistics.totalChecks.incrementAndGet();
-      statistics.totalCheckCreationTime.addAndGet(creationTimer.elapsed(TimeUnit.MILLISECONDS));
-      log.atFine().log("checking using %s", checkRequest);
-      checkResponse = client.check(checkRequest);
+      statistics.totalChecks.increment();
+      // Turn away consumers that were rejected for any operation, e.g. for an invalid API key
+      checkResponse = client.checkRejected(checkInfo.getOperationConsumerId());
+      rejectedConsumer = checkResponse != null;
+      // Only build the check request if there is no cached response for it
+      if (checkResponse == null) {
+        checkResponse = client.checkCached(checkInfo.getOperationConsumerId(),
+            checkInfo.getOperationName(), checkInfo.getOperationLabels());
+      }
+      if (checkResponse == null) {
+        creationTimer.reset().start();
+        CheckRequest checkRequest = checkInfo.asCheckRequest(clock);
+        statistics.createdChecks.increment();
+        statistics.totalCheckCreationTimeNanos.add(creationTimer.elapsed(TimeUnit.NANOSECONDS));
+        log.atFine().log("checking using %s", checkRequest);
+        checkResponse = client.check(checkRequest);
+      }
       errorInfo = CheckErrorInfo.convert(checkResponse);
       if (checkResponse != null) {
         consumerProjectNumber = checkResponse.getCheckInfo().getConsumerInfo().getProjectNumber();
@@ -286,13 +298,18 @@ public class ControlFilter implements Filter {
             errorInfo.fullMessage(projectId, checkResponse.getCheckErrors(0).getDetail()));
       }
       if (!trickle) {
+        ReportingRule rule = ConfigFilter.getReportRule(request);
+        if (rejectedConsumer) {
+          // The rejection was logged when the consumer was first rejected; without log entries,
+          // the reports of later rejections aggregate into a single operation
+          rule = rule.withoutLogs();
+        }
         ReportRequest reportRequest =
-            createReportRequest(info, checkInfo, appInfo, ConfigFilter.getReportRule(request),
-                timer, consumerProjectNumber);
+            createReportRequest(info, checkInfo, appInfo, rule, timer, consumerProjectNumber);
         log.atFinest().log("sending an error report request %s", reportRequest);
         client.report(reportRequest);
-        statistics.totalFiltered.incrementAndGet();
-        statistics.totalFilteredTime.addAndGet(overallTimer.elapsed(TimeUnit.MILLISECONDS));
+        statistics.totalFiltered.increment();
+        statistics.totalFilteredTimeNanos.add(overallTimer.elapsed(TimeUnit.NANOSECONDS));
         logStatistics();
         return;
       }
@@ -302,8 +319,14 @@ public class ControlFilter implements Filter {
     if (quotaInfo.getMetricCosts().isEmpty()) {
       log.atFine().log("no metric costs for this method");
     } else {
-      AllocateQuotaRequest quotaRequest = quotaInfo.asQuotaRequest(clock);
-      AllocateQuotaResponse quotaResponse = client.allocateQuota(quotaRequest);
+      AllocateQuotaResponse quotaResponse = client.allocateQuotaCached(
+          quotaInfo.getOperationConsumerId(), quotaInfo.getOperationName(),
+          quotaInfo.getMetricCosts());
+      if (quotaResponse == null) {
+        quotaInfo.setOperationId(nextOperationId());
+        AllocateQuotaRequest quotaRequest = quotaInfo.asQuotaRequest(clock);
+        quotaResponse = client.allocateQuota(quotaRequest);
+      }
       QuotaErrorInfo quotaErrorInfo = QuotaErrorInfo.convert(quotaResponse);
       if (quotaErrorInfo.isReallyError()) {
         HttpServletResponse httpResponse = (HttpServletResponse) response;
@@ -330,12 +353,12 @@ public class ControlFilter implements Filter {
     ReportRequest reportRequest =
         createReportRequest(info, checkInfo, appInfo, ConfigFilter.getReportRule(request), timer,
             consumerProjectNumber);
-    statistics.totalReports.incrementAndGet();
-    statistics.totalReportCreationTime.addAndGet(creationTimer.elapsed(TimeUnit.MILLISECONDS));
+    statistics.totalReports.increment();
+    statistics.totalReportCreationTimeNanos.add(creationTimer.elapsed(TimeUnit.NANOSECONDS));
     log.atFinest().log("sending a report request %s", reportRequest);
     client.report(reportRequest);
-    statistics.totalFiltered.incrementAndGet();
-    statistics.totalFilteredTime.addAndGet(overallTimer.elapsed(TimeUnit.MILLISECONDS));
+    statistics.totalFiltered.increment();
+    statistics.totalFilteredTimeNanos.add(overallTimer.elapsed(TimeUnit.NANOSECONDS));
     logStatistics();
   }
 
@@ -405,7 +428,6 @@ public class ControlFilter implements Filter {
         .setApiKeyValid(!Strings.isNullOrEmpty(apiKey))
         .setReferer(request.getHeader(REFERER))
         .setConsumerProjectId(this.projectId)
-        .setOperationId(nextOperationId())
         .setOperationName(info.getSelector())
         .setServiceName(serviceName))
         .setMetricCosts(info.getQuotaInfo().getMetricCosts())
@@ -459,7 +481,7 @@ public class ControlFilter implements Filter {
     if (statsLogFrequency < 1) {
       return;
     }
-    if (statistics.totalFiltered.get() % statsLogFrequency == 0) {
+    if (statistics.totalFiltered.sum() % statsLogFrequency == 0) {
       log.atInfo().log("stats=%s", statistics);
     }
   }
@@ -521,33 +543,42 @@ public class ControlFilter implements Filter {
   }
 
   private static class Statistics {
-    AtomicLong totalChecks = new AtomicLong();
-    AtomicLong totalReports = new AtomicLong();
-    AtomicLong totalCheckCreationTime = new AtomicLong();
-    AtomicLong totalReportCreationTime = new AtomicLong();
-    AtomicLong totalFilteredTime = new AtomicLong();
-    AtomicLong totalFiltered = new AtomicLong();
+    final LongAdder totalChecks = new LongAdder();
+    final LongAdder createdChecks = new LongAdder(); // only checks without a cached response
+    final LongAdder totalReports = new LongAdder();
+    final LongAdder totalCheckCreationTimeNanos = new LongAdder();
+    final LongAdder totalReportCreationTimeNanos = new LongAdder();
+    final LongAdder totalFilteredTimeNanos = new LongAdder();
+    final LongAdder totalFiltered = new LongAdder();
 
     @Override
     public String toString() {
       final String nl = "\n  "; // Use a consistent space to make the output valid YAML
       return "filter_statistics:"
-          + nl + "totalFiltered:" + totalFiltered.get()
-          + nl + "totalFilteredTime:" + totalFilteredTime.get()
-          + nl + "meanFilteredTime:" + divide(totalFilteredTime, totalFiltered)
-          + nl + "totalChecks:" + totalChecks.get()
-          + nl + "totalCheckCreationTime:" + totalCheckCreationTime.get()
-          + nl + "meanCheckCreationTime:" + divide(totalCheckCreationTime, totalChecks)
-          + nl + "totalReports:" + totalReports
-          + nl + "totalReportCreationTime:" + totalReportCreationTime.get()
-          + nl + "meanReportCreationTime:" + divide(totalReportCreationTime, totalReports);
-    }
-
-    private static double divide(AtomicLong dividend, AtomicLong divisor) {
-      if (divisor.get() == 0) {
+          + nl + "totalFiltered:" + totalFiltered.sum()
+          + nl + "totalFilteredTimeMillis:" + toMillis(totalFilteredTimeNanos.sum())
+          + nl + "meanFilteredTimeMillis:" + toMillis(divide(totalFilteredTimeNanos, totalFiltered))
+          + nl + "totalChecks:" + totalChecks.sum()
+          + nl + "createdChecks:" + createdChecks.sum()
+          + nl + "totalCheckCreationTimeMillis:" + toMillis(totalCheckCreationTimeNanos.sum())
+          + nl + "meanCheckCreationTimeMillis:"
+              + toMillis(divide(totalCheckCreationTimeNanos, createdChecks))
+          + nl + "totalReports:" + totalReports.sum()
+          + nl + "totalReportCreationTimeMillis:" + toMillis(totalReportCreationTimeNanos.sum())
+          + nl + "meanReportCreationTimeMillis:"
+              + toMillis(divide(totalReportCreationTimeNanos, totalReports));
+    }
+
+    private static double divide(LongAdder dividend, LongAdder divisor) {
+      long count = divisor.sum();
+      if (count == 0) {
         return 0;
       }
-      return 1.0 * dividend.get() / divisor.get();
+      return 1.0 * dividend.sum() / count;
+    }
+
+    private static double toMillis(double nanos) {
+      return nanos / TimeUnit.MILLISECONDS.toNanos(1);
     }
   }
 
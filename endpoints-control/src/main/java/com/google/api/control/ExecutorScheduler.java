@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import com.google.api.control.Client.Scheduler;
+import com.google.api.control.Client.SchedulerFactory;
+import com.google.api.control.Client.Statistics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.math.LongMath;
+
+import java.math.RoundingMode;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExecutorScheduler is a {@link Scheduler} whose events are run by a
+ * {@link ScheduledExecutorService}, so no thread needs to block in {@link #run()}.
+ *
+ * Events are due according to the {@link Ticker}, which keeps tests that use a fake ticker
+ * deterministic: {@link #run(boolean)} runs the events that are due, and the executor is only used
+ * to wake up when the earliest event should be due. Entering an event that is earlier than all
+ * others re-arms the wake-up, and events can be cancelled.
+ *
+ * A single executor can be shared by many {@link Client}s; see {@link #factory}. With a tick, the
+ * delayed events of all the instances sharing a ticker become due on the same tick boundaries,
+ * so that e.g. the flushes of several services run together rather than spread over time.
+ *
+ * Thread-safe. Events of one instance never run concurrently.
+ */
+public class ExecutorScheduler extends Scheduler {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final ScheduledExecutorService executor;
+  private final Ticker ticker;
+  private final long tickNanos;
+  private final PriorityQueue<ScheduledTask> queue;
+  private final Runnable wakeUpAction;
+  private Statistics statistics;
+  private ScheduledFuture<?> wakeUp; // guarded by this
+  private long wakeUpTickerTime; // guarded by this
+  private long sequence; // guarded by this
+  private boolean draining; // guarded by this
+
+  /**
+   * Constructor.
+   *
+   * @param ticker determines when events are due
+   * @param executor wakes up this instance to run its events; it may be shared
+   */
+  public ExecutorScheduler(Ticker ticker, ScheduledExecutorService executor) {
+    this(ticker, executor, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ticker determines when events are due
+   * @param executor wakes up this instance to run its events; it may be shared
+   * @param tickMillis if positive, delayed events are due at the next multiple of this many
+   *        milliseconds on the ticker instead of exactly after their delay
+   */
+  public ExecutorScheduler(Ticker ticker, ScheduledExecutorService executor, long tickMillis) {
+    super(ticker);
+    Preconditions.checkArgument(tickMillis >= 0, "tickMillis must not be negative");
+    this.ticker = Preconditions.checkNotNull(ticker, "ticker must be non-null");
+    this.executor = Preconditions.checkNotNull(executor, "executor must be non-null");
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.queue = new PriorityQueue<>();
+    this.wakeUpAction = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (ExecutorScheduler.this) {
+          wakeUp = null;
+        }
+        drain();
+      }
+    };
+  }
+
+  /**
+   * Creates a {@link SchedulerFactory} whose schedulers all run on {@code executor}.
+   *
+   * The executor is not shut down by the {@link Client}s using it.
+   *
+   * @param executor the executor shared by all the created schedulers
+   * @return a {@link SchedulerFactory}
+   */
+  public static SchedulerFactory factory(ScheduledExecutorService executor) {
+    return factory(executor, 0);
+  }
+
+  /**
+   * Creates a {@link SchedulerFactory} whose schedulers all run on {@code executor}, and align
+   * their delayed events to the same ticks.
+   *
+   * The executor is not shut down by the {@link Client}s using it.
+   *
+   * @param executor the executor shared by all the created schedulers
+   * @param tickMillis the tick of the created schedulers, see
+   *        {@link #ExecutorScheduler(Ticker, ScheduledExecutorService, long)}
+   * @return a {@link SchedulerFactory}
+   */
+  public static SchedulerFactory factory(final ScheduledExecutorService executor,
+      final long tickMillis) {
+    Preconditions.checkNotNull(executor, "executor must be non-null");
+    Preconditions.checkArgument(tickMillis >= 0, "tickMillis must not be negative");
+    return new SchedulerFactory() {
+      @Override
+      public Scheduler create(Ticker ticker) {
+        return new ExecutorScheduler(ticker, executor, tickMillis);
+      }
+    };
+  }
+
+  @Override
+  public void enter(Runnable r, long deltaMillis, int priority) {
+    schedule(r, deltaMillis, priority);
+  }
+
+  /**
+   * Schedules {@code r} to run after {@code deltaMillis}.
+   *
+   * @param r a {@code Runnable} to run after {@code deltaMillis}
+   * @param deltaMillis the time in the future to run {@code r}
+   * @param priority the priority of {@code r} among events due at the same time; lower runs first
+   * @return a {@link ScheduledTask} that can be used to cancel {@code r}
+   */
+  public ScheduledTask schedule(Runnable r, long deltaMillis, int priority) {
+    long tickerTime = ticker.read() + TimeUnit.MILLISECONDS.toNanos(deltaMillis);
+    if (tickNanos > 0 && deltaMillis > 0) {
+      // round up to the next tick; events without a delay still run as soon as possible
+      tickerTime = LongMath.divide(tickerTime, tickNanos, RoundingMode.CEILING) * tickNanos;
+    }
+    synchronized (this) {
+      ScheduledTask task = new ScheduledTask(r, tickerTime, priority, sequence++);
+      queue.add(task);
+      armWakeUp();
+      return task;
+    }
+  }
+
+  /**
+   * Runs all events that are due.
+   *
+   * @param block if {@code true}, waits until no events are left after running the due ones
+   */
+  @Override
+  public void run(boolean block) throws InterruptedException {
+    drain();
+    if (block) {
+      synchronized (this) {
+        while (!queue.isEmpty()) {
+          wait();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void setStatistics(Statistics statistics) {
+    super.setStatistics(statistics);
+    this.statistics = statistics;
+  }
+
+  @Override
+  boolean isSelfDriving() {
+    return true;
+  }
+
+  @Override
+  synchronized void cancelAll() {
+    queue.clear();
+    if (wakeUp != null) {
+      wakeUp.cancel(false);
+      wakeUp = null;
+    }
+    notifyAll();
+  }
+
+  /**
+   * @return the number of events that are scheduled and not cancelled
+   */
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  private void drain() {
+    synchronized (this) {
+      if (draining) {
+        return; // the draining thread picks up any event that became due meanwhile
+      }
+      draining = true;
+    }
+    while (true) {
+      ScheduledTask next;
+      synchronized (this) {
+        next = queue.peek();
+        if (next == null || next.tickerTime > ticker.read()) {
+          draining = false;
+          armWakeUp();
+          if (queue.isEmpty()) {
+            notifyAll();
+          }
+          return;
+        }
+        queue.remove();
+      }
+      Stopwatch w = Stopwatch.createStarted(ticker);
+      try {
+        next.action.run();
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log("scheduled event failed");
+      }
+      if (statistics != null) {
+        statistics.schedulerRunLatency.record(w.elapsed(TimeUnit.NANOSECONDS));
+      }
+    }
+  }
+
+  private void armWakeUp() {
+    // callers hold the lock
+    ScheduledTask next = queue.peek();
+    if (next == null) {
+      if (wakeUp != null) {
+        wakeUp.cancel(false);
+        wakeUp = null;
+      }
+      return;
+    }
+    if (draining || (wakeUp != null && wakeUpTickerTime <= next.tickerTime)) {
+      return; // the pending wake-up or the draining thread will handle next
+    }
+    if (wakeUp != null) {
+      wakeUp.cancel(false);
+    }
+    long delayNanos = Math.max(0, next.tickerTime - ticker.read());
+    try {
+      wakeUp = executor.schedule(wakeUpAction, delayNanos, TimeUnit.NANOSECONDS);
+      wakeUpTickerTime = next.tickerTime;
+    } catch (RejectedExecutionException e) {
+      log.atWarning().withCause(e).log("the executor rejected a wake-up, events will not run");
+      wakeUp = null;
+    }
+  }
+
+  private synchronized void cancel(ScheduledTask task) {
+    if (queue.remove(task)) {
+      armWakeUp();
+      if (queue.isEmpty()) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * ScheduledTask is an event entered into an {@link ExecutorScheduler}.
+   */
+  public final class ScheduledTask implements Comparable<ScheduledTask> {
+    private final Runnable action;
+    private final long tickerTime;
+    private final int priority;
+    private final long sequence;
+
+    private ScheduledTask(Runnable action, long tickerTime, int priority, long sequence) {
+      this.action = action;
+      this.tickerTime = tickerTime;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Removes this task from its scheduler, if it has not yet run.
+     */
+    public void cancel() {
+      ExecutorScheduler.this.cancel(this);
+    }
+
+    @Override
+    public int compareTo(ScheduledTask o) {
+      int timeCompare = Long.compare(tickerTime, o.tickerTime);
+      if (timeCompare != 0) {
+        return timeCompare;
+      }
+      int priorityCompare = Integer.compare(priority, o.priority);
+      if (priorityCompare != 0) {
+        return priorityCompare;
+      }
+      return Long.compare(sequence, o.sequence);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * FlushDispatcher runs the transport calls made while flushing the report and quota aggregators.
+ *
+ * With a parallelism of 1 (the default), tasks run one after another on the flushing thread. With
+ * a higher parallelism, up to that many tasks run at the same time on an executor, and
+ * {@link #dispatch(List)} returns once all of them have completed.
+ *
+ * Thread-safe.
+ */
+public class FlushDispatcher {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The default number of flush tasks that may run at the same time.
+   */
+  public static final int DEFAULT_PARALLELISM = 1;
+
+  private final int parallelism;
+  @Nullable
+  private final ThreadFactory threads;
+  private final boolean ownsExecutor;
+  private volatile Executor executor;
+
+  /**
+   * Constructor.
+   *
+   * @param executor runs the flush tasks. If {@code null}, a fixed pool of {@code parallelism}
+   *        threads is created from {@code threads} on first use
+   * @param threads creates the threads of the default executor; ignored if {@code executor} is
+   *        specified
+   * @param parallelism the maximum number of tasks to run at the same time
+   */
+  public FlushDispatcher(@Nullable Executor executor, @Nullable ThreadFactory threads,
+      int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    Preconditions.checkArgument(executor != null || threads != null || parallelism == 1,
+        "an executor or thread factory is needed when parallelism is above 1");
+    this.executor = executor;
+    this.ownsExecutor = executor == null;
+    this.threads = threads;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * @return a {@code FlushDispatcher} that runs all tasks on the flushing thread
+   */
+  public static FlushDispatcher sequential() {
+    return new FlushDispatcher(null, null, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @return the maximum number of tasks that run at the same time
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Runs {@code tasks}, blocking until all of them have completed.
+   *
+   * Exceptions thrown by a task are logged and do not affect the other tasks. If the executor
+   * rejects a task, it is run on the calling thread.
+   *
+   * @param tasks the tasks to run
+   */
+  public void dispatch(List<? extends Runnable> tasks) {
+    if (parallelism == 1 || tasks.size() <= 1) {
+      for (Runnable task : tasks) {
+        runSafely(task);
+      }
+      return;
+    }
+    final Semaphore permits = new Semaphore(parallelism);
+    final CountDownLatch done = new CountDownLatch(tasks.size());
+    for (final Runnable task : tasks) {
+      permits.acquireUninterruptibly();
+      try {
+        getExecutor().execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              runSafely(task);
+            } finally {
+              permits.release();
+              done.countDown();
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        log.atWarning().withCause(e).log("flush task was rejected, running it directly");
+        permits.release();
+        runSafely(task);
+        done.countDown();
+      }
+    }
+    Uninterruptibles.awaitUninterruptibly(done);
+  }
+
+  /**
+   * Shuts down the pool of threads that this instance created, if any, once its running tasks
+   * have completed. A later {@link #dispatch(List)} creates a new pool. An executor passed to the
+   * constructor is left to its owner.
+   */
+  public void shutdown() {
+    if (!ownsExecutor) {
+      return;
+    }
+    ExecutorService pool;
+    synchronized (this) {
+      pool = (ExecutorService) executor;
+      executor = null;
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  private Executor getExecutor() {
+    Executor result = executor;
+    if (result == null) {
+      synchronized (this) {
+        result = executor;
+        if (result == null) {
+          result = Executors.newFixedThreadPool(parallelism, threads);
+          executor = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void runSafely(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      log.atSevere().withCause(e).log("flush task failed");
+    }
+  }
+
+  /**
+   * @return {@code true} if the running JVM supports virtual threads, i.e, it is Java 21 or later
+   */
+  public static boolean isVirtualThreadSupported() {
+    return findVirtualThreadFactoryMethod() != null;
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread for each task.
+   *
+   * This library targets Java 8, so the executor is looked up reflectively.
+   *
+   * @return an {@code ExecutorService} backed by virtual threads
+   * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    Method m = findVirtualThreadFactoryMethod();
+    if (m == null) {
+      throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+    }
+    try {
+      return (ExecutorService) m.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("could not create a virtual thread executor", e);
+    }
+  }
+
+  @Nullable
+  private static Method findVirtualThreadFactoryMethod() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
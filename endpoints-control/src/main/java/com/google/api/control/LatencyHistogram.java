@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * LatencyHistogram records durations with nanosecond resolution, and summarizes them over the
+ * lifetime of the histogram and over rolling 1-minute and 5-minute windows.
+ *
+ * Durations are counted in log-linear buckets in the manner of an HDR histogram: values below 64
+ * nanos are exact, and larger values are kept to within about 3% of their value. Values above
+ * {@link #MAX_TRACKABLE_NANOS} are counted as that maximum. Recording does not lock, so it can be
+ * called from request threads.
+ *
+ * The rolling windows are made up of 30-second slots; a window includes the slot being filled and
+ * the completed slots that precede it, so it covers between its length minus one slot and its
+ * length.
+ */
+public final class LatencyHistogram {
+  /** The largest duration that is tracked precisely, about 68 seconds. */
+  public static final long MAX_TRACKABLE_NANOS = (1L << 36) - 1;
+
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  private static final int BUCKETS = indexFor(MAX_TRACKABLE_NANOS) + 1;
+  private static final long SLOT_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final int ONE_MINUTE_SLOTS = 2;
+  private static final int FIVE_MINUTE_SLOTS = 10;
+  private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+    @Override
+    public long applyAsLong(long left, long right) {
+      return Math.max(left, right);
+    }
+  };
+
+  private final Ticker ticker;
+  private final Buckets allTime = new Buckets();
+  private final Slot[] slots = new Slot[FIVE_MINUTE_SLOTS];
+
+  LatencyHistogram(Ticker ticker) {
+    this.ticker = Preconditions.checkNotNull(ticker);
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * @param nanos the duration to record; negative durations are recorded as zero
+   */
+  void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_NANOS);
+    allTime.record(value);
+    currentSlot(Math.floorDiv(ticker.read(), SLOT_NANOS)).record(value);
+  }
+
+  /**
+   * @return a summary of all the durations recorded so far
+   */
+  public Snapshot getAllTime() {
+    return allTime.snapshot();
+  }
+
+  /**
+   * @return a summary of the durations recorded during about the last minute
+   */
+  public Snapshot getLastMinute() {
+    return window(ONE_MINUTE_SLOTS);
+  }
+
+  /**
+   * @return a summary of the durations recorded during about the last five minutes
+   */
+  public Snapshot getLastFiveMinutes() {
+    return window(FIVE_MINUTE_SLOTS);
+  }
+
+  @Override
+  public String toString() {
+    return "{allTime: " + getAllTime() + ", lastMinute: " + getLastMinute() + "}";
+  }
+
+  private Slot currentSlot(long epoch) {
+    Slot slot = slots[(int) Math.floorMod(epoch, (long) slots.length)];
+    if (slot.epoch != epoch) {
+      synchronized (slot) {
+        if (slot.epoch != epoch) {
+          slot.reset();
+          slot.epoch = epoch;
+        }
+      }
+    }
+    return slot;
+  }
+
+  private Snapshot window(int numSlots) {
+    long epoch = Math.floorDiv(ticker.read(), SLOT_NANOS);
+    Snapshot.Builder b = new Snapshot.Builder();
+    for (Slot slot : slots) {
+      long age = epoch - slot.epoch;
+      if (age >= 0 && age < numSlots) {
+        slot.addTo(b);
+      }
+    }
+    return b.build();
+  }
+
+  private static int indexFor(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS
+        + (int) ((value >>> shift) - HALF_SUB_BUCKETS);
+  }
+
+  /**
+   * @return the largest value that is counted in the bucket at {@code index}
+   */
+  private static long highestValueAt(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int offset = index - SUB_BUCKETS;
+    int shift = offset / HALF_SUB_BUCKETS + 1;
+    long top = offset % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+
+  private static class Buckets {
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+    void record(long value) {
+      counts.incrementAndGet(indexFor(value));
+      totalNanos.add(value);
+      maxNanos.accumulate(value);
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts.set(i, 0);
+      }
+      totalNanos.reset();
+      maxNanos.reset();
+    }
+
+    void addTo(Snapshot.Builder b) {
+      for (int i = 0; i < BUCKETS; i++) {
+        b.counts[i] += counts.get(i);
+      }
+      b.totalNanos += totalNanos.sum();
+      b.maxNanos = Math.max(b.maxNanos, maxNanos.get());
+    }
+
+    Snapshot snapshot() {
+      Snapshot.Builder b = new Snapshot.Builder();
+      addTo(b);
+      return b.build();
+    }
+  }
+
+  private static final class Slot extends Buckets {
+    private volatile long epoch = Long.MIN_VALUE;
+  }
+
+  /**
+   * Snapshot summarizes the durations recorded by a {@link LatencyHistogram}.
+   */
+  public static final class Snapshot {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+
+    private Snapshot(long count, long totalNanos, long maxNanos, long p50Nanos, long p99Nanos,
+        long p999Nanos) {
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.p50Nanos = p50Nanos;
+      this.p99Nanos = p99Nanos;
+      this.p999Nanos = p999Nanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getMeanNanos() {
+      return count == 0 ? 0 : 1.0 * totalNanos / count;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public long getP50Nanos() {
+      return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+      return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+      return p999Nanos;
+    }
+
+    @Override
+    public String toString() {
+      return "{count: " + count
+          + ", meanMillis: " + toMillis(getMeanNanos())
+          + ", p50Millis: " + toMillis(p50Nanos)
+          + ", p99Millis: " + toMillis(p99Nanos)
+          + ", p999Millis: " + toMillis(p999Nanos)
+          + ", maxMillis: " + toMillis(maxNanos) + "}";
+    }
+
+    private static double toMillis(double nanos) {
+      return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Builder {
+      private final long[] counts = new long[BUCKETS];
+      private long totalNanos;
+      private long maxNanos;
+
+      Snapshot build() {
+        long count = 0;
+        for (long c : counts) {
+          count += c;
+        }
+        return new Snapshot(count, totalNanos, maxNanos, percentile(count, 50),
+            percentile(count, 99), percentile(count, 99.9));
+      }
+
+      private long percentile(long count, double percent) {
+        if (count == 0) {
+          return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+          seen += counts[i];
+          if (seen >= rank) {
+            return Math.min(highestValueAt(i), maxNanos);
+          }
+        }
+        return maxNanos;
+      }
+    }
+  }
+}
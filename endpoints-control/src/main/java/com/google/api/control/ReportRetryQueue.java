@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReportRetryQueue holds {@link ReportRequest}s that failed to send until they are due to be
+ * retried.
+ *
+ * The delay before each retry grows exponentially with the number of attempts, and is jittered so
+ * that many clients do not retry in lockstep. Requests that were retried too often, and the oldest
+ * requests whenever the queue holds more than its byte budget, are shed and returned to the
+ * caller, which may spool or drop them.
+ *
+ * Thread-safe.
+ */
+public class ReportRetryQueue {
+  /**
+   * The default limit of the serialized size of all queued requests.
+   */
+  public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+  /**
+   * The default number of times a request is retried before it is shed.
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  /**
+   * The default delay before the first retry; it doubles with every further attempt.
+   */
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+
+  /**
+   * The default limit of the delay between retries.
+   */
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+  private final long maxBytes;
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final Ticker ticker;
+  private final Random random;
+  private final Deque<Retry> queue;
+  private long bytes;
+
+  /**
+   * Constructor that uses the default limits.
+   *
+   * @param ticker determines when retries are due
+   */
+  public ReportRetryQueue(Ticker ticker) {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS,
+        DEFAULT_MAX_BACKOFF_MILLIS, ticker, new Random());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes the limit of the serialized size of all queued requests
+   * @param maxAttempts the number of times a request is retried before it is shed
+   * @param initialBackoffMillis the delay before the first retry
+   * @param maxBackoffMillis the limit of the delay between retries
+   * @param ticker determines when retries are due
+   * @param random jitters the delays
+   */
+  public ReportRetryQueue(long maxBytes, int maxAttempts, long initialBackoffMillis,
+      long maxBackoffMillis, Ticker ticker, Random random) {
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+    Preconditions.checkArgument(initialBackoffMillis > 0, "initialBackoffMillis must be positive");
+    Preconditions.checkArgument(maxBackoffMillis >= initialBackoffMillis,
+        "maxBackoffMillis must not be less than initialBackoffMillis");
+    this.maxBytes = maxBytes;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+    this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    this.ticker = Preconditions.checkNotNull(ticker, "ticker must be non-null");
+    this.random = Preconditions.checkNotNull(random, "random must be non-null");
+    this.queue = new ArrayDeque<>();
+  }
+
+  /**
+   * Queues {@code req} to be retried after a backoff delay.
+   *
+   * @param req a {@link ReportRequest} that failed to send
+   * @param attempt the number of the retry to be made, starting with 1
+   * @return the requests that were shed: {@code req} itself if it exceeded the number of attempts
+   *         or the byte budget on its own, and the oldest queued requests if they had to make room
+   *         for it
+   */
+  public synchronized List<ReportRequest> offer(ReportRequest req, int attempt) {
+    int size = req.getSerializedSize();
+    if (attempt > maxAttempts || size > maxBytes) {
+      return Collections.singletonList(req);
+    }
+    List<ReportRequest> shed = new ArrayList<>();
+    while (bytes + size > maxBytes) {
+      Retry oldest = queue.removeFirst();
+      bytes -= oldest.size;
+      shed.add(oldest.request);
+    }
+    queue.addLast(new Retry(req, attempt, ticker.read() + backoffNanos(attempt), size));
+    bytes += size;
+    return shed;
+  }
+
+  /**
+   * Removes the requests that are due to be retried.
+   *
+   * @return the due retries, oldest first
+   */
+  public synchronized List<Retry> pollDue() {
+    if (queue.isEmpty()) {
+      return Collections.emptyList();
+    }
+    long now = ticker.read();
+    List<Retry> due = new ArrayList<>();
+    Iterator<Retry> it = queue.iterator();
+    while (it.hasNext()) {
+      Retry r = it.next();
+      if (r.dueTickerTime <= now) {
+        it.remove();
+        bytes -= r.size;
+        due.add(r);
+      }
+    }
+    return due;
+  }
+
+  /**
+   * Removes all queued requests.
+   *
+   * @return the requests that were queued, oldest first
+   */
+  public synchronized List<ReportRequest> clear() {
+    List<ReportRequest> all = new ArrayList<>(queue.size());
+    for (Retry r : queue) {
+      all.add(r.request);
+    }
+    queue.clear();
+    bytes = 0;
+    return all;
+  }
+
+  /**
+   * @return the number of queued requests
+   */
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return the serialized size of all queued requests
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  private long backoffNanos(int attempt) {
+    // Doubles with each attempt up to the maximum, then randomly picks a value in its upper half
+    long cap = initialBackoffNanos;
+    for (int i = 1; i < attempt && cap < maxBackoffNanos; i++) {
+      cap *= 2;
+    }
+    cap = Math.min(cap, maxBackoffNanos);
+    long half = cap / 2;
+    return half + (long) (random.nextDouble() * (cap - half));
+  }
+
+  /**
+   * Retry is a request that is due to be retried.
+   */
+  public static final class Retry {
+    private final ReportRequest request;
+    private final int attempt;
+    private final long dueTickerTime;
+    private final int size;
+
+    private Retry(ReportRequest request, int attempt, long dueTickerTime, int size) {
+      this.request = request;
+      this.attempt = attempt;
+      this.dueTickerTime = dueTickerTime;
+      this.size = size;
+    }
+
+    /**
+     * @return the request to retry
+     */
+    public ReportRequest getRequest() {
+      return request;
+    }
+
+    /**
+     * @return the number of this retry, starting with 1
+     */
+    public int getAttempt() {
+      return attempt;
+    }
+  }
+}
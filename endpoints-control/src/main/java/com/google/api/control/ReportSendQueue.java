@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import com.google.api.control.aggregator.ReportRequestAggregator;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+/**
+ * ReportSendQueue sends the {@link ReportRequest}s that could not be aggregated, merging those
+ * that are queued at the same time into shared requests of up to
+ * {@link ReportRequestAggregator#MAX_OPERATION_COUNT} operations.
+ *
+ * At most one thread sends at a time. Requests added meanwhile are queued and sent together once
+ * it's done, so under load many requests share one transport call, while a lone request is sent
+ * without waiting for a timer. Only requests that differ in nothing but their operations are
+ * merged. The sending thread is taken from the executor, or is the caller's own if it asks to run
+ * the sends; a caller only sends until its own request was sent, and then hands any remaining
+ * requests to the executor, so that it is not kept busy sending the requests of other threads.
+ *
+ * Once {@code maxPendingOperations} are queued, further requests are sent directly on the calling
+ * thread, pushing back on the callers instead of queueing without bound.
+ *
+ * Thread-safe.
+ */
+final class ReportSendQueue {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The default limit of the number of queued operations.
+   */
+  static final int DEFAULT_MAX_PENDING_OPERATIONS =
+      10 * ReportRequestAggregator.MAX_OPERATION_COUNT;
+
+  /**
+   * Sender sends the requests of a {@link ReportSendQueue}.
+   */
+  interface Sender {
+    /**
+     * Sends {@code req}, handling any failure.
+     *
+     * @param req the request to send
+     * @param mergedCount the number of queued requests that were merged into {@code req}
+     */
+    void send(ReportRequest req, int mergedCount);
+  }
+
+  private final Sender sender;
+  private final Executor executor;
+  private final int maxPendingOperations;
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>(); // guarded by this
+  private final Runnable sendAction;
+  private int pendingOperations; // guarded by this
+  private boolean sending; // guarded by this
+
+  /**
+   * Constructor.
+   *
+   * @param sender sends the requests
+   * @param executor provides the sending thread for requests whose caller does not run the sends
+   * @param maxPendingOperations the limit of the number of queued operations
+   */
+  ReportSendQueue(Sender sender, Executor executor, int maxPendingOperations) {
+    Preconditions.checkArgument(maxPendingOperations > 0, "maxPendingOperations must be positive");
+    this.sender = Preconditions.checkNotNull(sender, "sender must be non-null");
+    this.executor = Preconditions.checkNotNull(executor, "executor must be non-null");
+    this.maxPendingOperations = maxPendingOperations;
+    this.sendAction = new Runnable() {
+      @Override
+      public void run() {
+        sendQueued(null);
+      }
+    };
+  }
+
+  /**
+   * Queues {@code req} to be sent.
+   *
+   * @param req the request to send
+   * @param callerRuns if {@code true} and no other thread is sending, the calling thread sends
+   *        the queued requests before returning
+   * @return a future that completes once {@code req} was sent, or failed to send. It never fails
+   */
+  ListenableFuture<Void> add(ReportRequest req, boolean callerRuns) {
+    int operations = req.getOperationsCount();
+    Pending pending = null;
+    boolean startSending = false;
+    synchronized (this) {
+      if (queue.isEmpty() || pendingOperations + operations <= maxPendingOperations) {
+        pending = new Pending(req);
+        queue.add(pending);
+        pendingOperations += operations;
+        startSending = !sending;
+        sending = true;
+      }
+    }
+    if (pending == null) {
+      log.atWarning().log("too many reports are queued, sending directly");
+      send(req, 1);
+      return Futures.immediateFuture(null);
+    }
+    if (startSending) {
+      if (callerRuns) {
+        sendQueued(pending);
+      } else {
+        sendOnExecutor();
+      }
+    }
+    return pending.sent;
+  }
+
+  /**
+   * @return the number of requests that are queued
+   */
+  synchronized int getPendingCount() {
+    return queue.size();
+  }
+
+  private void sendOnExecutor() {
+    try {
+      executor.execute(sendAction);
+    } catch (RuntimeException e) {
+      // e.g, threads cannot be created in this environment
+      log.atWarning().withCause(e).log("could not start sending reports, sending directly");
+      sendQueued(null);
+    }
+  }
+
+  /**
+   * Sends the queued requests until the queue is empty, or until {@code own} was sent.
+   *
+   * @param own the request of the calling thread, or {@code null} if it should send all of them
+   */
+  private void sendQueued(@Nullable Pending own) {
+    while (true) {
+      List<Pending> batch = new ArrayList<>();
+      synchronized (this) {
+        int operations = 0;
+        Pending next;
+        while ((next = queue.peek()) != null) {
+          int count = next.req.getOperationsCount();
+          if (!batch.isEmpty() && (operations + count > ReportRequestAggregator.MAX_OPERATION_COUNT
+              || !canMerge(batch.get(0).req, next.req))) {
+            break;
+          }
+          batch.add(queue.remove());
+          operations += count;
+          pendingOperations -= count;
+        }
+        if (batch.isEmpty()) {
+          sending = false;
+          return;
+        }
+      }
+      try {
+        send(merge(batch), batch.size());
+      } finally {
+        for (Pending p : batch) {
+          p.sent.set(null);
+        }
+      }
+      if (own != null && own.sent.isDone()) {
+        synchronized (this) {
+          if (queue.isEmpty()) {
+            sending = false;
+            return;
+          }
+        }
+        sendOnExecutor(); // remains the sending thread until the executor takes over
+        return;
+      }
+    }
+  }
+
+  private void send(ReportRequest req, int mergedCount) {
+    try {
+      sender.send(req, mergedCount);
+    } catch (RuntimeException e) {
+      log.atSevere().withCause(e).log("sending a report request failed unexpectedly");
+    }
+  }
+
+  /**
+   * @return {@code true} if {@code a} and {@code b} differ only in their operations
+   */
+  private static boolean canMerge(ReportRequest a, ReportRequest b) {
+    return a.getServiceName().equals(b.getServiceName())
+        && a.getServiceConfigId().equals(b.getServiceConfigId())
+        && a.getUnknownFields().equals(b.getUnknownFields());
+  }
+
+  private static ReportRequest merge(List<Pending> batch) {
+    if (batch.size() == 1) {
+      return batch.get(0).req;
+    }
+    ReportRequest.Builder merged = batch.get(0).req.toBuilder();
+    for (int i = 1; i < batch.size(); i++) {
+      merged.addAllOperations(batch.get(i).req.getOperationsList());
+    }
+    return merged.build();
+  }
+
+  private static final class Pending {
+    private final ReportRequest req;
+    private final SettableFuture<Void> sent = SettableFuture.create();
+
+    private Pending(ReportRequest req) {
+      this.req = req;
+    }
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ReportSpool durably stores {@link ReportRequest}s that could not be sent, so that they can be
+ * replayed once the transport recovers, including after a restart of the JVM.
+ *
+ * Requests are appended to memory-mapped segment files of a fixed size in a directory. Each record
+ * is a header holding the length and CRC32 of the serialized request, followed by the request.
+ * Replayed records are marked as consumed in place, and a segment is deleted once all of its
+ * records are consumed. At most {@code maxTotalBytes} of segments are kept; when more are needed,
+ * the oldest segment is dropped together with the requests it holds.
+ *
+ * Appended records reach the operating system immediately, so they survive the JVM crashing. They
+ * are forced to disk when a segment is full, after each replay and on {@link #close()}.
+ *
+ * Thread-safe. One directory must only be used by one instance at a time.
+ */
+public class ReportSpool implements Closeable {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The default size of each segment file.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The default limit of the disk space used by all segment files.
+   */
+  public static final long DEFAULT_MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "reports-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final int HEADER_BYTES = 8; // length, then CRC32
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final Deque<Segment> segments;
+  private long nextSequence;
+  private long appended;
+  private long replayed;
+  private long dropped;
+  private boolean closed;
+
+  /**
+   * Sender sends the requests being replayed.
+   */
+  public interface Sender {
+    /**
+     * @param req a spooled {@link ReportRequest}
+     * @throws IOException if {@code req} could not be sent, which stops the replay
+     */
+    void send(ReportRequest req) throws IOException;
+  }
+
+  /**
+   * Opens the spool in {@code directory} with the default sizes.
+   *
+   * @param directory holds the segment files; it is created if needed
+   * @throws IOException if the directory or its segments cannot be opened
+   */
+  public ReportSpool(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_TOTAL_BYTES);
+  }
+
+  /**
+   * Opens the spool in {@code directory}, recovering the requests spooled before.
+   *
+   * @param directory holds the segment files; it is created if needed
+   * @param segmentBytes the size of each segment file, which limits the size of a request
+   * @param maxTotalBytes the limit of the disk space used by all segments; must allow at least
+   *        two segments
+   * @throws IOException if the directory or its segments cannot be opened
+   */
+  public ReportSpool(File directory, int segmentBytes, long maxTotalBytes) throws IOException {
+    Preconditions.checkNotNull(directory, "directory must be non-null");
+    Preconditions.checkArgument(segmentBytes > HEADER_BYTES, "segmentBytes is too small");
+    Preconditions.checkArgument(maxTotalBytes >= 2L * segmentBytes,
+        "maxTotalBytes must allow at least two segments");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("could not create the spool directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxTotalBytes / segmentBytes);
+    this.segments = new ArrayDeque<>();
+    recover();
+  }
+
+  /**
+   * Appends {@code req} to the spool.
+   *
+   * @param req a {@link ReportRequest} that could not be sent
+   * @return {@code false} if {@code req} is too large to be spooled or the spool is closed
+   */
+  public synchronized boolean append(ReportRequest req) {
+    byte[] data = req.toByteArray();
+    if (closed || HEADER_BYTES + data.length > segmentBytes) {
+      dropped++;
+      return false;
+    }
+    try {
+      Segment tail = segments.peekLast();
+      if (tail == null || !tail.hasRoomFor(data.length)) {
+        if (tail != null) {
+          tail.force();
+        }
+        tail = newSegment();
+      }
+      tail.append(data);
+      appended++;
+      return true;
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("could not spool a report request");
+      dropped++;
+      return false;
+    }
+  }
+
+  /**
+   * Sends spooled requests, oldest first, until none are left, {@code max} were sent, or sending
+   * fails.
+   *
+   * Only one replay should run at a time; requests can be appended while it runs.
+   *
+   * @param sender sends each request
+   * @param max the maximum number of requests to send
+   * @return the number of requests sent
+   * @throws IOException if the sender failed; the request it failed on remains spooled
+   */
+  public int replay(Sender sender, int max) throws IOException {
+    int sent = 0;
+    try {
+      while (sent < max) {
+        Segment segment;
+        int position;
+        ReportRequest req;
+        synchronized (this) {
+          segment = firstWithLiveRecords();
+          if (segment == null) {
+            break;
+          }
+          position = segment.readPosition;
+          try {
+            req = ReportRequest.parseFrom(segment.read(position));
+          } catch (InvalidProtocolBufferException e) {
+            log.atWarning().withCause(e).log("dropping an unreadable spooled report request");
+            segment.consume(position);
+            dropped++;
+            continue;
+          }
+        }
+        sender.send(req);
+        synchronized (this) {
+          if (!segment.deleted) {
+            segment.consume(position);
+          }
+          replayed++;
+        }
+        sent++;
+      }
+    } finally {
+      synchronized (this) {
+        for (Segment s : segments) {
+          s.force();
+        }
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * @return the number of spooled requests that were not replayed yet
+   */
+  public synchronized long getPendingCount() {
+    long pending = 0;
+    for (Segment s : segments) {
+      pending += s.liveRecords;
+    }
+    return pending;
+  }
+
+  /**
+   * @return the number of requests appended since this instance was opened
+   */
+  public synchronized long getAppendedCount() {
+    return appended;
+  }
+
+  /**
+   * @return the number of requests replayed since this instance was opened
+   */
+  public synchronized long getReplayedCount() {
+    return replayed;
+  }
+
+  /**
+   * @return the number of requests that were dropped: because they were too large, could not be
+   *         written or read, or because their segment was dropped to stay within the disk limit
+   */
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Forces all segments to disk and closes them. Requests that were not replayed remain on disk.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment s : segments) {
+      s.force();
+      s.channel.close();
+    }
+  }
+
+  private Segment firstWithLiveRecords() throws IOException {
+    while (!segments.isEmpty()) {
+      Segment head = segments.peekFirst();
+      if (head.liveRecords > 0) {
+        return head;
+      }
+      if (head == segments.peekLast()) {
+        return null; // keep appending to the tail
+      }
+      segments.removeFirst().delete();
+    }
+    return null;
+  }
+
+  private Segment newSegment() throws IOException {
+    while (segments.size() >= maxSegments) {
+      Segment oldest = segments.removeFirst();
+      log.atWarning().log("the spool is full, dropping %d report requests", oldest.liveRecords);
+      dropped += oldest.liveRecords;
+      oldest.delete();
+    }
+    File f = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence++,
+        SEGMENT_SUFFIX));
+    Segment s = Segment.open(f, segmentBytes);
+    segments.addLast(s);
+    return s;
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null) {
+      throw new IOException("could not list the spool directory " + directory);
+    }
+    List<File> sorted = new ArrayList<>();
+    Collections.addAll(sorted, files);
+    Collections.sort(sorted); // the zero-padded sequence numbers sort by name
+    for (File f : sorted) {
+      String sequence = f.getName().substring(SEGMENT_PREFIX.length(),
+          f.getName().length() - SEGMENT_SUFFIX.length());
+      try {
+        nextSequence = Math.max(nextSequence, Long.parseLong(sequence) + 1);
+      } catch (NumberFormatException e) {
+        log.atWarning().log("ignoring the unexpected spool file %s", f);
+        continue;
+      }
+      Segment s = Segment.open(f, (int) Math.min(Integer.MAX_VALUE, f.length()));
+      if (s.liveRecords == 0) {
+        s.delete();
+      } else {
+        segments.addLast(s);
+      }
+    }
+    if (!segments.isEmpty()) {
+      log.atInfo().log("recovered %d spooled report requests", getPendingCount());
+    }
+  }
+
+  /**
+   * Segment is a memory-mapped spool file.
+   *
+   * A record whose length is positive is live, one whose length is negative was consumed, and a
+   * length of zero marks the end of the records.
+   */
+  private static class Segment {
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int readPosition;
+    private int liveRecords;
+    private boolean deleted;
+
+    private Segment(File file, FileChannel channel, MappedByteBuffer buffer) {
+      this.file = file;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    static Segment open(File file, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        if (raf.length() < size) {
+          raf.setLength(size);
+        }
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        Segment s = new Segment(file, channel, buffer);
+        s.scan();
+        return s;
+      } catch (IOException | RuntimeException e) {
+        raf.close();
+        throw e;
+      }
+    }
+
+    boolean hasRoomFor(int dataLength) {
+      return writePosition + HEADER_BYTES + dataLength <= buffer.capacity();
+    }
+
+    void append(byte[] data) {
+      int position = writePosition;
+      ByteBuffer b = buffer.duplicate();
+      b.position(position + HEADER_BYTES);
+      b.put(data);
+      buffer.putInt(position + 4, crc(data));
+      buffer.putInt(position, data.length); // written last, so a torn record reads as the end
+      if (liveRecords == 0) {
+        readPosition = position;
+      }
+      liveRecords++;
+      writePosition = position + HEADER_BYTES + data.length;
+    }
+
+    byte[] read(int position) {
+      byte[] data = new byte[buffer.getInt(position)];
+      ByteBuffer b = buffer.duplicate();
+      b.position(position + HEADER_BYTES);
+      b.get(data);
+      return data;
+    }
+
+    void consume(int position) {
+      int length = buffer.getInt(position);
+      if (length <= 0) {
+        return;
+      }
+      buffer.putInt(position, -length);
+      liveRecords--;
+      readPosition = nextLive(position + HEADER_BYTES + length);
+    }
+
+    void force() {
+      if (!deleted) {
+        buffer.force();
+      }
+    }
+
+    void delete() throws IOException {
+      deleted = true;
+      channel.close();
+      if (!file.delete()) {
+        log.atWarning().log("could not delete the spool file %s", file);
+      }
+    }
+
+    private void scan() {
+      int position = 0;
+      readPosition = -1;
+      while (position + HEADER_BYTES <= buffer.capacity()) {
+        int length = buffer.getInt(position);
+        int size = Math.abs(length);
+        if (length == 0 || position + HEADER_BYTES + size > buffer.capacity()) {
+          break;
+        }
+        if (length > 0) {
+          if (crc(read(position)) != buffer.getInt(position + 4)) {
+            log.atWarning().log("ignoring a corrupt record at the end of %s", file);
+            break;
+          }
+          if (readPosition < 0) {
+            readPosition = position;
+          }
+          liveRecords++;
+        }
+        position += HEADER_BYTES + size;
+      }
+      writePosition = position;
+      if (readPosition < 0) {
+        readPosition = position;
+      }
+    }
+
+    private int nextLive(int position) {
+      while (position < writePosition) {
+        int length = buffer.getInt(position);
+        if (length > 0) {
+          return position;
+        }
+        position += HEADER_BYTES - length;
+      }
+      return position;
+    }
+
+    private static int crc(byte[] data) {
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      return (int) crc.getValue();
+    }
+  }
+}
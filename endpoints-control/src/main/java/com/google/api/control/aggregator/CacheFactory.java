@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalListener;
+
+import javax.annotation.Nullable;
+
+/**
+ * Creates the caches in which the aggregators keep their entries.
+ *
+ * The aggregation options use a {@link GuavaCacheFactory} unless another factory is specified,
+ * e.g. a {@link CaffeineCacheFactory}.
+ */
+public interface CacheFactory {
+  /**
+   * Creates a cache.
+   *
+   * @param <K> the type of the keys of the cache
+   * @param <V> the type of the values of the cache
+   * @param maximumSize the maximum number of entries in the cache
+   * @param expireAfterWriteMillis the interval after which an entry expires once written, or a
+   *        negative value if entries do not expire
+   * @param ticker the time source used to determine expiration
+   * @param listener notified of each entry that is removed from the cache, on the thread that
+   *        removes it; may be {@code null}
+   * @return a new cache
+   */
+  <K, V> Cache<K, V> newCache(int maximumSize, long expireAfterWriteMillis, Ticker ticker,
+      @Nullable RemovalListener<K, V> listener);
+}
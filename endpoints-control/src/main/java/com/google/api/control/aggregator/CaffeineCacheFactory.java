@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.guava.CaffeinatedGuava;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CacheFactory} that creates Caffeine caches.
+ *
+ * Caffeine admits a new entry into a full cache only if it is likely to be used more often than
+ * the entry it would evict (W-TinyLFU), so a burst of one-off consumers does not evict the
+ * consumers that call the service all the time.
+ *
+ * Expired entries are removed by a scheduler, so that they are flushed even while the cache is
+ * not accessed, without holding the aggregator's lock. Maintenance and removal listeners run on
+ * the thread that triggers them, as the aggregators expect of a Guava cache.
+ */
+public final class CaffeineCacheFactory implements CacheFactory {
+  private final Scheduler scheduler;
+
+  /**
+   * Creates an instance that removes expired entries on Caffeine's system scheduler, which is only
+   * available on Java 9 and later. On Java 8, expired entries are removed when the cache is
+   * accessed.
+   */
+  public CaffeineCacheFactory() {
+    this.scheduler = Scheduler.systemScheduler();
+  }
+
+  /**
+   * @param expiryExecutor removes expired entries from the caches when they expire
+   */
+  public CaffeineCacheFactory(ScheduledExecutorService expiryExecutor) {
+    Preconditions.checkNotNull(expiryExecutor, "expiryExecutor must be non-null");
+    this.scheduler = Scheduler.forScheduledExecutorService(expiryExecutor);
+  }
+
+  @Override
+  public <K, V> Cache<K, V> newCache(int maximumSize, long expireAfterWriteMillis,
+      final Ticker ticker, @Nullable final RemovalListener<K, V> listener) {
+    Caffeine<Object, Object> b = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .ticker(new com.github.benmanes.caffeine.cache.Ticker() {
+          @Override
+          public long read() {
+            return ticker.read();
+          }
+        })
+        .executor(MoreExecutors.directExecutor())
+        .scheduler(scheduler);
+    if (expireAfterWriteMillis >= 0) {
+      b.expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS);
+    }
+    if (listener == null) {
+      return CaffeinatedGuava.build(b);
+    }
+    return CaffeinatedGuava.build(b.removalListener(
+        new com.github.benmanes.caffeine.cache.RemovalListener<K, V>() {
+          @Override
+          public void onRemoval(@Nullable K key, @Nullable V value, RemovalCause cause) {
+            listener.onRemoval(RemovalNotification.create(key, value,
+                com.google.common.cache.RemovalCause.valueOf(cause.name())));
+          }
+        }));
+  }
+}
@@ -17,12 +17,15 @@
 
 package com.google.api.control.aggregator;
 
+import com.google.api.servicecontrol.v1.CheckError;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 
-import java.util.concurrent.TimeUnit;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -40,8 +43,28 @@ public class CheckAggregationOptions {
    */
   public static final int DEFAULT_RESPONSE_EXPIRATION_MILLIS = 4000;
 
+  /**
+   * The refresh interval that disables refreshing cached responses in the background.
+   */
+  public static final int NO_REFRESH = -1;
+
+  /**
+   * The default size of the cache of negative responses.
+   *
+   * Negative responses are only kept apart once an expiration interval is set for them, see
+   * {@link Builder#setNegativeExpirationMillis(CheckError.Code, int)}.
+   */
+  public static final int DEFAULT_NEGATIVE_NUM_ENTRIES = 1000;
+
   private final int numEntries;
+  private final int refreshMillis;
   private final int expirationMillis;
+  private final CacheFactory cacheFactory;
+  private final LabelProjection defaultProjection;
+  private final ImmutableMap<String, LabelProjection> methodProjections;
+  private final int negativeNumEntries;
+  private final ImmutableMap<CheckError.Code, Integer> negativeExpirationMillis;
+  private final boolean consumerRejections;
 
   /**
    * Constructor
@@ -55,8 +78,7 @@ public class CheckAggregationOptions {
    *            response is invalidated.
    */
   public CheckAggregationOptions(int numEntries, int expirationMillis) {
-    this.numEntries = numEntries;
-    this.expirationMillis = expirationMillis;
+    this(new Builder().setNumEntries(numEntries).setExpirationMillis(expirationMillis));
   }
 
   /**
@@ -65,7 +87,24 @@ public class CheckAggregationOptions {
    * Creates an instance initialized with the default values.
    */
   public CheckAggregationOptions() {
-    this(DEFAULT_NUM_ENTRIES, DEFAULT_RESPONSE_EXPIRATION_MILLIS);
+    this(new Builder());
+  }
+
+  private CheckAggregationOptions(Builder builder) {
+    Preconditions.checkNotNull(builder.cacheFactory, "cacheFactory must be non-null");
+    Preconditions.checkNotNull(builder.defaultProjection, "defaultProjection must be non-null");
+    Preconditions.checkArgument(builder.refreshMillis <= 0 || builder.expirationMillis <= 0
+        || builder.refreshMillis < builder.expirationMillis,
+        "refreshMillis must be less than expirationMillis");
+    this.numEntries = builder.numEntries;
+    this.refreshMillis = builder.refreshMillis;
+    this.expirationMillis = builder.expirationMillis;
+    this.cacheFactory = builder.cacheFactory;
+    this.defaultProjection = builder.defaultProjection;
+    this.methodProjections = ImmutableMap.copyOf(builder.methodProjections);
+    this.negativeNumEntries = builder.negativeNumEntries;
+    this.negativeExpirationMillis = ImmutableMap.copyOf(builder.negativeExpirationMillis);
+    this.consumerRejections = builder.consumerRejections;
   }
 
   /**
@@ -76,6 +115,14 @@ public class CheckAggregationOptions {
     return numEntries;
   }
 
+  /**
+   * @return the interval after which a cached check response is refreshed,
+   *         or a value that is not positive if responses are not refreshed.
+   */
+  public int getRefreshMillis() {
+    return refreshMillis;
+  }
+
   /**
    * @return the maximum interval before a cached check response should be
    *         deleted.
@@ -84,9 +131,80 @@ public class CheckAggregationOptions {
     return expirationMillis;
   }
 
+  /**
+   * @return the factory of the aggregation cache
+   */
+  public CacheFactory getCacheFactory() {
+    return cacheFactory;
+  }
+
+  /**
+   * @param methodSelector the operation name of a check request
+   * @return the projection selecting the operation labels that are part of the signatures of
+   *         check requests for {@code methodSelector}
+   */
+  public LabelProjection getSignatureProjection(String methodSelector) {
+    LabelProjection projection = methodProjections.get(methodSelector);
+    return projection != null ? projection : defaultProjection;
+  }
+
+  /**
+   * @return the maximum number of negative responses that are kept apart from the aggregation
+   *         cache
+   */
+  public int getNegativeNumEntries() {
+    return negativeNumEntries;
+  }
+
+  /**
+   * @param code the code of the first error of a negative response
+   * @return the interval before a negative response with {@code code} is invalidated, or a value
+   *         that is not positive if it is kept in the aggregation cache
+   */
+  public int getNegativeExpirationMillis(CheckError.Code code) {
+    Integer millis = negativeExpirationMillis.get(code);
+    return millis != null ? millis : -1;
+  }
+
+  /**
+   * @return {@code true} if a negative response that rejects the API key of its consumer, and that
+   *         is kept apart from the aggregation cache, also rejects the other operations of the
+   *         consumer until it expires
+   */
+  public boolean hasConsumerRejections() {
+    return consumerRejections;
+  }
+
+  /**
+   * Creates the {@link Cache} of negative responses configured by this instance.
+   *
+   * Its entries expire after the longest of the negative expiration intervals; shorter intervals
+   * are up to the user of the cache to enforce.
+   *
+   * @param <K>    the type of the keys of the Cache
+   * @param <T>    the type of the value stored in the Cache
+   * @param ticker the time source used to determine expiration
+   * @return a {@link Cache} of negative responses, or {@code null} if they are kept in the
+   *         aggregation cache
+   */
+  @Nullable
+  public <K, T> Cache<K, T> createNegativeCache(Ticker ticker) {
+    Preconditions.checkNotNull(ticker, "The ticker cannot be null");
+    int maxExpirationMillis = 0;
+    for (int millis : negativeExpirationMillis.values()) {
+      maxExpirationMillis = Math.max(maxExpirationMillis, millis);
+    }
+    if (numEntries <= 0 || negativeNumEntries <= 0 || maxExpirationMillis <= 0) {
+      return null;
+    }
+    return cacheFactory.newCache(negativeNumEntries, maxExpirationMillis, ticker, null);
+  }
+
   /**
    * Creates a {@link Cache} configured by this instance.
    *
+   * @param <K>
+   *            the type of the cache keys
    * @param <T>
    *            the type of the instance being cached
    *
@@ -94,28 +212,146 @@ public class CheckAggregationOptions {
    *         {@code null} unless {@link #numEntries} is positive.
    */
   @Nullable
-  public <T> Cache<String, T> createCache() {
+  public <K, T> Cache<K, T> createCache() {
     return createCache(Ticker.systemTicker());
   }
 
   /**
    * Creates a {@link Cache} configured by this instance.
    *
+   * @param <K>    the type of the keys of the Cache
    * @param <T>    the type of the value stored in the Cache
    * @param ticker the time source used to determine expiration
    * @return a {@link Cache} corresponding to this instance's values or
    * {@code null} unless {@code #numEntries} is positive.
    */
   @Nullable
-  public <T> Cache<String, T> createCache(Ticker ticker) {
+  public <K, T> Cache<K, T> createCache(Ticker ticker) {
     Preconditions.checkNotNull(ticker, "The ticker cannot be null");
     if (numEntries <= 0) {
       return null;
     }
-    CacheBuilder<Object, Object> b = CacheBuilder.newBuilder().maximumSize(numEntries).ticker(ticker);
-    if (expirationMillis >= 0) {
-      b.expireAfterWrite(expirationMillis, TimeUnit.MILLISECONDS);
+    return cacheFactory.newCache(numEntries, expirationMillis, ticker, null);
+  }
+
+  /**
+   * Builder provides structure to the construction of a {@link CheckAggregationOptions}.
+   *
+   * Values that are not set are the same as those of the no-arg constructor.
+   */
+  public static class Builder {
+    private int numEntries = DEFAULT_NUM_ENTRIES;
+    private int refreshMillis = NO_REFRESH;
+    private int expirationMillis = DEFAULT_RESPONSE_EXPIRATION_MILLIS;
+    private CacheFactory cacheFactory = new GuavaCacheFactory();
+    private LabelProjection defaultProjection = LabelProjection.ALL;
+    private final Map<String, LabelProjection> methodProjections = new HashMap<>();
+    private int negativeNumEntries = DEFAULT_NEGATIVE_NUM_ENTRIES;
+    private final Map<CheckError.Code, Integer> negativeExpirationMillis =
+        new EnumMap<>(CheckError.Code.class);
+    private boolean consumerRejections;
+
+    /**
+     * @param numEntries the maximum number of cache entries that can be kept in the aggregation
+     *        cache. The cache is disabled if this value is negative
+     */
+    public Builder setNumEntries(int numEntries) {
+      this.numEntries = numEntries;
+      return this;
+    }
+
+    /**
+     * @param refreshMillis the interval in milliseconds after which a cached check response is
+     *        refreshed while it continues to be served. Refreshing is disabled if this value is
+     *        not positive, which is the default
+     */
+    public Builder setRefreshMillis(int refreshMillis) {
+      this.refreshMillis = refreshMillis;
+      return this;
+    }
+
+    /**
+     * @param expirationMillis the maximum interval in milliseconds before a cached check response
+     *        that was not refreshed is invalidated. It must be greater than the refresh interval
+     *        when both are positive
+     */
+    public Builder setExpirationMillis(int expirationMillis) {
+      this.expirationMillis = expirationMillis;
+      return this;
+    }
+
+    /**
+     * @param cacheFactory creates the aggregation cache
+     */
+    public Builder setCacheFactory(CacheFactory cacheFactory) {
+      this.cacheFactory = cacheFactory;
+      return this;
+    }
+
+    /**
+     * @param projection selects the operation labels that are part of the signature of a check
+     *        request, for methods without a projection of their own
+     */
+    public Builder setSignatureProjection(LabelProjection projection) {
+      this.defaultProjection = projection;
+      return this;
+    }
+
+    /**
+     * @param methodSelector a method selector, i.e. the operation name of its check requests
+     * @param projection selects the operation labels that are part of the signature of a check
+     *        request for {@code methodSelector}
+     */
+    public Builder setSignatureProjection(String methodSelector, LabelProjection projection) {
+      this.methodProjections.put(Preconditions.checkNotNull(methodSelector),
+          Preconditions.checkNotNull(projection));
+      return this;
+    }
+
+    /**
+     * @param negativeNumEntries the maximum number of negative responses that are kept apart
+     *        from the aggregation cache, so that they do not evict the responses of valid
+     *        consumers. Negative responses are kept in the aggregation cache if this value is not
+     *        positive
+     */
+    public Builder setNegativeNumEntries(int negativeNumEntries) {
+      this.negativeNumEntries = negativeNumEntries;
+      return this;
+    }
+
+    /**
+     * Keeps negative responses with {@code code} apart from the aggregation cache. None are kept
+     * apart by default.
+     *
+     * @param code the code of the first error of a negative response
+     * @param expirationMillis the interval in milliseconds before a negative response with
+     *        {@code code} is invalidated. Such responses are not refreshed. They are kept in the
+     *        aggregation cache, like other negative responses, if this value is not positive
+     */
+    public Builder setNegativeExpirationMillis(CheckError.Code code, int expirationMillis) {
+      Preconditions.checkNotNull(code, "code must be non-null");
+      if (expirationMillis > 0) {
+        this.negativeExpirationMillis.put(code, expirationMillis);
+      } else {
+        this.negativeExpirationMillis.remove(code);
+      }
+      return this;
+    }
+
+    /**
+     * @param consumerRejections whether a negative response that rejects the API key of its
+     *        consumer also rejects the other operations of the consumer, without checking them,
+     *        until it expires. It only applies to the codes given an expiration interval with
+     *        {@link #setNegativeExpirationMillis(CheckError.Code, int)}. Defaults to
+     *        {@code false}
+     */
+    public Builder setConsumerRejections(boolean consumerRejections) {
+      this.consumerRejections = consumerRejections;
+      return this;
+    }
+
+    public CheckAggregationOptions build() {
+      return new CheckAggregationOptions(this);
     }
-    return b.build();
   }
 }
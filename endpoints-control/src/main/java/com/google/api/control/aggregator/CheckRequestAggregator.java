@@ -17,6 +17,7 @@
 
 package com.google.api.control.aggregator;
 
+import com.google.api.servicecontrol.v1.CheckError;
 import com.google.api.servicecontrol.v1.CheckRequest;
 import com.google.api.servicecontrol.v1.CheckResponse;
 import com.google.api.servicecontrol.v1.MetricValue;
@@ -27,12 +28,18 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Caches {@link CheckRequest}s.
@@ -43,11 +50,25 @@ public class CheckRequestAggregator {
    * configured to be non-caching.
    */
   public static final int NON_CACHING = -1;
+  private static final long NEVER = Long.MAX_VALUE;
+
+  /**
+   * The error codes of responses that reject a consumer for any operation.
+   */
+  private static final ImmutableSet<CheckError.Code> CONSUMER_REJECTIONS = ImmutableSet.of(
+      CheckError.Code.API_KEY_NOT_FOUND,
+      CheckError.Code.API_KEY_INVALID,
+      CheckError.Code.API_KEY_EXPIRED);
 
   private final String serviceName;
   private final CheckAggregationOptions options;
-  private final Cache<String, CachedItem> cache;
+  private final Cache<HashCode, CachedItem> cache;
+  private final Cache<HashCode, CachedItem> negativeCache;
+  private final RejectedConsumers rejectedConsumers;
   private final Ticker ticker;
+  private final long refreshNanos;
+  private volatile Refresher refresher;
+  private final LongAdder projectedHits = new LongAdder();
 
   /**
    * Constructor.
@@ -64,8 +85,29 @@ public class CheckRequestAggregator {
     Preconditions.checkNotNull(options, "options must be non-null");
     this.ticker = ticker == null ? Ticker.systemTicker() : ticker;
     this.cache = options.createCache(this.ticker);
+    this.negativeCache = options.createNegativeCache(this.ticker);
+    this.rejectedConsumers = negativeCache == null || !options.hasConsumerRejections()
+        ? null
+        : new RejectedConsumers(
+            options.<String, RejectedConsumers.Rejection>createNegativeCache(this.ticker),
+            options.getNegativeNumEntries(), this.ticker);
     this.serviceName = serviceName;
     this.options = options;
+    this.refreshNanos = options.getRefreshMillis() > 0
+        ? TimeUnit.MILLISECONDS.toNanos(options.getRefreshMillis()) : -1;
+  }
+
+  /**
+   * Sets the {@link Refresher} used to refresh cached responses in the background.
+   *
+   * It is only used if the options of this instance enable refreshing. When it is not set, the
+   * first request for a response that is due to be refreshed is instead told to send its request,
+   * i.e, {@link #check(CheckRequest)} returns {@code null} for it.
+   *
+   * @param refresher the {@link Refresher}, or {@code null} to unset it
+   */
+  public void setRefresher(@Nullable Refresher refresher) {
+    this.refresher = refresher;
   }
 
   /**
@@ -96,6 +138,15 @@ public class CheckRequestAggregator {
     return serviceName;
   }
 
+  /**
+   * @return the number of cached responses served to requests that differ in labels left out of
+   *         the signature from the request the response was obtained for, i.e. the cache hits
+   *         that are due to a {@link LabelProjection}
+   */
+  public long getProjectedHits() {
+    return projectedHits.sum();
+  }
+
   /**
    * Clears this instances cache of aggregated operations.
    *
@@ -108,6 +159,12 @@ public class CheckRequestAggregator {
     synchronized (cache) {
       cache.invalidateAll();
     }
+    if (negativeCache != null) {
+      negativeCache.invalidateAll();
+    }
+    if (rejectedConsumers != null) {
+      rejectedConsumers.clear();
+    }
   }
 
   /**
@@ -120,15 +177,45 @@ public class CheckRequestAggregator {
     if (cache == null) {
       return;
     }
-    String signature = sign(req).toString();
+    LabelProjection projection = projectionOf(req);
+    HashCode signature = sign(req, projection);
+    HashCode fullSignature = projection.includesAll() ? null : sign(req);
     long now = ticker.read();
     int quotaScale = 0; // WIP
+    int negativeExpirationMillis = negativeExpirationMillis(resp);
+    if (negativeExpirationMillis > 0) {
+      // kept apart, so that rejected requests do not evict the responses of valid consumers
+      CachedItem item = new CachedItem(resp, now, quotaScale);
+      item.fullSignature = fullSignature;
+      item.expiresAt = now + TimeUnit.MILLISECONDS.toNanos(negativeExpirationMillis);
+      item.isNegative = true;
+      synchronized (cache) {
+        cache.invalidate(signature);
+        negativeCache.put(signature, item);
+      }
+      if (rejectedConsumers != null
+          && CONSUMER_REJECTIONS.contains(resp.getCheckErrors(0).getCode())) {
+        rejectedConsumers.add(req.getOperation().getConsumerId(), resp, item.expiresAt);
+      }
+      return;
+    }
+    if (negativeCache != null) {
+      negativeCache.invalidate(signature);
+      if (rejectedConsumers != null && resp.getCheckErrorsCount() == 0) {
+        rejectedConsumers.remove(req.getOperation().getConsumerId());
+      }
+    }
     synchronized (cache) {
       CachedItem item = cache.getIfPresent(signature);
       if (item == null) {
-        cache.put(signature, new CachedItem(resp, now, quotaScale));
+        item = new CachedItem(resp, now, quotaScale);
+        item.fullSignature = fullSignature;
+        cache.put(signature, item);
       } else {
+        item.fullSignature = fullSignature;
         item.lastCheckTimestamp = now;
+        item.cachedTimestamp = now;
+        item.expiresAt = NEVER;
         item.response = resp;
         item.quotaScale = quotaScale;
         item.isFlushing = false;
@@ -149,12 +236,19 @@ public class CheckRequestAggregator {
    * assumed that {@code req}, would fail as well, so the cached response is returned. However, the
    * first request after the check interval has elapsed should be sent to the server to refresh the
    * response - until its response is received, the subsequent reqs should still return the failed
-   * response.
+   * response. Failed responses with a negative expiration, see
+   * {@link CheckAggregationOptions#getNegativeExpirationMillis(CheckError.Code)}, are not
+   * refreshed; they are returned until they expire.
    *
    * <strong>Cache Hit, the response passed</strong> When the cached response has no errors, it's
    * assumed that the {@code req} would pass as well, so the response is return, with quota tracking
    * updated so that it matches that in req.
    *
+   * <strong>Cache Hit, due to be refreshed</strong> When refreshing is enabled and the refresh
+   * interval has elapsed since the response was obtained, {@code req} is passed to the
+   * {@link Refresher} and the cached response is still returned. Until the refreshed response is
+   * added, the refresh is not repeated for another refresh interval.
+   *
    * @param req a request to be sent to the service control service
    * @return a {@code CheckResponse} if an applicable one is cached by this instance, otherwise
    *         {@code null}
@@ -170,13 +264,210 @@ public class CheckRequestAggregator {
     if (req.getOperation().getImportance() != Importance.LOW) {
       return null; // send the request now if importance is not LOW
     }
-    String signature = sign(req).toString();
-    CachedItem item = cache.getIfPresent(signature);
+    CachedItem item = lookup(signature(req));
     if (item == null) {
       return null; // signal caller to send the response
-    } else {
-      return item.response;
     }
+    HashCode fullSignature = item.fullSignature;
+    if (fullSignature != null && !fullSignature.equals(sign(req))) {
+      projectedHits.increment();
+    }
+    if (refreshNanos < 0 || item.isNegative) {
+      return item.response; // negative responses expire rather than being refreshed
+    }
+    CheckResponse response;
+    boolean refresh = false;
+    synchronized (cache) {
+      response = item.response;
+      long now = ticker.read();
+      if (now - item.lastCheckTimestamp >= refreshNanos) {
+        // Treat the refresh as a check, so that it is not repeated until it is due again
+        item.lastCheckTimestamp = now;
+        item.isFlushing = true;
+        refresh = true;
+      }
+    }
+    if (!refresh) {
+      return response;
+    }
+    Refresher r = refresher;
+    if (r == null) {
+      return null; // signal caller to send the request, it will refresh the response
+    }
+    r.refresh(req);
+    return response;
+  }
+
+  /**
+   * Looks up the cached response for a check request of {@code LOW} importance without metric
+   * values, from the parts of the request that are signed, so that the request only needs to be
+   * built if there is no such response.
+   *
+   * Unlike {@link #check(CheckRequest)}, this does not refresh a response that is due to be
+   * refreshed; it returns {@code null} instead, and the caller is expected to build the request
+   * and pass it to {@code check}.
+   *
+   * @param consumerId the consumer id of the operation
+   * @param operationName the operation name, i.e. the method selector
+   * @param labels the labels of the operation
+   * @return the cached response, or {@code null} if the request must be built and checked
+   */
+  public @Nullable CheckResponse checkCached(@Nullable String consumerId, String operationName,
+      Map<String, String> labels) {
+    if (cache == null || Strings.isNullOrEmpty(consumerId)
+        || Strings.isNullOrEmpty(operationName)) {
+      return null;
+    }
+    CachedItem item = lookup(sign(consumerId, operationName, labels, projectionOf(operationName)));
+    if (item == null) {
+      return null;
+    }
+    CheckResponse response;
+    synchronized (cache) {
+      response = item.response;
+      if (refreshNanos >= 0 && !item.isNegative
+          && ticker.read() - item.lastCheckTimestamp >= refreshNanos) {
+        return null; // check(req) triggers the refresh
+      }
+    }
+    HashCode fullSignature = item.fullSignature;
+    if (fullSignature != null
+        && !fullSignature.equals(sign(consumerId, operationName, labels, LabelProjection.ALL))) {
+      projectedHits.increment();
+    }
+    return response;
+  }
+
+  /**
+   * Looks up a response that rejected {@code consumerId} for any operation, e.g. because its API
+   * key is invalid, so that requests of the consumer can be rejected without building a check
+   * request.
+   *
+   * Such responses are only remembered if {@link CheckAggregationOptions#hasConsumerRejections()}
+   * and they are kept apart from the aggregation cache, see
+   * {@link CheckAggregationOptions#getNegativeExpirationMillis(CheckError.Code)}. They are not
+   * refreshed; they are returned until they expire.
+   *
+   * @param consumerId the consumer id of an operation
+   * @return the response that rejected the consumer, or {@code null} if there is none
+   */
+  public @Nullable CheckResponse checkRejected(@Nullable String consumerId) {
+    if (rejectedConsumers == null || Strings.isNullOrEmpty(consumerId)) {
+      return null;
+    }
+    return rejectedConsumers.find(consumerId);
+  }
+
+  private @Nullable CachedItem lookup(HashCode signature) {
+    CachedItem item = cache.getIfPresent(signature);
+    Cache<HashCode, CachedItem> itemCache = cache;
+    if (item == null && negativeCache != null) {
+      item = negativeCache.getIfPresent(signature);
+      itemCache = negativeCache;
+    }
+    if (item != null && item.expiresAt != NEVER && ticker.read() >= item.expiresAt) {
+      // a negative response, or a restored response, whose remaining time to live elapsed
+      itemCache.invalidate(signature);
+      return null;
+    }
+    return item;
+  }
+
+  private int negativeExpirationMillis(CheckResponse resp) {
+    if (negativeCache == null || resp.getCheckErrorsCount() == 0) {
+      return -1;
+    }
+    return options.getNegativeExpirationMillis(resp.getCheckErrors(0).getCode());
+  }
+
+  /**
+   * Determines if the response to {@code req} would be cached by this instance.
+   *
+   * @param req a request to be sent to the service control service
+   * @return {@code true} if caching is enabled and {@code req} is of {@code LOW} importance
+   */
+  public boolean isCacheable(CheckRequest req) {
+    return cache != null && req.getOperation().getImportance() == Importance.LOW;
+  }
+
+  /**
+   * Lists the cached responses, so that they can be restored by a later instance.
+   *
+   * @return the cached responses along with their remaining time to live
+   */
+  public List<SnapshotEntry> snapshot() {
+    if (cache == null) {
+      return ImmutableList.of();
+    }
+    List<SnapshotEntry> result = new ArrayList<>();
+    synchronized (cache) {
+      long now = ticker.read();
+      for (Map.Entry<HashCode, CachedItem> entry : cache.asMap().entrySet()) {
+        CachedItem item = entry.getValue();
+        long expiresAt = item.expiresAt;
+        if (options.getExpirationMillis() >= 0) {
+          expiresAt = Math.min(expiresAt,
+              item.cachedTimestamp + TimeUnit.MILLISECONDS.toNanos(options.getExpirationMillis()));
+        }
+        long remainingMillis = expiresAt == NEVER
+            ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(expiresAt - now);
+        if (remainingMillis > 0) {
+          result.add(new SnapshotEntry(entry.getKey(), item.response, remainingMillis,
+              TimeUnit.NANOSECONDS.toMillis(now - item.lastCheckTimestamp)));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds responses listed by {@link #snapshot()} to the cache, unless a response with the same
+   * signature is already cached.
+   *
+   * A restored response expires once its remaining time to live elapses, and is refreshed
+   * according to its age.
+   *
+   * @param entries the responses to restore
+   */
+  public void restore(Iterable<SnapshotEntry> entries) {
+    if (cache == null) {
+      return;
+    }
+    synchronized (cache) {
+      long now = ticker.read();
+      for (SnapshotEntry entry : entries) {
+        if (entry.getRemainingMillis() <= 0 || cache.getIfPresent(entry.getSignature()) != null) {
+          continue;
+        }
+        CachedItem item = new CachedItem(entry.getResponse(),
+            now - TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis()), 0);
+        item.cachedTimestamp = now;
+        if (entry.getRemainingMillis() != Long.MAX_VALUE) {
+          item.expiresAt = now + TimeUnit.MILLISECONDS.toNanos(entry.getRemainingMillis());
+        }
+        cache.put(entry.getSignature(), item);
+      }
+    }
+  }
+
+  /**
+   * Obtains the signature under which the response to {@code req} is cached, taking into account
+   * the {@link CheckAggregationOptions#getSignatureProjection(String) projection} configured for
+   * its method.
+   *
+   * @param req a {@code CheckRequest} to be signed
+   * @return the {@code HashCode} of {@code req}
+   */
+  public HashCode signature(CheckRequest req) {
+    return sign(req, projectionOf(req));
+  }
+
+  private LabelProjection projectionOf(CheckRequest req) {
+    return projectionOf(req.getOperation().getOperationName());
+  }
+
+  private LabelProjection projectionOf(String operationName) {
+    return options.getSignatureProjection(operationName);
   }
 
   /**
@@ -186,17 +477,25 @@ public class CheckRequestAggregator {
    * @return the {@code HashCode} corresponding to {@code value}
    */
   public static HashCode sign(CheckRequest value) {
-    Hasher h = Hashing.md5().newHasher();
+    return sign(value, LabelProjection.ALL);
+  }
+
+  /**
+   * Obtains the {@code HashCode} for the contents of {@code value}, with only the operation labels
+   * included by {@code projection}.
+   *
+   * @param value a {@code CheckRequest} to be signed
+   * @param projection selects the operation labels to sign
+   * @return the {@code HashCode} corresponding to {@code value}
+   */
+  public static HashCode sign(CheckRequest value, LabelProjection projection) {
+    Hasher h = Signing.newHasher();
     Operation o = value.getOperation();
     if (o == null || Strings.isNullOrEmpty(o.getConsumerId())
         || Strings.isNullOrEmpty(o.getOperationName())) {
       throw new IllegalArgumentException("CheckRequest should have a valid operation");
     }
-    h.putString(o.getConsumerId(), StandardCharsets.UTF_8);
-    h.putChar('\0');
-    h.putString(o.getOperationName(), StandardCharsets.UTF_8);
-    h.putChar('\0');
-    Signing.putLabels(h, o.getLabels());
+    putOperation(h, o.getConsumerId(), o.getOperationName(), o.getLabels(), projection);
     for (MetricValueSet mvSet : o.getMetricValueSetsList()) {
       h.putString(mvSet.getMetricName(), StandardCharsets.UTF_8);
       h.putChar('\0');
@@ -207,6 +506,86 @@ public class CheckRequestAggregator {
     return h.hash();
   }
 
+  /**
+   * Obtains the {@code HashCode} of a check request without metric values from its parts. It
+   * equals the {@link #sign(CheckRequest, LabelProjection) signature} of the request as long as
+   * the labels are iterated in the same order.
+   *
+   * @param consumerId the consumer id of the operation
+   * @param operationName the operation name
+   * @param labels the labels of the operation
+   * @param projection selects the operation labels to sign
+   * @return the {@code HashCode} of the request
+   */
+  public static HashCode sign(String consumerId, String operationName,
+      Map<String, String> labels, LabelProjection projection) {
+    Hasher h = Signing.newHasher();
+    putOperation(h, consumerId, operationName, labels, projection);
+    return h.hash();
+  }
+
+  private static void putOperation(Hasher h, String consumerId, String operationName,
+      Map<String, String> labels, LabelProjection projection) {
+    h.putString(consumerId, StandardCharsets.UTF_8);
+    h.putChar('\0');
+    h.putString(operationName, StandardCharsets.UTF_8);
+    h.putChar('\0');
+    Signing.putLabels(h, labels, projection);
+  }
+
+  /**
+   * Refresher sends the requests of cached responses that are due to be refreshed.
+   */
+  public interface Refresher {
+    /**
+     * Sends {@code req} without blocking the caller, and adds the response to the aggregator with
+     * {@link CheckRequestAggregator#addResponse(CheckRequest, CheckResponse)}.
+     *
+     * @param req the request whose cached response is due to be refreshed
+     */
+    void refresh(CheckRequest req);
+  }
+
+  /**
+   * SnapshotEntry is a cached {@link CheckResponse} listed by {@link #snapshot()}.
+   */
+  public static final class SnapshotEntry {
+    private final HashCode signature;
+    private final CheckResponse response;
+    private final long remainingMillis;
+    private final long ageMillis;
+
+    /**
+     * @param signature the signature of the requests the response applies to
+     * @param response the cached response
+     * @param remainingMillis the time until the response expires, {@link Long#MAX_VALUE} if never
+     * @param ageMillis the time since the response was obtained or last refreshed
+     */
+    public SnapshotEntry(HashCode signature, CheckResponse response, long remainingMillis,
+        long ageMillis) {
+      this.signature = Preconditions.checkNotNull(signature, "signature must be non-null");
+      this.response = Preconditions.checkNotNull(response, "response must be non-null");
+      this.remainingMillis = remainingMillis;
+      this.ageMillis = ageMillis;
+    }
+
+    public HashCode getSignature() {
+      return signature;
+    }
+
+    public CheckResponse getResponse() {
+      return response;
+    }
+
+    public long getRemainingMillis() {
+      return remainingMillis;
+    }
+
+    public long getAgeMillis() {
+      return ageMillis;
+    }
+  }
+
   /**
    * CachedItem holds items cached along with a {@link CheckRequest}
    *
@@ -215,8 +594,14 @@ public class CheckRequestAggregator {
   private static class CachedItem {
     boolean isFlushing;
     long lastCheckTimestamp;
+    long cachedTimestamp;
+    // set for restored and negative items, which the cache would expire too late
+    long expiresAt = NEVER;
+    boolean isNegative;
     int quotaScale;
     CheckResponse response;
+    @Nullable
+    HashCode fullSignature; // of the request the response is for, if it differs from the key
 
     /**
      * @param response the cached {@code CheckResponse}
@@ -227,6 +612,7 @@ public class CheckRequestAggregator {
     CachedItem(CheckResponse response, long lastCheckTimestamp, int quotaScale) {
       this.response = response;
       this.lastCheckTimestamp = lastCheckTimestamp;
+      this.cachedTimestamp = lastCheckTimestamp;
       this.quotaScale = quotaScale;
     }
 
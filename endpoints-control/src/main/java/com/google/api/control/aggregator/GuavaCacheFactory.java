@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CacheFactory} that creates Guava caches, which evict the least recently used entries.
+ */
+public final class GuavaCacheFactory implements CacheFactory {
+  @Override
+  public <K, V> Cache<K, V> newCache(int maximumSize, long expireAfterWriteMillis, Ticker ticker,
+      @Nullable RemovalListener<K, V> listener) {
+    CacheBuilder<Object, Object> b = CacheBuilder.newBuilder().maximumSize(maximumSize)
+        .ticker(ticker);
+    if (expireAfterWriteMillis >= 0) {
+      b.expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS);
+    }
+    if (listener == null) {
+      return b.build();
+    }
+    return b.removalListener(listener).build();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+
+/**
+ * Selects the operation labels that are part of the signature of a check request.
+ *
+ * Requests whose signatures are equal share a cached check response. Leaving out labels that vary
+ * per caller, such as {@code servicecontrol.googleapis.com/caller_ip}, lets the callers of a
+ * consumer share the responses for its operations. Only do so for labels that service control
+ * does not check: e.g. the response for an API key restricted to some IP addresses is then also
+ * served to callers from other addresses until it expires.
+ *
+ * Immutable.
+ */
+public final class LabelProjection {
+  /**
+   * Includes all labels.
+   */
+  public static final LabelProjection ALL = new LabelProjection(false, ImmutableSet.<String>of());
+
+  private final boolean including;
+  private final ImmutableSet<String> labels;
+
+  private LabelProjection(boolean including, ImmutableSet<String> labels) {
+    this.including = including;
+    this.labels = labels;
+  }
+
+  /**
+   * @param labels the labels to include
+   * @return a projection that includes {@code labels} only
+   */
+  public static LabelProjection including(Iterable<String> labels) {
+    return new LabelProjection(true, copyOf(labels));
+  }
+
+  /**
+   * @param labels the labels to include
+   * @return a projection that includes {@code labels} only
+   */
+  public static LabelProjection including(String... labels) {
+    return including(Arrays.asList(labels));
+  }
+
+  /**
+   * @param labels the labels to exclude
+   * @return a projection that includes all labels but {@code labels}
+   */
+  public static LabelProjection excluding(Iterable<String> labels) {
+    return new LabelProjection(false, copyOf(labels));
+  }
+
+  /**
+   * @param labels the labels to exclude
+   * @return a projection that includes all labels but {@code labels}
+   */
+  public static LabelProjection excluding(String... labels) {
+    return excluding(Arrays.asList(labels));
+  }
+
+  /**
+   * @param label the name of a label
+   * @return {@code true} if the label is part of the signature
+   */
+  public boolean includes(String label) {
+    return including == labels.contains(label);
+  }
+
+  /**
+   * @return {@code true} if all labels are part of the signature
+   */
+  public boolean includesAll() {
+    return !including && labels.isEmpty();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof LabelProjection)) {
+      return false;
+    }
+    LabelProjection other = (LabelProjection) o;
+    return including == other.including && labels.equals(other.labels);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Boolean.valueOf(including).hashCode() + labels.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add(including ? "including" : "excluding", labels)
+        .toString();
+  }
+
+  private static ImmutableSet<String> copyOf(Iterable<String> labels) {
+    Preconditions.checkNotNull(labels, "labels must be non-null");
+    return ImmutableSet.copyOf(labels);
+  }
+}
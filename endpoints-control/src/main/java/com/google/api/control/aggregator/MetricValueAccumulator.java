@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.api.MetricDescriptor.MetricKind;
+import com.google.api.control.model.Distributions;
+import com.google.api.control.model.Timestamps;
+import com.google.api.servicecontrol.v1.Distribution;
+import com.google.api.servicecontrol.v1.MetricValue;
+import com.google.common.flogger.FluentLogger;
+import com.google.protobuf.Timestamp;
+
+import javax.annotation.Nullable;
+
+/**
+ * Accumulates the {@link MetricValue}s that share a metric name and signature.
+ *
+ * Unlike {@link MetricValues#merge(MetricKind, MetricValue, MetricValue)}, adding a value does not
+ * build a new {@code MetricValue}: {@code DELTA} sums are kept in primitive fields and
+ * distribution buckets in a {@code long[]}, and are only converted back to a proto by
+ * {@link #asMetricValue()}.
+ *
+ * Thread compatible.
+ */
+final class MetricValueAccumulator {
+  private static final String MSG_NOT_MERGABLE = "Metric type not mergeabe";
+  private static final String MSG_CANNOT_MERGE_DIFFERENT_TYPES =
+      "Cannot merge metrics with different types of value";
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+  private final MetricKind kind;
+
+  /**
+   * The latest value added for {@code DELTA} metrics, the one with the latest end time otherwise.
+   * The output is built on it, so that its other fields, e.g. unknown ones, are kept as
+   * {@link MetricValues#merge(MetricKind, MetricValue, MetricValue)} keeps those of the latest
+   * value.
+   */
+  private MetricValue value;
+  private boolean accumulating;
+  @Nullable private Timestamp startTime;
+  @Nullable private Timestamp endTime;
+  private long int64Sum;
+  private double doubleSum;
+  private long count;
+  private double mean;
+  private double minimum;
+  private double maximum;
+  private double sumOfSquaredDeviation;
+  private long[] bucketCounts;
+
+  /**
+   * Constructor.
+   *
+   * @param kind the {@code MetricKind} of the metric
+   * @param value the initial {@code MetricValue}
+   */
+  MetricValueAccumulator(MetricKind kind, MetricValue value) {
+    this.kind = kind;
+    this.value = value;
+  }
+
+  /**
+   * Combines {@code other} with the values added so far.
+   *
+   * @param other a {@code MetricValue} with the same signature as the initial one
+   * @throws IllegalArgumentException if {@code other} has a different type of value, or if the
+   *         type is not mergeable
+   */
+  void add(MetricValue other) {
+    if (value.getValueCase() != other.getValueCase()) {
+      log.atWarning().log("Could not merge different types of metric: %s, %s", value, other);
+      throw new IllegalArgumentException(MSG_CANNOT_MERGE_DIFFERENT_TYPES);
+    }
+    if (kind != MetricKind.DELTA) {
+      if (Timestamps.COMPARATOR.compare(value.getEndTime(), other.getEndTime()) < 0) {
+        value = other;
+      }
+      return;
+    }
+    if (!accumulating) {
+      startAccumulating(other);
+    }
+    switch (other.getValueCase()) {
+      case DOUBLE_VALUE:
+        doubleSum += other.getDoubleValue();
+        break;
+      case DISTRIBUTION_VALUE:
+        addDistribution(other.getDistributionValue());
+        break;
+      case INT64_VALUE:
+        int64Sum += other.getInt64Value();
+        break;
+      default:
+        // not reached, startAccumulating rejects the other types
+        throw new IllegalArgumentException(MSG_NOT_MERGABLE);
+    }
+    if (other.hasStartTime() && (startTime == null
+        || Timestamps.COMPARATOR.compare(other.getStartTime(), startTime) < 0)) {
+      startTime = other.getStartTime();
+    }
+    if (other.hasEndTime() && (endTime == null
+        || Timestamps.COMPARATOR.compare(endTime, other.getEndTime()) < 0)) {
+      endTime = other.getEndTime();
+    }
+    value = other;
+  }
+
+  /**
+   * @return a {@code MetricValue} that combines all the added values
+   */
+  MetricValue asMetricValue() {
+    if (!accumulating) {
+      return value;
+    }
+    MetricValue.Builder builder = value.toBuilder();
+    if (startTime != null) {
+      builder.setStartTime(startTime);
+    }
+    if (endTime != null) {
+      builder.setEndTime(endTime);
+    }
+    switch (value.getValueCase()) {
+      case DOUBLE_VALUE:
+        builder.setDoubleValue(doubleSum);
+        break;
+      case DISTRIBUTION_VALUE:
+        Distribution.Builder distribution = builder.getDistributionValueBuilder()
+            .setCount(count)
+            .setMean(mean)
+            .setMinimum(minimum)
+            .setMaximum(maximum)
+            .setSumOfSquaredDeviation(sumOfSquaredDeviation);
+        for (int i = 0; i < bucketCounts.length; i++) {
+          distribution.setBucketCounts(i, bucketCounts[i]);
+        }
+        break;
+      case INT64_VALUE:
+        builder.setInt64Value(int64Sum);
+        break;
+      default:
+        throw new IllegalStateException(MSG_NOT_MERGABLE);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Copies the initial value into the primitive fields, on the first merge so that metrics that
+   * are never merged cost nothing extra.
+   */
+  private void startAccumulating(MetricValue other) {
+    switch (value.getValueCase()) {
+      case DOUBLE_VALUE:
+        doubleSum = value.getDoubleValue();
+        break;
+      case DISTRIBUTION_VALUE:
+        Distribution initial = value.getDistributionValue();
+        count = initial.getCount();
+        mean = initial.getMean();
+        minimum = initial.getMinimum();
+        maximum = initial.getMaximum();
+        sumOfSquaredDeviation = initial.getSumOfSquaredDeviation();
+        bucketCounts = new long[initial.getBucketCountsCount()];
+        for (int i = 0; i < bucketCounts.length; i++) {
+          bucketCounts[i] = initial.getBucketCounts(i);
+        }
+        break;
+      case INT64_VALUE:
+        int64Sum = value.getInt64Value();
+        break;
+      default:
+        log.atWarning()
+            .log("Could not merge logs with unmergable metric types: %s, %s", value, other);
+        throw new IllegalArgumentException(MSG_NOT_MERGABLE);
+    }
+    startTime = value.hasStartTime() ? value.getStartTime() : null;
+    endTime = value.hasEndTime() ? value.getEndTime() : null;
+    accumulating = true;
+  }
+
+  /**
+   * Merges {@code latest} into the accumulated distribution, using the same formulae as
+   * {@link Distributions#merge(Distribution, Distribution)}.
+   */
+  private void addDistribution(Distribution latest) {
+    Distributions.checkMergeable(value.getDistributionValue(), latest);
+    long latestCount = latest.getCount();
+    if (count == 0) {
+      count = latestCount;
+      mean = latest.getMean();
+      minimum = latest.getMinimum();
+      maximum = latest.getMaximum();
+      sumOfSquaredDeviation = latest.getSumOfSquaredDeviation();
+    } else if (latestCount != 0) {
+      long newCount = count + latestCount;
+      double latestMean = latest.getMean();
+      double newMean = (latestCount * latestMean + count * mean) / newCount;
+      sumOfSquaredDeviation = latest.getSumOfSquaredDeviation() + sumOfSquaredDeviation
+          + (latestCount * Math.pow((newMean - latestMean), 2))
+          + (count * Math.pow((newMean - mean), 2));
+      minimum = Math.min(minimum, latest.getMinimum());
+      maximum = Math.max(maximum, latest.getMaximum());
+      mean = newMean;
+      count = newCount;
+    }
+    for (int i = 0; i < bucketCounts.length; i++) {
+      bucketCounts[i] += latest.getBucketCounts(i);
+    }
+  }
+}
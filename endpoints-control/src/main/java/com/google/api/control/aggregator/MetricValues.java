@@ -24,7 +24,6 @@ import com.google.api.servicecontrol.v1.MetricValue.Builder;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 
 /**
  * Provide functions that enable aggregation of {@link MetricValue}s.
@@ -56,7 +55,7 @@ public final class MetricValues {
    * @return the {@code HashCode} corresponding to {@code value}
    */
   public static HashCode sign(MetricValue value) {
-    Hasher h = Hashing.md5().newHasher();
+    Hasher h = Signing.newHasher();
     return putMetricValue(h, value).hash();
   }
 
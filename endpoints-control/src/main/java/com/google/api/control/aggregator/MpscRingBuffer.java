@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+
+import java.math.RoundingMode;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * MpscRingBuffer is a bounded, lock-free queue with many producers and a single consumer.
+ *
+ * Each slot carries a sequence number that tells producers when it is free and the consumer when
+ * it was published, so producers only contend on a compare-and-set of the tail, and never wait
+ * for each other or for the consumer. When the buffer is full, {@link #offer} fails rather than
+ * blocking.
+ *
+ * {@link #offer} is thread-safe. {@link #poll} must only be called by one thread at a time.
+ */
+final class MpscRingBuffer<E> {
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the minimum number of elements the buffer can hold; it is rounded up to a
+   *        power of two
+   */
+  MpscRingBuffer(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    int size = IntMath.checkedPow(2, IntMath.log2(capacity, RoundingMode.CEILING));
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return the number of elements the buffer can hold
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Adds {@code element} to the buffer, unless it is full.
+   *
+   * @param element the element to add
+   * @return {@code true} if {@code element} was added, {@code false} if the buffer was full
+   */
+  boolean offer(E element) {
+    Preconditions.checkNotNull(element, "element must be non-null");
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.set(index, position + 1); // publishes the element to the consumer
+          return true;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        return false; // the slot still holds an element of the previous lap
+      } else {
+        position = tail.get(); // another producer claimed the slot
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest published element.
+   *
+   * @return the element, or {@code null} if none was published
+   */
+  @Nullable
+  E poll() {
+    long position = head;
+    int index = (int) (position & mask);
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    E element = elements.get(index);
+    elements.lazySet(index, null);
+    sequences.set(index, position + mask + 1); // frees the slot for the next lap
+    head = position + 1;
+    return element;
+  }
+
+  /**
+   * @return {@code true} if no element is published; may be stale when producers are active
+   */
+  boolean isEmpty() {
+    return sequences.get((int) (head & mask)) != head + 1;
+  }
+}
@@ -24,8 +24,8 @@ import com.google.api.servicecontrol.v1.Operation;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,6 +33,9 @@ import java.util.Set;
 /**
  * Container that implements operation aggregation.
  *
+ * Metric values are merged by a {@link MetricValueAccumulator} per metric name and signature, so
+ * that the merged {@code MetricValue}s are only built by {@link #asOperation()}.
+ *
  * Thread compatible.
  */
 public class OperationAggregator {
@@ -43,7 +46,8 @@ public class OperationAggregator {
   public static final MetricKind DEFAULT_KIND = MetricKind.DELTA;
   private final Operation.Builder op;
   private final Map<String, MetricKind> kinds;
-  private final Map<String, Map<String, MetricValue>> metricValues;
+  private final Map<String, Map<HashCode, MetricValueAccumulator>> metricValues;
+  private long estimatedBytes;
 
   /**
    * Constructor.
@@ -59,6 +63,7 @@ public class OperationAggregator {
     }
     this.op = op.toBuilder().clearMetricValueSets();
     this.metricValues = Maps.newHashMap();
+    this.estimatedBytes = op.getSerializedSize();
     mergeMetricValues(op);
   }
 
@@ -68,11 +73,20 @@ public class OperationAggregator {
    * @param other an {@code Operation} to merge into the aggregate.
    */
   public void add(Operation other) {
+    estimatedBytes += other.getSerializedSize();
     op.addAllLogEntries(other.getLogEntriesList());
     mergeMetricValues(other);
     mergeTimestamps(other);
   }
 
+  /**
+   * @return the combined serialized size of the merged {@code Operation}s; an upper bound of the
+   *         size of {@link #asOperation()}, as merged metric values take less space
+   */
+  long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
   /**
    * @return an {@code Operation} that combines all the merged {@code Operation}s
    */
@@ -82,9 +96,11 @@ public class OperationAggregator {
     op.clearMetricValueSets();
     Set<String> keySet = Sets.newTreeSet(this.metricValues.keySet());
     for (String name : keySet) {
-      Collection<MetricValue> values = this.metricValues.get(name).values();
-      op.addMetricValueSets(
-          MetricValueSet.newBuilder().setMetricName(name).addAllMetricValues(values));
+      MetricValueSet.Builder mvSet = MetricValueSet.newBuilder().setMetricName(name);
+      for (MetricValueAccumulator accumulator : this.metricValues.get(name).values()) {
+        mvSet.addMetricValues(accumulator.asMetricValue());
+      }
+      op.addMetricValueSets(mvSet);
     }
     return op.build();
   }
@@ -92,22 +108,23 @@ public class OperationAggregator {
   private void mergeMetricValues(Operation other) {
     List<MetricValueSet> mvSets = other.getMetricValueSetsList();
     for (MetricValueSet mvSet : mvSets) {
-      Map<String, MetricValue> bySignature = this.metricValues.get(mvSet.getMetricName());
+      Map<HashCode, MetricValueAccumulator> bySignature =
+          this.metricValues.get(mvSet.getMetricName());
       if (bySignature == null) {
         bySignature = Maps.newHashMap();
         this.metricValues.put(mvSet.getMetricName(), bySignature);
       }
       for (MetricValue mv : mvSet.getMetricValuesList()) {
-        String signature = MetricValues.sign(mv).toString();
-        MetricValue prior = bySignature.get(signature);
+        HashCode signature = MetricValues.sign(mv);
+        MetricValueAccumulator prior = bySignature.get(signature);
         if (prior == null) {
-          bySignature.put(signature, mv);
-        } else {
           MetricKind kind = this.kinds.get(mvSet.getMetricName());
           if (kind == null) {
             kind = DEFAULT_KIND;
           }
-          bySignature.put(signature, MetricValues.merge(kind, prior, mv));
+          bySignature.put(signature, new MetricValueAccumulator(kind, mv));
+        } else {
+          prior.add(mv);
         }
       }
     }
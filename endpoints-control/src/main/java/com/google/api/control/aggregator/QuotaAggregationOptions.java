@@ -16,6 +16,8 @@
 
 package com.google.api.control.aggregator;
 
+import com.google.common.base.Preconditions;
+
 /**
  * Holds values used to configure quota aggregation.
  */
@@ -27,15 +29,26 @@ public class QuotaAggregationOptions {
   private final int numEntries;
   private final int refreshMillis;
   private final int timeoutMillis;
+  private final CacheFactory cacheFactory;
 
   public QuotaAggregationOptions() {
     this(DEFAULT_NUM_ENTRIES, DEFAULT_REFRESH_MILLIS, DEFAULT_TIMEOUT_MILLIS);
   }
 
   public QuotaAggregationOptions(int numEntries, int refreshMillis, int timeoutMillis) {
+    this(numEntries, refreshMillis, timeoutMillis, new GuavaCacheFactory());
+  }
+
+  /**
+   * @param cacheFactory creates the aggregation cache
+   */
+  public QuotaAggregationOptions(int numEntries, int refreshMillis, int timeoutMillis,
+      CacheFactory cacheFactory) {
+    Preconditions.checkNotNull(cacheFactory, "cacheFactory must be non-null");
     this.numEntries = numEntries;
     this.refreshMillis = refreshMillis;
     this.timeoutMillis = timeoutMillis;
+    this.cacheFactory = cacheFactory;
   }
 
   public int getNumEntries() {
@@ -49,4 +62,8 @@ public class QuotaAggregationOptions {
   public int getTimeoutMillis() {
     return timeoutMillis;
   }
+
+  public CacheFactory getCacheFactory() {
+    return cacheFactory;
+  }
 }
@@ -52,6 +52,21 @@ public class QuotaOperationAggregator {
     }
   }
 
+  /**
+   * Adds costs to the quota metrics of the operation.
+   *
+   * @param metricCosts the costs by quota metric name; a cost that is not positive counts as 1
+   */
+  public void mergeCosts(Map<String, Long> metricCosts) {
+    for (Map.Entry<String, Long> entry : metricCosts.entrySet()) {
+      long cost = entry.getValue();
+      MetricValue latest = MetricValue.newBuilder().setInt64Value(cost <= 0 ? 1 : cost).build();
+      MetricValue val = metricValueSets.get(entry.getKey());
+      metricValueSets.put(entry.getKey(),
+          val == null ? latest : MetricValues.merge(MetricKind.DELTA, val, latest));
+    }
+  }
+
   public QuotaOperation asQuotaOperation() {
     QuotaOperation.Builder op = this.op.clone().clearQuotaMetrics();
     for (Map.Entry<String, MetricValue> entry : metricValueSets.entrySet()) {
@@ -26,19 +26,17 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Ordering;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
@@ -48,10 +46,11 @@ import javax.annotation.Nullable;
 public class QuotaRequestAggregator {
   public static final int NON_CACHING = -1;
   private static final long NANOS_PER_MILLI = 1000000;
+  private static final long NEVER = Long.MAX_VALUE;
   private final ConcurrentLinkedDeque<AllocateQuotaRequest> out;
   private final String serviceName;
   private final Ticker ticker;
-  private final Cache<String, CachedItem> cache;
+  private final Cache<HashCode, CachedItem> cache;
   private final QuotaAggregationOptions options;
   private final long timeoutIntervalNs;
   private boolean inFlushAll;
@@ -87,9 +86,9 @@ public class QuotaRequestAggregator {
 
     synchronized (cache) {
       cache.cleanUp();
-      for (Map.Entry<String, CachedItem> entry : cache.asMap().entrySet()) {
+      for (Map.Entry<HashCode, CachedItem> entry : cache.asMap().entrySet()) {
         CachedItem item = entry.getValue();
-        if (!inFlushAll && !shouldDrop(item)) {
+        if (!inFlushAll && !shouldDrop(item) && !isExpired(item)) {
           if (!item.isInFlight && item.aggregator != null) {
             item.isInFlight = true;
             item.lastRefreshTimestamp = ticker.read();
@@ -132,9 +131,13 @@ public class QuotaRequestAggregator {
       return null;
     }
 
-    String signature = sign(req).toString();
+    HashCode signature = sign(req);
     synchronized (cache) {
       CachedItem item = cache.getIfPresent(signature);
+      if (item != null && isExpired(item)) {
+        cache.invalidate(signature); // a restored item whose remaining time to live elapsed
+        item = null;
+      }
       if (item == null) {
         // To avoid sending concurrent allocateQuota from concurrent requests,
         // insert a temporary positive response to the cache. Quota requests from other API
@@ -181,6 +184,103 @@ public class QuotaRequestAggregator {
     }
   }
 
+  /**
+   * Looks up the cached response for an allocate quota request from the parts of the request that
+   * are signed, so that the request only needs to be built if there is no such response.
+   *
+   * On a positive response, {@code metricCosts} are added to the costs that are sent with the
+   * next refresh, like {@link #allocateQuota(AllocateQuotaRequest)} adds those of its request. A
+   * cost that is not positive counts as 1. Unlike {@code allocateQuota}, this returns {@code null}
+   * if the response is due to be refreshed or no costs are pending yet; the caller is then
+   * expected to build the request and pass it to {@code allocateQuota}.
+   *
+   * @param consumerId the consumer id of the quota operation
+   * @param methodName the method name of the quota operation
+   * @param metricCosts the cost of the operation by quota metric name
+   * @return the cached response, or {@code null} if the request must be built and allocated
+   */
+  public @Nullable AllocateQuotaResponse allocateQuotaCached(@Nullable String consumerId,
+      String methodName, Map<String, Long> metricCosts) {
+    if (cache == null || consumerId == null) {
+      return null;
+    }
+    HashCode signature = sign(methodName, consumerId, metricCosts.keySet());
+    synchronized (cache) {
+      CachedItem item = cache.getIfPresent(signature);
+      if (item == null || isExpired(item) || (!item.isInFlight && shouldRefresh(item))) {
+        return null;
+      }
+      if (item.isPositiveResponse() && !item.aggregateCosts(metricCosts)) {
+        return null;
+      }
+      return item.response;
+    }
+  }
+
+  /**
+   * Lists the cached responses, so that they can be restored by a later instance.
+   *
+   * Items that are still waiting for their first response are left out.
+   *
+   * @return the cached responses along with their requests and remaining time to live
+   */
+  public List<SnapshotEntry> snapshot() {
+    if (cache == null) {
+      return ImmutableList.of();
+    }
+    List<SnapshotEntry> result = new ArrayList<>();
+    synchronized (cache) {
+      long now = ticker.read();
+      for (Map.Entry<HashCode, CachedItem> entry : cache.asMap().entrySet()) {
+        CachedItem item = entry.getValue();
+        if (!item.hasResponse) {
+          continue;
+        }
+        long expiresAt = Math.min(item.expiresAt, item.cachedTimestamp + timeoutIntervalNs);
+        long remainingMillis = (expiresAt - now) / NANOS_PER_MILLI;
+        if (remainingMillis > 0) {
+          result.add(new SnapshotEntry(entry.getKey(), item.request, item.response,
+              remainingMillis, (now - item.lastRefreshTimestamp) / NANOS_PER_MILLI));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds responses listed by {@link #snapshot()} to the cache, unless an item with the same
+   * signature is already cached.
+   *
+   * A restored response expires once its remaining time to live elapses, and is refreshed
+   * according to its age.
+   *
+   * @param entries the responses to restore
+   */
+  public void restore(Iterable<SnapshotEntry> entries) {
+    if (cache == null) {
+      return;
+    }
+    synchronized (cache) {
+      long now = ticker.read();
+      for (SnapshotEntry entry : entries) {
+        if (entry.getRemainingMillis() <= 0 || cache.getIfPresent(entry.getSignature()) != null) {
+          continue;
+        }
+        CachedItem item = new CachedItem(entry.getRequest(), entry.getResponse(),
+            now - entry.getAgeMillis() * NANOS_PER_MILLI);
+        item.signature = entry.getSignature();
+        item.hasResponse = true;
+        item.cachedTimestamp = now;
+        item.expiresAt = now + entry.getRemainingMillis() * NANOS_PER_MILLI;
+        cache.put(entry.getSignature(), item);
+      }
+    }
+  }
+
+  private boolean isExpired(CachedItem item) {
+    return item.expiresAt != NEVER && ticker.read() >= item.expiresAt;
+  }
+
   private boolean shouldRefresh(CachedItem item) {
     return ticker.read() - item.lastRefreshTimestamp >= options.getRefreshMillis();
   }
@@ -189,16 +289,64 @@ public class QuotaRequestAggregator {
     if (cache == null) {
       return;
     }
-    String signature = sign(req).toString();
+    HashCode signature = sign(req);
     synchronized (cache) {
       CachedItem item = cache.getIfPresent(signature);
       if (item != null) {
         item.isInFlight = false;
+        item.hasResponse = true;
         item.response = resp;
       }
     }
   }
 
+  /**
+   * SnapshotEntry is a cached {@link AllocateQuotaResponse} listed by {@link #snapshot()}.
+   */
+  public static final class SnapshotEntry {
+    private final HashCode signature;
+    private final AllocateQuotaRequest request;
+    private final AllocateQuotaResponse response;
+    private final long remainingMillis;
+    private final long ageMillis;
+
+    /**
+     * @param signature the signature of the requests the response applies to
+     * @param request the request sent to refresh the response
+     * @param response the cached response
+     * @param remainingMillis the time until the response expires
+     * @param ageMillis the time since the response was last refreshed
+     */
+    public SnapshotEntry(HashCode signature, AllocateQuotaRequest request,
+        AllocateQuotaResponse response, long remainingMillis, long ageMillis) {
+      this.signature = Preconditions.checkNotNull(signature, "signature must be non-null");
+      this.request = Preconditions.checkNotNull(request, "request must be non-null");
+      this.response = Preconditions.checkNotNull(response, "response must be non-null");
+      this.remainingMillis = remainingMillis;
+      this.ageMillis = ageMillis;
+    }
+
+    public HashCode getSignature() {
+      return signature;
+    }
+
+    public AllocateQuotaRequest getRequest() {
+      return request;
+    }
+
+    public AllocateQuotaResponse getResponse() {
+      return response;
+    }
+
+    public long getRemainingMillis() {
+      return remainingMillis;
+    }
+
+    public long getAgeMillis() {
+      return ageMillis;
+    }
+  }
+
   /**
    * CachedItem holds items cached along with a {@link AllocateQuotaRequest}
    *
@@ -206,17 +354,21 @@ public class QuotaRequestAggregator {
    */
   private static class CachedItem {
     private boolean isInFlight = false;
+    private boolean hasResponse = false;
     private long lastRefreshTimestamp;
+    private long cachedTimestamp;
+    private long expiresAt = NEVER; // set for restored items, which the cache would expire too late
     private AllocateQuotaRequest request;
     private AllocateQuotaResponse response;
     private final String serviceName;
     private QuotaOperationAggregator aggregator;
-    private String signature;
+    private HashCode signature;
 
     CachedItem(AllocateQuotaRequest req, AllocateQuotaResponse resp, long lastRefreshTimestamp) {
       this.request = req;
       this.response = resp;
       this.lastRefreshTimestamp = lastRefreshTimestamp;
+      this.cachedTimestamp = lastRefreshTimestamp;
       this.serviceName = request.getServiceName();
     }
 
@@ -228,6 +380,17 @@ public class QuotaRequestAggregator {
       }
     }
 
+    /**
+     * @return {@code false} if there is no pending operation to add the costs to
+     */
+    synchronized boolean aggregateCosts(Map<String, Long> metricCosts) {
+      if (aggregator == null) {
+        return false;
+      }
+      aggregator.mergeCosts(metricCosts);
+      return true;
+    }
+
     synchronized AllocateQuotaRequest extractRequest() {
       if (this.aggregator == null) {
         return this.request;
@@ -258,17 +421,21 @@ public class QuotaRequestAggregator {
 
   @VisibleForTesting
   static HashCode sign(AllocateQuotaRequest req) {
-    Hasher h = Hashing.md5().newHasher();
     QuotaOperation o = req.getAllocateOperation();
-    h.putString(o.getMethodName(), StandardCharsets.UTF_8);
-    h.putChar('\0');
-    h.putString(o.getConsumerId(), StandardCharsets.UTF_8);
-    ImmutableSortedSet.Builder<String> builder =
-        new ImmutableSortedSet.Builder<>(Ordering.natural());
+    List<String> metricNames = new ArrayList<>(o.getQuotaMetricsCount());
     for (MetricValueSet mvSet : o.getQuotaMetricsList()) {
-      builder.add(mvSet.getMetricName());
+      metricNames.add(mvSet.getMetricName());
     }
-    for (String metricName : builder.build()) {
+    return sign(o.getMethodName(), o.getConsumerId(), metricNames);
+  }
+
+  private static HashCode sign(String methodName, String consumerId,
+      Collection<String> metricNames) {
+    Hasher h = Signing.newHasher();
+    h.putString(methodName, StandardCharsets.UTF_8);
+    h.putChar('\0');
+    h.putString(consumerId, StandardCharsets.UTF_8);
+    for (String metricName : ImmutableSortedSet.copyOf(Ordering.natural(), metricNames)) {
       h.putChar('\0');
       h.putString(metricName, StandardCharsets.UTF_8);
     }
@@ -276,15 +443,13 @@ public class QuotaRequestAggregator {
   }
 
   @Nullable
-  private Cache<String, CachedItem> createCache(final Ticker ticker) {
+  private Cache<HashCode, CachedItem> createCache(final Ticker ticker) {
     Preconditions.checkNotNull(ticker, "The ticker cannot be null");
     if (options.getNumEntries() <= 0) {
       return null;
     }
-    CacheBuilder<Object, Object> b = CacheBuilder.newBuilder()
-        .maximumSize(options.getNumEntries()).ticker(ticker);
-    b.expireAfterWrite(options.getTimeoutMillis(), TimeUnit.MILLISECONDS);
-    return b.build();
+    return options.getCacheFactory().newCache(options.getNumEntries(),
+        options.getTimeoutMillis(), ticker, null);
   }
 
   private boolean shouldDrop(CachedItem item) {
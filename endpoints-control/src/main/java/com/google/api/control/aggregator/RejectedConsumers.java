@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nullable;
+
+/**
+ * Remembers the consumers that check responses rejected for any operation, such as the consumers
+ * of invalid API keys, so that their requests can be rejected without building a check request.
+ *
+ * A Bloom filter over the recently rejected consumers answers the lookups of all other consumers,
+ * i.e. of nearly every request, without touching the cache of rejections. A hit of the filter is
+ * confirmed by the cache, so a false positive never rejects a consumer. As a Bloom filter can not
+ * forget, it is replaced once it holds as many consumers as the cache; the replaced filter is
+ * still consulted until the next replacement.
+ */
+final class RejectedConsumers {
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+  private final Cache<String, Rejection> rejections;
+  private final Ticker ticker;
+  private final int expectedInsertions;
+  private volatile BloomFilter<CharSequence> current;
+  private volatile BloomFilter<CharSequence> previous;
+  private int insertions;
+
+  /**
+   * @param rejections the bounded cache of rejections
+   * @param maximumSize the maximum size of {@code rejections}
+   * @param ticker the time source used to determine expiration
+   */
+  RejectedConsumers(Cache<String, Rejection> rejections, int maximumSize, Ticker ticker) {
+    this.rejections = rejections;
+    this.ticker = ticker;
+    this.expectedInsertions = maximumSize;
+    this.current = newFilter();
+    this.previous = newFilter();
+  }
+
+  /**
+   * @param consumerId the consumer id of a rejected operation
+   * @param response the response rejecting the consumer
+   * @param expiresAt the {@link Ticker} time at which the rejection expires
+   */
+  synchronized void add(String consumerId, CheckResponse response, long expiresAt) {
+    rejections.put(consumerId, new Rejection(response, expiresAt));
+    if (insertions == expectedInsertions) {
+      previous = current;
+      current = newFilter();
+      insertions = 0;
+    }
+    if (current.put(consumerId)) {
+      insertions++;
+    }
+  }
+
+  /**
+   * @param consumerId the consumer id of an operation
+   * @return the response that rejected the consumer, or {@code null} if it was not rejected
+   */
+  @Nullable
+  CheckResponse find(String consumerId) {
+    if (!current.mightContain(consumerId) && !previous.mightContain(consumerId)) {
+      return null;
+    }
+    Rejection rejection = rejections.getIfPresent(consumerId);
+    if (rejection == null) {
+      return null;
+    }
+    if (ticker.read() >= rejection.expiresAt) {
+      rejections.invalidate(consumerId);
+      return null;
+    }
+    return rejection.response;
+  }
+
+  /**
+   * @param consumerId the consumer id of an operation that passed its check
+   */
+  void remove(String consumerId) {
+    rejections.invalidate(consumerId);
+  }
+
+  synchronized void clear() {
+    rejections.invalidateAll();
+    current = newFilter();
+    previous = newFilter();
+    insertions = 0;
+  }
+
+  private BloomFilter<CharSequence> newFilter() {
+    return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions,
+        FALSE_POSITIVE_PROBABILITY);
+  }
+
+  static final class Rejection {
+    final CheckResponse response;
+    final long expiresAt;
+
+    Rejection(CheckResponse response, long expiresAt) {
+      this.response = response;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -19,12 +19,10 @@ package com.google.api.control.aggregator;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -42,8 +40,18 @@ public class ReportAggregationOptions {
    */
   public static final int DEFAULT_FLUSH_CACHE_ENTRY_INTERVAL_MILLIS = 4000;
 
+  /**
+   * The default estimated size of the pending operations that triggers a flush, 1 MiB.
+   */
+  public static final int DEFAULT_FLUSH_BYTE_THRESHOLD = 1 << 20;
+
   private final int numEntries;
   private final int flushCacheEntryIntervalMillis;
+  private final int flushOperationThreshold;
+  private final int flushByteThreshold;
+  private final int ingestionBufferSize;
+  private final CacheFactory cacheFactory;
+  private final int shardCount;
 
   /**
    * Constructor
@@ -58,8 +66,141 @@ public class ReportAggregationOptions {
    *            flush
    */
   public ReportAggregationOptions(int numEntries, int flushCacheEntryIntervalMillis) {
+    this(numEntries, flushCacheEntryIntervalMillis, numEntries / 2, DEFAULT_FLUSH_BYTE_THRESHOLD);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param numEntries
+   *            is the maximum number of cache entries that can be kept in the
+   *            aggregation cache. The cache is disabled if this value is
+   *            negative.
+   * @param flushCacheEntryIntervalMillis
+   *            the maximum interval before aggregated report requests are
+   *            flushed to the server. The cache entry is deleted after the
+   *            flush
+   * @param flushOperationThreshold
+   *            the number of pending aggregated operations that triggers an
+   *            immediate flush of all of them. Disabled if not positive; by
+   *            default it's half of {@code numEntries}, so that flushes start
+   *            before the cache evicts entries
+   * @param flushByteThreshold
+   *            the estimated serialized size of the pending operations that
+   *            triggers an immediate flush of all of them. Disabled if not
+   *            positive
+   */
+  public ReportAggregationOptions(int numEntries, int flushCacheEntryIntervalMillis,
+      int flushOperationThreshold, int flushByteThreshold) {
+    this(numEntries, flushCacheEntryIntervalMillis, flushOperationThreshold, flushByteThreshold,
+        0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param numEntries
+   *            is the maximum number of cache entries that can be kept in the
+   *            aggregation cache. The cache is disabled if this value is
+   *            negative.
+   * @param flushCacheEntryIntervalMillis
+   *            the maximum interval before aggregated report requests are
+   *            flushed to the server. The cache entry is deleted after the
+   *            flush
+   * @param flushOperationThreshold
+   *            the number of pending aggregated operations that triggers an
+   *            immediate flush of all of them. Disabled if not positive
+   * @param flushByteThreshold
+   *            the estimated serialized size of the pending operations that
+   *            triggers an immediate flush of all of them. Disabled if not
+   *            positive
+   * @param ingestionBufferSize
+   *            the number of report requests that can be published to the
+   *            lock-free ingestion buffer before they are added to the cache.
+   *            Disabled if not positive, the default, in which case requests
+   *            are added to the cache directly
+   */
+  public ReportAggregationOptions(int numEntries, int flushCacheEntryIntervalMillis,
+      int flushOperationThreshold, int flushByteThreshold, int ingestionBufferSize) {
+    this(numEntries, flushCacheEntryIntervalMillis, flushOperationThreshold, flushByteThreshold,
+        ingestionBufferSize, new GuavaCacheFactory());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param numEntries
+   *            is the maximum number of cache entries that can be kept in the
+   *            aggregation cache. The cache is disabled if this value is
+   *            negative.
+   * @param flushCacheEntryIntervalMillis
+   *            the maximum interval before aggregated report requests are
+   *            flushed to the server. The cache entry is deleted after the
+   *            flush
+   * @param flushOperationThreshold
+   *            the number of pending aggregated operations that triggers an
+   *            immediate flush of all of them. Disabled if not positive
+   * @param flushByteThreshold
+   *            the estimated serialized size of the pending operations that
+   *            triggers an immediate flush of all of them. Disabled if not
+   *            positive
+   * @param ingestionBufferSize
+   *            the number of report requests that can be published to the
+   *            lock-free ingestion buffer before they are added to the cache.
+   *            Disabled if not positive
+   * @param cacheFactory
+   *            creates the aggregation cache
+   */
+  public ReportAggregationOptions(int numEntries, int flushCacheEntryIntervalMillis,
+      int flushOperationThreshold, int flushByteThreshold, int ingestionBufferSize,
+      CacheFactory cacheFactory) {
+    this(numEntries, flushCacheEntryIntervalMillis, flushOperationThreshold, flushByteThreshold,
+        ingestionBufferSize, cacheFactory, 1);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param numEntries
+   *            is the maximum number of cache entries that can be kept in the
+   *            aggregation cache. The cache is disabled if this value is
+   *            negative.
+   * @param flushCacheEntryIntervalMillis
+   *            the maximum interval before aggregated report requests are
+   *            flushed to the server. The cache entry is deleted after the
+   *            flush
+   * @param flushOperationThreshold
+   *            the number of pending aggregated operations that triggers an
+   *            immediate flush of all of them. Disabled if not positive
+   * @param flushByteThreshold
+   *            the estimated serialized size of the pending operations that
+   *            triggers an immediate flush of all of them. Disabled if not
+   *            positive
+   * @param ingestionBufferSize
+   *            the number of report requests that can be published to the
+   *            lock-free ingestion buffer of each shard before they are added
+   *            to its cache. Disabled if not positive
+   * @param cacheFactory
+   *            creates the aggregation cache
+   * @param shardCount
+   *            the number of shards the aggregated operations are
+   *            partitioned into by signature. Each shard has its own cache
+   *            and lock, holding up to {@code numEntries / shardCount}
+   *            entries, so that reports for different operations do not
+   *            contend with each other
+   */
+  public ReportAggregationOptions(int numEntries, int flushCacheEntryIntervalMillis,
+      int flushOperationThreshold, int flushByteThreshold, int ingestionBufferSize,
+      CacheFactory cacheFactory, int shardCount) {
+    Preconditions.checkNotNull(cacheFactory, "cacheFactory must be non-null");
+    Preconditions.checkArgument(shardCount > 0, "shardCount must be positive");
     this.numEntries = numEntries;
     this.flushCacheEntryIntervalMillis = flushCacheEntryIntervalMillis;
+    this.flushOperationThreshold = flushOperationThreshold;
+    this.flushByteThreshold = flushByteThreshold;
+    this.ingestionBufferSize = ingestionBufferSize;
+    this.cacheFactory = cacheFactory;
+    this.shardCount = shardCount;
   }
 
   /**
@@ -87,9 +228,55 @@ public class ReportAggregationOptions {
     return flushCacheEntryIntervalMillis;
   }
 
+  /**
+   * @return the number of pending aggregated operations that triggers a flush, or a non-positive
+   *         value if there's no such trigger
+   */
+  public int getFlushOperationThreshold() {
+    return flushOperationThreshold;
+  }
+
+  /**
+   * @return the estimated serialized size of the pending operations that triggers a flush, or a
+   *         non-positive value if there's no such trigger
+   */
+  public int getFlushByteThreshold() {
+    return flushByteThreshold;
+  }
+
+  /**
+   * @return the number of report requests the ingestion buffer can hold, or a non-positive value
+   *         if requests are added to the cache directly
+   */
+  public int getIngestionBufferSize() {
+    return ingestionBufferSize;
+  }
+
+  /**
+   * @return the number of shards the aggregated operations are partitioned into
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @return the maximum number of cache entries that can be kept in the cache of one shard
+   */
+  public int getShardNumEntries() {
+    return (numEntries + shardCount - 1) / shardCount;
+  }
+
+  /**
+   * @return the factory of the aggregation cache
+   */
+  public CacheFactory getCacheFactory() {
+    return cacheFactory;
+  }
+
   /**
    * Creates a {@link Cache} configured by this instance.
    *
+   * @param <K> the type of the cache keys
    * @param <T> the type of object cached
    *
    * @param out
@@ -99,13 +286,15 @@ public class ReportAggregationOptions {
    *         {@code null} unless {@link #numEntries} is positive.
    */
   @Nullable
-  public <T> Cache<String, T> createCache(ConcurrentLinkedDeque<T> out) {
+  public <K, T> Cache<K, T> createCache(ConcurrentLinkedDeque<T> out) {
     return createCache(out, Ticker.systemTicker());
   }
 
   /**
-   * Creates a {@link Cache} configured by this instance.
+   * Creates a {@link Cache} configured by this instance, holding the operations of one shard.
    *
+   * @param <K>
+   *            the type of the keys of the Cache
    * @param <T>
    *            the type of the value stored in the Cache
    * @param out
@@ -117,23 +306,19 @@ public class ReportAggregationOptions {
    *         {@code null} unless {@code #numEntries} is positive.
    */
   @Nullable
-  public <T> Cache<String, T> createCache(final ConcurrentLinkedDeque<T> out, Ticker ticker) {
+  public <K, T> Cache<K, T> createCache(final ConcurrentLinkedDeque<T> out, Ticker ticker) {
     Preconditions.checkNotNull(out, "The out deque cannot be null");
     Preconditions.checkNotNull(ticker, "The ticker cannot be null");
     if (numEntries <= 0) {
       return null;
     }
-    final RemovalListener<String, T> listener = new RemovalListener<String, T>() {
+    final RemovalListener<K, T> listener = new RemovalListener<K, T>() {
       @Override
-      public void onRemoval(RemovalNotification<String, T> notification) {
+      public void onRemoval(RemovalNotification<K, T> notification) {
         out.addFirst(notification.getValue());
       }
     };
-    CacheBuilder<String, T> b = CacheBuilder.newBuilder().maximumSize(numEntries).ticker(ticker)
-        .removalListener(listener);
-    if (flushCacheEntryIntervalMillis >= 0) {
-      b.expireAfterWrite(flushCacheEntryIntervalMillis, TimeUnit.MILLISECONDS);
-    }
-    return b.build();
+    return cacheFactory.newCache(getShardNumEntries(), flushCacheEntryIntervalMillis, ticker,
+        listener);
   }
 }
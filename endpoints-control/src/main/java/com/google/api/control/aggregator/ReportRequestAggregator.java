@@ -27,21 +27,34 @@ import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.flogger.FluentLogger;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
 /**
  * A container that aggregates service control {@link ReportRequest}s.
  *
+ * The aggregated operations are partitioned by signature into
+ * {@link ReportAggregationOptions#getShardCount()} shards, each with its own cache and lock, so
+ * that reports for operations of different shards are aggregated concurrently. Flushes collect
+ * the operations of all shards, locking one shard at a time.
+ *
+ * When {@link ReportAggregationOptions#getIngestionBufferSize()} is positive, {@link #report}
+ * publishes the operations to a lock-free ring buffer of their shard instead of updating its cache
+ * itself, and a single thread at a time drains the buffer into the cache. Request threads then
+ * only contend on the cache's lock, e.g. while a flush collects its operations, once the buffer
+ * is full.
+ *
  * Thread-safe.
  */
 public class ReportRequestAggregator {
@@ -56,10 +69,12 @@ public class ReportRequestAggregator {
    */
   public static final int MAX_OPERATION_COUNT = 1000;
   private static final ReportRequest[] NO_REQUESTS = new ReportRequest[] {};
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
 
-  private final Cache<String, OperationAggregator> cache;
+  // null if the instance is non-caching
+  @Nullable
+  private final Shard[] shards;
   private final Map<String, MetricKind> kinds;
-  private final ConcurrentLinkedDeque<OperationAggregator> out;
   private final ReportAggregationOptions options;
   private final String serviceName;
 
@@ -79,9 +94,15 @@ public class ReportRequestAggregator {
     Preconditions.checkNotNull(options, "options must be non-null");
     this.kinds = kinds == null ? ImmutableMap.<String, MetricKind>of() : ImmutableMap.copyOf(kinds);
     this.serviceName = serviceName;
-    this.out = new ConcurrentLinkedDeque<OperationAggregator>();
-    this.cache = options.createCache(out, ticker == null ? Ticker.systemTicker() : ticker);
     this.options = options;
+    if (options.getNumEntries() <= 0) {
+      this.shards = null;
+    } else {
+      this.shards = new Shard[options.getShardCount()];
+      for (int i = 0; i < shards.length; i++) {
+        shards[i] = new Shard(ticker == null ? Ticker.systemTicker() : ticker);
+      }
+    }
   }
 
   /**
@@ -110,7 +131,7 @@ public class ReportRequestAggregator {
    * @return the interval in milliseconds between calls to {@link #flush}
    */
   public int getFlushIntervalMillis() {
-    if (cache == null) {
+    if (shards == null) {
       return NON_CACHING;
     } else {
       return options.getFlushCacheEntryIntervalMillis();
@@ -132,15 +153,72 @@ public class ReportRequestAggregator {
    * @return the remaining aggregated {code ReportRequest}s
    */
   public ReportRequest[] clear() {
-    if (cache == null) {
+    if (shards == null) {
+      return NO_REQUESTS;
+    }
+    List<OperationAggregator> remaining = new ArrayList<>();
+    for (Shard shard : shards) {
+      shard.clear(remaining);
+    }
+    return generatedFlushRequests(remaining);
+  }
+
+  /**
+   * Determines if enough operations are pending that they should be flushed now, rather than
+   * when they expire.
+   *
+   * @return {@code true} if the number of aggregated operations or their estimated serialized size
+   *         reached the thresholds configured by the {@link ReportAggregationOptions}
+   */
+  public boolean isFlushDue() {
+    if (shards == null) {
+      return false;
+    }
+    int operationThreshold = options.getFlushOperationThreshold();
+    int byteThreshold = options.getFlushByteThreshold();
+    if (operationThreshold > 0) {
+      long size = 0;
+      for (Shard shard : shards) {
+        size += shard.cache.size();
+      }
+      if (size >= operationThreshold) {
+        return true;
+      }
+    }
+    return byteThreshold > 0 && getPendingBytes() >= byteThreshold;
+  }
+
+  /**
+   * @return the estimated serialized size of the aggregated operations that were not flushed yet
+   */
+  public long getPendingBytes() {
+    if (shards == null) {
+      return 0;
+    }
+    long bytes = 0;
+    for (Shard shard : shards) {
+      bytes += shard.pendingBytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Flushes all aggregated operations, whether or not they expired.
+   *
+   * Is intended to be called when {@link #isFlushDue()}.
+   *
+   * @return ReportRequest[] corresponding to all the operations aggregated from calls to
+   *         {@link #report}
+   */
+  public ReportRequest[] flushPending() {
+    if (shards == null) {
       return NO_REQUESTS;
     }
-    synchronized (cache) {
-      ReportRequest[] res = generatedFlushRequests(cache.asMap().values());
-      cache.invalidateAll();
-      out.clear();
-      return res;
+    List<OperationAggregator> flushed = new ArrayList<>();
+    for (Shard shard : shards) {
+      shard.flushPending(flushed);
     }
+    return generatedFlushRequests(flushed);
   }
 
   /**
@@ -153,20 +231,14 @@ public class ReportRequestAggregator {
    *         {@link #report}
    */
   public ReportRequest[] flush() {
-    if (cache == null) {
+    if (shards == null) {
       return NO_REQUESTS;
     }
-
-    // Thread safety - the current thread cleans up the cache, which may add multiple cached
-    // aggregated operations to the output deque.
-    synchronized (cache) {
-      cache.cleanUp();
-      // Thread safety - the rest of the function deals with items in a ConcurrentLinkedDeque which
-      // guarantees a consistent view in multi-threaded scenarios.
-      ReportRequest[] res = generatedFlushRequests(out);
-      out.clear();
-      return res;
+    List<OperationAggregator> flushed = new ArrayList<>();
+    for (Shard shard : shards) {
+      shard.flush(flushed);
     }
+    return generatedFlushRequests(flushed);
   }
 
   /**
@@ -176,7 +248,7 @@ public class ReportRequestAggregator {
    * @return {@code true} if {@code req} was cached successfully, otherwise {@code false}
    */
   public boolean report(ReportRequest req) {
-    if (cache == null) {
+    if (shards == null) {
       return false;
     }
     Preconditions.checkArgument(req.getServiceName().equals(serviceName),
@@ -185,30 +257,43 @@ public class ReportRequestAggregator {
     if (hasHighImportanceOperation(req)) {
       return false;
     }
-    Map<String, Operation> bySignature = opsBySignature(req);
-
-    // Concurrency: all threads wait while the current thread updates the cache.
-    //
-    // It's better for overall latency to have one thread complete cache update at a time than have
-    // multiple threads interleave updates with the increased cpu cost due to increased context
-    // switching.
-    //
-    // No i/o or computation is occurring, so the wait time should be relatively small and
-    // depend on the number of waiting threads.
-    synchronized (cache) {
-      for (Map.Entry<String, Operation> entry : bySignature.entrySet()) {
-        String signature = entry.getKey();
-        OperationAggregator agg = cache.getIfPresent(signature);
-        if (agg == null) {
-          cache.put(signature, new OperationAggregator(entry.getValue(), kinds));
-        } else {
-          agg.add(entry.getValue());
-        }
+    Map<HashCode, Operation> bySignature = opsBySignature(req);
+    if (shards.length == 1) {
+      shards[0].report(bySignature);
+      return true;
+    }
+    Map<Shard, Map<HashCode, Operation>> byShard = Maps.newHashMap();
+    for (Map.Entry<HashCode, Operation> entry : bySignature.entrySet()) {
+      Shard shard = shards[Math.floorMod(entry.getKey().asInt(), shards.length)];
+      Map<HashCode, Operation> ops = byShard.get(shard);
+      if (ops == null) {
+        ops = Maps.newHashMap();
+        byShard.put(shard, ops);
       }
+      ops.put(entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<Shard, Map<HashCode, Operation>> entry : byShard.entrySet()) {
+      entry.getKey().report(entry.getValue());
     }
     return true;
   }
 
+  /**
+   * @return {@code true} if operations were published to the ingestion buffers but not yet
+   *         drained into the caches; an estimate while request threads are publishing
+   */
+  public boolean hasBufferedOperations() {
+    if (shards == null) {
+      return false;
+    }
+    for (Shard shard : shards) {
+      if (shard.ingestion != null && !shard.ingestion.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected ReportRequest[] generatedFlushRequests(Iterable<OperationAggregator> aggregators) {
     ArrayList<ReportRequest> reqs = Lists.newArrayList();
     ReportRequest.Builder current = ReportRequest.newBuilder().setServiceName(serviceName);
@@ -232,7 +317,7 @@ public class ReportRequestAggregator {
    * @return the {@code HashCode} corresponding to {@code value}
    */
   private static HashCode sign(Operation value) {
-    Hasher h = Hashing.md5().newHasher();
+    Hasher h = Signing.newHasher();
     h.putString(value.getConsumerId(), StandardCharsets.UTF_8);
     h.putChar('\0');
     h.putString(value.getOperationName(), StandardCharsets.UTF_8);
@@ -240,10 +325,10 @@ public class ReportRequestAggregator {
     return Signing.putLabels(h, value.getLabels()).hash();
   }
 
-  private static Map<String, Operation> opsBySignature(ReportRequest req) {
-    HashMap<String, Operation> result = Maps.newHashMap();
+  private static Map<HashCode, Operation> opsBySignature(ReportRequest req) {
+    HashMap<HashCode, Operation> result = Maps.newHashMap();
     for (Operation op : req.getOperationsList()) {
-      result.put(sign(op).toString(), op);
+      result.put(sign(op), op);
     }
     return result;
   }
@@ -256,4 +341,165 @@ public class ReportRequestAggregator {
     }
     return false;
   }
+
+  /**
+   * A partition of the aggregated operations, with its own cache, lock and output deque.
+   *
+   * The aggregators collected by its flushes are no longer in the cache, so no other thread
+   * updates them and the requests can be built from them without holding the lock.
+   */
+  private final class Shard {
+    private final Cache<HashCode, OperationAggregator> cache;
+    private final ConcurrentLinkedDeque<OperationAggregator> out;
+    // Written while holding the cache's lock, read without it by isFlushDue
+    private volatile long pendingBytes;
+    // Polled only while holding the cache's lock
+    @Nullable
+    private final MpscRingBuffer<Map<HashCode, Operation>> ingestion;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    Shard(Ticker ticker) {
+      this.out = new ConcurrentLinkedDeque<OperationAggregator>();
+      this.cache = options.createCache(out, ticker);
+      this.ingestion = options.getIngestionBufferSize() > 0
+          ? new MpscRingBuffer<Map<HashCode, Operation>>(options.getIngestionBufferSize())
+          : null;
+    }
+
+    void report(Map<HashCode, Operation> bySignature) {
+      if (ingestion != null && ingestion.offer(bySignature)) {
+        drainIngestion();
+        return;
+      }
+
+      // Concurrency: all threads wait while the current thread updates the cache.
+      //
+      // It's better for overall latency to have one thread complete cache update at a time than
+      // have multiple threads interleave updates with the increased cpu cost due to increased
+      // context switching.
+      //
+      // No i/o or computation is occurring, so the wait time should be relatively small and
+      // depend on the number of waiting threads. When the ingestion buffer is full, waiting here
+      // pushes back on the request threads until the draining thread catches up.
+      synchronized (cache) {
+        aggregate(bySignature);
+      }
+    }
+
+    void clear(List<OperationAggregator> remaining) {
+      synchronized (cache) {
+        drainIngestionLocked();
+        cache.invalidateAll(); // the removal listener adds all the entries to the output deque
+        drainOut(remaining);
+        pendingBytes = 0;
+      }
+    }
+
+    void flushPending(List<OperationAggregator> flushed) {
+      synchronized (cache) {
+        drainIngestionLocked();
+        cache.invalidateAll(); // the removal listener adds all the entries to the output deque
+        drainOut(flushed);
+        pendingBytes = 0;
+      }
+    }
+
+    void flush(List<OperationAggregator> flushed) {
+      // Thread safety - the current thread cleans up the cache, which may add multiple cached
+      // aggregated operations to the output deque.
+      synchronized (cache) {
+        drainIngestionLocked();
+        cache.cleanUp();
+        drainOut(flushed);
+        updatePendingBytes();
+      }
+    }
+
+    /**
+     * Moves the aggregated operations in the output deque to {@code flushed}.
+     *
+     * A cache may call the removal listener on its own thread, without the cache's lock, so the
+     * deque is drained one element at a time rather than copied and cleared.
+     */
+    private void drainOut(List<OperationAggregator> flushed) {
+      OperationAggregator agg;
+      while ((agg = out.pollFirst()) != null) {
+        flushed.add(agg);
+      }
+    }
+
+    /**
+     * Drains the ingestion buffer into the cache, unless another thread is already draining it.
+     *
+     * The check after releasing the draining flag picks up operations that were published while
+     * it was held, whose publishers left the draining to this thread.
+     */
+    private void drainIngestion() {
+      while (!ingestion.isEmpty() && draining.compareAndSet(false, true)) {
+        try {
+          synchronized (cache) {
+            drainIngestionLocked();
+          }
+        } finally {
+          draining.set(false);
+        }
+      }
+    }
+
+    /**
+     * Must be called while holding the cache's lock.
+     */
+    private void drainIngestionLocked() {
+      if (ingestion == null) {
+        return;
+      }
+      Map<HashCode, Operation> bySignature;
+      while ((bySignature = ingestion.poll()) != null) {
+        for (Map.Entry<HashCode, Operation> entry : bySignature.entrySet()) {
+          // The reporting thread has already returned, so a failure must not escape to the thread
+          // that happens to drain, e.g. the one flushing on behalf of all the reporters
+          try {
+            aggregate(entry.getKey(), entry.getValue());
+          } catch (RuntimeException e) {
+            log.atSevere().withCause(e).log("could not aggregate operation %s, it was dropped",
+                entry.getValue());
+          }
+        }
+      }
+    }
+
+    /**
+     * Must be called while holding the cache's lock.
+     */
+    private void aggregate(Map<HashCode, Operation> bySignature) {
+      for (Map.Entry<HashCode, Operation> entry : bySignature.entrySet()) {
+        aggregate(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /**
+     * Must be called while holding the cache's lock.
+     */
+    private void aggregate(HashCode signature, Operation op) {
+      OperationAggregator agg = cache.getIfPresent(signature);
+      if (agg == null) {
+        cache.put(signature, new OperationAggregator(op, kinds));
+      } else {
+        agg.add(op);
+      }
+      pendingBytes += op.getSerializedSize();
+    }
+
+    /**
+     * Recomputes the estimated size of the operations remaining in the cache. Must be called while
+     * holding the cache's lock.
+     */
+    private void updatePendingBytes() {
+      long bytes = 0;
+      for (OperationAggregator agg : cache.asMap().values()) {
+        bytes += agg.getEstimatedBytes();
+      }
+      pendingBytes = bytes;
+    }
+  }
 }
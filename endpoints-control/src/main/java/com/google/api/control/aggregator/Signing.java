@@ -16,17 +16,58 @@
 
 package com.google.api.control.aggregator;
 
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
  * Provides functions that support the creation of signatures.
+ *
+ * Signatures identify the requests, operations and metric values that the aggregators cache or
+ * merge. They are computed with the {@link HashFunction} returned by {@link #getHashFunction()},
+ * by default the non-cryptographic {@link Hashing#murmur3_128()}, which is several times cheaper
+ * than MD5.
  */
 public final class Signing {
+  private static final int MIN_BITS = 64;
+  private static volatile HashFunction hashFunction = Hashing.murmur3_128();
+
   private Signing() {}
 
+  /**
+   * @return the {@link HashFunction} used to compute signatures
+   */
+  public static HashFunction getHashFunction() {
+    return hashFunction;
+  }
+
+  /**
+   * Changes the {@link HashFunction} used to compute signatures, e.g. to a cryptographic hash if
+   * the signed values are controlled by untrusted callers that may craft colliding signatures.
+   *
+   * This should be called before any aggregator is created: entries cached under signatures of the
+   * previous function are not found anymore.
+   *
+   * @param function a hash function producing at least 64 bits
+   */
+  public static void setHashFunction(HashFunction function) {
+    Preconditions.checkNotNull(function, "function must be non-null");
+    Preconditions.checkArgument(function.bits() >= MIN_BITS,
+        "function must produce at least %s bits", MIN_BITS);
+    hashFunction = function;
+  }
+
+  /**
+   * @return a new {@link Hasher} of the {@link HashFunction} used to compute signatures
+   */
+  public static Hasher newHasher() {
+    return hashFunction.newHasher();
+  }
+
   /**
    * Updates {@code h} with the contents of {@code labels}.
    *
@@ -46,4 +87,29 @@ public final class Signing {
     }
     return h;
   }
+
+  /**
+   * Updates {@code h} with the entries of {@code labels} that {@code projection} includes.
+   *
+   * @param h a {@link Hasher}
+   * @param labels some labels
+   * @param projection selects the labels to add
+   * @return the {@code Hasher}, to allow fluent-style usage
+   */
+  public static Hasher putLabels(Hasher h, Map<String, String> labels,
+      LabelProjection projection) {
+    if (projection.includesAll()) {
+      return putLabels(h, labels);
+    }
+    for (Map.Entry<String, String> labelsEntry : labels.entrySet()) {
+      if (!projection.includes(labelsEntry.getKey())) {
+        continue;
+      }
+      h.putChar('\0');
+      h.putString(labelsEntry.getKey(), StandardCharsets.UTF_8);
+      h.putChar('\0');
+      h.putString(labelsEntry.getValue(), StandardCharsets.UTF_8);
+    }
+    return h;
+  }
 }
@@ -120,6 +120,13 @@ public class CheckRequestInfo extends OperationInfo {
     return CheckRequest.newBuilder().setServiceName(getServiceName()).setOperation(b).build();
   }
 
+  /**
+   * @return the labels that {@link #asCheckRequest(Clock)} sets on the operation
+   */
+  public Map<String, String> getOperationLabels() {
+    return getSystemLabels();
+  }
+
   @Override
   protected Map<String, String> getSystemLabels() {
     Map<String, String> labels = super.getSystemLabels();
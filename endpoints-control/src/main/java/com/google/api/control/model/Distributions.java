@@ -165,12 +165,7 @@ public final class Distributions {
    *         match
    */
   public static Distribution merge(Distribution prior, Distribution latest) {
-    if (!bucketsNearlyEquals(prior, latest)) {
-      throw new IllegalArgumentException(MSG_BUCKET_OPTIONS_MISMATCH);
-    }
-    if (prior.getBucketCountsCount() != latest.getBucketCountsCount()) {
-      throw new IllegalArgumentException(MSG_BUCKET_COUNTS_MISMATCH);
-    }
+    checkMergeable(prior, latest);
     if (prior.getCount() == 0) {
       return latest;
     }
@@ -197,6 +192,25 @@ public final class Distributions {
     return builder.build();
   }
 
+  /**
+   * Checks that {@code prior} and {@code latest} can be merged.
+   *
+   * @param prior a {@code Distribution} instance
+   * @param latest a {@code Distribution}, expected to be a later version of {@code prior}
+   * @throws IllegalArgumentException if the bucket options of {@code prior} and {@code latest}
+   *         don't match
+   * @throws IllegalArgumentException if the bucket counts of {@code prior} and {@code latest} dont'
+   *         match
+   */
+  public static void checkMergeable(Distribution prior, Distribution latest) {
+    if (!bucketsNearlyEquals(prior, latest)) {
+      throw new IllegalArgumentException(MSG_BUCKET_OPTIONS_MISMATCH);
+    }
+    if (prior.getBucketCountsCount() != latest.getBucketCountsCount()) {
+      throw new IllegalArgumentException(MSG_BUCKET_COUNTS_MISMATCH);
+    }
+  }
+
   private static boolean bucketsNearlyEquals(Distribution a, Distribution b) {
     BucketOptionCase caseA = a.getBucketOptionCase();
     BucketOptionCase caseB = b.getBucketOptionCase();
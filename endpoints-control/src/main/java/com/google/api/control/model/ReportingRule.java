@@ -203,6 +203,13 @@ public class ReportingRule {
     return labels;
   }
 
+  /**
+   * @return a {@code ReportingRule} with the metrics and labels of this one, but without logs
+   */
+  public ReportingRule withoutLogs() {
+    return new ReportingRule(null, metrics, labels);
+  }
+
   private final String[] logs;
   private final KnownMetrics[] metrics;
   private final KnownLabels[] labels;
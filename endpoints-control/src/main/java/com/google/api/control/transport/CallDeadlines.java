@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CallDeadlines holds the time allowed for each kind of call made by a {@link ControlTransport}.
+ *
+ * A deadline that is not positive means the call is not limited, other than by the timeouts of
+ * the underlying transport.
+ */
+public final class CallDeadlines {
+  /**
+   * The default deadline of check calls. These are on the path of every request that misses the
+   * check cache, so they are short.
+   */
+  public static final long DEFAULT_CHECK_DEADLINE_MILLIS = 1000;
+
+  /**
+   * The default deadline of allocate quota calls.
+   */
+  public static final long DEFAULT_QUOTA_DEADLINE_MILLIS = 1000;
+
+  /**
+   * The default deadline of report calls. These are mostly sent in the background and can be
+   * large, so they are allowed more time.
+   */
+  public static final long DEFAULT_REPORT_DEADLINE_MILLIS = 5000;
+
+  /**
+   * Deadlines that do not limit any calls.
+   */
+  public static final CallDeadlines NONE = new CallDeadlines(0, 0, 0);
+
+  private final long checkMillis;
+  private final long quotaMillis;
+  private final long reportMillis;
+
+  /**
+   * Constructor that uses the default deadlines.
+   */
+  public CallDeadlines() {
+    this(DEFAULT_CHECK_DEADLINE_MILLIS, DEFAULT_QUOTA_DEADLINE_MILLIS,
+        DEFAULT_REPORT_DEADLINE_MILLIS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param checkMillis the deadline of check calls
+   * @param quotaMillis the deadline of allocate quota calls
+   * @param reportMillis the deadline of report calls
+   */
+  public CallDeadlines(long checkMillis, long quotaMillis, long reportMillis) {
+    Preconditions.checkArgument(checkMillis <= Integer.MAX_VALUE
+        && quotaMillis <= Integer.MAX_VALUE && reportMillis <= Integer.MAX_VALUE,
+        "deadlines must fit into an int");
+    this.checkMillis = checkMillis;
+    this.quotaMillis = quotaMillis;
+    this.reportMillis = reportMillis;
+  }
+
+  /**
+   * @return the deadline of check calls, not limited if not positive
+   */
+  public long getCheckMillis() {
+    return checkMillis;
+  }
+
+  /**
+   * @return the deadline of allocate quota calls, not limited if not positive
+   */
+  public long getQuotaMillis() {
+    return quotaMillis;
+  }
+
+  /**
+   * @return the deadline of report calls, not limited if not positive
+   */
+  public long getReportMillis() {
+    return reportMillis;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * CircuitBreaker stops calls to a degraded service so that callers can fail open immediately
+ * instead of waiting for each call to fail.
+ *
+ * The outcomes of the last {@code windowSize} calls are recorded; calls that fail or take longer
+ * than {@code slowCallMillis} count as failures. When the window is full and the failure rate
+ * reaches {@code failureRateThreshold}, the breaker trips and becomes {@link State#OPEN}, and
+ * {@link #tryAcquire()} refuses all calls. After {@code openMillis}, the breaker becomes
+ * {@link State#HALF_OPEN} and lets a single probe call through: the breaker closes if the probe
+ * succeeds, and opens again if it fails.
+ *
+ * Each allowed call gets a permit naming the state the breaker was in when the call started, so
+ * that calls which started before the last change of state, such as a slow call started before
+ * the breaker tripped, do not count towards the new state; in particular, only the probe decides
+ * whether a half-open breaker closes.
+ *
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * The states of a {@link CircuitBreaker}.
+   */
+  public enum State {
+    /** Calls are allowed and their outcomes are recorded. */
+    CLOSED,
+    /** Calls are refused. */
+    OPEN,
+    /** A single probe call is allowed to find out whether the service has recovered. */
+    HALF_OPEN
+  }
+
+  /**
+   * Listener is notified about changes of a {@link CircuitBreaker}.
+   *
+   * It is invoked while the breaker is locked, so it must return quickly.
+   */
+  public interface Listener {
+    /**
+     * @param from the previous state
+     * @param to the new state
+     */
+    void onStateChange(State from, State to);
+
+    /**
+     * Called when a call was refused.
+     */
+    void onRejected();
+  }
+
+  public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+  public static final int DEFAULT_WINDOW_SIZE = 20;
+  public static final long DEFAULT_SLOW_CALL_MILLIS = 2000;
+  public static final long DEFAULT_OPEN_MILLIS = 5000;
+
+  /**
+   * Returned by {@link #tryAcquire()} when a call is refused.
+   */
+  public static final long NO_PERMIT = -1;
+
+  private final double failureRateThreshold;
+  private final long slowCallNanos;
+  private final long openNanos;
+  private final Ticker ticker;
+  private final boolean[] failed;
+  private int next;
+  private int recorded;
+  private int failures;
+  private State state = State.CLOSED;
+  private long openedAt;
+  private boolean probeInFlight;
+  private long generation; // incremented on each change of state, the permit of allowed calls
+  private long trips;
+  private Listener listener;
+
+  /**
+   * Constructor that uses the default thresholds.
+   *
+   * @param ticker measures the duration of calls and of the open state
+   */
+  public CircuitBreaker(Ticker ticker) {
+    this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_WINDOW_SIZE, DEFAULT_SLOW_CALL_MILLIS,
+        DEFAULT_OPEN_MILLIS, ticker);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param failureRateThreshold the rate of failed calls, in (0, 1], at which the breaker trips
+   * @param windowSize the number of most recent calls from which the failure rate is computed
+   * @param slowCallMillis calls that take longer than this count as failures
+   * @param openMillis the time for which the breaker refuses calls after tripping
+   * @param ticker measures the duration of calls and of the open state
+   */
+  public CircuitBreaker(double failureRateThreshold, int windowSize, long slowCallMillis,
+      long openMillis, Ticker ticker) {
+    Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1,
+        "failureRateThreshold must be in (0, 1]");
+    Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+    Preconditions.checkArgument(slowCallMillis > 0, "slowCallMillis must be positive");
+    Preconditions.checkArgument(openMillis > 0, "openMillis must be positive");
+    this.failureRateThreshold = failureRateThreshold;
+    this.failed = new boolean[windowSize];
+    this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.ticker = Preconditions.checkNotNull(ticker, "ticker must be non-null");
+  }
+
+  /**
+   * @param listener notified about state changes and refused calls, may be {@code null}
+   */
+  public synchronized void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Determines whether a call may be made.
+   *
+   * Every call that is allowed must be followed by {@link #onSuccess(long, long)} or
+   * {@link #onFailure(long)} with the returned permit.
+   *
+   * @return the permit of the call if it may be made, otherwise {@link #NO_PERMIT}
+   */
+  public synchronized long tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return generation;
+      case OPEN:
+        if (ticker.read() - openedAt < openNanos) {
+          reject();
+          return NO_PERMIT;
+        }
+        transition(State.HALF_OPEN);
+        probeInFlight = true;
+        return generation;
+      default:
+        if (probeInFlight) {
+          reject();
+          return NO_PERMIT;
+        }
+        probeInFlight = true;
+        return generation;
+    }
+  }
+
+  /**
+   * Records a call that completed.
+   *
+   * @param permit the permit returned by {@link #tryAcquire()} for the call
+   * @param elapsedNanos the duration of the call; slow calls count as failures
+   */
+  public void onSuccess(long permit, long elapsedNanos) {
+    record(permit, elapsedNanos > slowCallNanos);
+  }
+
+  /**
+   * Records a call that failed.
+   *
+   * @param permit the permit returned by {@link #tryAcquire()} for the call
+   */
+  public void onFailure(long permit) {
+    record(permit, true);
+  }
+
+  /**
+   * @return the current state
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the number of times the breaker has opened
+   */
+  public synchronized long getTripCount() {
+    return trips;
+  }
+
+  /**
+   * @return the ticker that measures the duration of calls
+   */
+  Ticker getTicker() {
+    return ticker;
+  }
+
+  private synchronized void record(long permit, boolean failure) {
+    if (permit != generation) {
+      return; // the call was started before the last change of state
+    }
+    switch (state) {
+      case HALF_OPEN:
+        probeInFlight = false; // the probe is the only call allowed in this state
+        if (failure) {
+          trip();
+        } else {
+          resetWindow();
+          transition(State.CLOSED);
+        }
+        return;
+      case OPEN:
+        return; // no calls are allowed in this state
+      default:
+        if (recorded == failed.length) {
+          if (failed[next]) {
+            failures--;
+          }
+        } else {
+          recorded++;
+        }
+        failed[next] = failure;
+        if (failure) {
+          failures++;
+        }
+        next = (next + 1) % failed.length;
+        if (recorded == failed.length && failures >= failureRateThreshold * failed.length) {
+          trip();
+        }
+    }
+  }
+
+  private void trip() {
+    trips++;
+    openedAt = ticker.read();
+    resetWindow();
+    log.atWarning().log("circuit breaker tripped, calls will fail for %d millis",
+        TimeUnit.NANOSECONDS.toMillis(openNanos));
+    transition(State.OPEN);
+  }
+
+  private void resetWindow() {
+    next = 0;
+    recorded = 0;
+    failures = 0;
+  }
+
+  private void reject() {
+    if (listener != null) {
+      listener.onRejected();
+    }
+  }
+
+  private void transition(State to) {
+    State from = state;
+    state = to;
+    generation++;
+    if (listener != null && from != to) {
+      listener.onStateChange(from, to);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.io.IOException;
+
+/**
+ * A {@link ControlTransport} that guards the check and quota calls of another one with a
+ * {@link CircuitBreaker}.
+ *
+ * While the breaker refuses calls, they fail immediately with a
+ * {@link CircuitBreakerOpenException}, which allows callers to fail open without waiting.
+ *
+ * Report calls are passed through unguarded: they are made in the background, are retried or
+ * spooled when they fail, and may legitimately take longer than the breaker's slow call threshold,
+ * so they must neither trip the breaker nor be refused by it.
+ */
+public class CircuitBreakingControlTransport implements ControlTransport {
+  private final ControlTransport delegate;
+  private final CircuitBreaker breaker;
+  private final Ticker ticker;
+
+  /**
+   * Constructor.
+   *
+   * @param delegate the transport that makes the calls
+   * @param breaker decides whether calls may be made
+   */
+  public CircuitBreakingControlTransport(ControlTransport delegate, CircuitBreaker breaker) {
+    this.delegate = Preconditions.checkNotNull(delegate, "delegate must be non-null");
+    this.breaker = Preconditions.checkNotNull(breaker, "breaker must be non-null");
+    this.ticker = breaker.getTicker();
+  }
+
+  /**
+   * @return the breaker guarding the calls
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  @Override
+  public CheckResponse check(final String serviceName, final CheckRequest req)
+      throws IOException {
+    return call(new Call<CheckResponse>() {
+      @Override
+      public CheckResponse call() throws IOException {
+        return delegate.check(serviceName, req);
+      }
+    });
+  }
+
+  @Override
+  public AllocateQuotaResponse allocateQuota(final String serviceName,
+      final AllocateQuotaRequest req) throws IOException {
+    return call(new Call<AllocateQuotaResponse>() {
+      @Override
+      public AllocateQuotaResponse call() throws IOException {
+        return delegate.allocateQuota(serviceName, req);
+      }
+    });
+  }
+
+  @Override
+  public ReportResponse report(String serviceName, ReportRequest req) throws IOException {
+    return delegate.report(serviceName, req);
+  }
+
+  private <T> T call(Call<T> call) throws IOException {
+    long permit = breaker.tryAcquire();
+    if (permit == CircuitBreaker.NO_PERMIT) {
+      throw new CircuitBreakerOpenException();
+    }
+    long start = ticker.read();
+    boolean succeeded = false;
+    try {
+      T result = call.call();
+      succeeded = true;
+      return result;
+    } finally {
+      if (succeeded) {
+        breaker.onSuccess(permit, ticker.read() - start);
+      } else {
+        breaker.onFailure(permit);
+      }
+    }
+  }
+
+  private interface Call<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * Thrown instead of making a call while the {@link CircuitBreaker} refuses calls.
+   */
+  public static class CircuitBreakerOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CircuitBreakerOpenException() {
+      super("the circuit breaker is open, the call was not made");
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.transport;
+
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+
+import java.io.IOException;
+
+/**
+ * ControlTransport sends requests to the service control service.
+ *
+ * Implementations must be thread-safe. Failures of any kind should be raised as an
+ * {@link IOException}, so that callers can fail open.
+ */
+public interface ControlTransport {
+  /**
+   * @param serviceName the name of the service being checked
+   * @param req the {@link CheckRequest} to send
+   * @return the {@link CheckResponse}
+   * @throws IOException if the request could not be sent or failed
+   */
+  CheckResponse check(String serviceName, CheckRequest req) throws IOException;
+
+  /**
+   * @param serviceName the name of the service whose quota is allocated
+   * @param req the {@link AllocateQuotaRequest} to send
+   * @return the {@link AllocateQuotaResponse}
+   * @throws IOException if the request could not be sent or failed
+   */
+  AllocateQuotaResponse allocateQuota(String serviceName, AllocateQuotaRequest req)
+      throws IOException;
+
+  /**
+   * @param serviceName the name of the service being reported
+   * @param req the {@link ReportRequest} to send
+   * @return the {@link ReportResponse}
+   * @throws IOException if the request could not be sent or failed
+   */
+  ReportResponse report(String serviceName, ReportRequest req) throws IOException;
+}
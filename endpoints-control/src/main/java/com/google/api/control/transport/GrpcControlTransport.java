@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.control.model.KnownLabels;
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.QuotaControllerGrpc;
+import com.google.api.servicecontrol.v1.QuotaControllerGrpc.QuotaControllerBlockingStub;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.api.servicecontrol.v1.ServiceControllerGrpc;
+import com.google.api.servicecontrol.v1.ServiceControllerGrpc.ServiceControllerBlockingStub;
+import com.google.common.base.Preconditions;
+import io.grpc.CallCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.AbstractStub;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ControlTransport} that uses the gRPC API of the service control service.
+ *
+ * All calls share one long-lived {@link ManagedChannel}, so Check, AllocateQuota and Report are
+ * multiplexed on the same HTTP/2 connection. {@link CallDeadlines} are applied as gRPC deadlines.
+ */
+public class GrpcControlTransport implements ControlTransport, Closeable {
+  /**
+   * The default target of the channel created by {@link #create(String, Credential)}.
+   */
+  public static final String DEFAULT_TARGET = "servicecontrol.googleapis.com:443";
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+  private final ManagedChannel channel;
+  private final ServiceControllerBlockingStub serviceController;
+  private final QuotaControllerBlockingStub quotaController;
+  private final CallDeadlines deadlines;
+
+  /**
+   * Constructor.
+   *
+   * @param channel the channel on which all calls are made
+   * @param credentials attached to every call. May be {@code null}, e.g. when the channel already
+   *        adds credentials, or for tests
+   */
+  public GrpcControlTransport(ManagedChannel channel, @Nullable CallCredentials credentials) {
+    this(channel, credentials, CallDeadlines.NONE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param channel the channel on which all calls are made
+   * @param credentials attached to every call. May be {@code null}, e.g. when the channel already
+   *        adds credentials, or for tests
+   * @param deadlines limit the time taken by each call
+   */
+  public GrpcControlTransport(ManagedChannel channel, @Nullable CallCredentials credentials,
+      CallDeadlines deadlines) {
+    this.deadlines = Preconditions.checkNotNull(deadlines, "deadlines must be non-null");
+    this.channel = Preconditions.checkNotNull(channel, "channel must be non-null");
+    ServiceControllerBlockingStub s = ServiceControllerGrpc.newBlockingStub(channel);
+    QuotaControllerBlockingStub q = QuotaControllerGrpc.newBlockingStub(channel);
+    if (credentials != null) {
+      s = s.withCallCredentials(credentials);
+      q = q.withCallCredentials(credentials);
+    }
+    this.serviceController = s;
+    this.quotaController = q;
+  }
+
+  /**
+   * Creates an instance that connects to {@code target} over TLS.
+   *
+   * @param target the target of the channel, e.g. {@link #DEFAULT_TARGET}
+   * @param credential provides the OAuth2 access tokens sent with each call
+   * @return a {@link GrpcControlTransport}
+   */
+  public static GrpcControlTransport create(String target, Credential credential) {
+    return create(target, credential, CallDeadlines.NONE);
+  }
+
+  /**
+   * Creates an instance that connects to {@code target} over TLS.
+   *
+   * @param target the target of the channel, e.g. {@link #DEFAULT_TARGET}
+   * @param credential provides the OAuth2 access tokens sent with each call
+   * @param deadlines limit the time taken by each call
+   * @return a {@link GrpcControlTransport}
+   */
+  public static GrpcControlTransport create(String target, Credential credential,
+      CallDeadlines deadlines) {
+    ManagedChannel channel = ManagedChannelBuilder.forTarget(target)
+        .userAgent(KnownLabels.USER_AGENT)
+        .build();
+    return new GrpcControlTransport(channel, new OAuth2CallCredentials(credential), deadlines);
+  }
+
+  @Override
+  public CheckResponse check(String serviceName, CheckRequest req) throws IOException {
+    if (!serviceName.equals(req.getServiceName())) {
+      req = req.toBuilder().setServiceName(serviceName).build();
+    }
+    try {
+      return withDeadline(serviceController, deadlines.getCheckMillis()).check(req);
+    } catch (StatusRuntimeException e) {
+      throw new IOException("check failed with status " + e.getStatus(), e);
+    }
+  }
+
+  @Override
+  public AllocateQuotaResponse allocateQuota(String serviceName, AllocateQuotaRequest req)
+      throws IOException {
+    if (!serviceName.equals(req.getServiceName())) {
+      req = req.toBuilder().setServiceName(serviceName).build();
+    }
+    try {
+      return withDeadline(quotaController, deadlines.getQuotaMillis()).allocateQuota(req);
+    } catch (StatusRuntimeException e) {
+      throw new IOException("allocateQuota failed with status " + e.getStatus(), e);
+    }
+  }
+
+  @Override
+  public ReportResponse report(String serviceName, ReportRequest req) throws IOException {
+    if (!serviceName.equals(req.getServiceName())) {
+      req = req.toBuilder().setServiceName(serviceName).build();
+    }
+    try {
+      return withDeadline(serviceController, deadlines.getReportMillis()).report(req);
+    } catch (StatusRuntimeException e) {
+      throw new IOException("report failed with status " + e.getStatus(), e);
+    }
+  }
+
+  private static <S extends AbstractStub<S>> S withDeadline(S stub, long deadlineMillis) {
+    return deadlineMillis > 0
+        ? stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS)
+        : stub;
+  }
+
+  /**
+   * Shuts down the channel, waiting briefly for in-flight calls to complete.
+   */
+  @Override
+  public void close() {
+    channel.shutdown();
+    try {
+      if (!channel.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        channel.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      channel.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * OAuth2CallCredentials adds the access token of a {@link Credential} to each call, refreshing
+   * it when it is about to expire.
+   */
+  static class OAuth2CallCredentials extends CallCredentials {
+    private static final Metadata.Key<String> AUTHORIZATION =
+        Metadata.Key.of("Authorization", Metadata.ASCII_STRING_MARSHALLER);
+    private static final long REFRESH_MARGIN_SECONDS = 60;
+    private final Credential credential;
+
+    OAuth2CallCredentials(Credential credential) {
+      this.credential = Preconditions.checkNotNull(credential, "credential must be non-null");
+    }
+
+    @Override
+    public void applyRequestMetadata(RequestInfo requestInfo, Executor appExecutor,
+        final MetadataApplier applier) {
+      // Refreshing the token performs i/o, so it must not happen on the caller's thread
+      appExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Metadata headers = new Metadata();
+            headers.put(AUTHORIZATION, "Bearer " + accessToken());
+            applier.apply(headers);
+          } catch (IOException | RuntimeException e) {
+            applier.fail(Status.UNAUTHENTICATED
+                .withDescription("could not obtain an access token")
+                .withCause(e));
+          }
+        }
+      });
+    }
+
+    private String accessToken() throws IOException {
+      synchronized (credential) {
+        Long expiresInSeconds = credential.getExpiresInSeconds();
+        if (credential.getAccessToken() == null
+            || (expiresInSeconds != null && expiresInSeconds <= REFRESH_MARGIN_SECONDS)) {
+          credential.refreshToken();
+        }
+        String token = credential.getAccessToken();
+        if (token == null) {
+          throw new IOException("the credential did not provide an access token");
+        }
+        return token;
+      }
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ControlTransport} that answers all requests in memory.
+ *
+ * It is intended for tests and for benchmarking the aggregators and the scheduler without HTTP in
+ * the loop. Each call can be delayed by a fixed latency, and can be made to fail either at a
+ * configured rate or for a given number of calls.
+ *
+ * Thread-safe.
+ */
+public class InMemoryControlTransport implements ControlTransport {
+  private final Random random;
+  private final AtomicLong checks = new AtomicLong();
+  private final AtomicLong quotaAllocations = new AtomicLong();
+  private final AtomicLong reports = new AtomicLong();
+  private final AtomicLong reportedOperations = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicInteger failuresToInject = new AtomicInteger();
+  private volatile long latencyNanos;
+  private volatile double failureRate;
+  private volatile CheckResponse checkResponse = CheckResponse.getDefaultInstance();
+  private volatile AllocateQuotaResponse quotaResponse = AllocateQuotaResponse.getDefaultInstance();
+  private volatile ReportResponse reportResponse = ReportResponse.getDefaultInstance();
+
+  public InMemoryControlTransport() {
+    this(new Random());
+  }
+
+  /**
+   * @param random decides which calls fail when a failure rate is set; pass a seeded instance to
+   *        obtain repeatable runs
+   */
+  public InMemoryControlTransport(Random random) {
+    this.random = Preconditions.checkNotNull(random, "random must be non-null");
+  }
+
+  /**
+   * @param latency the time each call blocks before completing
+   * @param unit the unit of {@code latency}
+   * @return this instance, to allow fluent-style usage
+   */
+  public InMemoryControlTransport setLatency(long latency, TimeUnit unit) {
+    Preconditions.checkArgument(latency >= 0, "latency must not be negative");
+    this.latencyNanos = unit.toNanos(latency);
+    return this;
+  }
+
+  /**
+   * @param failureRate the fraction of calls, between 0 and 1, that fail with an
+   *        {@link IOException}
+   * @return this instance, to allow fluent-style usage
+   */
+  public InMemoryControlTransport setFailureRate(double failureRate) {
+    Preconditions.checkArgument(failureRate >= 0 && failureRate <= 1,
+        "failureRate must be between 0 and 1");
+    this.failureRate = failureRate;
+    return this;
+  }
+
+  /**
+   * @param count the number of following calls that fail, regardless of the failure rate
+   * @return this instance, to allow fluent-style usage
+   */
+  public InMemoryControlTransport failNext(int count) {
+    Preconditions.checkArgument(count >= 0, "count must not be negative");
+    failuresToInject.set(count);
+    return this;
+  }
+
+  public InMemoryControlTransport setCheckResponse(CheckResponse checkResponse) {
+    this.checkResponse = Preconditions.checkNotNull(checkResponse);
+    return this;
+  }
+
+  public InMemoryControlTransport setQuotaResponse(AllocateQuotaResponse quotaResponse) {
+    this.quotaResponse = Preconditions.checkNotNull(quotaResponse);
+    return this;
+  }
+
+  public InMemoryControlTransport setReportResponse(ReportResponse reportResponse) {
+    this.reportResponse = Preconditions.checkNotNull(reportResponse);
+    return this;
+  }
+
+  /**
+   * @return the number of check calls, including failed ones
+   */
+  public long getCheckCount() {
+    return checks.get();
+  }
+
+  /**
+   * @return the number of allocateQuota calls, including failed ones
+   */
+  public long getQuotaCount() {
+    return quotaAllocations.get();
+  }
+
+  /**
+   * @return the number of report calls, including failed ones
+   */
+  public long getReportCount() {
+    return reports.get();
+  }
+
+  /**
+   * @return the number of operations in successful report calls
+   */
+  public long getReportedOperationCount() {
+    return reportedOperations.get();
+  }
+
+  /**
+   * @return the number of calls that failed
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  @Override
+  public CheckResponse check(String serviceName, CheckRequest req) throws IOException {
+    checks.incrementAndGet();
+    simulateCall("check");
+    return checkResponse;
+  }
+
+  @Override
+  public AllocateQuotaResponse allocateQuota(String serviceName, AllocateQuotaRequest req)
+      throws IOException {
+    quotaAllocations.incrementAndGet();
+    simulateCall("allocateQuota");
+    return quotaResponse;
+  }
+
+  @Override
+  public ReportResponse report(String serviceName, ReportRequest req) throws IOException {
+    reports.incrementAndGet();
+    simulateCall("report");
+    reportedOperations.addAndGet(req.getOperationsCount());
+    return reportResponse;
+  }
+
+  private void simulateCall(String method) throws IOException {
+    long latency = latencyNanos;
+    if (latency > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.incrementAndGet();
+        throw new IOException(method + " was interrupted", e);
+      }
+    }
+    if (shouldFail()) {
+      failures.incrementAndGet();
+      throw new IOException("simulated failure of " + method);
+    }
+  }
+
+  private boolean shouldFail() {
+    while (true) {
+      int remaining = failuresToInject.get();
+      if (remaining <= 0) {
+        break;
+      }
+      if (failuresToInject.compareAndSet(remaining, remaining - 1)) {
+        return true;
+      }
+    }
+    double rate = failureRate;
+    if (rate <= 0) {
+      return false;
+    }
+    synchronized (random) {
+      return random.nextDouble() < rate;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.transport;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.api.services.servicecontrol.v1.ServiceControl;
+import com.google.api.services.servicecontrol.v1.ServiceControlRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ControlTransport} that uses the REST API via {@link ServiceControl}.
+ *
+ * Requests and responses use the binary protobuf encoding ({@code alt=proto}), and requests are
+ * serialized straight into the, optionally gzip-compressed, request body.
+ *
+ * A call with a {@link CallDeadlines deadline} runs on a thread of this transport while the
+ * calling thread waits for it until the deadline, as the timeouts of the HTTP client only limit
+ * each connect and read. These timeouts are also set to the deadline, so that the HTTP request of
+ * a call that missed its deadline ends soon after. The threads are daemon threads that end when
+ * they are idle, or when the transport is closed.
+ */
+public class RestControlTransport implements ControlTransport, Closeable {
+  /**
+   * The value of the {@code alt} parameter that selects the binary protobuf encoding.
+   */
+  public static final String PROTO_ALT = "proto";
+
+  private final ServiceControl serviceControl;
+  private final CallDeadlines deadlines;
+  private final boolean gzipContent;
+  private final ExecutorService callExecutor;
+
+  /**
+   * @param serviceControl the generated REST client used to send requests
+   */
+  public RestControlTransport(ServiceControl serviceControl) {
+    this(serviceControl, CallDeadlines.NONE);
+  }
+
+  /**
+   * @param serviceControl the generated REST client used to send requests
+   * @param deadlines limit the time taken by each call
+   */
+  public RestControlTransport(ServiceControl serviceControl, CallDeadlines deadlines) {
+    this(serviceControl, deadlines, true);
+  }
+
+  /**
+   * @param serviceControl the generated REST client used to send requests
+   * @param deadlines limit the time taken by each call
+   * @param gzipContent if {@code true}, request bodies are gzip-compressed
+   */
+  public RestControlTransport(ServiceControl serviceControl, CallDeadlines deadlines,
+      boolean gzipContent) {
+    this.serviceControl = Preconditions.checkNotNull(serviceControl,
+        "serviceControl must be non-null");
+    this.deadlines = Preconditions.checkNotNull(deadlines, "deadlines must be non-null");
+    this.gzipContent = gzipContent;
+    ThreadFactory threads = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("rest-control-transport-%d")
+        .build();
+    this.callExecutor = Executors.newCachedThreadPool(threads);
+  }
+
+  @Override
+  public CheckResponse check(String serviceName, CheckRequest req) throws IOException {
+    return execute(serviceControl.services().check(serviceName, req), deadlines.getCheckMillis());
+  }
+
+  @Override
+  public AllocateQuotaResponse allocateQuota(String serviceName, AllocateQuotaRequest req)
+      throws IOException {
+    return execute(serviceControl.services().allocateQuota(serviceName, req),
+        deadlines.getQuotaMillis());
+  }
+
+  @Override
+  public ReportResponse report(String serviceName, ReportRequest req) throws IOException {
+    return execute(serviceControl.services().report(serviceName, req),
+        deadlines.getReportMillis());
+  }
+
+  /**
+   * Shuts down the threads running the calls with a deadline. Calls that are in progress
+   * complete; later calls only have their connect and read timeouts limited by their deadline.
+   */
+  @Override
+  public void close() {
+    callExecutor.shutdown();
+  }
+
+  private <T> T execute(final ServiceControlRequest<T> request, long deadlineMillis)
+      throws IOException {
+    request.setAlt(PROTO_ALT);
+    request.setDisableGZipContent(!gzipContent);
+    if (deadlineMillis <= 0) {
+      return request.execute();
+    }
+    final HttpRequest httpRequest = request.buildHttpRequest();
+    httpRequest.setConnectTimeout((int) deadlineMillis);
+    httpRequest.setReadTimeout((int) deadlineMillis);
+    Future<T> call;
+    try {
+      call = callExecutor.submit(new Callable<T>() {
+        @Override
+        public T call() throws IOException {
+          return httpRequest.execute().parseAs(request.getResponseClass());
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // closed, or threads cannot be created in this environment
+      return httpRequest.execute().parseAs(request.getResponseClass());
+    }
+    try {
+      return call.get(deadlineMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      call.cancel(true);
+      throw new SocketTimeoutException(
+          String.format("the call did not complete within its deadline of %d ms", deadlineMillis));
+    } catch (InterruptedException e) {
+      call.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for the call");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link AdaptiveFlushInterval}.
+ */
+@RunWith(JUnit4.class)
+public class AdaptiveFlushIntervalTest {
+  private static final int MAX_INTERVAL_MILLIS = 1000;
+  private static final long TARGET_OPERATIONS = 500;
+
+  @Test
+  public void shouldUseTheMaximumIntervalWhenTheRateIsLow() {
+    AdaptiveFlushInterval interval = newInterval();
+    for (int i = 0; i < 20; i++) {
+      assertWithinJitterOf(MAX_INTERVAL_MILLIS, interval.next(10, MAX_INTERVAL_MILLIS));
+    }
+  }
+
+  @Test
+  public void shouldShortenTheIntervalWhenTheRateIsHigh() {
+    AdaptiveFlushInterval interval = newInterval();
+
+    // 1000 operations per second should be flushed every half second to carry 500 each
+    for (int i = 0; i < 20; i++) {
+      assertWithinJitterOf(500, interval.next(1000, MAX_INTERVAL_MILLIS));
+    }
+  }
+
+  @Test
+  public void shouldNotShortenTheIntervalBelowAnEighthOfTheMaximum() {
+    AdaptiveFlushInterval interval = newInterval();
+    for (int i = 0; i < 20; i++) {
+      assertEquals(MAX_INTERVAL_MILLIS / 8, interval.next(1000000, MAX_INTERVAL_MILLIS));
+    }
+  }
+
+  @Test
+  public void shouldSmoothChangesOfTheRate() {
+    AdaptiveFlushInterval interval = newInterval();
+    interval.next(1000, MAX_INTERVAL_MILLIS);
+
+    // a single quiet period does not reset the interval to the maximum
+    int next = interval.next(0, MAX_INTERVAL_MILLIS);
+    assertTrue(next + " should be below the maximum", next < MAX_INTERVAL_MILLIS * 0.9);
+  }
+
+  @Test
+  public void shouldKeepTheLastRateWhenNoTimeElapsed() {
+    AdaptiveFlushInterval interval = newInterval();
+    interval.next(1000, MAX_INTERVAL_MILLIS);
+    assertWithinJitterOf(500, interval.next(0, 0));
+  }
+
+  private static AdaptiveFlushInterval newInterval() {
+    return new AdaptiveFlushInterval(MAX_INTERVAL_MILLIS, TARGET_OPERATIONS, new Random(42));
+  }
+
+  private static void assertWithinJitterOf(int expected, int actual) {
+    assertTrue(actual + " should be at most " + expected, actual <= expected);
+    assertTrue(actual + " should be at least 90% of " + expected, actual >= expected * 0.9);
+  }
+}
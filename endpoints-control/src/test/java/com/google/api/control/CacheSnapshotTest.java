@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.util.Clock;
+import com.google.api.control.aggregator.CheckRequestAggregator;
+import com.google.api.control.aggregator.QuotaRequestAggregator;
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Tests for {@link CacheSnapshot}.
+ */
+@RunWith(JUnit4.class)
+public class CacheSnapshotTest {
+  private static final String SERVICE_NAME = "snapshot.googleapis.com";
+  private static final String CONFIG_ID = "2026-10-14r0";
+  private static final HashCode FIRST = HashCode.fromLong(1);
+  private static final HashCode SECOND = HashCode.fromLong(2);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private FakeClock clock;
+
+  @Before
+  public void setUp() {
+    file = new File(folder.getRoot(), "caches.snapshot");
+    clock = new FakeClock();
+  }
+
+  @Test
+  public void shouldRestoreTheSavedEntries() throws IOException {
+    CheckResponse check = CheckResponse.newBuilder().setOperationId("check").build();
+    AllocateQuotaRequest request =
+        AllocateQuotaRequest.newBuilder().setServiceName(SERVICE_NAME).build();
+    AllocateQuotaResponse quota =
+        AllocateQuotaResponse.newBuilder().setOperationId("quota").build();
+    newSnapshot(CONFIG_ID).save(SERVICE_NAME,
+        ImmutableList.of(new CheckRequestAggregator.SnapshotEntry(FIRST, check, 5000, 100),
+            new CheckRequestAggregator.SnapshotEntry(SECOND, check, Long.MAX_VALUE, 0)),
+        ImmutableList.of(new QuotaRequestAggregator.SnapshotEntry(FIRST, request, quota, 5000, 0)));
+    clock.millis += 1000;
+
+    CacheSnapshot.Contents contents = newSnapshot(CONFIG_ID).load(SERVICE_NAME);
+    List<CheckRequestAggregator.SnapshotEntry> checks = contents.getChecks();
+    assertEquals(2, checks.size());
+    assertEquals(FIRST, checks.get(0).getSignature());
+    assertEquals(check, checks.get(0).getResponse());
+    assertEquals(4000, checks.get(0).getRemainingMillis());
+    assertEquals(1100, checks.get(0).getAgeMillis());
+    assertEquals(Long.MAX_VALUE, checks.get(1).getRemainingMillis());
+    List<QuotaRequestAggregator.SnapshotEntry> quotas = contents.getQuotas();
+    assertEquals(1, quotas.size());
+    assertEquals(request, quotas.get(0).getRequest());
+    assertEquals(quota, quotas.get(0).getResponse());
+    assertEquals(4000, quotas.get(0).getRemainingMillis());
+  }
+
+  @Test
+  public void shouldDropEntriesThatExpiredWhileSaved() throws IOException {
+    CheckResponse check = CheckResponse.getDefaultInstance();
+    newSnapshot(CONFIG_ID).save(SERVICE_NAME,
+        ImmutableList.of(new CheckRequestAggregator.SnapshotEntry(FIRST, check, 500, 0),
+            new CheckRequestAggregator.SnapshotEntry(SECOND, check, 5000, 0)),
+        ImmutableList.<QuotaRequestAggregator.SnapshotEntry>of());
+    clock.millis += 1000;
+
+    List<CheckRequestAggregator.SnapshotEntry> checks =
+        newSnapshot(CONFIG_ID).load(SERVICE_NAME).getChecks();
+    assertEquals(1, checks.size());
+    assertEquals(SECOND, checks.get(0).getSignature());
+  }
+
+  @Test
+  public void shouldIgnoreTheSnapshotOfAnotherConfigOrService() throws IOException {
+    newSnapshot(CONFIG_ID).save(SERVICE_NAME,
+        ImmutableList.of(new CheckRequestAggregator.SnapshotEntry(FIRST,
+            CheckResponse.getDefaultInstance(), 5000, 0)),
+        ImmutableList.<QuotaRequestAggregator.SnapshotEntry>of());
+
+    assertTrue(newSnapshot("2026-10-14r1").load(SERVICE_NAME).getChecks().isEmpty());
+    assertTrue(newSnapshot(CONFIG_ID).load("other.googleapis.com").getChecks().isEmpty());
+    assertEquals(1, newSnapshot(CONFIG_ID).load(SERVICE_NAME).getChecks().size());
+  }
+
+  @Test
+  public void shouldLoadNothingWithoutASnapshot() throws IOException {
+    CacheSnapshot.Contents contents = newSnapshot(CONFIG_ID).load(SERVICE_NAME);
+    assertTrue(contents.getChecks().isEmpty());
+    assertTrue(contents.getQuotas().isEmpty());
+  }
+
+  @Test
+  public void shouldRejectACorruptSnapshot() throws IOException {
+    newSnapshot(CONFIG_ID).save(SERVICE_NAME,
+        ImmutableList.of(new CheckRequestAggregator.SnapshotEntry(FIRST,
+            CheckResponse.getDefaultInstance(), 5000, 0)),
+        ImmutableList.<QuotaRequestAggregator.SnapshotEntry>of());
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(12);
+      int b = raf.read();
+      raf.seek(12);
+      raf.write(b ^ 0xff);
+    }
+
+    try {
+      newSnapshot(CONFIG_ID).load(SERVICE_NAME);
+      fail("should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private CacheSnapshot newSnapshot(String configId) {
+    return new CacheSnapshot(file, configId, CacheSnapshot.DEFAULT_INTERVAL_MILLIS, clock);
+  }
+
+  private static class FakeClock implements Clock {
+    long millis = 1000000L;
+
+    @Override
+    public long currentTimeMillis() {
+      return millis;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.control.transport.InMemoryControlTransport;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ClientRuntime}.
+ */
+@RunWith(JUnit4.class)
+public class ClientRuntimeTest {
+  private static final String FIRST_SERVICE_NAME = "first.example.com";
+  private static final String SECOND_SERVICE_NAME = "second.example.com";
+
+  private InMemoryControlTransport transport;
+  private AtomicInteger createdThreads;
+  private ClientRuntime runtime;
+
+  @Before
+  public void setUp() throws Exception {
+    transport = new InMemoryControlTransport();
+    createdThreads = new AtomicInteger();
+    runtime = new ClientRuntime.Builder()
+        .setControlTransport(transport)
+        .setFactory(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            createdThreads.incrementAndGet();
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+          }
+        })
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    runtime.close();
+  }
+
+  @Test
+  public void clientsShouldShareTheTransport() throws Exception {
+    Client first = runtime.newClientBuilder(FIRST_SERVICE_NAME).build();
+    Client second = runtime.newClientBuilder(SECOND_SERVICE_NAME).build();
+    assertSame(transport, runtime.getTransport());
+
+    first.reportAsync(newImportantReport(FIRST_SERVICE_NAME)).get();
+    second.reportAsync(newImportantReport(SECOND_SERVICE_NAME)).get();
+    assertEquals(2, transport.getReportCount());
+    first.stop();
+    second.stop();
+  }
+
+  @Test
+  public void clientsShouldShareOneSchedulerThread() throws Exception {
+    Client first = runtime.newClientBuilder(FIRST_SERVICE_NAME).build();
+    Client second = runtime.newClientBuilder(SECOND_SERVICE_NAME).build();
+    first.start();
+    second.start();
+    assertEquals(1, createdThreads.get());
+    first.stop();
+    second.stop();
+  }
+
+  @Test
+  public void closeShouldReleaseTheTransportAndTheThreads() throws Exception {
+    ClosableTransport closable = new ClosableTransport();
+    final List<Thread> threads = new CopyOnWriteArrayList<>();
+    ClientRuntime closing = new ClientRuntime.Builder()
+        .setControlTransport(closable)
+        .setFlushParallelism(2)
+        .setFactory(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            threads.add(t);
+            return t;
+          }
+        })
+        .build();
+    Client client = closing.newClientBuilder(FIRST_SERVICE_NAME).build();
+    client.start();
+    Runnable noop = new Runnable() {
+      @Override
+      public void run() {}
+    };
+    closing.getFlushDispatcher().dispatch(Arrays.asList(noop, noop));
+    client.stop();
+
+    closing.close();
+    assertTrue(closable.closed);
+    for (Thread t : threads) {
+      t.join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(t.isAlive());
+    }
+  }
+
+  private static ReportRequest newImportantReport(String serviceName) {
+    Operation op = Operation.newBuilder()
+        .setConsumerId("testConsumerId")
+        .setOperationName("testOp")
+        .setImportance(Operation.Importance.HIGH)
+        .build();
+    return ReportRequest.newBuilder().setServiceName(serviceName).addOperations(op).build();
+  }
+
+  private static class ClosableTransport extends InMemoryControlTransport implements Closeable {
+    private volatile boolean closed;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -16,6 +16,10 @@
 
 package com.google.api.control;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -30,27 +34,54 @@ import com.google.api.control.aggregator.CheckAggregationOptions;
 import com.google.api.control.aggregator.FakeTicker;
 import com.google.api.control.aggregator.QuotaAggregationOptions;
 import com.google.api.control.aggregator.ReportAggregationOptions;
+import com.google.api.control.transport.CircuitBreaker;
+import com.google.api.control.transport.InMemoryControlTransport;
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
 import com.google.api.servicecontrol.v1.CheckRequest;
 import com.google.api.servicecontrol.v1.CheckResponse;
 import com.google.api.servicecontrol.v1.Operation;
 import com.google.api.servicecontrol.v1.Operation.Importance;
+import com.google.api.servicecontrol.v1.QuotaOperation;
 import com.google.api.servicecontrol.v1.ReportRequest;
 import com.google.api.servicecontrol.v1.ReportRequest.Builder;
 import com.google.api.servicecontrol.v1.ReportResponse;
 import com.google.api.services.servicecontrol.v1.ServiceControl;
 import com.google.api.services.servicecontrol.v1.ServiceControl.Services;
+import com.google.api.services.servicecontrol.v1.ServiceControl.Services.AllocateQuota;
 import com.google.api.services.servicecontrol.v1.ServiceControl.Services.Check;
 import com.google.api.services.servicecontrol.v1.ServiceControl.Services.Report;
 import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 /**
  * Tests for {@code Client}.
@@ -73,6 +104,9 @@ public class ClientTest {
   private Report reportStub;
   private Client.SchedulerFactory schedulers;
 
+  @Rule
+  public TemporaryFolder spoolFolder = new TemporaryFolder();
+
   @Before
   public void setUp() throws IOException {
     testTicker = new FakeTicker();
@@ -106,6 +140,125 @@ public class ClientTest {
     verify(aThread, times(1)).start();
   }
 
+  @Test
+  public void startShouldNotCreateAThreadForAnExecutorScheduler() {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ExecutorScheduler scheduler = new ExecutorScheduler(testTicker, executor);
+      when(schedulers.create(any(Ticker.class))).thenReturn(scheduler);
+      client.start();
+      verify(threads, never()).newThread(any(Runnable.class));
+      assertEquals(2, scheduler.size()); // the report and quota flushes
+      client.stop();
+      assertEquals(0, scheduler.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void startShouldRegisterTheStatisticsWithJmxUntilStopped() throws Exception {
+    String serviceName = "jmxTestServiceName";
+    Client jmxClient = new Client(serviceName, checkOptions, reportOptions, quotaOptions,
+        transport, threads, schedulers, Client.DO_NOT_LOG_STATS, testTicker);
+    ObjectName name = new ObjectName(
+        "com.google.api.control:type=Client,serviceName=" + ObjectName.quote(serviceName));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    jmxClient.start();
+    try {
+      assertTrue(server.isRegistered(name));
+      assertEquals(0L, server.getAttribute(name, "TotalChecks"));
+      CompositeData latency = (CompositeData) server.getAttribute(name, "CheckTransportLatency");
+      assertEquals(0L, ((CompositeData) latency.get("lastMinute")).get("count"));
+    } finally {
+      jmxClient.stop();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void reportsThatFailToSendAreSpooledAndReplayed() throws IOException {
+    reset(threads);
+    when(threads.newThread(any(Runnable.class))).thenThrow(RuntimeException.class);
+    when(reportStub.execute())
+        .thenThrow(new IOException("simulated failure"))
+        .thenReturn(ReportResponse.getDefaultInstance());
+    ReportSpool spool = new ReportSpool(spoolFolder.getRoot());
+    client.setReportSpool(spool);
+    client.start();
+    client.report(newTestReport(TEST_SERVICE_NAME, Importance.HIGH, 1, 0));
+    assertEquals(1, spool.getPendingCount());
+
+    testTicker.tick(1, TimeUnit.SECONDS);
+    client.report(newTestReport(TEST_SERVICE_NAME, Importance.HIGH, 1, 0)); // runs the scheduler
+    assertEquals(0, spool.getPendingCount());
+    assertEquals(1, spool.getReplayedCount());
+    spool.close();
+  }
+
+  @Test
+  public void reportsThatFailToSendAreRetriedWhenFlushing() throws IOException {
+    reset(threads);
+    when(threads.newThread(any(Runnable.class))).thenThrow(RuntimeException.class);
+    when(reportStub.execute())
+        .thenThrow(new IOException("simulated failure"))
+        .thenReturn(ReportResponse.getDefaultInstance());
+    ReportRetryQueue queue = new ReportRetryQueue(testTicker);
+    client.setReportRetryQueue(queue);
+    client.start();
+    ReportRequest aReport = newTestReport(TEST_SERVICE_NAME, Importance.HIGH, 1, 0);
+    client.report(aReport);
+    assertEquals(1, queue.size());
+
+    // the retry is due before the next flush, which is after the default flush interval
+    testTicker.tick(reportOptions.getFlushCacheEntryIntervalMillis(), TimeUnit.MILLISECONDS);
+    client.report(newTestReport()); // runs the scheduler, which flushes and retries
+    assertEquals(0, queue.size());
+    verify(services, times(2)).report(TEST_SERVICE_NAME, aReport);
+  }
+
+  @Test
+  public void aggregatedReportsThatKeepFailingBackOffAndAreShed() throws Exception {
+    reset(threads);
+    when(threads.newThread(any(Runnable.class))).thenThrow(RuntimeException.class);
+    Client.Scheduler scheduler = new Client.Scheduler(testTicker);
+    when(schedulers.create(any(Ticker.class))).thenReturn(scheduler);
+    final List<Long> sendTimes = new ArrayList<>();
+    when(reportStub.execute()).thenAnswer(new Answer<ReportResponse>() {
+      @Override
+      public ReportResponse answer(InvocationOnMock invocation) throws IOException {
+        sendTimes.add(TimeUnit.NANOSECONDS.toMillis(testTicker.read()));
+        throw new IOException("simulated failure");
+      }
+    });
+    Random nearlyMaxJitter = new Random() {
+      @Override
+      public double nextDouble() {
+        return 0.99;
+      }
+    };
+    int maxAttempts = 3;
+    ReportRetryQueue queue = new ReportRetryQueue(ReportRetryQueue.DEFAULT_MAX_BYTES,
+        maxAttempts, 10000, 80000, testTicker, nearlyMaxJitter);
+    client.setReportRetryQueue(queue);
+    client.start();
+    client.report(newTestReport(TEST_SERVICE_NAME, Importance.LOW, 1, 0));
+
+    // long enough for all attempts, but not for the client to stop when idle
+    for (int i = 0; i < 220; i++) {
+      testTicker.tick(500, TimeUnit.MILLISECONDS);
+      scheduler.run(false);
+    }
+    assertEquals(1 + maxAttempts, sendTimes.size());
+    for (int i = 2; i < sendTimes.size(); i++) {
+      long delay = sendTimes.get(i) - sendTimes.get(i - 1);
+      long priorDelay = sendTimes.get(i - 1) - sendTimes.get(i - 2);
+      assertTrue(String.format("delay %d should exceed %d", delay, priorDelay),
+          delay > priorDelay);
+    }
+    assertEquals(0, queue.size());
+  }
+
   @Test
   public void startIsIgnoredIfAlreadyStarted() {
     client.start();
@@ -120,6 +273,45 @@ public class ClientTest {
     verify(aThread, times(1)).start();
   }
 
+  @Test
+  public void checkRestartsAfterStop() {
+    client.start();
+    client.stop();
+    client.check(newTestCheck());
+    verify(threads, times(2)).newThread(any(Runnable.class));
+    verify(aThread, times(2)).start();
+  }
+
+  @Test
+  public void concurrentRequestsStartOnlyOnce() throws Exception {
+    final int numThreads = 16;
+    final CountDownLatch ready = new CountDownLatch(numThreads);
+    final CountDownLatch go = new CountDownLatch(1);
+    ExecutorService callers = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<CheckResponse>> results = new ArrayList<>();
+      for (int i = 0; i < numThreads; i++) {
+        results.add(callers.submit(new Callable<CheckResponse>() {
+          @Override
+          public CheckResponse call() throws InterruptedException {
+            ready.countDown();
+            go.await();
+            return client.check(newTestCheck());
+          }
+        }));
+      }
+      ready.await();
+      go.countDown();
+      for (Future<CheckResponse> result : results) {
+        result.get();
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+    verify(threads, times(1)).newThread(any(Runnable.class));
+    verify(aThread, times(1)).start();
+  }
+
   @Test
   public void checkInvokesTheTransportIfRequestIsNotCached() throws IOException {
     client.start();
@@ -210,6 +402,257 @@ public class ClientTest {
     verify(reportStub, times(1)).execute();
   }
 
+  @Test
+  public void reportsAreFlushedEarlyOnceTheOperationThresholdIsReached() throws IOException {
+    reset(threads);
+    when(threads.newThread(any(Runnable.class))).thenThrow(RuntimeException.class);
+    Client thresholdClient = new Client(TEST_SERVICE_NAME, checkOptions,
+        new ReportAggregationOptions(ReportAggregationOptions.DEFAULT_NUM_ENTRIES,
+            ReportAggregationOptions.DEFAULT_FLUSH_CACHE_ENTRY_INTERVAL_MILLIS, 4, -1),
+        quotaOptions, transport, threads, schedulers, Client.DO_NOT_LOG_STATS, testTicker);
+    thresholdClient.start();
+    thresholdClient.report(newTestReport(TEST_SERVICE_NAME, Operation.Importance.LOW, 3, 0));
+    verify(reportStub, never()).execute();
+
+    // the fourth operation reaches the threshold, so all are flushed without waiting
+    thresholdClient.report(newTestReport(TEST_SERVICE_NAME, Operation.Importance.LOW, 1, 3));
+    verify(services, times(1)).report(eq(TEST_SERVICE_NAME), any(ReportRequest.class));
+    verify(reportStub, times(1)).execute();
+    thresholdClient.stop();
+  }
+
+  @Test
+  public void checkAsyncInvokesTheTransportIfRequestIsNotCached()
+      throws IOException, ExecutionException, InterruptedException {
+    Client asyncClient = newDirectExecutorClient(Client.DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+    CheckRequest aCheck = newTestCheck();
+    assertEquals(CheckResponse.getDefaultInstance(), asyncClient.checkAsync(aCheck).get());
+    verify(services, times(1)).check(TEST_SERVICE_NAME, aCheck);
+    verify(checkStub, times(1)).execute();
+  }
+
+  @Test
+  public void checkAsyncDoesNotInvokeTheTransportIfRequestIsCached()
+      throws IOException, ExecutionException, InterruptedException {
+    Client asyncClient = newDirectExecutorClient(Client.DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+    CheckRequest aCheck = newTestCheck();
+    asyncClient.checkAsync(aCheck).get();
+    reset(services);
+    reset(checkStub);
+    ListenableFuture<CheckResponse> cached = asyncClient.checkAsync(aCheck);
+    assertEquals(true, cached.isDone());
+    verify(services, never()).check(TEST_SERVICE_NAME, aCheck);
+    verify(checkStub, never()).execute();
+  }
+
+  @Test
+  public void checkAsyncFailsOpenOnTransportFailure()
+      throws IOException, ExecutionException, InterruptedException {
+    when(checkStub.execute()).thenThrow(new IOException("simulated failure"));
+    Client asyncClient = newDirectExecutorClient(Client.DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+    assertNull(asyncClient.checkAsync(newTestCheck()).get());
+  }
+
+  @Test
+  public void checkAsyncFailsOpenWhenTooManyCallsAreInFlight() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(checkStub.execute()).thenAnswer(new Answer<CheckResponse>() {
+      @Override
+      public CheckResponse answer(InvocationOnMock invocation) throws Throwable {
+        blocked.countDown();
+        release.await();
+        return CheckResponse.getDefaultInstance();
+      }
+    });
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Client asyncClient = new Client(TEST_SERVICE_NAME, checkOptions, reportOptions,
+          quotaOptions, transport, threads, schedulers, 1, testTicker, executor, 1);
+      ListenableFuture<CheckResponse> first = asyncClient.checkAsync(newTestCheck());
+      blocked.await();
+      ListenableFuture<CheckResponse> second =
+          asyncClient.checkAsync(newTestCheck(TEST_SERVICE_NAME, Importance.HIGH));
+      assertEquals(true, second.isDone());
+      assertNull(second.get());
+      release.countDown();
+      assertEquals(CheckResponse.getDefaultInstance(), first.get());
+      verify(checkStub, times(1)).execute();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void concurrentCheckMissesShareOneTransportCall() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(checkStub.execute()).thenAnswer(new Answer<CheckResponse>() {
+      @Override
+      public CheckResponse answer(InvocationOnMock invocation) throws Throwable {
+        blocked.countDown();
+        release.await();
+        return CheckResponse.getDefaultInstance();
+      }
+    });
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Client asyncClient = new Client(TEST_SERVICE_NAME, checkOptions, reportOptions,
+          quotaOptions, transport, threads, schedulers, 1, testTicker, executor, 1);
+      ListenableFuture<CheckResponse> first = asyncClient.checkAsync(newTestCheck());
+      blocked.await();
+      ListenableFuture<CheckResponse> second = asyncClient.checkAsync(newTestCheck());
+      assertEquals(false, second.isDone()); // not rejected, although the in-flight limit is 1
+      release.countDown();
+      assertEquals(CheckResponse.getDefaultInstance(), first.get());
+      assertEquals(CheckResponse.getDefaultInstance(), second.get());
+      verify(checkStub, times(1)).execute();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void checkMissesOfHighImportanceAreNotCoalesced() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(checkStub.execute()).thenAnswer(new Answer<CheckResponse>() {
+      @Override
+      public CheckResponse answer(InvocationOnMock invocation) throws Throwable {
+        blocked.countDown();
+        release.await();
+        return CheckResponse.getDefaultInstance();
+      }
+    });
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Client asyncClient = new Client(TEST_SERVICE_NAME, checkOptions, reportOptions,
+          quotaOptions, transport, threads, schedulers, 1, testTicker, executor, 2);
+      CheckRequest aCheck = newTestCheck(TEST_SERVICE_NAME, Importance.HIGH);
+      ListenableFuture<CheckResponse> first = asyncClient.checkAsync(aCheck);
+      blocked.await();
+      ListenableFuture<CheckResponse> second = asyncClient.checkAsync(aCheck);
+      release.countDown();
+      first.get();
+      second.get();
+      verify(checkStub, times(2)).execute();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void allocateQuotaAsyncFailsOpenOnTransportFailure() throws Exception {
+    AllocateQuota quotaStub = mock(AllocateQuota.class);
+    when(services.allocateQuota(eq(TEST_SERVICE_NAME), any(AllocateQuotaRequest.class)))
+        .thenReturn(quotaStub);
+    when(quotaStub.execute()).thenThrow(new IOException("simulated failure"));
+    Client asyncClient = new Client(TEST_SERVICE_NAME, checkOptions, reportOptions,
+        new QuotaAggregationOptions(-1 /* disables cache */, 1, 1), transport, threads,
+        schedulers, 1, testTicker, MoreExecutors.newDirectExecutorService(),
+        Client.DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+    AllocateQuotaRequest aQuota = AllocateQuotaRequest.newBuilder()
+        .setServiceName(TEST_SERVICE_NAME)
+        .setAllocateOperation(QuotaOperation.newBuilder()
+            .setConsumerId(TEST_CONSUMER_ID)
+            .setMethodName(TEST_OPERATION_NAME))
+        .build();
+    assertEquals(AllocateQuotaResponse.getDefaultInstance(),
+        asyncClient.allocateQuotaAsync(aQuota).get());
+  }
+
+  @Test
+  public void reportAsyncInvokesTheTransportIfRequestIsNotCached() throws Exception {
+    Client asyncClient = newDirectExecutorClient(Client.DEFAULT_MAX_IN_FLIGHT_TRANSPORT_CALLS);
+    ReportRequest aReport = newTestReport(TEST_SERVICE_NAME, Importance.HIGH, 1, 2);
+    asyncClient.reportAsync(aReport).get();
+    verify(services, times(1)).report(TEST_SERVICE_NAME, aReport);
+    verify(reportStub, times(1)).execute();
+  }
+
+  @Test
+  public void stopShouldShutDownTheTransportExecutorItCreated() throws Exception {
+    final List<Thread> created = new CopyOnWriteArrayList<>();
+    ThreadFactory recording = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        created.add(t);
+        return t;
+      }
+    };
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      when(schedulers.create(any(Ticker.class)))
+          .thenReturn(new ExecutorScheduler(testTicker, executor));
+      Client asyncClient = new Client(TEST_SERVICE_NAME, checkOptions, reportOptions,
+          quotaOptions, transport, recording, schedulers, 1, testTicker);
+      asyncClient.checkAsync(newTestCheck()).get();
+      assertEquals(1, created.size());
+      asyncClient.stop();
+      created.get(0).join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(created.get(0).isAlive()); // an idle thread of the pool would be kept for 60s
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void builderShouldAcceptACustomControlTransport() throws Exception {
+    InMemoryControlTransport inMemory = new InMemoryControlTransport();
+    Client customClient = new Client.Builder(TEST_SERVICE_NAME)
+        .setControlTransport(inMemory)
+        .setFactory(threads)
+        .setSchedulerFactory(schedulers)
+        .setTicker(testTicker)
+        .setSynchronousReports(true)
+        .build();
+    CheckRequest aCheck = newTestCheck();
+    customClient.check(aCheck);
+    customClient.check(aCheck); // now it's cached
+    assertEquals(1, inMemory.getCheckCount());
+    customClient.report(newTestReport(TEST_SERVICE_NAME, Importance.HIGH, 2, 0));
+    assertEquals(1, inMemory.getReportCount());
+    assertEquals(2, inMemory.getReportedOperationCount());
+    verify(services, never()).check(eq(TEST_SERVICE_NAME), any(CheckRequest.class));
+  }
+
+  @Test
+  public void checkFailsOpenWithoutCallingWhileTheCircuitBreakerIsOpen() throws Exception {
+    InMemoryControlTransport inMemory = new InMemoryControlTransport().failNext(2);
+    Client customClient = new Client.Builder(TEST_SERVICE_NAME)
+        .setControlTransport(inMemory)
+        .setCircuitBreaker(new CircuitBreaker(0.5, 2, 1000, 1000, testTicker))
+        .setFactory(threads)
+        .setSchedulerFactory(schedulers)
+        .setTicker(testTicker)
+        .build();
+    assertNull(customClient.check(newTestCheck()));
+    assertNull(customClient.check(newTestCheck()));
+    assertNull(customClient.check(newTestCheck())); // the breaker is open
+    assertEquals(2, inMemory.getCheckCount());
+  }
+
+  @Test
+  public void checkFailsOpenWhenACustomControlTransportFails() throws Exception {
+    InMemoryControlTransport inMemory = new InMemoryControlTransport().failNext(1);
+    Client customClient = new Client.Builder(TEST_SERVICE_NAME)
+        .setControlTransport(inMemory)
+        .setFactory(threads)
+        .setSchedulerFactory(schedulers)
+        .setTicker(testTicker)
+        .build();
+    assertNull(customClient.check(newTestCheck()));
+    assertEquals(CheckResponse.getDefaultInstance(), customClient.check(newTestCheck()));
+    assertEquals(1, inMemory.getFailureCount());
+  }
+
+  private Client newDirectExecutorClient(int maxInFlightTransportCalls) {
+    return new Client(TEST_SERVICE_NAME, checkOptions, reportOptions, quotaOptions, transport,
+        threads, schedulers, 1, testTicker, MoreExecutors.newDirectExecutorService(),
+        maxInFlightTransportCalls);
+  }
+
   private ReportRequest newTestReport() {
     return newTestReport(TEST_SERVICE_NAME, Operation.Importance.LOW, 3, 0);
   }
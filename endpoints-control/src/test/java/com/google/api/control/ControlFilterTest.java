@@ -18,6 +18,7 @@ package com.google.api.control;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
@@ -246,6 +247,20 @@ public class ControlFilterTest {
     // TODO: Add more assertions
   }
 
+  @Test
+  public void shouldNotBuildACheckRequestIfTheResponseIsCached()
+      throws IOException, ServletException {
+    ControlFilter f = new ControlFilter(client, TEST_PROJECT_ID, testTicker, testClock, new MetadataTransport(false));
+    mockRequestAndResponse();
+    when(client.checkCached("project:" + TEST_PROJECT_ID, TEST_SELECTOR, OPERATION_LABELS))
+        .thenReturn(checkResponse);
+
+    f.doFilter(request, response, chain);
+    verify(client, never()).check(any(CheckRequest.class));
+    verify(client, times(1)).report(capturedReport.capture());
+    assertThat(capturedReport.getValue().getOperationsCount()).isEqualTo(1);
+  }
+
   @Test
   public void shouldSendTheDefaultApiKeyIfPresent() throws IOException, ServletException {
     String[] defaultKeyNames = {"key", "api_key"};
@@ -382,6 +397,33 @@ public class ControlFilterTest {
     assertThat(op.getConsumerId()).isEqualTo("project:" + TEST_PROJECT_ID);
   }
 
+  @Test
+  public void shouldTurnAwayARejectedApiKeyWithoutACheck() throws IOException, ServletException {
+    String testApiKey = "rejectedApiKey";
+    ControlFilter f = new ControlFilter(client, TEST_PROJECT_ID, testTicker, testClock, new MetadataTransport(false));
+    CheckResponse invalid = CheckResponse
+        .newBuilder()
+        .addCheckErrors(CheckError.newBuilder().setCode(Code.API_KEY_INVALID))
+        .build();
+    mockRequestAndResponse();
+    when(request.getParameter("key")).thenReturn(testApiKey);
+    when(client.checkRejected("api_key:" + testApiKey)).thenReturn(invalid);
+
+    f.doFilter(request, response, chain);
+    verify(response, times(1)).sendError(HttpServletResponse.SC_BAD_REQUEST,
+        CheckErrorInfo.API_KEY_INVALID.getMessage());
+    verify(client, never()).checkCached(anyString(), anyString(), anyMap());
+    verify(client, never()).check(any(CheckRequest.class));
+    verify(client, times(1)).report(capturedReport.capture());
+    verify(chain, never()).doFilter(request, response);
+
+    // the report carries no log entry, so that the reports of rejections aggregate
+    ReportRequest aReport = capturedReport.getValue();
+    assertThat(aReport.getOperationsCount()).isEqualTo(1);
+    assertThat(aReport.getOperations(0).getLogEntriesCount()).isEqualTo(0);
+    assertThat(aReport.getOperations(0).getConsumerId()).isEqualTo("project:" + TEST_PROJECT_ID);
+  }
+
 
   @Test
   public void shouldSendAReportAndInvokeTheChainIfTheCheckErrors()
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.control.aggregator.FakeTicker;
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ExecutorScheduler}.
+ */
+@RunWith(JUnit4.class)
+public class ExecutorSchedulerTest {
+  private static final long ONE_HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private ScheduledExecutorService executor;
+  private FakeTicker ticker;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    ticker = new FakeTicker();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void runShouldOnlyRunEventsThatAreDueOnTheTicker() throws InterruptedException {
+    ExecutorScheduler scheduler = new ExecutorScheduler(ticker, executor);
+    AtomicInteger runs = new AtomicInteger();
+    scheduler.enter(newCounter(runs), ONE_HOUR_MILLIS, 0);
+    scheduler.run(false);
+    assertEquals(0, runs.get());
+
+    ticker.tick(1, TimeUnit.HOURS);
+    scheduler.run(false);
+    assertEquals(1, runs.get());
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void runShouldOrderEventsByTimeThenPriority() throws InterruptedException {
+    ExecutorScheduler scheduler = new ExecutorScheduler(ticker, executor);
+    final List<String> order = new ArrayList<>();
+    scheduler.enter(newRecorder(order, "later"), ONE_HOUR_MILLIS + 1, 0);
+    scheduler.enter(newRecorder(order, "low"), ONE_HOUR_MILLIS, 1);
+    scheduler.enter(newRecorder(order, "high"), ONE_HOUR_MILLIS, 0);
+    ticker.tick(2, TimeUnit.HOURS);
+    scheduler.run(false);
+    assertEquals(3, order.size());
+    assertEquals("high", order.get(0));
+    assertEquals("low", order.get(1));
+    assertEquals("later", order.get(2));
+  }
+
+  @Test
+  public void cancelledEventsShouldNotRun() throws InterruptedException {
+    ExecutorScheduler scheduler = new ExecutorScheduler(ticker, executor);
+    AtomicInteger runs = new AtomicInteger();
+    ExecutorScheduler.ScheduledTask task = scheduler.schedule(newCounter(runs), ONE_HOUR_MILLIS, 0);
+    task.cancel();
+    assertEquals(0, scheduler.size());
+    ticker.tick(1, TimeUnit.HOURS);
+    scheduler.run(false);
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void anEarlierEventShouldWakeUpTheScheduler() throws InterruptedException {
+    ExecutorScheduler scheduler = new ExecutorScheduler(Ticker.systemTicker(), executor);
+    AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch ran = new CountDownLatch(1);
+    scheduler.enter(newCounter(runs), ONE_HOUR_MILLIS, 0);
+    scheduler.enter(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    }, 1, 0);
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+    assertEquals(1, scheduler.size());
+  }
+
+  @Test
+  public void eventsEnteredByEventsShouldRun() throws InterruptedException {
+    final ExecutorScheduler scheduler = new ExecutorScheduler(Ticker.systemTicker(), executor);
+    final CountDownLatch ran = new CountDownLatch(3);
+    scheduler.enter(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+        if (ran.getCount() > 0) {
+          scheduler.enter(this, 1, 0);
+        }
+      }
+    }, 1, 0);
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void factoryShouldShareTheExecutor() throws InterruptedException {
+    Client.SchedulerFactory factory = ExecutorScheduler.factory(executor);
+    Client.Scheduler first = factory.create(Ticker.systemTicker());
+    Client.Scheduler second = factory.create(Ticker.systemTicker());
+    assertTrue(first != second);
+    final CountDownLatch ran = new CountDownLatch(2);
+    Runnable countDown = new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    };
+    first.enter(countDown, 1, 0);
+    second.enter(countDown, 1, 0);
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void delayedEventsShouldBeAlignedToTheTick() throws InterruptedException {
+    Client.SchedulerFactory factory = ExecutorScheduler.factory(executor, 1000);
+    Client.Scheduler first = factory.create(ticker);
+    Client.Scheduler second = factory.create(ticker);
+    AtomicInteger runs = new AtomicInteger();
+    first.enter(newCounter(runs), 1500, 0);
+    ticker.tick(700, TimeUnit.MILLISECONDS);
+    second.enter(newCounter(runs), 1000, 0);
+
+    // both are due on the tick at 2000 millis
+    ticker.tick(1299, TimeUnit.MILLISECONDS);
+    first.run(false);
+    second.run(false);
+    assertEquals(0, runs.get());
+    ticker.tick(1, TimeUnit.MILLISECONDS);
+    first.run(false);
+    second.run(false);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void eventsWithoutDelayShouldNotWaitForTheTick() throws InterruptedException {
+    ExecutorScheduler scheduler = new ExecutorScheduler(ticker, executor, 1000);
+    AtomicInteger runs = new AtomicInteger();
+    ticker.tick(700, TimeUnit.MILLISECONDS);
+    scheduler.enter(newCounter(runs), 0, 0);
+    scheduler.run(false);
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void cancelAllShouldRemoveAllEvents() {
+    ExecutorScheduler scheduler = new ExecutorScheduler(ticker, executor);
+    AtomicInteger runs = new AtomicInteger();
+    scheduler.enter(newCounter(runs), ONE_HOUR_MILLIS, 0);
+    scheduler.enter(newCounter(runs), 2 * ONE_HOUR_MILLIS, 0);
+    scheduler.cancelAll();
+    assertEquals(0, scheduler.size());
+  }
+
+  private static Runnable newCounter(final AtomicInteger runs) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+  }
+
+  private static Runnable newRecorder(final List<String> order, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+}
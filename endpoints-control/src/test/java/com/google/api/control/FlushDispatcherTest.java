@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@code FlushDispatcher}.
+ */
+@RunWith(JUnit4.class)
+public class FlushDispatcherTest {
+  private static final int TASK_COUNT = 20;
+
+  @Test
+  public void sequentialShouldRunTasksInOrderOnTheCallingThread() {
+    final List<Integer> order = Lists.newArrayList();
+    final Thread caller = Thread.currentThread();
+    List<Runnable> tasks = Lists.newArrayList();
+    for (int i = 0; i < TASK_COUNT; i++) {
+      final int index = i;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          assertEquals(caller, Thread.currentThread());
+          order.add(index);
+        }
+      });
+    }
+    FlushDispatcher.sequential().dispatch(tasks);
+    assertEquals(TASK_COUNT, order.size());
+    for (int i = 0; i < TASK_COUNT; i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+  }
+
+  @Test
+  public void shouldBoundTheNumberOfConcurrentTasks() {
+    final int parallelism = 4;
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    List<Runnable> tasks = Lists.newArrayList();
+    for (int i = 0; i < TASK_COUNT; i++) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          int now = running.incrementAndGet();
+          int max;
+          do {
+            max = maxRunning.get();
+          } while (now > max && !maxRunning.compareAndSet(max, now));
+          try {
+            TimeUnit.MILLISECONDS.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          completed.incrementAndGet();
+        }
+      });
+    }
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      new FlushDispatcher(executor, null, parallelism).dispatch(tasks);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(TASK_COUNT, completed.get());
+    assertTrue(maxRunning.get() <= parallelism);
+    assertTrue(maxRunning.get() > 1);
+  }
+
+  @Test
+  public void shouldRunRejectedTasksDirectly() {
+    final AtomicInteger completed = new AtomicInteger();
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+    List<Runnable> tasks = Lists.newArrayList();
+    for (int i = 0; i < TASK_COUNT; i++) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          completed.incrementAndGet();
+        }
+      });
+    }
+    new FlushDispatcher(rejecting, null, 2).dispatch(tasks);
+    assertEquals(TASK_COUNT, completed.get());
+  }
+
+  @Test
+  public void failingTasksShouldNotAffectOtherTasks() {
+    final AtomicInteger completed = new AtomicInteger();
+    List<Runnable> tasks = Lists.newArrayList();
+    for (int i = 0; i < TASK_COUNT; i++) {
+      final boolean fail = i % 2 == 0;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          if (fail) {
+            throw new IllegalStateException("simulated failure");
+          }
+          completed.incrementAndGet();
+        }
+      });
+    }
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      new FlushDispatcher(executor, null, 3).dispatch(tasks);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(TASK_COUNT / 2, completed.get());
+  }
+
+  @Test
+  public void shutdownShouldStopTheThreadsOfItsOwnPool() throws InterruptedException {
+    final List<Thread> threads = Lists.newCopyOnWriteArrayList();
+    ThreadFactory factory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = Executors.defaultThreadFactory().newThread(r);
+        threads.add(t);
+        return t;
+      }
+    };
+    final AtomicInteger completed = new AtomicInteger();
+    List<Runnable> tasks = Lists.newArrayList();
+    for (int i = 0; i < TASK_COUNT; i++) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          completed.incrementAndGet();
+        }
+      });
+    }
+    FlushDispatcher dispatcher = new FlushDispatcher(null, factory, 2);
+    dispatcher.dispatch(tasks);
+    assertFalse(threads.isEmpty());
+    dispatcher.shutdown();
+    for (Thread t : threads) {
+      t.join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(t.isAlive());
+    }
+
+    // a later dispatch creates a new pool
+    dispatcher.dispatch(tasks);
+    assertEquals(2 * TASK_COUNT, completed.get());
+    dispatcher.shutdown();
+  }
+
+  @Test
+  public void shutdownShouldLeaveAProvidedExecutorRunning() {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      new FlushDispatcher(executor, null, 2).shutdown();
+      assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
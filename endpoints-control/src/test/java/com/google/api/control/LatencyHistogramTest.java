@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.control.aggregator.FakeTicker;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+  private FakeTicker ticker;
+  private LatencyHistogram histogram;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    histogram = new LatencyHistogram(ticker);
+  }
+
+  @Test
+  public void shouldSummarizeSmallValuesExactly() {
+    for (long nanos = 1; nanos <= 10; nanos++) {
+      histogram.record(nanos);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.getAllTime();
+    assertEquals(10, snapshot.getCount());
+    assertEquals(5.5, snapshot.getMeanNanos(), 0.001);
+    assertEquals(5, snapshot.getP50Nanos());
+    assertEquals(10, snapshot.getP99Nanos());
+    assertEquals(10, snapshot.getMaxNanos());
+  }
+
+  @Test
+  public void shouldKeepPercentilesWithinThePrecision() {
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.getAllTime();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(500500.0, snapshot.getMeanNanos(), 0.001);
+    assertEquals(500000, snapshot.getP50Nanos(), 500000 * 0.032);
+    assertEquals(990000, snapshot.getP99Nanos(), 990000 * 0.032);
+    assertEquals(999000, snapshot.getP999Nanos(), 999000 * 0.032);
+    assertEquals(1000000, snapshot.getMaxNanos());
+  }
+
+  @Test
+  public void shouldClampValuesOutsideTheTrackableRange() {
+    histogram.record(-1);
+    histogram.record(Long.MAX_VALUE);
+    LatencyHistogram.Snapshot snapshot = histogram.getAllTime();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, snapshot.getMaxNanos());
+    assertEquals(0, snapshot.getP50Nanos());
+  }
+
+  @Test
+  public void shouldExpireValuesFromTheRollingWindows() {
+    histogram.record(100);
+    assertEquals(1, histogram.getLastMinute().getCount());
+    assertEquals(1, histogram.getLastFiveMinutes().getCount());
+
+    ticker.tick(30, TimeUnit.SECONDS);
+    assertEquals(1, histogram.getLastMinute().getCount());
+
+    ticker.tick(60, TimeUnit.SECONDS);
+    assertEquals(0, histogram.getLastMinute().getCount());
+    assertEquals(1, histogram.getLastFiveMinutes().getCount());
+
+    ticker.tick(5, TimeUnit.MINUTES);
+    assertEquals(0, histogram.getLastFiveMinutes().getCount());
+    assertEquals(1, histogram.getAllTime().getCount());
+  }
+
+  @Test
+  public void shouldResetReusedSlots() {
+    histogram.record(100);
+    ticker.tick(5, TimeUnit.MINUTES); // back to the same slot of the ring
+    histogram.record(200);
+    LatencyHistogram.Snapshot lastMinute = histogram.getLastMinute();
+    assertEquals(1, lastMinute.getCount());
+    assertEquals(200, lastMinute.getMaxNanos());
+  }
+}
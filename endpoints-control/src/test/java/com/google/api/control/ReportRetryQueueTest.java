@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.control.aggregator.FakeTicker;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ReportRetryQueue}.
+ */
+@RunWith(JUnit4.class)
+public class ReportRetryQueueTest {
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 4000;
+  private static final int MAX_ATTEMPTS = 3;
+
+  private FakeTicker ticker;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+  }
+
+  @Test
+  public void retriesShouldBeDueAfterAJitteredBackoff() {
+    ReportRetryQueue queue = newQueue(Long.MAX_VALUE);
+    ReportRequest req = newReport(0);
+    assertTrue(queue.offer(req, 1).isEmpty());
+    ticker.tick(INITIAL_BACKOFF_MILLIS / 2 - 1, TimeUnit.MILLISECONDS);
+    assertTrue(queue.pollDue().isEmpty()); // the jitter keeps the upper half of the backoff
+    ticker.tick(INITIAL_BACKOFF_MILLIS / 2 + 1, TimeUnit.MILLISECONDS);
+    List<ReportRetryQueue.Retry> due = queue.pollDue();
+    assertEquals(1, due.size());
+    assertEquals(req, due.get(0).getRequest());
+    assertEquals(1, due.get(0).getAttempt());
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.getBytes());
+  }
+
+  @Test
+  public void backoffShouldGrowWithEachAttemptUpToTheMaximum() {
+    ReportRetryQueue queue = newQueue(Long.MAX_VALUE);
+    queue.offer(newReport(0), 3); // a backoff of 4000, no more than the maximum
+    ticker.tick(MAX_BACKOFF_MILLIS / 2 - 1, TimeUnit.MILLISECONDS);
+    assertTrue(queue.pollDue().isEmpty());
+    ticker.tick(MAX_BACKOFF_MILLIS / 2 + 1, TimeUnit.MILLISECONDS);
+    assertEquals(1, queue.pollDue().size());
+  }
+
+  @Test
+  public void shouldShedRequestsThatExceededTheAttempts() {
+    ReportRetryQueue queue = newQueue(Long.MAX_VALUE);
+    ReportRequest req = newReport(0);
+    List<ReportRequest> shed = queue.offer(req, MAX_ATTEMPTS + 1);
+    assertEquals(1, shed.size());
+    assertEquals(req, shed.get(0));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void shouldShedTheOldestRequestsToStayWithinTheBudget() {
+    int size = newReport(0).getSerializedSize();
+    ReportRetryQueue queue = newQueue(2 * size);
+    queue.offer(newReport(0), 1);
+    queue.offer(newReport(1), 1);
+    List<ReportRequest> shed = queue.offer(newReport(2), 1);
+    assertEquals(1, shed.size());
+    assertEquals(newReport(0), shed.get(0));
+    assertEquals(2, queue.size());
+    assertEquals(2 * size, queue.getBytes());
+  }
+
+  @Test
+  public void clearShouldReturnAllQueuedRequests() {
+    ReportRetryQueue queue = newQueue(Long.MAX_VALUE);
+    queue.offer(newReport(0), 1);
+    queue.offer(newReport(1), 2);
+    List<ReportRequest> all = queue.clear();
+    assertEquals(2, all.size());
+    assertEquals(newReport(0), all.get(0));
+    assertEquals(0, queue.size());
+  }
+
+  private ReportRetryQueue newQueue(long maxBytes) {
+    return new ReportRetryQueue(maxBytes, MAX_ATTEMPTS, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS,
+        ticker, new Random(42));
+  }
+
+  private static ReportRequest newReport(int i) {
+    return ReportRequest.newBuilder()
+        .setServiceName("a-service")
+        .addOperations(Operation.newBuilder().setOperationId("operation-" + i))
+        .build();
+  }
+}
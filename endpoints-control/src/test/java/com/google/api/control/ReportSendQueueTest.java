@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.control.aggregator.ReportRequestAggregator;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for {@link ReportSendQueue}.
+ */
+@RunWith(JUnit4.class)
+public class ReportSendQueueTest {
+  private static final String TEST_SERVICE_NAME = "testServiceName";
+
+  private List<ReportRequest> sent;
+  private List<Integer> mergedCounts;
+  private ReportSendQueue.Sender sender;
+  private List<Runnable> executed;
+  private Executor executor;
+
+  @Before
+  public void setUp() {
+    sent = new ArrayList<>();
+    mergedCounts = new ArrayList<>();
+    sender = new ReportSendQueue.Sender() {
+      @Override
+      public void send(ReportRequest req, int mergedCount) {
+        sent.add(req);
+        mergedCounts.add(mergedCount);
+      }
+    };
+    executed = new ArrayList<>();
+    executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executed.add(command); // run by the test
+      }
+    };
+  }
+
+  @Test
+  public void addShouldSendOnTheCallerWhenItRuns() {
+    ReportSendQueue queue = newQueue(100);
+    ReportRequest req = newReport(1, 0);
+    ListenableFuture<Void> future = queue.add(req, true);
+    assertTrue(future.isDone());
+    assertEquals(1, sent.size());
+    assertSame(req, sent.get(0));
+    assertTrue(executed.isEmpty());
+  }
+
+  @Test
+  public void addShouldMergeRequestsQueuedBeforeTheExecutorSends() {
+    ReportSendQueue queue = newQueue(100);
+    ListenableFuture<Void> first = queue.add(newReport(2, 0), false);
+    ListenableFuture<Void> second = queue.add(newReport(3, 2), false);
+    assertEquals(1, executed.size()); // only one thread sends at a time
+    assertFalse(first.isDone());
+    assertEquals(2, queue.getPendingCount());
+
+    executed.get(0).run();
+    assertTrue(first.isDone());
+    assertTrue(second.isDone());
+    assertEquals(1, sent.size());
+    assertEquals(5, sent.get(0).getOperationsCount());
+    assertEquals(2, (int) mergedCounts.get(0));
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  @Test
+  public void mergedRequestsShouldNotExceedTheOperationLimit() {
+    ReportSendQueue queue = newQueue(10 * ReportRequestAggregator.MAX_OPERATION_COUNT);
+    int half = ReportRequestAggregator.MAX_OPERATION_COUNT / 2;
+    queue.add(newReport(half, 0), false);
+    queue.add(newReport(half, half), false);
+    queue.add(newReport(1, 2 * half), false);
+    executed.get(0).run();
+    assertEquals(2, sent.size());
+    assertEquals(ReportRequestAggregator.MAX_OPERATION_COUNT, sent.get(0).getOperationsCount());
+    assertEquals(1, sent.get(1).getOperationsCount());
+  }
+
+  @Test
+  public void mergedRequestsShouldOnlyDifferInTheirOperations() {
+    ReportSendQueue queue = newQueue(100);
+    queue.add(newReport(1, 0).toBuilder().setServiceConfigId("config1").build(), false);
+    queue.add(newReport(1, 1).toBuilder().setServiceConfigId("config2").build(), false);
+    queue.add(newReport(1, 2).toBuilder().setServiceConfigId("config2").build(), false);
+    executed.get(0).run();
+    assertEquals(2, sent.size());
+    assertEquals("config1", sent.get(0).getServiceConfigId());
+    assertEquals(1, sent.get(0).getOperationsCount());
+    assertEquals("config2", sent.get(1).getServiceConfigId());
+    assertEquals(2, sent.get(1).getOperationsCount());
+  }
+
+  @Test
+  public void callerShouldHandTheRequestsQueuedAfterItsOwnToTheExecutor() {
+    final List<ReportSendQueue> queues = new ArrayList<>();
+    ReportSendQueue queue = new ReportSendQueue(new ReportSendQueue.Sender() {
+      @Override
+      public void send(ReportRequest req, int mergedCount) {
+        if (sent.isEmpty()) {
+          // another thread adds a request while the caller sends its own
+          queues.get(0).add(newReport(1, 1), true);
+        }
+        sent.add(req);
+      }
+    }, executor, 100);
+    queues.add(queue);
+    assertTrue(queue.add(newReport(1, 0), true).isDone());
+    assertEquals(1, sent.size());
+    assertEquals(1, queue.getPendingCount());
+    assertEquals(1, executed.size());
+
+    executed.get(0).run();
+    assertEquals(2, sent.size());
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  @Test
+  public void addShouldSendDirectlyWhenTheQueueIsFull() {
+    ReportSendQueue queue = newQueue(2);
+    queue.add(newReport(2, 0), false);
+    ReportRequest overflow = newReport(1, 2);
+    assertTrue(queue.add(overflow, false).isDone());
+    assertEquals(1, sent.size());
+    assertSame(overflow, sent.get(0));
+    assertEquals(1, queue.getPendingCount());
+  }
+
+  @Test
+  public void addShouldSendOnTheCallerWhenTheExecutorRejects() {
+    ReportSendQueue queue = new ReportSendQueue(sender, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException("simulated rejection");
+      }
+    }, 100);
+    assertTrue(queue.add(newReport(1, 0), false).isDone());
+    assertEquals(1, sent.size());
+  }
+
+  private ReportSendQueue newQueue(int maxPendingOperations) {
+    return new ReportSendQueue(sender, executor, maxPendingOperations);
+  }
+
+  private static ReportRequest newReport(int numOps, int opStartIndex) {
+    ReportRequest.Builder b = ReportRequest.newBuilder().setServiceName(TEST_SERVICE_NAME);
+    for (int i = 0; i < numOps; i++) {
+      b.addOperations(Operation.newBuilder()
+          .setOperationName(String.format("testOp%d", opStartIndex + i))
+          .setImportance(Operation.Importance.HIGH));
+    }
+    return b.build();
+  }
+}
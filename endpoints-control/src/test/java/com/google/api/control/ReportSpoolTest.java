@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ReportSpool}.
+ */
+@RunWith(JUnit4.class)
+public class ReportSpoolTest {
+  private static final int SMALL_SEGMENT_BYTES = 256;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void shouldReplayAppendedRequestsInOrder() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(spool.append(newReport(i)));
+    }
+    assertEquals(3, spool.getPendingCount());
+    RecordingSender sender = new RecordingSender(Integer.MAX_VALUE);
+    assertEquals(3, spool.replay(sender, 10));
+    assertEquals(3, sender.sent.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(newReport(i), sender.sent.get(i));
+    }
+    assertEquals(0, spool.getPendingCount());
+    assertEquals(3, spool.getReplayedCount());
+    spool.close();
+  }
+
+  @Test
+  public void shouldReplayAtMostTheRequestedNumber() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot());
+    spool.append(newReport(0));
+    spool.append(newReport(1));
+    assertEquals(1, spool.replay(new RecordingSender(Integer.MAX_VALUE), 1));
+    assertEquals(1, spool.getPendingCount());
+    spool.close();
+  }
+
+  @Test
+  public void shouldKeepTheRequestThatFailedToSend() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot());
+    for (int i = 0; i < 3; i++) {
+      spool.append(newReport(i));
+    }
+    try {
+      spool.replay(new RecordingSender(1), 10);
+      fail("the replay should have failed");
+    } catch (IOException expected) {
+      // expected
+    }
+    assertEquals(2, spool.getPendingCount());
+    RecordingSender sender = new RecordingSender(Integer.MAX_VALUE);
+    assertEquals(2, spool.replay(sender, 10));
+    assertEquals(newReport(1), sender.sent.get(0));
+    spool.close();
+  }
+
+  @Test
+  public void shouldRecoverPendingRequestsWhenReopened() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot());
+    for (int i = 0; i < 3; i++) {
+      spool.append(newReport(i));
+    }
+    spool.replay(new RecordingSender(Integer.MAX_VALUE), 1);
+    spool.close();
+
+    ReportSpool reopened = new ReportSpool(folder.getRoot());
+    assertEquals(2, reopened.getPendingCount());
+    RecordingSender sender = new RecordingSender(Integer.MAX_VALUE);
+    assertEquals(2, reopened.replay(sender, 10));
+    assertEquals(newReport(1), sender.sent.get(0));
+    assertEquals(newReport(2), sender.sent.get(1));
+
+    reopened.append(newReport(3)); // appends after the recovered records
+    assertEquals(1, reopened.getPendingCount());
+    reopened.close();
+  }
+
+  @Test
+  public void shouldStayWithinTheDiskLimitByDroppingTheOldestSegment() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot(), SMALL_SEGMENT_BYTES,
+        2 * SMALL_SEGMENT_BYTES);
+    for (int i = 0; i < 50; i++) {
+      assertTrue(spool.append(newReport(i)));
+    }
+    assertTrue(spool.getDroppedCount() > 0);
+    assertEquals(50, spool.getPendingCount() + spool.getDroppedCount());
+    assertTrue(folder.getRoot().listFiles().length <= 2);
+
+    RecordingSender sender = new RecordingSender(Integer.MAX_VALUE);
+    spool.replay(sender, 100);
+    assertEquals(newReport(49), sender.sent.get(sender.sent.size() - 1));
+    spool.close();
+  }
+
+  @Test
+  public void shouldDeleteSegmentsOnceReplayed() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot(), SMALL_SEGMENT_BYTES,
+        4 * SMALL_SEGMENT_BYTES);
+    for (int i = 0; i < 20; i++) {
+      spool.append(newReport(i));
+    }
+    assertTrue(folder.getRoot().listFiles().length > 1);
+    spool.replay(new RecordingSender(Integer.MAX_VALUE), 100);
+    assertEquals(1, folder.getRoot().listFiles().length); // the segment being appended to
+    spool.close();
+  }
+
+  @Test
+  public void shouldRejectRequestsLargerThanASegment() throws IOException {
+    ReportSpool spool = new ReportSpool(folder.getRoot(), SMALL_SEGMENT_BYTES,
+        2 * SMALL_SEGMENT_BYTES);
+    StringBuilder longName = new StringBuilder();
+    for (int i = 0; i < SMALL_SEGMENT_BYTES; i++) {
+      longName.append('x');
+    }
+    assertFalse(spool.append(ReportRequest.newBuilder().setServiceName(longName.toString())
+        .build()));
+    assertEquals(1, spool.getDroppedCount());
+    spool.close();
+  }
+
+  @Test
+  public void shouldIgnoreATornRecordWhenReopened() throws IOException {
+    File dir = folder.getRoot();
+    ReportSpool spool = new ReportSpool(dir);
+    spool.append(newReport(0));
+    spool.append(newReport(1));
+    spool.close();
+    File segment = dir.listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      long secondData = 8 + raf.readInt() + 8; // skip the first record and the second header
+      raf.seek(secondData);
+      byte corrupted = (byte) (raf.readByte() ^ 0xff);
+      raf.seek(secondData);
+      raf.writeByte(corrupted);
+    } finally {
+      raf.close();
+    }
+    ReportSpool reopened = new ReportSpool(dir);
+    assertEquals(1, reopened.getPendingCount());
+    reopened.close();
+  }
+
+  private static ReportRequest newReport(int i) {
+    return ReportRequest.newBuilder()
+        .setServiceName("a-service")
+        .addOperations(Operation.newBuilder().setOperationId("operation-" + i))
+        .build();
+  }
+
+  private static class RecordingSender implements ReportSpool.Sender {
+    private final List<ReportRequest> sent = new ArrayList<>();
+    private final int failAfter;
+
+    RecordingSender(int failAfter) {
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void send(ReportRequest req) throws IOException {
+      if (sent.size() >= failAfter) {
+        throw new IOException("simulated failure");
+      }
+      sent.add(req);
+    }
+  }
+}
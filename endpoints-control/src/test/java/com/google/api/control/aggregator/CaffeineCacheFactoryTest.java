@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CaffeineCacheFactory}.
+ */
+@RunWith(JUnit4.class)
+public class CaffeineCacheFactoryTest {
+  private static final int EXPIRATION_MILLIS = 10;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final RecordingListener listener = new RecordingListener();
+
+  @Test
+  public void shouldNotifyTheListenerOfInvalidatedEntriesImmediately() {
+    Cache<String, Long> cache =
+        new CaffeineCacheFactory().newCache(10, EXPIRATION_MILLIS, ticker, listener);
+    cache.put("a", 1L);
+    cache.put("b", 2L);
+    cache.invalidateAll();
+    assertEquals(2, listener.removed.size());
+    assertEquals(RemovalCause.EXPLICIT, listener.causes.get(0));
+  }
+
+  @Test
+  public void shouldExpireEntriesAfterWrite() {
+    Cache<String, Long> cache =
+        new CaffeineCacheFactory().newCache(10, EXPIRATION_MILLIS, ticker, listener);
+    cache.put("a", 1L);
+    ticker.tick(EXPIRATION_MILLIS - 1, TimeUnit.MILLISECONDS);
+    assertNotNull(cache.getIfPresent("a"));
+    ticker.tick(1, TimeUnit.MILLISECONDS);
+    assertNull(cache.getIfPresent("a"));
+    cache.cleanUp();
+    assertEquals(1, listener.removed.size());
+    assertEquals(RemovalCause.EXPIRED, listener.causes.get(0));
+  }
+
+  @Test
+  public void shouldNotExpireEntriesWithoutAnExpiration() {
+    Cache<String, Long> cache = new CaffeineCacheFactory().newCache(10, -1, ticker, null);
+    cache.put("a", 1L);
+    ticker.tick(1, TimeUnit.DAYS);
+    assertNotNull(cache.getIfPresent("a"));
+  }
+
+  @Test
+  public void shouldKeepFrequentlyUsedEntriesDuringAScan() {
+    int maximumSize = 16;
+    Cache<String, Long> cache =
+        new CaffeineCacheFactory().newCache(maximumSize, -1, ticker, listener);
+    for (int i = 0; i < maximumSize; i++) {
+      cache.put("consumer" + i, (long) i);
+    }
+    for (int i = 0; i < 20; i++) {
+      assertNotNull(cache.getIfPresent("consumer0"));
+    }
+    for (int i = 0; i < 100 * maximumSize; i++) {
+      cache.put("oneOff" + i, (long) i);
+    }
+    cache.cleanUp();
+    assertNotNull(cache.getIfPresent("consumer0"));
+  }
+
+  private static class RecordingListener implements RemovalListener<String, Long> {
+    final List<Long> removed = new ArrayList<>();
+    final List<RemovalCause> causes = new ArrayList<>();
+
+    @Override
+    public void onRemoval(RemovalNotification<String, Long> notification) {
+      removed.add(notification.getValue());
+      causes.add(notification.getCause());
+    }
+  }
+}
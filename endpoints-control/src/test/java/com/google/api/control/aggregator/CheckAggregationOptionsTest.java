@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import com.google.api.servicecontrol.v1.CheckError;
 import com.google.common.cache.Cache;
 
 import org.junit.Test;
@@ -103,6 +104,52 @@ public class CheckAggregationOptionsTest {
     assertEquals(0, cache.size());
   }
 
+  @Test
+  public void shouldFailIfRefreshIsNotBeforeExpiration() {
+    try {
+      new CheckAggregationOptions.Builder().setRefreshMillis(2).setExpirationMillis(2).build();
+      fail("should have raised IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void builderShouldSpecifyTheValuesThatWereSet() {
+    LabelProjection projection = LabelProjection.including("/consumer_tier");
+    CheckAggregationOptions options = new CheckAggregationOptions.Builder()
+        .setNumEntries(2)
+        .setRefreshMillis(3)
+        .setExpirationMillis(4)
+        .setSignatureProjection("aMethod", projection)
+        .setNegativeNumEntries(5)
+        .setNegativeExpirationMillis(CheckError.Code.PERMISSION_DENIED, 6)
+        .setNegativeExpirationMillis(CheckError.Code.API_KEY_INVALID, 0)
+        .build();
+    assertEquals(2, options.getNumEntries());
+    assertEquals(3, options.getRefreshMillis());
+    assertEquals(4, options.getExpirationMillis());
+    assertEquals(projection, options.getSignatureProjection("aMethod"));
+    assertEquals(LabelProjection.ALL, options.getSignatureProjection("otherMethod"));
+    assertEquals(5, options.getNegativeNumEntries());
+    assertEquals(6, options.getNegativeExpirationMillis(CheckError.Code.PERMISSION_DENIED));
+    assertEquals(-1, options.getNegativeExpirationMillis(CheckError.Code.API_KEY_INVALID));
+  }
+
+  @Test
+  public void shouldNotKeepNegativeResponsesApartByDefault() {
+    CheckAggregationOptions options = new CheckAggregationOptions();
+    assertNull(options.createNegativeCache(new FakeTicker()));
+    assertEquals(-1, options.getNegativeExpirationMillis(CheckError.Code.API_KEY_INVALID));
+    assertEquals(false, options.hasConsumerRejections());
+  }
+
+  @Test
+  public void shouldNotRefreshByDefault() {
+    CheckAggregationOptions options = new CheckAggregationOptions();
+    assertEquals(CheckAggregationOptions.NO_REFRESH, options.getRefreshMillis());
+  }
+
   private static ConcurrentLinkedDeque<Long> testDeque() {
     return new ConcurrentLinkedDeque<Long>();
   }
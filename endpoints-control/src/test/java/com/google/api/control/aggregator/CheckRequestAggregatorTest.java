@@ -37,6 +37,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -50,6 +53,7 @@ public class CheckRequestAggregatorTest {
   private static final String CACHING_NAME = "service.caching";
   private static final String DEFAULT_NAME = "service.default";
   private static final String NO_CACHE_NAME = "service.no.cache";
+  private static final String CALLER_IP = "servicecontrol.googleapis.com/caller_ip";
   private static final int TEST_FLUSH_INTERVAL = 1;
   private static final int TEST_EXPIRATION = TEST_FLUSH_INTERVAL + 1;
   private static final Timestamp EARLY = Timestamp.newBuilder().setNanos(1).setSeconds(100).build();
@@ -250,6 +254,216 @@ public class CheckRequestAggregatorTest {
     assertEquals(null, agg.check(req));
   }
 
+  @Test
+  public void shouldServeTheCachedResponseWhileRefreshingIt() {
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckRequestAggregator agg = newRefreshingInstance();
+    final List<CheckRequest> refreshed = new ArrayList<>();
+    agg.setRefresher(new CheckRequestAggregator.Refresher() {
+      @Override
+      public void refresh(CheckRequest r) {
+        refreshed.add(r);
+      }
+    });
+    CheckResponse fakeResponse = fakeResponse();
+    agg.addResponse(req, fakeResponse);
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    assertEquals(fakeResponse, agg.check(req));
+    assertEquals(1, refreshed.size());
+    assertEquals(req, refreshed.get(0));
+    assertEquals(fakeResponse, agg.check(req)); // the refresh is in flight
+    assertEquals(1, refreshed.size());
+
+    CheckResponse refreshedResponse =
+        fakeResponse().toBuilder().setOperationId("refreshed").build();
+    agg.addResponse(req, refreshedResponse);
+    assertEquals(refreshedResponse, agg.check(req));
+  }
+
+  @Test
+  public void shouldExpireResponsesThatAreNotRefreshed() {
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckRequestAggregator agg = newRefreshingInstance();
+    agg.addResponse(req, fakeResponse());
+    ticker.tick(TEST_EXPIRATION, TimeUnit.MILLISECONDS);
+    assertEquals(null, agg.check(req));
+  }
+
+  @Test
+  public void shouldAskTheCallerToRefreshWithoutARefresher() {
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckRequestAggregator agg = newRefreshingInstance();
+    CheckResponse fakeResponse = fakeResponse();
+    agg.addResponse(req, fakeResponse);
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    assertEquals(null, agg.check(req)); // this caller sends the request
+    assertEquals(fakeResponse, agg.check(req));
+  }
+
+  @Test
+  public void shouldRestoreASnapshotWithItsRemainingExpiration() {
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckRequestAggregator agg = newCachingInstance();
+    CheckResponse fakeResponse = fakeResponse();
+    assertEquals(null, agg.check(req));
+    agg.addResponse(req, fakeResponse);
+    ticker.tick(1, TimeUnit.MILLISECONDS);
+    List<CheckRequestAggregator.SnapshotEntry> snapshot = agg.snapshot();
+    assertEquals(1, snapshot.size());
+    assertEquals(TEST_EXPIRATION - 1, snapshot.get(0).getRemainingMillis());
+
+    CheckRequestAggregator restored = newCachingInstance();
+    restored.restore(snapshot);
+    assertEquals(fakeResponse, restored.check(req));
+
+    // expires once the remaining time elapses, before the expiration of a new response
+    ticker.tick(TEST_EXPIRATION - 1, TimeUnit.MILLISECONDS);
+    assertEquals(null, restored.check(req));
+  }
+
+  @Test
+  public void shouldShareResponsesAcrossLabelsLeftOutOfTheSignature() {
+    CheckRequestAggregator agg = new CheckRequestAggregator(CACHING_NAME,
+        new CheckAggregationOptions.Builder()
+            .setNumEntries(1)
+            .setExpirationMillis(TEST_EXPIRATION)
+            .setSignatureProjection(LabelProjection.excluding(CALLER_IP))
+            .build(),
+        ticker);
+    CheckRequest fromOneIp = withLabel(newTestRequest(CACHING_NAME), CALLER_IP, "192.0.2.1");
+    CheckRequest fromAnotherIp = withLabel(newTestRequest(CACHING_NAME), CALLER_IP, "192.0.2.2");
+    CheckResponse fakeResponse = fakeResponse();
+    assertEquals(null, agg.check(fromOneIp));
+    agg.addResponse(fromOneIp, fakeResponse);
+    assertEquals(fakeResponse, agg.check(fromOneIp));
+    assertEquals(0, agg.getProjectedHits());
+    assertEquals(fakeResponse, agg.check(fromAnotherIp));
+    assertEquals(1, agg.getProjectedHits());
+    assertEquals(agg.signature(fromOneIp), agg.signature(fromAnotherIp));
+  }
+
+  @Test
+  public void shouldApplyTheProjectionOfTheMethod() {
+    CheckRequestAggregator agg = new CheckRequestAggregator(CACHING_NAME,
+        new CheckAggregationOptions.Builder()
+            .setNumEntries(1)
+            .setExpirationMillis(TEST_EXPIRATION)
+            .setSignatureProjection(TEST_OPERATION_NAME,
+                LabelProjection.including("/consumer_tier"))
+            .build(),
+        ticker);
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    assertEquals(agg.signature(withLabel(req, CALLER_IP, "192.0.2.1")),
+        agg.signature(withLabel(req, CALLER_IP, "192.0.2.2")));
+    assertNotEquals(agg.signature(withLabel(req, "/consumer_tier", "free")),
+        agg.signature(withLabel(req, "/consumer_tier", "paid")));
+
+    CheckRequest other = req.toBuilder()
+        .setOperation(req.getOperation().toBuilder().setOperationName("otherOperation"))
+        .build();
+    assertNotEquals(agg.signature(withLabel(other, CALLER_IP, "192.0.2.1")),
+        agg.signature(withLabel(other, CALLER_IP, "192.0.2.2")));
+  }
+
+  @Test
+  public void shouldFindCachedResponsesWithoutTheRequest() {
+    CheckRequest req = withLabel(newTestRequest(CACHING_NAME), CALLER_IP, "192.0.2.1");
+    Map<String, String> labels = req.getOperation().getLabelsMap();
+    CheckRequestAggregator agg = newRefreshingInstance();
+    assertEquals(null, agg.checkCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, labels));
+    CheckResponse fakeResponse = fakeResponse();
+    agg.addResponse(req, fakeResponse);
+    assertEquals(fakeResponse, agg.checkCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, labels));
+    assertEquals(agg.signature(req), CheckRequestAggregator.sign(TEST_CONSUMER_ID,
+        TEST_OPERATION_NAME, labels, LabelProjection.ALL));
+
+    // a response that is due to be refreshed is left to check(req)
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    assertEquals(null, agg.checkCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, labels));
+    assertEquals(null, agg.check(req));
+  }
+
+  @Test
+  public void shouldKeepNegativeResponsesApartUntilTheirOwnExpiration() {
+    int negativeExpiration = TEST_EXPIRATION + 2;
+    CheckRequestAggregator agg = new CheckRequestAggregator(CACHING_NAME,
+        newRefreshingOptions()
+            .setNegativeNumEntries(1)
+            .setNegativeExpirationMillis(Code.API_KEY_INVALID, negativeExpiration)
+            .setConsumerRejections(true)
+            .build(),
+        ticker);
+    CheckRequest valid = newTestRequest(CACHING_NAME);
+    CheckRequest rejected = valid.toBuilder()
+        .setOperation(valid.getOperation().toBuilder().setConsumerId("api_key:rejected"))
+        .build();
+    CheckResponse fakeResponse = fakeResponse();
+    CheckResponse invalid = CheckResponse.newBuilder()
+        .addCheckErrors(CheckError.newBuilder().setCode(Code.API_KEY_INVALID))
+        .build();
+    agg.addResponse(valid, fakeResponse);
+    agg.addResponse(rejected, invalid);
+    assertEquals(fakeResponse, agg.check(valid)); // not evicted by the rejection
+    assertEquals(invalid, agg.check(rejected));
+    assertEquals(invalid, agg.checkRejected("api_key:rejected"));
+    assertEquals(null, agg.checkRejected(TEST_CONSUMER_ID));
+
+    // negative responses are not refreshed, and outlive the expiration of other responses
+    ticker.tick(TEST_EXPIRATION, TimeUnit.MILLISECONDS);
+    assertEquals(invalid, agg.check(rejected));
+    assertEquals(null, agg.check(valid));
+    ticker.tick(negativeExpiration - TEST_EXPIRATION, TimeUnit.MILLISECONDS);
+    assertEquals(null, agg.check(rejected));
+    assertEquals(null, agg.checkRejected("api_key:rejected"));
+  }
+
+  @Test
+  public void shouldOnlyRejectTheOperationOfANegativeResponseUnlessConfigured() {
+    CheckRequestAggregator agg = new CheckRequestAggregator(CACHING_NAME,
+        newRefreshingOptions()
+            .setNegativeExpirationMillis(Code.API_KEY_INVALID, TEST_EXPIRATION)
+            .build(),
+        ticker);
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckResponse invalid = CheckResponse.newBuilder()
+        .addCheckErrors(CheckError.newBuilder().setCode(Code.API_KEY_INVALID))
+        .build();
+    agg.addResponse(req, invalid);
+    assertEquals(invalid, agg.check(req));
+    assertEquals(null, agg.checkRejected(TEST_CONSUMER_ID));
+  }
+
+  @Test
+  public void shouldCacheOtherNegativeResponsesLikePositiveOnes() {
+    CheckRequest req = newTestRequest(CACHING_NAME);
+    CheckRequestAggregator agg = newRefreshingInstance();
+    CheckResponse denied = CheckResponse.newBuilder()
+        .addCheckErrors(CheckError.newBuilder().setCode(Code.PERMISSION_DENIED))
+        .build();
+    agg.addResponse(req, denied);
+    assertEquals(denied, agg.check(req));
+    assertEquals(null, agg.checkRejected(TEST_CONSUMER_ID));
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    assertEquals(null, agg.check(req)); // refreshed by this caller
+  }
+
+  private static CheckRequest withLabel(CheckRequest req, String key, String value) {
+    return req.toBuilder()
+        .setOperation(req.getOperation().toBuilder().putLabels(key, value))
+        .build();
+  }
+
+  private CheckRequestAggregator newRefreshingInstance() {
+    return new CheckRequestAggregator(CACHING_NAME, newRefreshingOptions().build(), ticker);
+  }
+
+  private static CheckAggregationOptions.Builder newRefreshingOptions() {
+    return new CheckAggregationOptions.Builder()
+        .setNumEntries(1)
+        .setRefreshMillis(TEST_FLUSH_INTERVAL)
+        .setExpirationMillis(TEST_EXPIRATION);
+  }
+
   private CheckRequestAggregator newCachingInstance() {
     return new CheckRequestAggregator(CACHING_NAME,
         new CheckAggregationOptions(1, TEST_EXPIRATION), ticker);
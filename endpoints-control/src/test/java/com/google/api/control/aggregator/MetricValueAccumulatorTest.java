@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.api.MetricDescriptor.MetricKind;
+import com.google.api.control.model.Distributions;
+import com.google.api.servicecontrol.v1.Distribution;
+import com.google.api.servicecontrol.v1.MetricValue;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnknownFieldSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link MetricValueAccumulator}
+ */
+@RunWith(JUnit4.class)
+public class MetricValueAccumulatorTest {
+  private static final Timestamp EARLY = Timestamp.newBuilder().setNanos(1).setSeconds(100).build();
+  private static final Timestamp LATER = Timestamp.newBuilder().setNanos(2).setSeconds(100).build();
+  private static final MetricValue TEST_VALUE = MetricValue.newBuilder()
+      .putAllLabels(ImmutableMap.of("key1", "value1"))
+      .setEndTime(EARLY)
+      .build();
+  private static final double[] SAMPLES = new double[] {0.2, 0.4, 0.05, 0.9, 0.4, 0.3};
+
+  @Test
+  public void shouldReturnTheInitialValueIfNothingWasAdded() {
+    MetricValue value = TEST_VALUE.toBuilder().setDoubleValue(0.1).build();
+    assertSame(value, new MetricValueAccumulator(MetricKind.DELTA, value).asMetricValue());
+  }
+
+  @Test
+  public void shouldMergeDeltaMetricsLikeMetricValues() {
+    MetricValue[] values = new MetricValue[] {
+        TEST_VALUE.toBuilder().setDoubleValue(0.1).build(),
+        TEST_VALUE.toBuilder().setInt64Value(3L).build(),
+        TEST_VALUE.toBuilder().setDistributionValue(
+            Distributions.createExplicit(new double[] {0.1, 0.3, 0.5})).build()};
+    for (MetricValue initial : values) {
+      MetricValueAccumulator accumulator = new MetricValueAccumulator(MetricKind.DELTA, initial);
+      MetricValue want = initial;
+      for (int i = 0; i < SAMPLES.length; i++) {
+        MetricValue latest = withSample(initial, SAMPLES[i], i % 2 == 0 ? EARLY : LATER);
+        accumulator.add(latest);
+        want = MetricValues.merge(MetricKind.DELTA, want, latest);
+        assertEquals(want, accumulator.asMetricValue());
+      }
+    }
+  }
+
+  @Test
+  public void shouldBuildTheMergedDeltaValueOnTheLatestValue() {
+    MetricValue first = withUnknownField(TEST_VALUE.toBuilder().setInt64Value(1L).build(), 1);
+    MetricValue latest = withUnknownField(first.toBuilder().setEndTime(LATER).build(), 2);
+    MetricValueAccumulator accumulator = new MetricValueAccumulator(MetricKind.DELTA, first);
+    accumulator.add(latest);
+    MetricValue merged = accumulator.asMetricValue();
+    assertEquals(MetricValues.merge(MetricKind.DELTA, first, latest), merged);
+    assertEquals(latest.getUnknownFields(), merged.getUnknownFields());
+    assertEquals(2L, merged.getInt64Value());
+  }
+
+  @Test
+  public void shouldKeepTheValueWithTheLatestEndTimeForNonDeltaKinds() {
+    MetricValue early = TEST_VALUE.toBuilder().setDoubleValue(0.1).build();
+    MetricValue later = early.toBuilder().setEndTime(LATER).build();
+    MetricKind[] nonDeltas =
+        new MetricKind[] {MetricKind.CUMULATIVE, MetricKind.GAUGE, MetricKind.UNRECOGNIZED};
+    for (MetricKind kind : nonDeltas) {
+      MetricValueAccumulator accumulator = new MetricValueAccumulator(kind, early);
+      accumulator.add(later);
+      accumulator.add(early);
+      assertSame(later, accumulator.asMetricValue());
+    }
+  }
+
+  @Test
+  public void shouldFailForUnmergeableValues() {
+    MetricValue doubleValue = TEST_VALUE.toBuilder().setDoubleValue(0.1).build();
+    MetricValue[][] unmergeables = new MetricValue[][] {
+        {doubleValue, TEST_VALUE.toBuilder().setInt64Value(1L).build()},
+        {TEST_VALUE.toBuilder().setBoolValue(true).build(),
+            TEST_VALUE.toBuilder().setBoolValue(true).build()},
+        {TEST_VALUE, TEST_VALUE},
+        {TEST_VALUE.toBuilder()
+            .setDistributionValue(Distributions.createExplicit(new double[] {0.1, 0.3})).build(),
+            TEST_VALUE.toBuilder()
+                .setDistributionValue(Distributions.createLinear(2, 0.2, 0.1)).build()}};
+    for (MetricValue[] pair : unmergeables) {
+      MetricValueAccumulator accumulator = new MetricValueAccumulator(MetricKind.DELTA, pair[0]);
+      try {
+        accumulator.add(pair[1]);
+        fail("Should have raised IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  private static MetricValue withUnknownField(MetricValue value, long fieldValue) {
+    UnknownFieldSet unknown = UnknownFieldSet.newBuilder()
+        .addField(1000, UnknownFieldSet.Field.newBuilder().addVarint(fieldValue).build())
+        .build();
+    return value.toBuilder().setUnknownFields(unknown).build();
+  }
+
+  private static MetricValue withSample(MetricValue value, double sample, Timestamp endTime) {
+    MetricValue.Builder builder = value.toBuilder().setEndTime(endTime);
+    switch (value.getValueCase()) {
+      case DOUBLE_VALUE:
+        return builder.setDoubleValue(sample).build();
+      case INT64_VALUE:
+        return builder.setInt64Value((long) (sample * 10)).build();
+      default:
+        Distribution d = Distributions.addSample(sample, value.getDistributionValue());
+        return builder.setDistributionValue(d).build();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MpscRingBuffer}.
+ */
+@RunWith(JUnit4.class)
+public class MpscRingBufferTest {
+  @Test
+  public void capacityShouldBeRoundedUpToAPowerOfTwo() {
+    assertEquals(1, new MpscRingBuffer<String>(1).capacity());
+    assertEquals(8, new MpscRingBuffer<String>(5).capacity());
+    assertEquals(8, new MpscRingBuffer<String>(8).capacity());
+  }
+
+  @Test
+  public void pollShouldReturnTheElementsInOrder() {
+    MpscRingBuffer<String> buffer = new MpscRingBuffer<>(4);
+    assertTrue(buffer.isEmpty());
+    assertTrue(buffer.offer("first"));
+    assertTrue(buffer.offer("second"));
+    assertFalse(buffer.isEmpty());
+    assertEquals("first", buffer.poll());
+    assertEquals("second", buffer.poll());
+    assertNull(buffer.poll());
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void offerShouldFailWhenFullUntilAnElementIsPolled() {
+    MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(2);
+    assertTrue(buffer.offer(1));
+    assertTrue(buffer.offer(2));
+    assertFalse(buffer.offer(3));
+    assertEquals(Integer.valueOf(1), buffer.poll());
+    assertTrue(buffer.offer(3)); // reuses the slot of the first element
+    assertEquals(Integer.valueOf(2), buffer.poll());
+    assertEquals(Integer.valueOf(3), buffer.poll());
+  }
+
+  @Test
+  public void elementsOfConcurrentProducersShouldAllBePolledInTheirOrder() throws Exception {
+    final int producers = 4;
+    final int perProducer = 10000;
+    final MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(64);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perProducer; i++) {
+            while (!buffer.offer(new int[] {producer, i})) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    int[] next = new int[producers];
+    int polled = 0;
+    while (polled < producers * perProducer) {
+      int[] element = buffer.poll();
+      if (element == null) {
+        Thread.yield();
+        continue;
+      }
+      assertEquals(next[element[0]]++, element[1]);
+      polled++;
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(buffer.isEmpty());
+  }
+}
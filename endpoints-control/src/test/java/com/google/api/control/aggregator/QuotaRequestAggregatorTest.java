@@ -20,8 +20,10 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
 import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.MetricValue;
 import com.google.api.servicecontrol.v1.MetricValueSet;
 import com.google.api.servicecontrol.v1.QuotaOperation;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 
 import org.junit.Before;
@@ -29,6 +31,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -94,6 +98,36 @@ public class QuotaRequestAggregatorTest {
     assertThat(DEFAULT.flush()).hasSize(1);
   }
 
+  @Test
+  public void cachedResponseWithoutBuildingTheRequest() {
+    AllocateQuotaRequest req = DEFAULT_REQUEST.toBuilder()
+        .setAllocateOperation(DEFAULT_REQUEST.getAllocateOperation().toBuilder()
+            .clearQuotaMetrics()
+            .addQuotaMetrics(newCost(TEST_METRIC_NAME1, 2))
+            .addQuotaMetrics(newCost(TEST_METRIC_NAME2, 1)))
+        .build();
+    Map<String, Long> costs = ImmutableMap.of(TEST_METRIC_NAME1, 2L, TEST_METRIC_NAME2, 0L);
+    assertThat(DEFAULT.allocateQuotaCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, costs)).isNull();
+    DEFAULT.allocateQuota(req);
+    // nothing is pending to add the costs to while the first request is in flight
+    assertThat(DEFAULT.allocateQuotaCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, costs)).isNull();
+    DEFAULT.allocateQuota(req);
+    assertThat(DEFAULT.allocateQuotaCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, costs))
+        .isEqualTo(DEFAULT_RESPONSE);
+
+    DEFAULT.cacheResponse(req, DEFAULT_RESPONSE);
+    ticker.tick(options.getRefreshMillis(), TimeUnit.MILLISECONDS);
+    assertThat(DEFAULT.allocateQuotaCached(TEST_CONSUMER_ID, TEST_OPERATION_NAME, costs)).isNull();
+    DEFAULT.allocateQuota(req);
+    List<AllocateQuotaRequest> flushed = DEFAULT.flush();
+    assertThat(flushed).hasSize(2); // the first request and the refresh
+    QuotaOperation refresh = flushed.get(1).getAllocateOperation();
+    for (MetricValueSet mvSet : refresh.getQuotaMetricsList()) {
+      long want = mvSet.getMetricName().equals(TEST_METRIC_NAME1) ? 4 : 2;
+      assertThat(mvSet.getMetricValues(0).getInt64Value()).isEqualTo(want);
+    }
+  }
+
   @Test
   public void sign_metricOrderDoesntMatter() {
     HashCode sign = QuotaRequestAggregator.sign(DEFAULT_REQUEST);
@@ -108,4 +142,11 @@ public class QuotaRequestAggregatorTest {
         .build();
     assertThat(QuotaRequestAggregator.sign(reversedRequest)).isEqualTo(sign);
   }
+
+  private static MetricValueSet newCost(String metricName, long cost) {
+    return MetricValueSet.newBuilder()
+        .setMetricName(metricName)
+        .addMetricValues(MetricValue.newBuilder().setInt64Value(cost))
+        .build();
+  }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.servicecontrol.v1.CheckError;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.common.cache.Cache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link RejectedConsumers}.
+ */
+@RunWith(JUnit4.class)
+public class RejectedConsumersTest {
+  private static final CheckResponse INVALID = CheckResponse.newBuilder()
+      .addCheckErrors(CheckError.newBuilder().setCode(CheckError.Code.API_KEY_INVALID))
+      .build();
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void shouldFindRejectionsUntilTheyExpire() {
+    RejectedConsumers rejected = newInstance(10);
+    rejected.add("api_key:a", INVALID, TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(INVALID, rejected.find("api_key:a"));
+    assertNull(rejected.find("api_key:b"));
+    ticker.tick(5, TimeUnit.MILLISECONDS);
+    assertNull(rejected.find("api_key:a"));
+  }
+
+  @Test
+  public void shouldFindRejectionsAfterTheFilterIsReplaced() {
+    RejectedConsumers rejected = newInstance(2);
+    rejected.add("api_key:a", INVALID, Long.MAX_VALUE);
+    rejected.add("api_key:b", INVALID, Long.MAX_VALUE);
+    rejected.add("api_key:c", INVALID, Long.MAX_VALUE); // replaces the filter
+    assertEquals(INVALID, rejected.find("api_key:a"));
+    assertEquals(INVALID, rejected.find("api_key:c"));
+  }
+
+  @Test
+  public void shouldForgetConsumersThatPassed() {
+    RejectedConsumers rejected = newInstance(10);
+    rejected.add("api_key:a", INVALID, Long.MAX_VALUE);
+    rejected.remove("api_key:a");
+    assertNull(rejected.find("api_key:a"));
+  }
+
+  private RejectedConsumers newInstance(int filterSize) {
+    Cache<String, RejectedConsumers.Rejection> cache =
+        new GuavaCacheFactory().newCache(10, -1, ticker, null);
+    return new RejectedConsumers(cache, filterSize, ticker);
+  }
+}
@@ -122,6 +122,24 @@ public class ReportAggregationOptionsTest {
     assertEquals(1, deque.size());
   }
 
+  @Test
+  public void shouldSplitTheEntriesAcrossTheShards() {
+    ReportAggregationOptions options = new ReportAggregationOptions(10,
+        ReportAggregationOptions.DEFAULT_FLUSH_CACHE_ENTRY_INTERVAL_MILLIS, -1, -1, 0,
+        new GuavaCacheFactory(), 4);
+    assertEquals(4, options.getShardCount());
+    assertEquals(3, options.getShardNumEntries());
+    assertEquals(1, new ReportAggregationOptions().getShardCount());
+
+    ConcurrentLinkedDeque<Long> deque = testDeque();
+    Cache<String, Long> cache = options.createCache(deque);
+    for (long i = 0; i < 4; i++) {
+      cache.put("key" + i, i);
+    }
+    assertEquals(3, cache.size());
+    assertEquals(1, deque.size());
+  }
+
   private static ConcurrentLinkedDeque<Long> testDeque() {
     return new ConcurrentLinkedDeque<Long>();
   }
@@ -21,15 +21,22 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.api.servicecontrol.v1.MetricValue;
+import com.google.api.servicecontrol.v1.MetricValueSet;
 import com.google.api.servicecontrol.v1.Operation;
 import com.google.api.servicecontrol.v1.ReportRequest;
 import com.google.api.servicecontrol.v1.ReportRequest.Builder;
+import com.google.common.base.Ticker;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -98,6 +105,22 @@ public class ReportRequestAggregatorTest {
     assertEquals(6, flushed[0].getOperationsCount());
   }
 
+  @Test
+  public void whenCachingWithCaffeineShouldBatchRequestsOnFlush() {
+    ReportAggregationOptions options = new ReportAggregationOptions(
+        ReportAggregationOptions.DEFAULT_NUM_ENTRIES, TEST_FLUSH_INTERVAL, -1, -1, 0,
+        new CaffeineCacheFactory());
+    ReportRequestAggregator agg = new ReportRequestAggregator(CACHING_NAME, options,
+        /* default MetricKinds */ null, ticker);
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 3, 0)));
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 3, 3)));
+    assertEquals(0 /* before flush */, agg.flush().length);
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    ReportRequest[] flushed = agg.flush();
+    assertEquals(1, flushed.length);
+    assertEquals(6, flushed[0].getOperationsCount());
+  }
+
   @Test
   public void whenCachingShouldAggregateOperations() {
     int n = 261; // arbitrary
@@ -148,6 +171,181 @@ public class ReportRequestAggregatorTest {
     }
   }
 
+  @Test
+  public void whenCachingShouldBeDueForFlushAtTheOperationThreshold() {
+    ReportRequestAggregator agg = thresholdAggregator(4, -1);
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 3, 0)));
+    assertFalse(agg.isFlushDue());
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 1, 3)));
+    assertTrue(agg.isFlushDue());
+
+    // flushPending does not wait for the entries to expire
+    ReportRequest[] flushed = agg.flushPending();
+    assertEquals(1, flushed.length);
+    assertEquals(4, flushed[0].getOperationsCount());
+    assertFalse(agg.isFlushDue());
+    assertEquals(0, agg.flushPending().length);
+  }
+
+  @Test
+  public void whenCachingShouldBeDueForFlushAtTheByteThreshold() {
+    ReportRequest req = createTestRequest(CACHING_NAME, Operation.Importance.LOW, 2, 0);
+    long bytes =
+        req.getOperations(0).getSerializedSize() + req.getOperations(1).getSerializedSize();
+    ReportRequestAggregator agg = thresholdAggregator(-1, (int) (2 * bytes));
+    assertTrue(agg.report(req));
+    assertEquals(bytes, agg.getPendingBytes());
+    assertFalse(agg.isFlushDue());
+
+    // aggregating the same operations again still adds to the estimate
+    assertTrue(agg.report(req));
+    assertTrue(agg.isFlushDue());
+    assertEquals(1, agg.flushPending().length);
+    assertEquals(0, agg.getPendingBytes());
+  }
+
+  @Test
+  public void whenCachingShouldRecomputePendingBytesOnFlush() {
+    ReportRequestAggregator agg = thresholdAggregator(-1, -1);
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 2, 0)));
+    assertTrue(agg.getPendingBytes() > 0);
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    assertEquals(1, agg.flush().length);
+    assertEquals(0, agg.getPendingBytes());
+  }
+
+  @Test
+  public void whenNonCachingShouldNeverBeDueForFlush() {
+    assertFalse(NO_CACHE.isFlushDue());
+    assertEquals(0, NO_CACHE.flushPending().length);
+  }
+
+  @Test
+  public void whenBufferingShouldAggregateLikeTheCache() {
+    ReportRequestAggregator agg = bufferingAggregator(4);
+    for (int i = 0; i < 10; i++) { // more than the buffer holds
+      assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 2, 0)));
+    }
+    assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 1, 2)));
+    assertFalse(agg.hasBufferedOperations()); // the reporting thread drained them
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    ReportRequest[] flushed = agg.flush();
+    assertEquals(1, flushed.length);
+    assertEquals(3, flushed[0].getOperationsCount());
+  }
+
+  @Test
+  public void whenBufferingShouldNotLoseConcurrentReports() throws InterruptedException {
+    final ReportRequestAggregator agg = bufferingAggregator(8);
+    final int threads = 4;
+    final int perThread = 200; // fewer operations than the cache holds
+    List<Thread> reporters = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int start = t * perThread;
+      Thread reporter = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 1, start + i));
+          }
+        }
+      });
+      reporter.start();
+      reporters.add(reporter);
+    }
+    for (Thread reporter : reporters) {
+      reporter.join();
+    }
+    int operations = 0;
+    for (ReportRequest req : agg.flushPending()) {
+      operations += req.getOperationsCount();
+    }
+    assertEquals(threads * perThread, operations);
+  }
+
+  @Test
+  public void whenShardedShouldMergeTheShardsIntoFullRequests() {
+    ReportRequestAggregator agg = shardedAggregator(4);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 1200, 0)));
+    }
+    ReportRequest[] flushed = agg.flushPending();
+    assertEquals(2, flushed.length);
+    assertEquals(ReportRequestAggregator.MAX_OPERATION_COUNT, flushed[0].getOperationsCount());
+    assertEquals(200, flushed[1].getOperationsCount());
+    assertEquals(0, agg.getPendingBytes());
+  }
+
+  @Test
+  public void whenShardedShouldNotLoseConcurrentReports() throws InterruptedException {
+    final ReportRequestAggregator agg = shardedAggregator(4);
+    final int threads = 4;
+    final int perThread = 200;
+    List<Thread> reporters = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread reporter = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            agg.report(createTestRequest(CACHING_NAME, Operation.Importance.LOW, 2, i));
+          }
+        }
+      });
+      reporter.start();
+      reporters.add(reporter);
+    }
+    for (Thread reporter : reporters) {
+      reporter.join();
+    }
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    int operations = 0;
+    for (ReportRequest req : agg.flush()) {
+      operations += req.getOperationsCount();
+    }
+    assertEquals(perThread + 1, operations); // every thread reported the same operations
+  }
+
+  @Test
+  public void shouldNotLoseOperationsExpiredByTheExpiryExecutor() throws InterruptedException {
+    ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ReportAggregationOptions options = new ReportAggregationOptions(
+          ReportAggregationOptions.DEFAULT_NUM_ENTRIES, TEST_FLUSH_INTERVAL, -1, -1, 0,
+          new CaffeineCacheFactory(expiryExecutor), 1);
+      ReportRequestAggregator agg = new ReportRequestAggregator(CACHING_NAME, options,
+          /* default MetricKinds */ null, Ticker.systemTicker());
+
+      // the executor removes expired entries while this thread flushes
+      int reported = 0;
+      int flushed = 0;
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      while (System.nanoTime() < deadline) {
+        assertTrue(agg.report(
+            createTestRequest(CACHING_NAME, Operation.Importance.LOW, 1, reported++)));
+        if (reported % 10 == 0) {
+          flushed += countOperations(agg.flush());
+          Thread.sleep(1);
+        }
+      }
+      deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (flushed < reported && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+        flushed += countOperations(agg.flush());
+      }
+      assertEquals(reported, flushed);
+    } finally {
+      expiryExecutor.shutdownNow();
+    }
+  }
+
+  private static int countOperations(ReportRequest[] requests) {
+    int operations = 0;
+    for (ReportRequest req : requests) {
+      operations += req.getOperationsCount();
+    }
+    return operations;
+  }
+
   private ReportRequest createTestRequest(String serviceName, Operation.Importance imp, int numOps,
       int opStartIndex) {
     Operation.Builder ob =
@@ -169,4 +367,57 @@ public class ReportRequestAggregatorTest {
     return new ReportRequestAggregator(CACHING_NAME, options, /* default MetricKinds */ null,
         ticker);
   }
+
+  @Test
+  public void whenBufferingShouldDropOperationsThatCannotBeMerged() {
+    ReportRequestAggregator agg = bufferingAggregator(4);
+    Operation.Builder op = Operation.newBuilder()
+        .setConsumerId(TEST_CONSUMER_ID)
+        .setOperationName("testOp")
+        .setImportance(Operation.Importance.LOW);
+    MetricValueSet.Builder metric = MetricValueSet.newBuilder().setMetricName("aMetric");
+    Operation withInt64 = op.clone()
+        .addMetricValueSets(
+            metric.clone().addMetricValues(MetricValue.newBuilder().setInt64Value(1)))
+        .build();
+    Operation withDouble = op.clone()
+        .addMetricValueSets(
+            metric.clone().addMetricValues(MetricValue.newBuilder().setDoubleValue(1)))
+        .build();
+    assertTrue(agg.report(newRequest(withInt64)));
+    assertTrue(agg.report(newRequest(withDouble))); // different types of value do not merge
+
+    ticker.tick(TEST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    ReportRequest[] flushed = agg.flush();
+    assertEquals(1, flushed.length);
+    assertEquals(withInt64, flushed[0].getOperations(0));
+  }
+
+  private static ReportRequest newRequest(Operation op) {
+    return ReportRequest.newBuilder().setServiceName(CACHING_NAME).addOperations(op).build();
+  }
+
+  private ReportRequestAggregator bufferingAggregator(int ingestionBufferSize) {
+    ReportAggregationOptions options = new ReportAggregationOptions(
+        ReportAggregationOptions.DEFAULT_NUM_ENTRIES, TEST_FLUSH_INTERVAL, -1, -1,
+        ingestionBufferSize);
+    return new ReportRequestAggregator(CACHING_NAME, options, /* default MetricKinds */ null,
+        ticker);
+  }
+
+  private ReportRequestAggregator shardedAggregator(int shardCount) {
+    ReportAggregationOptions options = new ReportAggregationOptions(
+        2 * ReportAggregationOptions.DEFAULT_NUM_ENTRIES, TEST_FLUSH_INTERVAL, -1, -1, 0,
+        new GuavaCacheFactory(), shardCount);
+    return new ReportRequestAggregator(CACHING_NAME, options, /* default MetricKinds */ null,
+        ticker);
+  }
+
+  private ReportRequestAggregator thresholdAggregator(int operationThreshold, int byteThreshold) {
+    ReportAggregationOptions options = new ReportAggregationOptions(
+        ReportAggregationOptions.DEFAULT_NUM_ENTRIES, TEST_FLUSH_INTERVAL, operationThreshold,
+        byteThreshold);
+    return new ReportRequestAggregator(CACHING_NAME, options, /* default MetricKinds */ null,
+        ticker);
+  }
 }
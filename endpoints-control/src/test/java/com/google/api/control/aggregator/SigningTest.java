@@ -18,6 +18,7 @@ package com.google.api.control.aggregator;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
@@ -62,4 +63,40 @@ public class SigningTest {
     assertNotEquals(Signing.putLabels(hasher1, copy1).hash(),
         Signing.putLabels(hasher2, copy2).hash());
   }
+
+  @Test
+  public void putLabelsShouldOnlyAddTheProjectedLabels() {
+    HashMap<String, String> copy = Maps.newHashMap(TEST_LABELS);
+    copy.put("key2", "changed!");
+    HashFunction hf = Hashing.md5();
+    LabelProjection projection = LabelProjection.excluding("key2");
+    assertEquals(Signing.putLabels(hf.newHasher(), TEST_LABELS, projection).hash(),
+        Signing.putLabels(hf.newHasher(), copy, projection).hash());
+    assertEquals(Signing.putLabels(hf.newHasher(), TEST_LABELS).hash(),
+        Signing.putLabels(hf.newHasher(), TEST_LABELS, LabelProjection.ALL).hash());
+    assertNotEquals(Signing.putLabels(hf.newHasher(), TEST_LABELS, projection).hash(),
+        Signing.putLabels(hf.newHasher(), TEST_LABELS, LabelProjection.including("key2")).hash());
+  }
+
+  @Test
+  public void newHasherShouldUseTheConfiguredHashFunction() {
+    assertEquals(128, Signing.newHasher().hash().bits());
+    try {
+      Signing.setHashFunction(Hashing.sha256());
+      assertEquals(256, Signing.newHasher().hash().bits());
+    } finally {
+      Signing.setHashFunction(Hashing.murmur3_128());
+    }
+  }
+
+  @Test
+  public void setHashFunctionShouldRejectShortHashes() {
+    try {
+      Signing.setHashFunction(Hashing.crc32());
+      fail("should have raised IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(Hashing.murmur3_128(), Signing.getHashFunction());
+  }
 }
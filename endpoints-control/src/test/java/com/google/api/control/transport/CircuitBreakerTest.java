@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.google.api.control.aggregator.FakeTicker;
+import com.google.api.control.transport.CircuitBreaker.State;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ */
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+  private static final int WINDOW_SIZE = 4;
+  private static final long SLOW_CALL_MILLIS = 100;
+  private static final long OPEN_MILLIS = 1000;
+
+  private FakeTicker ticker;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    breaker = new CircuitBreaker(0.5, WINDOW_SIZE, SLOW_CALL_MILLIS, OPEN_MILLIS, ticker);
+  }
+
+  @Test
+  public void shouldStayClosedBelowTheFailureRate() {
+    recordCalls(true, false, false, false, true, false);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getTripCount());
+  }
+
+  @Test
+  public void shouldNotTripBeforeTheWindowIsFull() {
+    recordCalls(false, false, false);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void shouldTripAtTheFailureRateAndRefuseCalls() {
+    recordCalls(true, false, true, false);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(1, breaker.getTripCount());
+    assertEquals(CircuitBreaker.NO_PERMIT, breaker.tryAcquire());
+  }
+
+  @Test
+  public void shouldCountSlowCallsAsFailures() {
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      breaker.onSuccess(acquire(), TimeUnit.MILLISECONDS.toNanos(SLOW_CALL_MILLIS + 1));
+    }
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void shouldAllowASingleProbeAfterTheOpenTime() {
+    recordCalls(false, false, false, false);
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    acquire();
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.NO_PERMIT, breaker.tryAcquire()); // the probe is in flight
+  }
+
+  @Test
+  public void aSuccessfulProbeShouldClose() {
+    recordCalls(false, false, false, false);
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    breaker.onSuccess(acquire(), 0);
+    assertEquals(State.CLOSED, breaker.getState());
+    acquire();
+  }
+
+  @Test
+  public void aFailedProbeShouldOpenAgain() {
+    recordCalls(false, false, false, false);
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    breaker.onFailure(acquire());
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(2, breaker.getTripCount());
+    assertEquals(CircuitBreaker.NO_PERMIT, breaker.tryAcquire());
+  }
+
+  @Test
+  public void onlyTheProbeShouldDecideWhetherAHalfOpenBreakerCloses() {
+    long started = acquire();
+    recordCalls(false, false, false, false);
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    long probe = acquire();
+    breaker.onSuccess(started, 0); // started before the breaker tripped
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.NO_PERMIT, breaker.tryAcquire()); // the probe is still in flight
+    breaker.onFailure(probe);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void callsStartedBeforeATripShouldNotCountOnceClosedAgain() {
+    long started = acquire();
+    recordCalls(false, false, false, false);
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    breaker.onSuccess(acquire(), 0);
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.onFailure(started);
+    recordCalls(false, true, true, true);
+    assertEquals(State.CLOSED, breaker.getState()); // one failure in the window
+  }
+
+  @Test
+  public void shouldNotifyTheListener() {
+    final List<String> events = new ArrayList<>();
+    breaker.setListener(new CircuitBreaker.Listener() {
+      @Override
+      public void onStateChange(State from, State to) {
+        events.add(from + "->" + to);
+      }
+
+      @Override
+      public void onRejected() {
+        events.add("rejected");
+      }
+    });
+    recordCalls(false, false, false, false);
+    breaker.tryAcquire();
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    breaker.onSuccess(breaker.tryAcquire(), 0);
+    assertEquals(4, events.size());
+    assertEquals("CLOSED->OPEN", events.get(0));
+    assertEquals("rejected", events.get(1));
+    assertEquals("OPEN->HALF_OPEN", events.get(2));
+    assertEquals("HALF_OPEN->CLOSED", events.get(3));
+  }
+
+  private void recordCalls(boolean... succeeded) {
+    for (boolean s : succeeded) {
+      long permit = acquire();
+      if (s) {
+        breaker.onSuccess(permit, 0);
+      } else {
+        breaker.onFailure(permit);
+      }
+    }
+  }
+
+  private long acquire() {
+    long permit = breaker.tryAcquire();
+    assertNotEquals(CircuitBreaker.NO_PERMIT, permit);
+    return permit;
+  }
+}
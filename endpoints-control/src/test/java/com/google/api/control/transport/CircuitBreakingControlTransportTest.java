@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.control.aggregator.FakeTicker;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CircuitBreakingControlTransport}.
+ */
+@RunWith(JUnit4.class)
+public class CircuitBreakingControlTransportTest {
+  private static final String TEST_SERVICE_NAME = "a-service";
+  private static final long OPEN_MILLIS = 1000;
+
+  private FakeTicker ticker;
+  private InMemoryControlTransport delegate;
+  private CircuitBreakingControlTransport transport;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    delegate = new InMemoryControlTransport();
+    transport = new CircuitBreakingControlTransport(delegate,
+        new CircuitBreaker(0.5, 2, 100, OPEN_MILLIS, ticker));
+  }
+
+  @Test
+  public void shouldPassCallsThroughWhileClosed() throws IOException {
+    assertEquals(CheckResponse.getDefaultInstance(),
+        transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance()));
+    transport.report(TEST_SERVICE_NAME, ReportRequest.getDefaultInstance());
+    assertEquals(1, delegate.getCheckCount());
+    assertEquals(1, delegate.getReportCount());
+  }
+
+  @Test
+  public void shouldFailFastWithoutCallingOnceTripped() {
+    delegate.failNext(2);
+    checkAndExpectFailure();
+    checkAndExpectFailure();
+    assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreaker().getState());
+    try {
+      transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+      fail("the breaker should have refused the call");
+    } catch (CircuitBreakingControlTransport.CircuitBreakerOpenException expected) {
+      // expected
+    } catch (IOException e) {
+      fail("unexpected failure " + e);
+    }
+    assertEquals(2, delegate.getCheckCount());
+  }
+
+  @Test
+  public void shouldCloseAfterASuccessfulProbe() throws IOException {
+    delegate.failNext(2);
+    checkAndExpectFailure();
+    checkAndExpectFailure();
+    ticker.tick(OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+    assertEquals(CircuitBreaker.State.CLOSED, transport.getCircuitBreaker().getState());
+    assertEquals(3, delegate.getCheckCount());
+  }
+
+  @Test
+  public void shouldNotGuardReports() throws IOException {
+    delegate.failNext(2);
+    reportAndExpectFailure();
+    reportAndExpectFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, transport.getCircuitBreaker().getState());
+
+    delegate.failNext(2);
+    checkAndExpectFailure();
+    checkAndExpectFailure();
+    assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreaker().getState());
+    transport.report(TEST_SERVICE_NAME, ReportRequest.getDefaultInstance());
+    assertEquals(3, delegate.getReportCount());
+  }
+
+  private void reportAndExpectFailure() {
+    try {
+      transport.report(TEST_SERVICE_NAME, ReportRequest.getDefaultInstance());
+      fail("the report should have failed");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  private void checkAndExpectFailure() {
+    try {
+      transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+      fail("the check should have failed");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+}
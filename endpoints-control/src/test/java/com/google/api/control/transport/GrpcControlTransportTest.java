@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.servicecontrol.v1.AllocateQuotaRequest;
+import com.google.api.servicecontrol.v1.AllocateQuotaResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.QuotaControllerGrpc;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.api.servicecontrol.v1.ServiceControllerGrpc;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@code GrpcControlTransport}, using an in-process gRPC server.
+ */
+@RunWith(JUnit4.class)
+public class GrpcControlTransportTest {
+  private static final String TEST_SERVICE_NAME = "testServiceName";
+  private static final String TEST_CONFIG_ID = "testConfigId";
+
+  @Rule
+  public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final FakeServiceController serviceController = new FakeServiceController();
+  private final FakeQuotaController quotaController = new FakeQuotaController();
+  private GrpcControlTransport transport;
+
+  @Before
+  public void setUp() throws IOException {
+    String serverName = InProcessServerBuilder.generateName();
+    grpcCleanup.register(InProcessServerBuilder.forName(serverName)
+        .directExecutor()
+        .addService(serviceController)
+        .addService(quotaController)
+        .build()
+        .start());
+    transport = new GrpcControlTransport(
+        grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()),
+        null);
+  }
+
+  @Test
+  public void checkShouldReturnTheServerResponse() throws IOException {
+    CheckResponse resp = transport.check(TEST_SERVICE_NAME,
+        CheckRequest.newBuilder().setServiceName(TEST_SERVICE_NAME).build());
+    assertEquals(TEST_CONFIG_ID, resp.getServiceConfigId());
+    assertEquals(1, serviceController.checks.get());
+  }
+
+  @Test
+  public void checkShouldSetTheServiceName() throws IOException {
+    transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+    assertEquals(TEST_SERVICE_NAME, serviceController.lastServiceName);
+  }
+
+  @Test
+  public void allocateQuotaShouldReturnTheServerResponse() throws IOException {
+    AllocateQuotaResponse resp = transport.allocateQuota(TEST_SERVICE_NAME,
+        AllocateQuotaRequest.newBuilder().setServiceName(TEST_SERVICE_NAME).build());
+    assertEquals(TEST_CONFIG_ID, resp.getServiceConfigId());
+    assertEquals(1, quotaController.allocations.get());
+  }
+
+  @Test
+  public void reportShouldReturnTheServerResponse() throws IOException {
+    ReportResponse resp = transport.report(TEST_SERVICE_NAME,
+        ReportRequest.newBuilder().setServiceName(TEST_SERVICE_NAME).build());
+    assertEquals(TEST_CONFIG_ID, resp.getServiceConfigId());
+    assertEquals(1, serviceController.reports.get());
+  }
+
+  @Test
+  public void callsShouldShareOneChannel() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+      transport.allocateQuota(TEST_SERVICE_NAME, AllocateQuotaRequest.getDefaultInstance());
+      transport.report(TEST_SERVICE_NAME, ReportRequest.getDefaultInstance());
+    }
+    assertEquals(3, serviceController.checks.get());
+    assertEquals(3, serviceController.reports.get());
+    assertEquals(3, quotaController.allocations.get());
+  }
+
+  @Test
+  public void failedCallsShouldRaiseIOException() {
+    serviceController.failWith = Status.UNAVAILABLE;
+    try {
+      transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+      fail("Should have raised IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static class FakeServiceController
+      extends ServiceControllerGrpc.ServiceControllerImplBase {
+    final AtomicInteger checks = new AtomicInteger();
+    final AtomicInteger reports = new AtomicInteger();
+    volatile String lastServiceName;
+    volatile Status failWith;
+
+    @Override
+    public void check(CheckRequest request, StreamObserver<CheckResponse> responseObserver) {
+      lastServiceName = request.getServiceName();
+      if (failWith != null) {
+        responseObserver.onError(failWith.asRuntimeException());
+        return;
+      }
+      checks.incrementAndGet();
+      responseObserver.onNext(
+          CheckResponse.newBuilder().setServiceConfigId(TEST_CONFIG_ID).build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void report(ReportRequest request, StreamObserver<ReportResponse> responseObserver) {
+      reports.incrementAndGet();
+      responseObserver.onNext(
+          ReportResponse.newBuilder().setServiceConfigId(TEST_CONFIG_ID).build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  private static class FakeQuotaController extends QuotaControllerGrpc.QuotaControllerImplBase {
+    final AtomicInteger allocations = new AtomicInteger();
+
+    @Override
+    public void allocateQuota(AllocateQuotaRequest request,
+        StreamObserver<AllocateQuotaResponse> responseObserver) {
+      allocations.incrementAndGet();
+      responseObserver.onNext(
+          AllocateQuotaResponse.newBuilder().setServiceConfigId(TEST_CONFIG_ID).build());
+      responseObserver.onCompleted();
+    }
+  }
+}
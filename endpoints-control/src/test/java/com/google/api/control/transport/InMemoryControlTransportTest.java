@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.api.control.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@code InMemoryControlTransport}.
+ */
+@RunWith(JUnit4.class)
+public class InMemoryControlTransportTest {
+  private static final String TEST_SERVICE_NAME = "testServiceName";
+
+  @Test
+  public void shouldReturnTheConfiguredResponse() throws IOException {
+    CheckResponse configured = CheckResponse.newBuilder().setOperationId("anOperation").build();
+    InMemoryControlTransport transport = new InMemoryControlTransport()
+        .setCheckResponse(configured);
+    assertEquals(configured, transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance()));
+    assertEquals(1, transport.getCheckCount());
+  }
+
+  @Test
+  public void shouldCountReportedOperations() throws IOException {
+    InMemoryControlTransport transport = new InMemoryControlTransport();
+    ReportRequest req = ReportRequest.newBuilder()
+        .addOperations(Operation.getDefaultInstance())
+        .addOperations(Operation.getDefaultInstance())
+        .build();
+    transport.report(TEST_SERVICE_NAME, req);
+    transport.report(TEST_SERVICE_NAME, req);
+    assertEquals(2, transport.getReportCount());
+    assertEquals(4, transport.getReportedOperationCount());
+  }
+
+  @Test
+  public void failNextShouldFailTheFollowingCalls() throws IOException {
+    InMemoryControlTransport transport = new InMemoryControlTransport().failNext(2);
+    for (int i = 0; i < 2; i++) {
+      try {
+        transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+        fail("Should have raised IOException");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+    assertEquals(2, transport.getFailureCount());
+    assertEquals(3, transport.getCheckCount());
+  }
+
+  @Test
+  public void failureRateShouldFailSomeCalls() {
+    InMemoryControlTransport transport =
+        new InMemoryControlTransport(new Random(42)).setFailureRate(0.5);
+    int failed = 0;
+    for (int i = 0; i < 1000; i++) {
+      try {
+        transport.report(TEST_SERVICE_NAME, ReportRequest.getDefaultInstance());
+      } catch (IOException e) {
+        failed++;
+      }
+    }
+    assertTrue(failed > 400 && failed < 600);
+    assertEquals(failed, transport.getFailureCount());
+  }
+
+  @Test
+  public void shouldApplyTheConfiguredLatency() throws IOException {
+    InMemoryControlTransport transport =
+        new InMemoryControlTransport().setLatency(20, TimeUnit.MILLISECONDS);
+    Stopwatch w = Stopwatch.createStarted();
+    transport.check(TEST_SERVICE_NAME, CheckRequest.getDefaultInstance());
+    assertTrue(w.elapsed(TimeUnit.MILLISECONDS) >= 20);
+  }
+}
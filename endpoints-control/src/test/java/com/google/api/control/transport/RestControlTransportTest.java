@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.api.control.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.servicecontrol.v1.CheckRequest;
+import com.google.api.servicecontrol.v1.CheckResponse;
+import com.google.api.servicecontrol.v1.Operation;
+import com.google.api.servicecontrol.v1.ReportRequest;
+import com.google.api.servicecontrol.v1.ReportResponse;
+import com.google.api.services.servicecontrol.v1.ServiceControl;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.MessageLite;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@code RestControlTransport}, using a mock HTTP transport.
+ */
+@RunWith(JUnit4.class)
+public class RestControlTransportTest {
+  private static final String TEST_SERVICE_NAME = "testServiceName";
+  private static final String TEST_CONFIG_ID = "testConfigId";
+
+  private final FakeHttpTransport http = new FakeHttpTransport();
+
+  @Test
+  public void checkShouldSendAndParseTheBinaryEncoding() throws IOException {
+    http.response = CheckResponse.newBuilder().setServiceConfigId(TEST_CONFIG_ID).build();
+    CheckRequest req = CheckRequest.newBuilder()
+        .setServiceName(TEST_SERVICE_NAME)
+        .setOperation(Operation.newBuilder().setOperationId("anOperation"))
+        .build();
+
+    CheckResponse resp = newTransport(true).check(TEST_SERVICE_NAME, req);
+
+    assertEquals(TEST_CONFIG_ID, resp.getServiceConfigId());
+    assertTrue(http.lastRequest.getUrl().contains("alt=proto"));
+    assertEquals(req, CheckRequest.parseFrom(http.lastRequestBody()));
+  }
+
+  @Test
+  public void reportShouldGzipTheRequestBodyByDefault() throws IOException {
+    http.response = ReportResponse.newBuilder().setServiceConfigId(TEST_CONFIG_ID).build();
+    ReportRequest req = ReportRequest.newBuilder()
+        .setServiceName(TEST_SERVICE_NAME)
+        .addOperations(Operation.newBuilder().setOperationId("anOperation"))
+        .build();
+
+    ReportResponse resp = newTransport(true).report(TEST_SERVICE_NAME, req);
+
+    assertEquals(TEST_CONFIG_ID, resp.getServiceConfigId());
+    assertEquals("gzip", http.lastRequest.getContentEncoding());
+    assertEquals(req, ReportRequest.parseFrom(http.lastRequestBody()));
+  }
+
+  @Test
+  public void reportShouldNotGzipTheRequestBodyWhenDisabled() throws IOException {
+    http.response = ReportResponse.getDefaultInstance();
+    ReportRequest req = ReportRequest.newBuilder().setServiceName(TEST_SERVICE_NAME).build();
+
+    newTransport(false).report(TEST_SERVICE_NAME, req);
+
+    assertNull(http.lastRequest.getContentEncoding());
+    assertEquals(req, ReportRequest.parseFrom(http.lastRequestBody()));
+  }
+
+  @Test
+  public void checkShouldFailOnceTheDeadlineIsExceeded() throws IOException {
+    http.response = CheckResponse.getDefaultInstance();
+    http.responseDelayMillis = 5000; // within the connect and read timeouts of the deadline
+    CheckRequest req = CheckRequest.newBuilder()
+        .setServiceName(TEST_SERVICE_NAME)
+        .setOperation(Operation.newBuilder().setOperationId("anOperation"))
+        .build();
+    RestControlTransport transport = new RestControlTransport(
+        new ServiceControl.Builder(http, null).build(), new CallDeadlines(50, 50, 50), true);
+    long start = System.nanoTime();
+    try {
+      transport.check(TEST_SERVICE_NAME, req);
+      fail("should have raised SocketTimeoutException");
+    } catch (SocketTimeoutException e) {
+      // expected
+    } finally {
+      transport.close();
+    }
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+  }
+
+  private RestControlTransport newTransport(boolean gzipContent) {
+    return new RestControlTransport(new ServiceControl.Builder(http, null).build(),
+        CallDeadlines.NONE, gzipContent);
+  }
+
+  /**
+   * Records the last request and answers it with the binary encoding of {@code response}.
+   */
+  private static class FakeHttpTransport extends MockHttpTransport {
+    private MessageLite response;
+    private long responseDelayMillis;
+    private LowLevelHttpRequest lastRequest;
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+      MockLowLevelHttpRequest req = new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          if (responseDelayMillis > 0) {
+            try {
+              Thread.sleep(responseDelayMillis);
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+          }
+          return super.execute();
+        }
+      };
+      req.setResponse(new MockLowLevelHttpResponse()
+          .setContentType("application/x-protobuf")
+          .setContent(response.toByteArray()));
+      lastRequest = req;
+      return req;
+    }
+
+    private byte[] lastRequestBody() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      lastRequest.getStreamingContent().writeTo(out);
+      if (!"gzip".equals(lastRequest.getContentEncoding())) {
+        return out.toByteArray();
+      }
+      return ByteStreams.toByteArray(
+          new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+  }
+}